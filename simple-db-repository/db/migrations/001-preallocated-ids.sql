@@ -0,0 +1,27 @@
+-- Move an existing MySQL database from auto_increment keys to ids preallocated
+-- from ID_SEQUENCES. Run with the application stopped, after a backup. Each
+-- sequence starts at the highest id in use, the application reserves the ids
+-- above it in blocks.
+
+create table ID_SEQUENCES (
+    SEQ_NAME varchar(32) not null,
+    SEQ_COUNT bigint not null,
+    primary key (SEQ_NAME)
+);
+
+insert into ID_SEQUENCES (SEQ_NAME, SEQ_COUNT)
+    select 'USERS', coalesce(max(USER_ID), 0) from USERS;
+insert into ID_SEQUENCES (SEQ_NAME, SEQ_COUNT)
+    select 'ROLES', coalesce(max(ROLE_ID), 0) from ROLES;
+insert into ID_SEQUENCES (SEQ_NAME, SEQ_COUNT)
+    select 'USER_ATTRIBUTES', coalesce(max(ID), 0) from USER_ATTRIBUTES;
+
+-- Keys referenced by foreign keys can only be altered with the checks off.
+-- Only auto_increment is dropped, the column types stay the same.
+set foreign_key_checks = 0;
+
+alter table USERS modify USER_ID int not null;
+alter table ROLES modify ROLE_ID int not null;
+alter table USER_ATTRIBUTES modify ID int not null;
+
+set foreign_key_checks = 1;
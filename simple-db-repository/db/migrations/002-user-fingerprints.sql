@@ -0,0 +1,5 @@
+-- Add the fingerprint the directory reconciliation compares each feed row
+-- against. Existing users start without one, the first reconciliation
+-- rewrites every user found in the feed and records it.
+
+alter table USERS add column FINGERPRINT char(64);
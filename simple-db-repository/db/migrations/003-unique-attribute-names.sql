@@ -0,0 +1,11 @@
+-- Saving user info used to add a new row for every attribute on each save.
+-- Keep the latest row of each attribute name per user, then make the name
+-- unique per user. Run with the application stopped, after a backup.
+
+delete a from USER_ATTRIBUTES a
+    inner join USER_ATTRIBUTES b
+        on a.USER_ID = b.USER_ID and a.ATTR_NAME = b.ATTR_NAME and a.ID < b.ID;
+
+alter table USER_ATTRIBUTES
+    add constraint UK_USER_ATTRIBUTES_NAME
+    unique (USER_ID, ATTR_NAME);
@@ -0,0 +1,7 @@
+-- Index attribute values so users can be found by an attribute without
+-- reading every attribute row. Only a prefix of the value is indexed, which
+-- keeps the key within InnoDB's limit for a utf8mb4 column. Lookups on longer
+-- values still use the index and check the rest of the value in the row.
+
+create index IX_USER_ATTRIBUTES_VALUE
+    on USER_ATTRIBUTES (ATTR_NAME, ATTR_VALUE(191), USER_ID);
@@ -0,0 +1,14 @@
+-- Add the table promoted attributes are kept in, with a column for TITLE.
+-- The existing TITLE attributes are moved over in the background by the
+-- promotedAttributeMigrator once the application runs, nothing is copied
+-- here. To promote another attribute add a column and index like TITLE's
+-- and declare it on the attributeSchema bean.
+
+create table USER_PROMOTED_ATTRIBUTES (
+    USER_ID int not null,
+    TITLE varchar(191),
+    primary key (USER_ID)
+);
+
+create index IX_USER_PROMOTED_TITLE
+    on USER_PROMOTED_ATTRIBUTES (TITLE);
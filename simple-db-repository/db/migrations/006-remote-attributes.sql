@@ -0,0 +1,35 @@
+-- Move remote attributes (ATTR_TYPE 1) and their access tokens out of
+-- USER_ATTRIBUTES, so reading a profile only reads small name and value
+-- rows. Run with the application stopped, after a backup. The moved rows keep
+-- their ids, the new sequence starts above the highest of them.
+
+create table USER_REMOTE_ATTRIBUTES (
+    ID int not null,
+    USER_ID int,
+    ATTR_NAME varchar(64) not null,
+    ATTR_VALUE varchar(1024),
+    ACCESS_TOKEN varchar(1024),
+    TOKEN_EXPIRATION datetime,
+    primary key (ID)
+);
+
+alter table USER_REMOTE_ATTRIBUTES
+    add constraint FK_USER_REMOTE_ATTRIBUTES
+    foreign key (USER_ID)
+    references USERS(USER_ID);
+
+create index IX_USER_REMOTE_ATTRIBUTES_USER
+    on USER_REMOTE_ATTRIBUTES (USER_ID);
+
+insert into USER_REMOTE_ATTRIBUTES (ID, USER_ID, ATTR_NAME, ATTR_VALUE, ACCESS_TOKEN, TOKEN_EXPIRATION)
+    select ID, USER_ID, ATTR_NAME, ATTR_VALUE, ACCESS_TOKEN, TOKEN_EXPIRATION
+    from USER_ATTRIBUTES where ATTR_TYPE = 1;
+
+insert into ID_SEQUENCES (SEQ_NAME, SEQ_COUNT)
+    select 'USER_REMOTE_ATTRIBUTES', coalesce(max(ID), 0) from USER_REMOTE_ATTRIBUTES;
+
+delete from USER_ATTRIBUTES where ATTR_TYPE = 1;
+
+alter table USER_ATTRIBUTES
+    drop column ACCESS_TOKEN,
+    drop column TOKEN_EXPIRATION;
@@ -0,0 +1,7 @@
+-- Index the expiration of remote access tokens, the remoteTokenSweeper reads
+-- the tokens about to expire through it. TOKEN_EXPIRATION now keeps the time
+-- of day as well, tokens saved before only have a date and so expire at its
+-- start.
+
+create index IX_USER_REMOTE_ATTRIBUTES_EXPIRATION
+    on USER_REMOTE_ATTRIBUTES (TOKEN_EXPIRATION);
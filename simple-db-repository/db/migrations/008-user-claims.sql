@@ -0,0 +1,15 @@
+-- Add the table the claims documents are kept in, claimsDocuments is on in
+-- local-config.xml and saving a user fails without it. Databases that
+-- already have it from an older schema.ddl only get the wider column, a
+-- user with several long attribute values overflowed varchar(8000). Users
+-- get their document when they are next saved, until then it is rendered
+-- on request.
+
+create table if not exists USER_CLAIMS (
+	USER_ID int not null,
+	USERNAME varchar(48) not null unique,
+	CLAIMS_JSON mediumtext not null,
+	primary key (USER_ID)
+);
+
+alter table USER_CLAIMS modify CLAIMS_JSON mediumtext not null;
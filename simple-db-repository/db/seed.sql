@@ -1,8 +1,11 @@
-INSERT INTO ROLES (ROLE_NAME, ROLE_DESCRIPTION) VALUES ('ADMIN', 'The administrator role');
-INSERT INTO ROLES (ROLE_NAME, ROLE_DESCRIPTION) VALUES ('USER', 'The user role');
+INSERT INTO ROLES (ROLE_ID, ROLE_NAME, ROLE_DESCRIPTION) VALUES (1, 'ADMIN', 'The administrator role');
+INSERT INTO ROLES (ROLE_ID, ROLE_NAME, ROLE_DESCRIPTION) VALUES (2, 'USER', 'The user role');
 
-INSERT INTO USERS (EMAIL, FIRST_NAME, CONFIRMED, FAILED_ATTEMPTS, PASSWORD_HASH, JAMES_PASSWORD_HASH, PASSWORD_SALT, USERNAME, UPDATED) 
-	VALUES ('admin@rhex.us', 'admin', true, 0, '3bfc3a77980fc82fce8d486a29c0eb088195194e2b4415e7c0ad3127996ffac4', '9djPJw6Cz/ASurswYxn/oTmD', 469722569, 'admin', NOW());
+INSERT INTO USERS (USER_ID, EMAIL, FIRST_NAME, CONFIRMED, FAILED_ATTEMPTS, PASSWORD_HASH, JAMES_PASSWORD_HASH, PASSWORD_SALT, USERNAME, UPDATED) 
+	VALUES (1, 'admin@rhex.us', 'admin', true, 0, '3bfc3a77980fc82fce8d486a29c0eb088195194e2b4415e7c0ad3127996ffac4', '9djPJw6Cz/ASurswYxn/oTmD', 469722569, 'admin', NOW());
+
+UPDATE ID_SEQUENCES SET SEQ_COUNT = 2 WHERE SEQ_NAME = 'ROLES';
+UPDATE ID_SEQUENCES SET SEQ_COUNT = 1 WHERE SEQ_NAME = 'USERS';
 
 INSERT INTO USERS_ROLES (USER_ID, ROLE_ID) SELECT u.USER_ID, r.ROLE_ID FROM USERS u, ROLES r WHERE u.USERNAME = 'admin' and r.ROLE_NAME = 'ADMIN';
 INSERT INTO USERS_ROLES (USER_ID, ROLE_ID) SELECT u.USER_ID, r.ROLE_ID FROM USERS u, ROLES r WHERE u.USERNAME = 'admin' and r.ROLE_NAME = 'USER';
\ No newline at end of file
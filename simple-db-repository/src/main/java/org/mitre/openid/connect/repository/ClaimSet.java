@@ -0,0 +1,68 @@
+package org.mitre.openid.connect.repository;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The groups of user info claims a client may ask for. Each group lists the
+ * user properties it is built from, so a lookup can read only what was
+ * requested.
+ */
+public enum ClaimSet {
+    PROFILE ("profile", "firstname", "middlename", "lastname", "nickname", 
+    		"profile", "picture", "website", "gender", "zoneinfo", "locale", 
+    		"updated"),
+    EMAIL ("email", "email", "emailConfirmed"),
+    ADDRESS ("address", "formattedAddress", "street", "locality", "region", 
+    		"postalCode", "country"),
+    PHONE ("phone", "phone"),
+    /**
+     * The extended attributes, not a standard scope
+     */
+    EXTENDED ("extended");
+
+    private final String scope;
+    private final String[] properties;
+
+    private ClaimSet(String scope, String... properties) {
+        this.scope = scope;
+        this.properties = properties;
+    }
+
+    /**
+     * @return the OAuth scope that requests the claims
+     */
+    public String getScope() {
+        return scope;
+    }
+
+    /**
+     * @return the names of the user properties the claims are built from
+     */
+    public String[] getProperties() {
+        return properties.clone();
+    }
+
+    /**
+     * Find the claims requested by a space separated scope string, e.g.
+     * <code>openid email</code>. Unknown scopes are ignored.
+     * 
+     * @param scope
+     *            the scope string, may be <code>null</code>
+     * @return the requested claim sets, never <code>null</code>
+     */
+    public static Set<ClaimSet> fromScope(String scope) {
+        Set<ClaimSet> rval = EnumSet.noneOf(ClaimSet.class);
+        if (scope == null) {
+            return rval;
+        }
+        for (String s : scope.trim().split("\\s+")) {
+            for (ClaimSet set : values()) {
+                if (set.scope.equals(s)) {
+                    rval.add(set);
+                }
+            }
+        }
+        return rval;
+    }
+}
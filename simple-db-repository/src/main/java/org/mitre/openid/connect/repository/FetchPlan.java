@@ -0,0 +1,51 @@
+package org.mitre.openid.connect.repository;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The slice of a user a caller needs. Lookups taking a plan select only the
+ * columns of its attributes, the rest of the user is loaded on first use,
+ * one user at a time. A plan therefore lists the associations its callers
+ * walk as well, they are then loaded by the batch fetch of the query.
+ * Partial reads need the entities to be woven, without weaving every plan
+ * reads the whole user.
+ */
+public enum FetchPlan {
+	/**
+	 * What password checks and lockout need
+	 */
+	CREDENTIAL("username", "passwordSalt", "passwordHash", "failedAttempts"),
+	/**
+	 * What the user list pages show
+	 */
+	SUMMARY("username", "firstname", "lastname", "email", "attributes"),
+	/**
+	 * The columns that make up the user info claims
+	 */
+	PROFILE("username", "email", "emailConfirmed", "firstname",
+			"middlename", "lastname", "nickname", "profile", "picture",
+			"website", "gender", "zoneinfo", "locale", "phone",
+			"formattedAddress", "street", "locality", "region", "country",
+			"postalCode", "updated", "attributes", "roles"),
+	/**
+	 * Every column, for callers that edit and save the user
+	 */
+	FULL();
+
+	private final List<String> attributes;
+
+	private FetchPlan(String... attributes) {
+		this.attributes = Collections.unmodifiableList(Arrays
+				.asList(attributes));
+	}
+
+	/**
+	 * @return the user attributes read up front, the id is always read as
+	 *         well. Empty for {@link #FULL}, which reads every attribute.
+	 */
+	public List<String> getAttributes() {
+		return attributes;
+	}
+}
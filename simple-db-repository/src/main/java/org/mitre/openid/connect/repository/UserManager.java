@@ -19,12 +19,14 @@
 package org.mitre.openid.connect.repository;
 
 import java.net.URL;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
 import javax.naming.AuthenticationException;
 
 import org.mitre.openid.connect.model.UserInfo;
+import org.mitre.openid.connect.repository.db.BatchResult;
 import org.mitre.openid.connect.repository.db.LockedUserException;
 import org.mitre.openid.connect.repository.db.PasswordException;
 import org.mitre.openid.connect.repository.db.UserException;
@@ -53,6 +55,29 @@ public interface UserManager {
      */
     User get(String username);
 
+    /**
+     * Lookup user by name, reading only the attributes of the plan up front
+     * 
+     * @param username
+     *            the given user name, never <code>null</code> or empty
+     * @param plan
+     *            the attributes the caller needs, never <code>null</code>
+     * @return return user description or <code>null</code> if not found
+     */
+    User get(String username, FetchPlan plan);
+
+    /**
+     * Lookup a set of users by name with one query per chunk of names, fetching
+     * their roles and attributes in bulk, and their remote attributes in bulk
+     * once any of them is walked
+     * 
+     * @param usernames
+     *            the user names, never <code>null</code>
+     * @return the users found keyed by the requested name, in the order the
+     *         names were given. Names that were not found are left out.
+     */
+    Map<String, User> get(Collection<String> usernames);
+
     /**
      * Lookup user by id
      * 
@@ -63,7 +88,30 @@ public interface UserManager {
     User findById(Long id);
 
     /**
-     * Save user
+     * Lookup user by id, reading only the attributes of the plan up front
+     * 
+     * @param id
+     *            user id
+     * @param plan
+     *            the attributes the caller needs, never <code>null</code>
+     * @return return user or <code>null</code> if not found
+     */
+    User findById(Long id, FetchPlan plan);
+
+    /**
+     * Lookup a set of users by id with one query per chunk of ids, fetching
+     * their roles and attributes in bulk
+     * 
+     * @param ids
+     *            the user ids, never <code>null</code>
+     * @return the users found keyed by id, in the order the ids were given.
+     *         Ids that were not found are left out.
+     */
+    Map<Long, User> findByIds(Collection<Long> ids);
+
+    /**
+     * Save user. The user no longer matches the directory feed it may have
+     * been reconciled with, so its fingerprint is cleared.
      * 
      * @param user
      *            , never <code>null</code>
@@ -93,6 +141,77 @@ public interface UserManager {
      */
     void deleteRole(String rolename);
 
+    /**
+     * Delete role, first moving every holder of the role to another role.
+     * Executes as set based statements against the role membership table.
+     * 
+     * @param rolename
+     *            the role to delete, never <code>null</code> or empty
+     * @param reassignTo
+     *            the role given to the holders of the deleted role, created if
+     *            needed, never <code>null</code> or empty
+     * @return the number of users that were newly given the replacement role
+     */
+    int deleteRole(String rolename, String reassignTo);
+
+    /**
+     * Rename a role, keeping all its holders
+     * 
+     * @param rolename
+     *            the existing role name, never <code>null</code> or empty
+     * @param newname
+     *            the new role name, never <code>null</code> or empty and not
+     *            already in use
+     */
+    void renameRole(String rolename, String newname);
+
+    /**
+     * Grant a role to a set of users without loading them. Users that already
+     * hold the role are skipped.
+     * 
+     * @param rolename
+     *            the role, created if needed, never <code>null</code> or empty
+     * @param userIds
+     *            the users to grant the role to, never <code>null</code>
+     * @return the number of users newly given the role
+     */
+    int grantRole(String rolename, Collection<Long> userIds);
+
+    /**
+     * Grant a role to every user whose name matches the pattern
+     * 
+     * @param rolename
+     *            the role, created if needed, never <code>null</code> or empty
+     * @param likePattern
+     *            a pattern to pass to the like clause, as for
+     *            {@link #find(String)}
+     * @return the number of users newly given the role
+     */
+    int grantRole(String rolename, String likePattern);
+
+    /**
+     * Revoke a role from a set of users without loading them
+     * 
+     * @param rolename
+     *            the role, never <code>null</code> or empty
+     * @param userIds
+     *            the users to revoke the role from, never <code>null</code>
+     * @return the number of users that lost the role
+     */
+    int revokeRole(String rolename, Collection<Long> userIds);
+
+    /**
+     * Revoke a role from every user whose name matches the pattern
+     * 
+     * @param rolename
+     *            the role, never <code>null</code> or empty
+     * @param likePattern
+     *            a pattern to pass to the like clause, as for
+     *            {@link #find(String)}
+     * @return the number of users that lost the role
+     */
+    int revokeRole(String rolename, String likePattern);
+
     /**
      * Find role by name. May be used to find roles in order to add
      * roles to a user.
@@ -125,6 +244,36 @@ public interface UserManager {
     void add(String username, String password) throws PasswordException,
             UserException;
 
+    /**
+     * Add many users at once. Rows are validated and checked for existing
+     * names in bulk, passwords are hashed in parallel and the users are
+     * inserted in chunks, clearing the persistence context after each chunk.
+     * Rows that fail do not stop the others. Everything is stored in the
+     * caller's transaction, entities the caller loaded earlier in it are
+     * detached.
+     * 
+     * @param passwords
+     *            the password of each new user keyed by user name, in the
+     *            order rows should be reported, never <code>null</code>
+     * @return one result per row, in the order given
+     */
+    List<BatchResult> addAll(Map<String, String> passwords);
+
+    /**
+     * Save many users at once, as {@link #save(User)} does for one. Users
+     * without an id are inserted unless their name is taken, which is checked
+     * in bulk; they must carry their password hashes. Users with an id are
+     * updated, an id that no user has is reported as invalid. The
+     * persistence context is cleared after each chunk, as for
+     * {@link #addAll(Map)}. Unlike {@link #save(User)} the fingerprints are
+     * written as given, the importer sets them.
+     * 
+     * @param users
+     *            the users, never <code>null</code>
+     * @return one result per user, in the order given
+     */
+    List<BatchResult> saveAll(List<User> users);
+
     /**
      * Check confirmation string against saved hash. If confirmed set the email
      * confirmed state if not already set.
@@ -198,7 +347,74 @@ public interface UserManager {
      * @return a list of matching users
      */
     List<User> find(String likePattern);
+
+    /**
+     * Find a subset of users, reading only the attributes of the plan up
+     * front
+     * 
+     * @param likePattern
+     *            a pattern to pass to the like clause
+     * @param plan
+     *            the attributes the caller needs, never <code>null</code>
+     * @return a list of matching users
+     */
+    List<User> find(String likePattern, FetchPlan plan);
     
+    /**
+     * Find the users with a normal attribute of the given value. The lookup
+     * is served by the index on attribute name and value, or for a promoted
+     * attribute by its column.
+     * 
+     * @param name
+     *            the attribute name, matched ignoring case, never
+     *            <code>null</code> or empty
+     * @param value
+     *            the exact value, never <code>null</code>
+     * @return the matching users in id order, possibly an empty list
+     */
+    List<User> findByAttribute(String name, String value);
+
+    /**
+     * Retrieve a page of the users with a normal attribute whose value starts
+     * with the given prefix. A promoted attribute must be of type STRING.
+     * 
+     * @param name
+     *            the attribute name, matched ignoring case, never
+     *            <code>null</code> or empty
+     * @param prefix
+     *            the start of the value, taken literally, never
+     *            <code>null</code>
+     * @param first
+     *            initial offset into the matches
+     * @param count
+     *            the number of results to return (maximum)
+     * @return the matching users ordered by attribute value, then id
+     */
+    List<User> findByAttributePrefix(String name, String prefix, int first,
+            int count);
+
+    /**
+     * Retrieve a page of the users with a normal attribute whose value lies
+     * in the given range, comparing as the database collation does. A
+     * promoted attribute is compared by the type of its column.
+     * 
+     * @param name
+     *            the attribute name, matched ignoring case, never
+     *            <code>null</code> or empty
+     * @param from
+     *            the lowest value, included, never <code>null</code>
+     * @param to
+     *            the value ending the range, excluded, never
+     *            <code>null</code>
+     * @param first
+     *            initial offset into the matches
+     * @param count
+     *            the number of results to return (maximum)
+     * @return the matching users ordered by attribute value, then id
+     */
+    List<User> findByAttributeRange(String name, String from, String to,
+            int first, int count);
+
     /**
      * Find user or users that match a give user name. 
      * @param username the user's name given as a proper string. It should be lower cased before being passed in.
@@ -215,7 +431,41 @@ public interface UserManager {
      *            the number of results to return (maximum)
      * @param sortBy
      *            the attribute to sort by
-     * @return user objects in a list, possibly an empty set
+     * @return user objects in a list, possibly an empty set. The list and
+     *         its maps are unmodifiable since pages may be cached and shared
+     *         between callers.
      */
     List<Map<String, String>> findInRange(int first, int count, SortBy sortBy);
+
+    /**
+     * Check role membership
+     *
+     * @param id
+     *            user id, never <code>null</code>
+     * @param rolename
+     *            the role, never <code>null</code> or empty
+     * @return <code>true</code> if the user holds the role
+     */
+    boolean hasRole(Long id, String rolename);
+
+    /**
+     * @param rolename
+     *            the role, never <code>null</code> or empty
+     * @return the number of users holding the role
+     */
+    int countInRole(String rolename);
+
+    /**
+     * Retrieve a page of the ids of users holding the given role, in ascending
+     * id order
+     *
+     * @param rolename
+     *            the role, never <code>null</code> or empty
+     * @param first
+     *            initial offset into the role's members
+     * @param count
+     *            the number of results to return (maximum)
+     * @return user ids, possibly an empty list
+     */
+    List<Long> findIdsInRole(String rolename, int first, int count);
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+package org.mitre.openid.connect.repository.db;
+
+/**
+ * The outcome of one row of a bulk user operation
+ */
+public class BatchResult {
+	public enum Status {
+		/**
+		 * The user was inserted
+		 */
+		CREATED,
+		/**
+		 * The existing user was updated
+		 */
+		UPDATED,
+		/**
+		 * A user of that name already exists, nothing was stored
+		 */
+		EXISTS,
+		/**
+		 * The row failed validation or a password rule, nothing was stored
+		 */
+		INVALID
+	}
+
+	private final int index;
+	private final String username;
+	private final Status status;
+	private final String message;
+
+	/**
+	 * @param index
+	 *            the position of the row in the request
+	 * @param username
+	 *            the user name of the row, may be <code>null</code> if the
+	 *            row had none
+	 * @param status
+	 *            the outcome, never <code>null</code>
+	 * @param message
+	 *            why the row was rejected, or <code>null</code>
+	 */
+	public BatchResult(int index, String username, Status status, String message) {
+		if (status == null) {
+			throw new IllegalArgumentException("status should never be null");
+		}
+		this.index = index;
+		this.username = username;
+		this.status = status;
+		this.message = message;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return <code>true</code> if the row was stored
+	 */
+	public boolean isStored() {
+		return status == Status.CREATED || status == Status.UPDATED;
+	}
+
+	@Override
+	public String toString() {
+		return index + ":" + username + ":" + status
+				+ (message != null ? ":" + message : "");
+	}
+}
@@ -0,0 +1,53 @@
+package org.mitre.openid.connect.repository.db;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import org.mitre.openid.connect.model.UserInfo;
+import org.mitre.openid.connect.repository.ClaimSet;
+import org.mitre.openid.connect.repository.UserInfoRepository;
+
+/**
+ * Additional lookups beyond those defined in the core
+ * {@link UserInfoRepository} interface.
+ */
+public interface EnhancedUserInfoRepository extends UserInfoRepository {
+	/**
+	 * Lookup the user info of a set of users at once, e.g. to resolve claims
+	 * for a roster of subjects. Much cheaper than calling
+	 * {@link UserInfoRepository#getByUserId(String)} in a loop.
+	 * 
+	 * @param userIds
+	 *            the user ids (user names), never <code>null</code>
+	 * @return the user info found keyed by user id, in the order the ids were
+	 *         given. Ids that were not found are left out.
+	 */
+	Map<String, UserInfo> getByUserIds(Collection<String> userIds);
+
+	/**
+	 * Lookup the user info with only the requested claims filled in. Only the
+	 * columns behind those claims are read, and the extended attributes are
+	 * only read if {@link ClaimSet#EXTENDED} is requested. The user id is
+	 * always present.
+	 * 
+	 * @param userId
+	 *            the user id (user name), never <code>null</code> or empty
+	 * @param claims
+	 *            the claims to fill in, never <code>null</code>, see
+	 *            {@link ClaimSet#fromScope(String)}
+	 * @return the user info, or <code>null</code> if not found
+	 */
+	UserInfo getByUserId(String userId, Set<ClaimSet> claims);
+
+	/**
+	 * Retrieve the user info of a user as a JSON document, suitable for
+	 * writing straight to a response. The document maintained on save is used
+	 * when there is one, otherwise it is rendered from the user.
+	 * 
+	 * @param userId
+	 *            the user id (user name), never <code>null</code> or empty
+	 * @return the JSON document, or <code>null</code> if the user is not found
+	 */
+	String getClaimsDocument(String userId);
+}
@@ -0,0 +1,116 @@
+package org.mitre.openid.connect.repository.db;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An in-memory index of role membership. The index answers membership, count
+ * and paging questions about roles without joining USERS_ROLES at query time.
+ * The database remains the source of truth, the index is rebuilt from it on
+ * startup and periodically verified against it.
+ */
+public interface IRoleIndex {
+	/**
+	 * Rebuild the index from the role membership table, replacing the current
+	 * contents.
+	 */
+	void rebuild();
+
+	/**
+	 * Compare the index against the role membership table. If the two differ
+	 * the index is replaced with the table's contents.
+	 *
+	 * @return <code>true</code> if the index was consistent with the table
+	 */
+	boolean verify();
+
+	/**
+	 * Replace the recorded roles for the given user
+	 *
+	 * @param userId
+	 *            the user's id, never <code>null</code>
+	 * @param rolenames
+	 *            the complete set of role names the user now holds, never
+	 *            <code>null</code>
+	 */
+	void update(Long userId, Collection<String> rolenames);
+
+	/**
+	 * Remove the given user from every role
+	 *
+	 * @param userId
+	 *            the user's id, never <code>null</code>
+	 */
+	void remove(Long userId);
+
+	/**
+	 * Record that a role was granted to a set of users. The ids are not
+	 * checked against the users table, the caller passes only users that
+	 * exist. A user deleted meanwhile is dropped by {@link #remove(Long)} or
+	 * the next {@link #verify()}.
+	 *
+	 * @param rolename
+	 *            the role, never <code>null</code> or empty
+	 * @param userIds
+	 *            the users, never <code>null</code>
+	 */
+	void grant(String rolename, Collection<Long> userIds);
+
+	/**
+	 * Record that a role was revoked from a set of users
+	 *
+	 * @param rolename
+	 *            the role, never <code>null</code> or empty
+	 * @param userIds
+	 *            the users, never <code>null</code>
+	 */
+	void revoke(String rolename, Collection<Long> userIds);
+
+	/**
+	 * Record that a role was renamed
+	 *
+	 * @param rolename
+	 *            the existing role name, never <code>null</code> or empty
+	 * @param newname
+	 *            the new role name, never <code>null</code> or empty
+	 */
+	void rename(String rolename, String newname);
+
+	/**
+	 * Record that a role was deleted along with all of its memberships
+	 *
+	 * @param rolename
+	 *            the role, never <code>null</code> or empty
+	 */
+	void drop(String rolename);
+
+	/**
+	 * @param userId
+	 *            the user's id, never <code>null</code>
+	 * @param rolename
+	 *            the role, never <code>null</code> or empty
+	 * @return <code>true</code> if the user holds the role
+	 */
+	boolean isMember(Long userId, String rolename);
+
+	/**
+	 * @param rolename
+	 *            the role, never <code>null</code> or empty
+	 * @return the number of users holding the role
+	 */
+	int count(String rolename);
+
+	/**
+	 * Retrieve a page of the ids of the users holding a role, in ascending id
+	 * order
+	 *
+	 * @param rolename
+	 *            the role, never <code>null</code> or empty
+	 * @param first
+	 *            initial offset into the role's members
+	 * @param count
+	 *            the number of ids to return (maximum)
+	 * @return the user ids, possibly an empty list
+	 */
+	List<Long> userIds(String rolename, int first, int count);
+}
@@ -0,0 +1,21 @@
+package org.mitre.openid.connect.repository.db;
+
+import org.mitre.openid.connect.repository.db.model.RemoteUserAttribute;
+
+/**
+ * Obtains a new access token for a remote attribute whose token is about to
+ * expire, see
+ * {@link org.mitre.openid.connect.repository.db.impl.RemoteTokenSweeper}
+ */
+public interface ITokenRefresher {
+	/**
+	 * Refresh the token of a remote attribute
+	 * 
+	 * @param attribute
+	 *            the remote attribute, not managed, never <code>null</code>.
+	 *            On success its access token and expiration are replaced.
+	 * @return <code>true</code> if the token was refreshed,
+	 *         <code>false</code> if the token should be left to expire
+	 */
+	boolean refresh(RemoteUserAttribute attribute);
+}
@@ -0,0 +1,55 @@
+package org.mitre.openid.connect.repository.db;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published once a change to a user has been committed. Listeners holding
+ * copies of user data, e.g. caches keyed by user name, should drop them.
+ */
+public class UserChangedEvent extends ApplicationEvent {
+	private static final long serialVersionUID = 1L;
+
+	private final Long userId;
+	private final Set<String> usernames;
+
+	/**
+	 * @param source
+	 *            the component that made the change
+	 * @param userId
+	 *            the database id of the user, may be <code>null</code> if not
+	 *            known
+	 * @param usernames
+	 *            every name the user was known by before and after the change,
+	 *            <code>null</code> entries are ignored
+	 */
+	public UserChangedEvent(Object source, Long userId, String... usernames) {
+		super(source);
+		this.userId = userId;
+		Set<String> names = new LinkedHashSet<String>();
+		for (String username : usernames) {
+			if (username != null) {
+				names.add(username);
+			}
+		}
+		this.usernames = Collections.unmodifiableSet(names);
+	}
+
+	/**
+	 * @return the database id of the user, may be <code>null</code>
+	 */
+	public Long getUserId() {
+		return userId;
+	}
+
+	/**
+	 * @return the names the user was known by before and after the change,
+	 *         never <code>null</code>
+	 */
+	public Set<String> getUsernames() {
+		return usernames;
+	}
+}
@@ -0,0 +1,127 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads comma separated rows with a header line naming the fields. Values
+ * may be quoted, a quoted value can hold commas, line breaks and doubled
+ * quotes as RFC 4180 describes. Only the current row is ever held in memory.
+ */
+public class CsvRowReader implements RowReader {
+	private static final int EOF = -1;
+
+	private final Reader in;
+	private List<String> header;
+	private long number = 0;
+	private int pushback = EOF - 1;
+
+	/**
+	 * @param in
+	 *            the file, never <code>null</code>. Wrap it in a buffered
+	 *            reader, it is read a character at a time.
+	 */
+	public CsvRowReader(Reader in) {
+		if (in == null) {
+			throw new IllegalArgumentException("in should never be null");
+		}
+		this.in = in;
+	}
+
+	public ImportRow next() throws IOException {
+		if (header == null) {
+			header = new ArrayList<String>();
+			List<String> names = readRecord();
+			if (names == null) {
+				return null;
+			}
+			for (String name : names) {
+				header.add(name.trim().toLowerCase());
+			}
+		}
+		List<String> values;
+		do {
+			values = readRecord();
+			if (values == null) {
+				return null;
+			}
+			number++;
+			// Skip blank lines
+		} while (values.size() == 1 && values.get(0).length() == 0);
+		if (values.size() > header.size()) {
+			return new ImportRow(number, "Row has " + values.size()
+					+ " values but the header names " + header.size());
+		}
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		for (int i = 0; i < values.size(); i++) {
+			fields.put(header.get(i), values.get(i));
+		}
+		return new ImportRow(number, fields);
+	}
+
+	/**
+	 * @return the values of the next record, or <code>null</code> at the end
+	 *         of the file
+	 */
+	private List<String> readRecord() throws IOException {
+		int c = read();
+		if (c == EOF) {
+			return null;
+		}
+		List<String> values = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		while (true) {
+			if (quoted) {
+				if (c == EOF) {
+					throw new IOException("Unterminated quoted value in row "
+							+ (number + 1));
+				} else if (c == '"') {
+					int n = read();
+					if (n == '"') {
+						value.append('"');
+					} else {
+						quoted = false;
+						pushback = n;
+					}
+				} else {
+					value.append((char) c);
+				}
+			} else if (c == '"' && value.length() == 0) {
+				quoted = true;
+			} else if (c == ',') {
+				values.add(value.toString());
+				value.setLength(0);
+			} else if (c == '\r' || c == '\n' || c == EOF) {
+				if (c == '\r') {
+					int n = read();
+					if (n != '\n') {
+						pushback = n;
+					}
+				}
+				values.add(value.toString());
+				return values;
+			} else {
+				value.append((char) c);
+			}
+			c = read();
+		}
+	}
+
+	private int read() throws IOException {
+		if (pushback >= EOF) {
+			int c = pushback;
+			pushback = EOF - 1;
+			return c;
+		}
+		return in.read();
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
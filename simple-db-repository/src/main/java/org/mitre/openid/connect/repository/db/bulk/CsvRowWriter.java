@@ -0,0 +1,83 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes comma separated rows under a header line naming the columns, in the
+ * form {@link CsvRowReader} reads
+ */
+public class CsvRowWriter implements RowWriter {
+	private final Writer out;
+	private final List<String> columns;
+	private boolean started = false;
+
+	/**
+	 * @param out
+	 *            the file, never <code>null</code>
+	 * @param columns
+	 *            the columns to write, in order, never <code>null</code>
+	 */
+	public CsvRowWriter(Writer out, List<String> columns) {
+		if (out == null) {
+			throw new IllegalArgumentException("out should never be null");
+		}
+		if (columns == null || columns.isEmpty()) {
+			throw new IllegalArgumentException(
+					"columns should never be null or empty");
+		}
+		this.out = out;
+		this.columns = new ArrayList<String>(columns);
+	}
+
+	public void write(Map<String, String> row) throws IOException {
+		if (!started) {
+			writeLine(columns);
+			started = true;
+		}
+		List<String> values = new ArrayList<String>(columns.size());
+		for (String column : columns) {
+			values.add(row.get(column));
+		}
+		writeLine(values);
+	}
+
+	private void writeLine(List<String> values) throws IOException {
+		for (int i = 0; i < values.size(); i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+			String value = values.get(i);
+			if (value == null) {
+				continue;
+			}
+			if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+					&& value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+				out.write(value);
+			} else {
+				out.write('"');
+				out.write(value.replace("\"", "\"\""));
+				out.write('"');
+			}
+		}
+		out.write("\r\n");
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Writes the header even if there were no rows
+	 */
+	public void close() throws IOException {
+		if (!started) {
+			writeLine(columns);
+			started = true;
+		}
+		out.close();
+	}
+}
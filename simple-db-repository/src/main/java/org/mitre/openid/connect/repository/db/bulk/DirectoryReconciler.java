@@ -0,0 +1,333 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.model.Role;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Brings the users in line with a full feed from an upstream directory,
+ * touching only the users that differ. Each feed row is reduced to a
+ * fingerprint of its content, which is stored with the user it was applied
+ * to. The feed, sorted by user name, is merged with the stored user names
+ * and fingerprints read in the same order a page at a time: rows whose
+ * fingerprint matches cost nothing, other rows are stored through
+ * {@link UserImporter} with blank values clearing what they name and roles
+ * replacing the roles held, and users missing from the feed are deleted once
+ * the whole feed has been merged. Saving a user here clears its fingerprint,
+ * so a local change is undone by the next reconciliation.
+ * <p>
+ * Names are ordered ignoring case, as the user name column of a MySQL
+ * database is. The merge stops without deleting anyone if either the feed or
+ * the stored names turn out not to be in that order. Passwords are left out
+ * of the fingerprint, so a changed password alone is not applied.
+ */
+public class DirectoryReconciler {
+	private static final Logger logger = LoggerFactory
+			.getLogger(DirectoryReconciler.class);
+
+	/**
+	 * The order of the feed and of the stored names
+	 */
+	private static final Comparator<String> ORDER = String.CASE_INSENSITIVE_ORDER;
+
+	@Autowired
+	private UserManager userManager;
+	@Autowired
+	private UserImporter userImporter;
+	@PersistenceUnit
+	private EntityManagerFactory entityManagerFactory;
+
+	private int pageSize = 1000;
+	private int batchSize = 500;
+	private int maxDeletes = Integer.MAX_VALUE;
+	private Set<String> protectedUsernames = new HashSet<String>();
+
+	/**
+	 * Reads the stored user names and fingerprints in name order, a page at a
+	 * time
+	 */
+	private class StoredUsers {
+		private List<Object[]> page = new ArrayList<Object[]>();
+		private int next = 0;
+		private String last = "";
+		private boolean done = false;
+
+		/**
+		 * @return the id, user name and fingerprint of the next user, or
+		 *         <code>null</code> after the last
+		 */
+		Object[] next() {
+			if (next == page.size()) {
+				if (done) {
+					return null;
+				}
+				EntityManager em = entityManagerFactory.createEntityManager();
+				try {
+					@SuppressWarnings("unchecked")
+					List<Object[]> rows = em.createNamedQuery("users.fingerprints_after")
+							.setParameter("after", last)
+							.setMaxResults(pageSize).getResultList();
+					page = rows;
+				} finally {
+					em.close();
+				}
+				next = 0;
+				done = page.size() < pageSize;
+				if (page.isEmpty()) {
+					return null;
+				}
+			}
+			Object[] row = page.get(next++);
+			String username = (String) row[1];
+			if (last.length() > 0 && ORDER.compare(last, username) >= 0) {
+				throw new IllegalStateException("The database orders user "
+						+ username + " after " + last
+						+ ", its collation does not ignore case");
+			}
+			last = username;
+			return row;
+		}
+	}
+
+	/**
+	 * Reconcile the users with a feed
+	 *
+	 * @param feed
+	 *            every user of the directory, sorted by user name ignoring
+	 *            case, never <code>null</code>. Not closed here.
+	 * @param listener
+	 *            hears about rejected rows and committed batches, never
+	 *            <code>null</code>
+	 * @return the counts
+	 * @throws IOException
+	 *             if the feed could not be read, nobody is deleted
+	 * @throws IllegalStateException
+	 *             if the feed is not sorted or more than
+	 *             {@link #getMaxDeletes()} users would be deleted, nobody is
+	 *             deleted
+	 */
+	public ReconcileReport reconcile(RowReader feed, ImportListener listener)
+			throws IOException {
+		if (feed == null) {
+			throw new IllegalArgumentException("feed should never be null");
+		}
+		if (listener == null) {
+			throw new IllegalArgumentException("listener should never be null");
+		}
+		ReconcileReport report = new ReconcileReport();
+		StoredUsers stored = new StoredUsers();
+		Map<String, Role> roles = new HashMap<String, Role>();
+		List<ImportRow> changed = new ArrayList<ImportRow>(batchSize);
+		List<Long> deletes = new ArrayList<Long>();
+
+		String previous = null;
+		ImportRow row = feed.next();
+		Object[] user = stored.next();
+		while (row != null || user != null) {
+			String username = row != null ? StringUtils.trimToNull(row.get("username")) : null;
+			if (row != null && username == null) {
+				// Without a name the row cannot be merged, and a user it was
+				// meant for would look missing from the feed
+				report.deletesSkipped();
+				changed.add(row);
+				row = feed.next();
+			} else {
+				if (row != null && previous != null && ORDER.compare(previous, username) >= 0) {
+					throw new IllegalStateException("The feed is not sorted by user name at row "
+							+ row.getNumber() + ", " + username + " follows " + previous);
+				}
+				int c = row == null ? 1 : user == null ? -1 : ORDER.compare(username, (String) user[1]);
+				if (c > 0) {
+					if (!protectedUsernames.contains(((String) user[1]).toLowerCase())) {
+						deletes.add(((Number) user[0]).longValue());
+					}
+					user = stored.next();
+					continue;
+				}
+				String fingerprint = fingerprint(row);
+				if (c == 0 && fingerprint.equals(user[2])) {
+					report.read();
+					report.unchanged();
+				} else {
+					Map<String, String> fields = new LinkedHashMap<String, String>(row.getFields());
+					fields.put("fingerprint", fingerprint);
+					changed.add(new ImportRow(row.getNumber(), fields));
+				}
+				if (c == 0) {
+					user = stored.next();
+				}
+				previous = username;
+				row = feed.next();
+			}
+			if (changed.size() == batchSize) {
+				userImporter.importBatch(changed, true, roles, report, listener);
+				changed.clear();
+			}
+		}
+		if (!changed.isEmpty()) {
+			userImporter.importBatch(changed, true, roles, report, listener);
+		}
+
+		if (report.isDeletesSkipped()) {
+			logger.warn("Keeping {} users missing from the feed, rows of the feed could not be read",
+					deletes.size());
+		} else if (deletes.size() > maxDeletes) {
+			throw new IllegalStateException("The feed would delete " + deletes.size()
+					+ " users, more than the " + maxDeletes + " allowed");
+		} else {
+			for (Long id : deletes) {
+				userManager.delete(id);
+				report.deleted();
+			}
+		}
+		logger.info("Reconciled users: {}", report);
+		return report;
+	}
+
+	/**
+	 * @param row
+	 *            a feed row, never <code>null</code>
+	 * @return a digest of the content of the row, the same for rows with the
+	 *         same non blank values in any field order. The password is left
+	 *         out.
+	 */
+	public static String fingerprint(ImportRow row) {
+		Map<String, String> sorted = new TreeMap<String, String>();
+		for (Map.Entry<String, String> field : row.getFields().entrySet()) {
+			String value = StringUtils.trimToNull(field.getValue());
+			if (value != null && !"password".equals(field.getKey())
+					&& !"fingerprint".equals(field.getKey())) {
+				sorted.put(field.getKey(), value);
+			}
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (Map.Entry<String, String> field : sorted.entrySet()) {
+				digest.update(field.getKey().getBytes("UTF-8"));
+				digest.update((byte) 0);
+				digest.update(field.getValue().getBytes("UTF-8"));
+				digest.update((byte) 0);
+			}
+			StringBuilder hex = new StringBuilder(64);
+			for (byte b : digest.digest()) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hex.append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is always available", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is always available", e);
+		}
+	}
+
+	public UserManager getUserManager() {
+		return userManager;
+	}
+
+	public void setUserManager(UserManager userManager) {
+		this.userManager = userManager;
+	}
+
+	public UserImporter getUserImporter() {
+		return userImporter;
+	}
+
+	public void setUserImporter(UserImporter userImporter) {
+		this.userImporter = userImporter;
+	}
+
+	public EntityManagerFactory getEntityManagerFactory() {
+		return entityManagerFactory;
+	}
+
+	public void setEntityManagerFactory(EntityManagerFactory entityManagerFactory) {
+		this.entityManagerFactory = entityManagerFactory;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @param pageSize
+	 *            the stored users read per query
+	 */
+	public void setPageSize(int pageSize) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("pageSize should be at least 1");
+		}
+		this.pageSize = pageSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            the changed rows stored per transaction
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize should be at least 1");
+		}
+		this.batchSize = batchSize;
+	}
+
+	public int getMaxDeletes() {
+		return maxDeletes;
+	}
+
+	/**
+	 * @param maxDeletes
+	 *            the most users one reconciliation may delete, a guard
+	 *            against a truncated feed
+	 */
+	public void setMaxDeletes(int maxDeletes) {
+		if (maxDeletes < 0) {
+			throw new IllegalArgumentException("maxDeletes should never be negative");
+		}
+		this.maxDeletes = maxDeletes;
+	}
+
+	public Set<String> getProtectedUsernames() {
+		return protectedUsernames;
+	}
+
+	/**
+	 * @param protectedUsernames
+	 *            users never deleted for missing from the feed, such as the
+	 *            local administrator
+	 */
+	public void setProtectedUsernames(Set<String> protectedUsernames) {
+		if (protectedUsernames == null) {
+			throw new IllegalArgumentException("protectedUsernames should never be null");
+		}
+		this.protectedUsernames = new HashSet<String>();
+		for (String username : protectedUsernames) {
+			this.protectedUsernames.add(username.toLowerCase());
+		}
+	}
+}
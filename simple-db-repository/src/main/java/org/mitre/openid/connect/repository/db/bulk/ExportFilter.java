@@ -0,0 +1,46 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import java.util.Date;
+
+/**
+ * Selects the users an export writes. Criteria left <code>null</code> match
+ * every user.
+ */
+public class ExportFilter {
+	private String usernamePattern;
+	private String role;
+	private Date updatedSince;
+
+	/**
+	 * @return a like pattern the lower cased user name must match
+	 */
+	public String getUsernamePattern() {
+		return usernamePattern;
+	}
+
+	public void setUsernamePattern(String usernamePattern) {
+		this.usernamePattern = usernamePattern;
+	}
+
+	/**
+	 * @return the name of a role the user must hold
+	 */
+	public String getRole() {
+		return role;
+	}
+
+	public void setRole(String role) {
+		this.role = role;
+	}
+
+	/**
+	 * @return the earliest last update of the users to write
+	 */
+	public Date getUpdatedSince() {
+		return updatedSince;
+	}
+
+	public void setUpdatedSince(Date updatedSince) {
+		this.updatedSince = updatedSince;
+	}
+}
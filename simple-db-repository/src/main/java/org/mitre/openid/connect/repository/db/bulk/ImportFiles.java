@@ -0,0 +1,149 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the files of an import: rejected rows are appended to an error file
+ * as <code>row,username,message</code> lines, and after every committed
+ * batch the last settled row is written to a checkpoint file that a later
+ * run resumes after. Progress is logged as each batch commits.
+ */
+public class ImportFiles implements ImportListener, Closeable {
+	private static final Logger logger = LoggerFactory
+			.getLogger(ImportFiles.class);
+	private static final String UTF8 = "UTF-8";
+
+	private final File errors;
+	private final File checkpoint;
+	private Writer errorWriter;
+	private IOException failure;
+
+	/**
+	 * @param errors
+	 *            receives the rejected rows, or <code>null</code> to only log
+	 *            them
+	 * @param checkpoint
+	 *            receives the last committed row, or <code>null</code> to
+	 *            keep no checkpoint
+	 */
+	public ImportFiles(File errors, File checkpoint) {
+		this.errors = errors;
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * @param checkpoint
+	 *            a checkpoint file, never <code>null</code>
+	 * @return the row to resume after, 0 if there is no checkpoint yet
+	 * @throws IOException
+	 */
+	public static long readCheckpoint(File checkpoint) throws IOException {
+		if (checkpoint == null) {
+			throw new IllegalArgumentException("checkpoint should never be null");
+		}
+		if (!checkpoint.exists()) {
+			return 0;
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(checkpoint), UTF8));
+		try {
+			String line = in.readLine();
+			return line != null ? Long.parseLong(line.trim()) : 0;
+		} catch (NumberFormatException e) {
+			throw new IOException("Checkpoint " + checkpoint
+					+ " does not hold a row number");
+		} finally {
+			in.close();
+		}
+	}
+
+	public void rejected(long row, String username, String message) {
+		logger.debug("Rejected row {}: {}", row, message);
+		if (errors == null || failure != null) {
+			return;
+		}
+		try {
+			if (errorWriter == null) {
+				boolean fresh = !errors.exists() || errors.length() == 0;
+				// Append, a resumed import keeps the errors of earlier runs
+				errorWriter = new OutputStreamWriter(new FileOutputStream(
+						errors, true), UTF8);
+				if (fresh) {
+					errorWriter.write("row,username,message\n");
+				}
+			}
+			errorWriter.write(row + "," + quote(username) + ","
+					+ quote(message) + "\n");
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	public void committed(long row, ImportReport progress) {
+		logger.info("Imported through row {}: {}", row, progress);
+		try {
+			if (failure != null) {
+				throw failure;
+			}
+			if (errorWriter != null) {
+				errorWriter.flush();
+			}
+			if (checkpoint != null) {
+				writeCheckpoint(row);
+			}
+		} catch (IOException e) {
+			// Going on would leave the files behind the database
+			throw new IllegalStateException(
+					"Could not record the progress of the import", e);
+		}
+	}
+
+	/**
+	 * Replace the checkpoint in one step, a crash while writing must not
+	 * leave it empty
+	 */
+	private void writeCheckpoint(long row) throws IOException {
+		File temp = new File(checkpoint.getPath() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(temp), UTF8);
+		try {
+			out.write(row + "\n");
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(checkpoint)) {
+			// Windows will not rename over an existing file
+			if (!checkpoint.delete() || !temp.renameTo(checkpoint)) {
+				throw new IOException("Could not replace " + checkpoint);
+			}
+		}
+	}
+
+	private static String quote(String value) {
+		if (value == null) {
+			return "";
+		}
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+				&& value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	public void close() throws IOException {
+		if (errorWriter != null) {
+			errorWriter.close();
+			errorWriter = null;
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+/**
+ * Hears how an import progresses. Called on the thread running the import.
+ */
+public interface ImportListener {
+	/**
+	 * A row was not stored
+	 *
+	 * @param row
+	 *            the number of the row in the file
+	 * @param username
+	 *            the user name of the row, may be <code>null</code>
+	 * @param message
+	 *            why, never <code>null</code>
+	 */
+	void rejected(long row, String username, String message);
+
+	/**
+	 * A batch was committed, every row up to and including <code>row</code>
+	 * is settled
+	 *
+	 * @param row
+	 *            the last row of the batch
+	 * @param progress
+	 *            the counts so far
+	 */
+	void committed(long row, ImportReport progress);
+}
@@ -0,0 +1,82 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+/**
+ * Counts what an import did. The counts cover the rows read by this run,
+ * rows skipped because an earlier run already imported them are only
+ * counted as skipped.
+ */
+public class ImportReport {
+	private long skipped;
+	private long read;
+	private long created;
+	private long updated;
+	private long rejected;
+	private long lastRow;
+
+	/**
+	 * @return the rows passed over because they were at or before the row
+	 *         the import resumed after
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return the rows read and processed
+	 */
+	public long getRead() {
+		return read;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public long getUpdated() {
+		return updated;
+	}
+
+	public long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * @return the number of the last row whose batch was committed. Every row
+	 *         up to it is either stored or rejected, an interrupted import
+	 *         resumes after it.
+	 */
+	public long getLastRow() {
+		return lastRow;
+	}
+
+	void skip() {
+		skipped++;
+	}
+
+	void read() {
+		read++;
+	}
+
+	void created() {
+		created++;
+	}
+
+	void updated() {
+		updated++;
+	}
+
+	void rejected() {
+		rejected++;
+	}
+
+	void committed(long row) {
+		lastRow = row;
+	}
+
+	@Override
+	public String toString() {
+		return "read " + read + ", created " + created + ", updated "
+				+ updated + ", rejected " + rejected + ", skipped " + skipped
+				+ ", last row " + lastRow;
+	}
+}
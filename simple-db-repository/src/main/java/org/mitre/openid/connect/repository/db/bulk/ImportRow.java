@@ -0,0 +1,72 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One row of an import file. Field names are lower cased, values are as
+ * read. A row the reader could not parse carries the reason instead of
+ * fields.
+ */
+public class ImportRow {
+	private final long number;
+	private final Map<String, String> fields;
+	private final String problem;
+
+	/**
+	 * @param number
+	 *            the position of the row in the file, counting from 1
+	 * @param fields
+	 *            the values keyed by lower cased field name, never
+	 *            <code>null</code>
+	 */
+	public ImportRow(long number, Map<String, String> fields) {
+		if (fields == null) {
+			throw new IllegalArgumentException("fields should never be null");
+		}
+		this.number = number;
+		this.fields = Collections.unmodifiableMap(fields);
+		this.problem = null;
+	}
+
+	/**
+	 * A row that could not be parsed
+	 *
+	 * @param number
+	 *            the position of the row in the file, counting from 1
+	 * @param problem
+	 *            what is wrong with it, never <code>null</code>
+	 */
+	public ImportRow(long number, String problem) {
+		if (problem == null) {
+			throw new IllegalArgumentException("problem should never be null");
+		}
+		this.number = number;
+		this.fields = Collections.emptyMap();
+		this.problem = problem;
+	}
+
+	public long getNumber() {
+		return number;
+	}
+
+	/**
+	 * @param name
+	 *            a lower cased field name
+	 * @return the value, or <code>null</code> if the row has none
+	 */
+	public String get(String name) {
+		return fields.get(name);
+	}
+
+	public Map<String, String> getFields() {
+		return fields;
+	}
+
+	/**
+	 * @return why the row could not be parsed, or <code>null</code>
+	 */
+	public String getProblem() {
+		return problem;
+	}
+}
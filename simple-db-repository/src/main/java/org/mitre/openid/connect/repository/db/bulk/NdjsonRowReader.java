@@ -0,0 +1,73 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Reads one flat JSON object per line. Members holding <code>null</code> are
+ * left out, members holding an object or array make the row a problem row.
+ * Only the current line is ever held in memory.
+ */
+public class NdjsonRowReader implements RowReader {
+	private final BufferedReader in;
+	private final JsonParser parser = new JsonParser();
+	private long number = 0;
+
+	/**
+	 * @param in
+	 *            the file, never <code>null</code>
+	 */
+	public NdjsonRowReader(Reader in) {
+		if (in == null) {
+			throw new IllegalArgumentException("in should never be null");
+		}
+		this.in = in instanceof BufferedReader ? (BufferedReader) in
+				: new BufferedReader(in);
+	}
+
+	public ImportRow next() throws IOException {
+		String line;
+		do {
+			line = in.readLine();
+			if (line == null) {
+				return null;
+			}
+			number++;
+		} while (line.trim().length() == 0);
+		JsonElement element;
+		try {
+			element = parser.parse(line);
+		} catch (JsonParseException e) {
+			return new ImportRow(number, "Not valid JSON: " + e.getMessage());
+		}
+		if (!element.isJsonObject()) {
+			return new ImportRow(number, "Row is not a JSON object");
+		}
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, JsonElement> member : ((JsonObject) element)
+				.entrySet()) {
+			JsonElement value = member.getValue();
+			if (value.isJsonNull()) {
+				continue;
+			}
+			if (!value.isJsonPrimitive()) {
+				return new ImportRow(number, "Field " + member.getKey()
+						+ " should be a string, number or boolean");
+			}
+			fields.put(member.getKey().toLowerCase(), value.getAsString());
+		}
+		return new ImportRow(number, fields);
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,45 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Writes one JSON object per line, in the form {@link NdjsonRowReader}
+ * reads. Columns without a value are left out.
+ */
+public class NdjsonRowWriter implements RowWriter {
+	private final Writer out;
+
+	/**
+	 * @param out
+	 *            the file, never <code>null</code>
+	 */
+	public NdjsonRowWriter(Writer out) {
+		if (out == null) {
+			throw new IllegalArgumentException("out should never be null");
+		}
+		this.out = out;
+	}
+
+	public void write(Map<String, String> row) throws IOException {
+		JsonObject object = new JsonObject();
+		for (Map.Entry<String, String> entry : row.entrySet()) {
+			if (entry.getValue() != null) {
+				object.addProperty(entry.getKey(), entry.getValue());
+			}
+		}
+		out.write(object.toString());
+		out.write('\n');
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+}
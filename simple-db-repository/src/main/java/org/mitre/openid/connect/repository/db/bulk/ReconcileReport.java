@@ -0,0 +1,49 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+/**
+ * Counts what a reconciliation did. Created, updated and rejected count the
+ * feed rows that differed from what was stored, unchanged the rows that did
+ * not.
+ */
+public class ReconcileReport extends ImportReport {
+	private long unchanged;
+	private long deleted;
+	private boolean deletesSkipped;
+
+	public long getUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * @return the stored users missing from the feed that were deleted
+	 */
+	public long getDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * @return <code>true</code> if users missing from the feed were kept
+	 *         because rows of the feed could not be read
+	 */
+	public boolean isDeletesSkipped() {
+		return deletesSkipped;
+	}
+
+	void unchanged() {
+		unchanged++;
+	}
+
+	void deleted() {
+		deleted++;
+	}
+
+	void deletesSkipped() {
+		deletesSkipped = true;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ", unchanged " + unchanged + ", deleted "
+				+ deleted + (deletesSkipped ? ", deletes skipped" : "");
+	}
+}
@@ -0,0 +1,64 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Collects the rejected rows of an import run over HTTP, so they can be sent
+ * back in the response rather than left in a file on the server. Only the
+ * first rows up to the limit are kept, the report still counts them all.
+ * Progress is logged as each batch commits.
+ */
+public class RejectedRows implements ImportListener {
+	private static final Logger logger = LoggerFactory
+			.getLogger(RejectedRows.class);
+
+	private final int limit;
+	private final JsonArray rows = new JsonArray();
+	private long count;
+
+	/**
+	 * @param limit
+	 *            how many rejected rows to keep, at least 0
+	 */
+	public RejectedRows(int limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException("limit should never be negative");
+		}
+		this.limit = limit;
+	}
+
+	public void rejected(long row, String username, String message) {
+		logger.debug("Rejected row {}: {}", row, message);
+		if (count++ >= limit) {
+			return;
+		}
+		JsonObject rejected = new JsonObject();
+		rejected.addProperty("row", row);
+		rejected.addProperty("username", username);
+		rejected.addProperty("message", message);
+		rows.add(rejected);
+	}
+
+	public void committed(long row, ImportReport progress) {
+		logger.info("Imported through row {}: {}", row, progress);
+	}
+
+	/**
+	 * @return the kept rows as objects with row, username and message, in the
+	 *         order they were rejected
+	 */
+	public JsonArray getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return <code>true</code> if more rows were rejected than kept
+	 */
+	public boolean isTruncated() {
+		return count > limit;
+	}
+}
@@ -0,0 +1,18 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the rows of an import file one at a time, so files of any size can
+ * be imported in bounded memory
+ */
+public interface RowReader extends Closeable {
+	/**
+	 * @return the next row, or <code>null</code> at the end of the file
+	 * @throws IOException
+	 *             if the file cannot be read. Rows that cannot be parsed are
+	 *             returned with a problem rather than failing the read.
+	 */
+	ImportRow next() throws IOException;
+}
@@ -0,0 +1,25 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Writes the rows of an export file one at a time
+ */
+public interface RowWriter extends Closeable {
+	/**
+	 * @param row
+	 *            the values keyed by column, a missing or <code>null</code>
+	 *            value is written as empty
+	 * @throws IOException
+	 */
+	void write(Map<String, String> row) throws IOException;
+
+	/**
+	 * Push the rows written so far to the underlying stream
+	 *
+	 * @throws IOException
+	 */
+	void flush() throws IOException;
+}
@@ -0,0 +1,110 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang.time.DateUtils;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.context.support.FileSystemXmlApplicationContext;
+
+/**
+ * Exports users from the command line against the database of a Spring
+ * configuration that defines the persistence unit:
+ *
+ * <pre>
+ * UserExportCli -context data-context.xml,local-config.xml,...
+ *     [-pattern like] [-role name] [-since yyyy-MM-dd] [-columns a,b,c]
+ *     users.csv|users.ndjson[.gz]
+ * </pre>
+ *
+ * The format follows from the file extension, a file ending in .gz is
+ * compressed.
+ */
+public class UserExportCli {
+	private static final String USAGE = "usage: UserExportCli -context config.xml[,config.xml...]"
+			+ " [-pattern like] [-role name] [-since yyyy-MM-dd] [-columns a,b,c] file";
+
+	public static void main(String[] args) throws IOException {
+		String context = null;
+		List<String> columns = null;
+		ExportFilter filter = new ExportFilter();
+		File output = null;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("-") && i + 1 == args.length) {
+				usage();
+			} else if ("-context".equals(arg)) {
+				context = args[++i];
+			} else if ("-pattern".equals(arg)) {
+				filter.setUsernamePattern(args[++i]);
+			} else if ("-role".equals(arg)) {
+				filter.setRole(args[++i]);
+			} else if ("-since".equals(arg)) {
+				try {
+					filter.setUpdatedSince(DateUtils.parseDate(args[++i],
+							new String[] { "yyyy-MM-dd" }));
+				} catch (ParseException e) {
+					usage();
+				}
+			} else if ("-columns".equals(arg)) {
+				columns = Arrays.asList(args[++i].split(","));
+			} else if (output == null && !arg.startsWith("-")) {
+				output = new File(arg);
+			} else {
+				usage();
+			}
+		}
+		if (context == null || output == null) {
+			usage();
+		}
+		String name = output.getName().toLowerCase();
+		boolean gzip = name.endsWith(".gz");
+		if (gzip) {
+			name = name.substring(0, name.length() - 3);
+		}
+		boolean csv = name.endsWith(".csv");
+
+		FileSystemXmlApplicationContext ctx = new FileSystemXmlApplicationContext(
+				context.split(","));
+		try {
+			UserExporter exporter;
+			try {
+				exporter = ctx.getBean(UserExporter.class);
+			} catch (NoSuchBeanDefinitionException e) {
+				exporter = ctx.getAutowireCapableBeanFactory().createBean(
+						UserExporter.class);
+			}
+			List<String> selected = exporter.columns(columns);
+			OutputStream stream = new BufferedOutputStream(new FileOutputStream(output));
+			if (gzip) {
+				stream = new GZIPOutputStream(stream);
+			}
+			Writer writer = new OutputStreamWriter(stream, "UTF-8");
+			RowWriter out = csv ? new CsvRowWriter(writer, selected)
+					: new NdjsonRowWriter(writer);
+			long written;
+			try {
+				written = exporter.export(filter, selected, out);
+			} finally {
+				out.close();
+			}
+			System.out.println("Exported " + written + " users to " + output);
+		} finally {
+			ctx.close();
+		}
+	}
+
+	private static void usage() {
+		System.err.println(USAGE);
+		System.exit(2);
+	}
+}
@@ -0,0 +1,345 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import javax.persistence.Query;
+
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.IRoleIndex;
+import org.mitre.openid.connect.repository.db.impl.PromotedAttributeStore;
+import org.mitre.openid.connect.repository.db.impl.UserInfoMapper;
+import org.mitre.openid.connect.repository.db.model.Role;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.mitre.openid.connect.repository.db.util.PromotedAttribute;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Writes users to a file of any size. Users are read in pages of
+ * {@link #getPageSize()} in id order, each page continuing after the last id
+ * of the one before, so every page is a short indexed read no matter how far
+ * the export has got. Each page is read by its own entity manager and
+ * without a transaction, leaving nothing to hold memory or locks between
+ * pages, and the users read bypass the shared cache so an export does not
+ * push out the users logins are served from.
+ * <p>
+ * The columns are those of {@link #USER_COLUMNS}, with roles as names
+ * separated by spaces, and the normal attributes of the users under their
+ * lower cased names, promoted ones included. Files written this way can be
+ * read back by {@link UserImporter}. Passwords are never exported.
+ * <p>
+ * When a role index is configured, the members of a role filtered on are
+ * paged from it through {@link UserManager#findIdsInRole(String, int, int)}
+ * rather than by joining USERS_ROLES in every page query.
+ */
+public class UserExporter {
+	/**
+	 * The columns taken from the user record, in file order
+	 */
+	public static final List<String> USER_COLUMNS = Collections
+			.unmodifiableList(Arrays.asList("id", "username", "email",
+					"firstname", "middlename", "lastname", "nickname", "phone",
+					"gender", "locale", "zoneinfo", "website", "picture",
+					"profile", "street", "locality", "region", "postalcode",
+					"country", "updated", "roles"));
+
+	@PersistenceUnit
+	private EntityManagerFactory entityManagerFactory;
+	@Autowired(required = false)
+	private PromotedAttributeStore promotedAttributes;
+	@Autowired(required = false)
+	private UserManager userManager;
+	/**
+	 * Optional, only consulted to tell whether role members are indexed
+	 */
+	@Autowired(required = false)
+	private IRoleIndex roleIndex;
+
+	private final UserInfoMapper mapper = new UserInfoMapper();
+	private int pageSize = 500;
+
+	/**
+	 * @param requested
+	 *            the columns asked for, or <code>null</code> for all of them
+	 * @return the columns to export, the requested ones lower cased, or
+	 *         those of {@link #USER_COLUMNS} followed by every attribute name
+	 *         in use
+	 */
+	public List<String> columns(List<String> requested) {
+		List<String> rval = new ArrayList<String>();
+		if (requested != null) {
+			for (String column : requested) {
+				if (StringUtils.isNotBlank(column)) {
+					rval.add(column.trim().toLowerCase());
+				}
+			}
+			return rval;
+		}
+		rval.addAll(USER_COLUMNS);
+		EntityManager em = entityManagerFactory.createEntityManager();
+		try {
+			@SuppressWarnings("unchecked")
+			List<String> names = em.createNamedQuery("user_attributes.names")
+					.setParameter("type", UserAttribute.NORMAL_TYPE)
+					.getResultList();
+			for (String name : names) {
+				if (!rval.contains(name.toLowerCase())) {
+					rval.add(name.toLowerCase());
+				}
+			}
+			if (promotedAttributes != null) {
+				for (PromotedAttribute attr : promotedAttributes.getSchema().getPromoted()) {
+					if (!rval.contains(attr.getName().toLowerCase())) {
+						rval.add(attr.getName().toLowerCase());
+					}
+				}
+			}
+		} finally {
+			em.close();
+		}
+		return rval;
+	}
+
+	/**
+	 * Write every user matching a filter
+	 *
+	 * @param filter
+	 *            the users to write, never <code>null</code>
+	 * @param columns
+	 *            the columns to write, see {@link #columns(List)}, never
+	 *            <code>null</code>
+	 * @param out
+	 *            receives the rows, never <code>null</code>. Not closed here.
+	 * @return the number of users written
+	 * @throws IOException
+	 */
+	public long export(ExportFilter filter, List<String> columns, RowWriter out)
+			throws IOException {
+		if (filter == null) {
+			throw new IllegalArgumentException("filter should never be null");
+		}
+		if (columns == null) {
+			throw new IllegalArgumentException("columns should never be null");
+		}
+		if (out == null) {
+			throw new IllegalArgumentException("out should never be null");
+		}
+		boolean roles = columns.contains("roles");
+		boolean attributes = false;
+		for (String column : columns) {
+			attributes |= !USER_COLUMNS.contains(column);
+		}
+		StringBuilder jpql = new StringBuilder(
+				"select u from User u where u.id > :after");
+		if (filter.getUsernamePattern() != null) {
+			jpql.append(" and lower(u.username) like :pattern");
+		}
+		boolean indexed = filter.getRole() != null && roleIndex != null
+				&& userManager != null;
+		if (indexed) {
+			jpql.append(" and u.id in :ids");
+		} else if (filter.getRole() != null) {
+			jpql.append(" and u.id in (select m.id from User m inner join m.roles r where r.name = :role)");
+		}
+		if (filter.getUpdatedSince() != null) {
+			jpql.append(" and u.updated >= :since");
+		}
+		jpql.append(" order by u.id");
+
+		long written = 0;
+		Long after = 0L;
+		int members = 0;
+		while (true) {
+			List<Long> memberIds = null;
+			if (indexed) {
+				// Ids come in ascending order, so the page of users follows
+				// them and the last id read still bounds the next page
+				memberIds = userManager.findIdsInRole(filter.getRole(), members, pageSize);
+				if (memberIds.isEmpty()) {
+					break;
+				}
+				members += memberIds.size();
+			}
+			EntityManager em = entityManagerFactory.createEntityManager();
+			try {
+				Query q = em.createQuery(jpql.toString());
+				q.setParameter("after", after);
+				if (filter.getUsernamePattern() != null) {
+					q.setParameter("pattern", filter.getUsernamePattern().toLowerCase());
+				}
+				if (indexed) {
+					q.setParameter("ids", memberIds);
+				} else if (filter.getRole() != null) {
+					q.setParameter("role", filter.getRole());
+				}
+				if (filter.getUpdatedSince() != null) {
+					q.setParameter("since", filter.getUpdatedSince());
+				}
+				q.setHint(QueryHints.MAINTAIN_CACHE, HintValues.FALSE);
+				if (roles) {
+					q.setHint(QueryHints.BATCH, "u.roles");
+				}
+				if (attributes) {
+					q.setHint(QueryHints.BATCH, "u.attributes");
+				}
+				q.setHint(QueryHints.BATCH_TYPE, "IN");
+				q.setMaxResults(pageSize);
+				@SuppressWarnings("unchecked")
+				List<User> page = q.getResultList();
+				Map<Long, Map<String, String>> promoted = null;
+				if (attributes && promotedAttributes != null && promotedAttributes.isEnabled()) {
+					List<Long> ids = new ArrayList<Long>(page.size());
+					for (User user : page) {
+						ids.add(user.getId());
+					}
+					promoted = promotedAttributes.read(ids);
+				}
+				for (User user : page) {
+					out.write(toRow(user, columns, roles, attributes,
+							promoted != null ? promoted.get(user.getId()) : null));
+					after = user.getId();
+				}
+				written += page.size();
+				// The other filters may leave a page of role members short
+				if ((indexed ? memberIds.size() : page.size()) < pageSize) {
+					break;
+				}
+			} finally {
+				em.close();
+			}
+		}
+		out.flush();
+		return written;
+	}
+
+	private Map<String, String> toRow(User user, List<String> columns,
+			boolean roles, boolean attributes, Map<String, String> promoted) {
+		Map<String, String> attrs = new HashMap<String, String>();
+		if (promoted != null) {
+			for (Map.Entry<String, String> value : promoted.entrySet()) {
+				attrs.put(value.getKey().toLowerCase(), value.getValue());
+			}
+		}
+		if (attributes && user.getAttributes() != null) {
+			for (UserAttribute attr : user.getAttributes()) {
+				attrs.put(attr.getName().toLowerCase(), attr.getValue());
+			}
+		}
+		Map<String, String> row = new LinkedHashMap<String, String>();
+		for (String column : columns) {
+			String value;
+			if ("id".equals(column)) {
+				value = user.getId().toString();
+			} else if ("username".equals(column)) {
+				value = user.getUsername();
+			} else if ("email".equals(column)) {
+				value = user.getEmail();
+			} else if ("firstname".equals(column)) {
+				value = user.getFirstname();
+			} else if ("middlename".equals(column)) {
+				value = user.getMiddlename();
+			} else if ("lastname".equals(column)) {
+				value = user.getLastname();
+			} else if ("nickname".equals(column)) {
+				value = user.getNickname();
+			} else if ("phone".equals(column)) {
+				value = user.getPhone();
+			} else if ("gender".equals(column)) {
+				value = user.getGender();
+			} else if ("locale".equals(column)) {
+				value = user.getLocale();
+			} else if ("zoneinfo".equals(column)) {
+				value = user.getZoneinfo();
+			} else if ("website".equals(column)) {
+				value = user.getWebsite();
+			} else if ("picture".equals(column)) {
+				value = user.getPicture();
+			} else if ("profile".equals(column)) {
+				value = user.getProfile();
+			} else if ("street".equals(column)) {
+				value = user.getStreet();
+			} else if ("locality".equals(column)) {
+				value = user.getLocality();
+			} else if ("region".equals(column)) {
+				value = user.getRegion();
+			} else if ("postalcode".equals(column)) {
+				value = user.getPostalCode();
+			} else if ("country".equals(column)) {
+				value = user.getCountry();
+			} else if ("updated".equals(column)) {
+				value = mapper.formatUpdated(user.getUpdated());
+			} else if ("roles".equals(column)) {
+				List<String> names = new ArrayList<String>();
+				for (Role role : user.getRoles()) {
+					names.add(role.getName());
+				}
+				Collections.sort(names);
+				value = StringUtils.join(names, ' ');
+			} else {
+				value = attrs.get(column);
+			}
+			row.put(column, value);
+		}
+		return row;
+	}
+
+	public EntityManagerFactory getEntityManagerFactory() {
+		return entityManagerFactory;
+	}
+
+	public void setEntityManagerFactory(EntityManagerFactory entityManagerFactory) {
+		this.entityManagerFactory = entityManagerFactory;
+	}
+
+	public PromotedAttributeStore getPromotedAttributes() {
+		return promotedAttributes;
+	}
+
+	public void setPromotedAttributes(PromotedAttributeStore promotedAttributes) {
+		this.promotedAttributes = promotedAttributes;
+	}
+
+	public UserManager getUserManager() {
+		return userManager;
+	}
+
+	public void setUserManager(UserManager userManager) {
+		this.userManager = userManager;
+	}
+
+	public IRoleIndex getRoleIndex() {
+		return roleIndex;
+	}
+
+	public void setRoleIndex(IRoleIndex roleIndex) {
+		this.roleIndex = roleIndex;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @param pageSize
+	 *            the users read per query
+	 */
+	public void setPageSize(int pageSize) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("pageSize should be at least 1");
+		}
+		this.pageSize = pageSize;
+	}
+}
@@ -0,0 +1,124 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.context.support.FileSystemXmlApplicationContext;
+
+/**
+ * Imports users from the command line against the database of a Spring
+ * configuration that defines the user manager and its persistence unit:
+ *
+ * <pre>
+ * UserImportCli -context data-context.xml,local-config.xml,...
+ *     [-format csv|ndjson] [-errors file] [-checkpoint file] [-reconcile] users.csv
+ * </pre>
+ *
+ * The format follows from the file extension unless given. Rejected rows go
+ * to <code>&lt;file&gt;.errors.csv</code> and progress to
+ * <code>&lt;file&gt;.checkpoint</code> unless other files are named. Running
+ * the same command again after a failure resumes after the last committed
+ * batch, delete the checkpoint to start over.
+ * <p>
+ * With -reconcile the file is a full feed sorted by user name, see
+ * {@link DirectoryReconciler}. A reconciliation keeps no checkpoint, it is
+ * simply run again.
+ */
+public class UserImportCli {
+	private static final String USAGE = "usage: UserImportCli -context config.xml[,config.xml...]"
+			+ " [-format csv|ndjson] [-errors file] [-checkpoint file] [-reconcile] file";
+
+	public static void main(String[] args) throws IOException {
+		String context = null;
+		String format = null;
+		File errors = null;
+		File checkpoint = null;
+		File input = null;
+		boolean reconcile = false;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if ("-reconcile".equals(arg)) {
+				reconcile = true;
+			} else if (arg.startsWith("-") && i + 1 == args.length) {
+				usage();
+			} else if ("-context".equals(arg)) {
+				context = args[++i];
+			} else if ("-format".equals(arg)) {
+				format = args[++i].toLowerCase();
+			} else if ("-errors".equals(arg)) {
+				errors = new File(args[++i]);
+			} else if ("-checkpoint".equals(arg)) {
+				checkpoint = new File(args[++i]);
+			} else if (input == null && !arg.startsWith("-")) {
+				input = new File(arg);
+			} else {
+				usage();
+			}
+		}
+		if (context == null || input == null) {
+			usage();
+		}
+		if (format == null) {
+			format = input.getName().toLowerCase().endsWith(".csv") ? "csv"
+					: "ndjson";
+		}
+		if (errors == null) {
+			errors = new File(input.getPath() + ".errors.csv");
+		}
+		if (checkpoint == null) {
+			checkpoint = new File(input.getPath() + ".checkpoint");
+		}
+		long resumeAfter = reconcile ? 0 : ImportFiles.readCheckpoint(checkpoint);
+		if (resumeAfter > 0) {
+			System.out.println("Resuming after row " + resumeAfter);
+		}
+
+		FileSystemXmlApplicationContext ctx = new FileSystemXmlApplicationContext(
+				context.split(","));
+		RowReader reader = UserImporter.reader(format, new BufferedReader(new InputStreamReader(
+				new FileInputStream(input), "UTF-8")));
+		ImportFiles files = new ImportFiles(errors, reconcile ? null : checkpoint);
+		try {
+			if (reconcile) {
+				DirectoryReconciler reconciler;
+				try {
+					reconciler = ctx.getBean(DirectoryReconciler.class);
+				} catch (NoSuchBeanDefinitionException e) {
+					reconciler = ctx.getAutowireCapableBeanFactory().createBean(
+							DirectoryReconciler.class);
+				}
+				ReconcileReport report = reconciler.reconcile(reader, files);
+				System.out.println("Reconciled " + input + ": " + report);
+				if (report.getRejected() > 0) {
+					System.out.println("Rejected rows are listed in " + errors);
+				}
+				return;
+			}
+			UserImporter importer;
+			try {
+				importer = ctx.getBean(UserImporter.class);
+			} catch (NoSuchBeanDefinitionException e) {
+				importer = ctx.getAutowireCapableBeanFactory().createBean(
+						UserImporter.class);
+			}
+			ImportReport report = importer.run(reader, resumeAfter, files);
+			System.out.println("Imported " + input + ": " + report);
+			if (report.getRejected() > 0) {
+				System.out.println("Rejected rows are listed in " + errors);
+			}
+		} finally {
+			files.close();
+			reader.close();
+			ctx.close();
+		}
+	}
+
+	private static void usage() {
+		System.err.println(USAGE);
+		System.exit(2);
+	}
+}
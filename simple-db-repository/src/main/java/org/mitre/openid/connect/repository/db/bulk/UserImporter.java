@@ -0,0 +1,575 @@
+package org.mitre.openid.connect.repository.db.bulk;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.lang.StringUtils;
+import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.BatchResult;
+import org.mitre.openid.connect.repository.db.IPasswordRule;
+import org.mitre.openid.connect.repository.db.IUserValidity;
+import org.mitre.openid.connect.repository.db.PasswordException;
+import org.mitre.openid.connect.repository.db.UserException;
+import org.mitre.openid.connect.repository.db.impl.SimpleUserValidity;
+import org.mitre.openid.connect.repository.db.model.Role;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.util.AttributeDiff;
+import org.mitre.openid.connect.repository.db.util.AttributeSchema;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.authentication.encoding.PasswordEncoder;
+
+/**
+ * Imports users from a file of any size. One thread reads and parses rows,
+ * a pool validates them and hashes their passwords, and the calling thread
+ * stores them a batch at a time through {@link UserManager#saveAll(List)},
+ * creating new users and updating existing ones. The stages are joined by a
+ * queue of at most {@link #getQueuedBatches()} batches, so a slow database
+ * holds back the reader instead of filling memory.
+ * <p>
+ * Each batch is its own transaction. A rejected row never stops the import,
+ * it is reported to the listener, and once a batch commits the listener is
+ * told the last row it covered. Run the import again with that row as
+ * <code>resumeAfter</code> to carry on after a failure.
+ * <p>
+ * The fields username and password are required for new users, a row for an
+ * existing user without a password keeps the stored one. The fields email,
+ * firstname, middlename, lastname, nickname, phone, gender, locale,
+ * zoneinfo, website, picture, profile, street, locality, region, postalcode
+ * and country set the user, roles lists role names separated by spaces or
+ * semicolons to grant, and any other field is stored as a user attribute.
+ * Blank values are ignored rather than clearing what is stored. The id and
+ * updated fields of files written by {@link UserExporter} are ignored.
+ */
+public class UserImporter {
+	private static final Set<String> FIELDS = new HashSet<String>();
+
+	static {
+		FIELDS.add("id");
+		FIELDS.add("updated");
+		FIELDS.add("fingerprint");
+		FIELDS.add("username");
+		FIELDS.add("password");
+		FIELDS.add("roles");
+		FIELDS.add("email");
+		FIELDS.add("firstname");
+		FIELDS.add("middlename");
+		FIELDS.add("lastname");
+		FIELDS.add("nickname");
+		FIELDS.add("phone");
+		FIELDS.add("gender");
+		FIELDS.add("locale");
+		FIELDS.add("zoneinfo");
+		FIELDS.add("website");
+		FIELDS.add("picture");
+		FIELDS.add("profile");
+		FIELDS.add("street");
+		FIELDS.add("locality");
+		FIELDS.add("region");
+		FIELDS.add("postalcode");
+		FIELDS.add("country");
+	}
+
+	@Autowired
+	private UserManager userManager;
+	@Autowired
+	private PasswordEncoder simplePasswordEncoder;
+	@Autowired(required = false)
+	private AttributeSchema attributeSchema;
+	/**
+	 * The rule the user manager applies, configured once for both
+	 */
+	@Autowired(required = false)
+	private IPasswordRule passwordRule;
+
+	private IUserValidity userValidity = new SimpleUserValidity();
+	private int batchSize = 500;
+	private int queuedBatches = 2;
+	private int hashThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Secure random number generator for the password salts
+	 */
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * A row after validation and hashing
+	 */
+	private static class Prepared {
+		final ImportRow row;
+		final String username;
+		final String problem;
+		String passwordHash;
+		String jamesPasswordHash;
+		Integer salt;
+
+		Prepared(ImportRow row, String username, String problem) {
+			this.row = row;
+			this.username = username;
+			this.problem = problem;
+		}
+	}
+
+	/**
+	 * @param format
+	 *            csv or ndjson
+	 * @param in
+	 *            the file, never <code>null</code>
+	 * @return a reader of the rows of the file
+	 */
+	public static RowReader reader(String format, Reader in) {
+		if ("csv".equalsIgnoreCase(format)) {
+			return new CsvRowReader(in);
+		} else if ("ndjson".equalsIgnoreCase(format)
+				|| "jsonl".equalsIgnoreCase(format)) {
+			return new NdjsonRowReader(in);
+		}
+		throw new IllegalArgumentException("Unknown import format " + format);
+	}
+
+	/**
+	 * Import every row of a file
+	 *
+	 * @param reader
+	 *            the rows, never <code>null</code>. Not closed here.
+	 * @param resumeAfter
+	 *            rows up to and including this one are skipped, 0 to import
+	 *            the whole file
+	 * @param listener
+	 *            hears about rejected rows and committed batches, never
+	 *            <code>null</code>
+	 * @return the counts
+	 * @throws IOException
+	 *             if the file could not be read. The rows of the batches
+	 *             committed before are stored.
+	 */
+	public ImportReport run(final RowReader reader, final long resumeAfter,
+			ImportListener listener) throws IOException {
+		if (reader == null) {
+			throw new IllegalArgumentException("reader should never be null");
+		}
+		if (listener == null) {
+			throw new IllegalArgumentException("listener should never be null");
+		}
+		final ImportReport report = new ImportReport();
+		final ExecutorService pool = Executors.newFixedThreadPool(hashThreads,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "user-import-hash");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		final BlockingQueue<List<Future<Prepared>>> queue = new ArrayBlockingQueue<List<Future<Prepared>>>(
+				queuedBatches);
+		// Seen by this thread after it takes the end marker from the queue
+		final Exception[] readFailure = new Exception[1];
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					List<Future<Prepared>> batch = new ArrayList<Future<Prepared>>(batchSize);
+					ImportRow row;
+					while ((row = reader.next()) != null) {
+						if (row.getNumber() <= resumeAfter) {
+							report.skip();
+							continue;
+						}
+						final ImportRow r = row;
+						batch.add(pool.submit(new Callable<Prepared>() {
+							public Prepared call() {
+								return prepare(r);
+							}
+						}));
+						if (batch.size() == batchSize) {
+							queue.put(batch);
+							batch = new ArrayList<Future<Prepared>>(batchSize);
+						}
+					}
+					if (!batch.isEmpty()) {
+						queue.put(batch);
+					}
+				} catch (IOException e) {
+					readFailure[0] = e;
+				} catch (RuntimeException e) {
+					readFailure[0] = e;
+				} catch (InterruptedException e) {
+					// The import was abandoned
+					return;
+				}
+				try {
+					// An empty batch marks the end
+					queue.put(new ArrayList<Future<Prepared>>());
+				} catch (InterruptedException e) {
+					// The import was abandoned
+				}
+			}
+		}, "user-import-reader");
+		producer.setDaemon(true);
+		producer.start();
+		try {
+			Map<String, Role> roles = new HashMap<String, Role>();
+			while (true) {
+				List<Future<Prepared>> batch = take(queue);
+				if (batch.isEmpty()) {
+					break;
+				}
+				List<Prepared> prepared = new ArrayList<Prepared>(batch.size());
+				for (Future<Prepared> future : batch) {
+					prepared.add(await(future));
+				}
+				store(prepared, false, roles, report, listener);
+			}
+		} finally {
+			producer.interrupt();
+			pool.shutdownNow();
+		}
+		if (readFailure[0] instanceof IOException) {
+			throw (IOException) readFailure[0];
+		} else if (readFailure[0] != null) {
+			throw (RuntimeException) readFailure[0];
+		}
+		return report;
+	}
+
+	/**
+	 * Create or update the users of one batch of rows on the calling thread
+	 *
+	 * @param rows
+	 *            the rows, never empty
+	 * @param replace
+	 *            if <code>true</code> blank values clear the field or remove
+	 *            the attribute they name, rather than being ignored, and
+	 *            roles revokes the roles it does not list
+	 * @param roles
+	 *            the roles looked up so far, by name
+	 * @param report
+	 *            receives the counts
+	 * @param listener
+	 *            hears about rejected rows and the commit
+	 */
+	void importBatch(List<ImportRow> rows, boolean replace,
+			Map<String, Role> roles, ImportReport report, ImportListener listener) {
+		List<Prepared> prepared = new ArrayList<Prepared>(rows.size());
+		for (ImportRow row : rows) {
+			prepared.add(prepare(row));
+		}
+		store(prepared, replace, roles, report, listener);
+	}
+
+	/**
+	 * Validate a row and hash its password. Runs on the pool.
+	 */
+	private Prepared prepare(ImportRow row) {
+		String username = StringUtils.trimToNull(row.get("username"));
+		if (row.getProblem() != null) {
+			return new Prepared(row, username, row.getProblem());
+		}
+		if (username == null) {
+			return new Prepared(row, null, "username should never be null or empty");
+		}
+		try {
+			userValidity.valid(username);
+		} catch (UserException e) {
+			return new Prepared(row, username, e.getMessage());
+		}
+		Prepared rval = new Prepared(row, username, null);
+		String password = row.get("password");
+		if (StringUtils.isNotEmpty(password)) {
+			if (passwordRule != null) {
+				try {
+					passwordRule.accept(password);
+				} catch (PasswordException e) {
+					return new Prepared(row, username, e.getMessage());
+				}
+			}
+			int salt = random.nextInt();
+			rval.salt = salt;
+			rval.passwordHash = simplePasswordEncoder.encodePassword(password, salt);
+			rval.jamesPasswordHash = new User().encodeJamesPasswordHash(password);
+		}
+		return rval;
+	}
+
+	/**
+	 * Create or update the users of one batch, in one transaction
+	 */
+	private void store(List<Prepared> batch, boolean replace,
+			Map<String, Role> roles, ImportReport report, ImportListener listener) {
+		List<String> names = new ArrayList<String>(batch.size());
+		for (Prepared p : batch) {
+			report.read();
+			if (p.problem != null) {
+				report.rejected();
+				listener.rejected(p.row.getNumber(), p.username, p.problem);
+			} else {
+				names.add(p.username);
+			}
+		}
+		Map<String, User> existing = names.isEmpty() ? new HashMap<String, User>()
+				: userManager.get(names);
+		List<User> users = new ArrayList<User>(names.size());
+		List<Prepared> stored = new ArrayList<Prepared>(names.size());
+		for (Prepared p : batch) {
+			if (p.problem != null) {
+				continue;
+			}
+			User user = existing.get(p.username);
+			if (user == null) {
+				if (p.passwordHash == null) {
+					report.rejected();
+					listener.rejected(p.row.getNumber(), p.username,
+							"A new user needs a password");
+					continue;
+				}
+				user = new User();
+				user.setUsername(p.username);
+			}
+			apply(p, user, replace, roles);
+			users.add(user);
+			stored.add(p);
+		}
+		if (!users.isEmpty()) {
+			List<BatchResult> results = userManager.saveAll(users);
+			for (BatchResult result : results) {
+				Prepared p = stored.get(result.getIndex());
+				if (result.getStatus() == BatchResult.Status.CREATED) {
+					report.created();
+				} else if (result.getStatus() == BatchResult.Status.UPDATED) {
+					report.updated();
+				} else {
+					report.rejected();
+					listener.rejected(p.row.getNumber(), p.username,
+							result.getMessage());
+				}
+			}
+		}
+		long last = batch.get(batch.size() - 1).row.getNumber();
+		report.committed(last);
+		listener.committed(last, report);
+	}
+
+	/**
+	 * Copy the fields of a row onto a new or existing user
+	 */
+	private void apply(Prepared p, User user, boolean replace,
+			Map<String, Role> roles) {
+		if (p.passwordHash != null) {
+			user.setPasswordHash(p.passwordHash);
+			user.setJamesPasswordHash(p.jamesPasswordHash);
+			user.setPasswordSalt(p.salt);
+		}
+		// Only a reconciliation row carries one, any other change means the
+		// next reconciliation has to rewrite the user
+		user.setFingerprint(p.row.get("fingerprint"));
+		for (Map.Entry<String, String> field : p.row.getFields().entrySet()) {
+			String name = field.getKey();
+			String value = StringUtils.trimToNull(field.getValue());
+			if (value == null && !replace) {
+				continue;
+			}
+			if ("roles".equals(name)) {
+				Set<Role> listed = new HashSet<Role>();
+				for (String rolename : StringUtils.defaultString(value).split("[\\s;]+")) {
+					if (rolename.length() == 0) {
+						continue;
+					}
+					Role role = roles.get(rolename.toUpperCase());
+					if (role == null) {
+						role = userManager.findOrCreateRole(rolename.toUpperCase());
+						roles.put(rolename.toUpperCase(), role);
+					}
+					listed.add(role);
+				}
+				if (replace) {
+					// Revokes the roles no longer listed, blank revokes all
+					user.getRoles().retainAll(listed);
+				}
+				user.getRoles().addAll(listed);
+			} else if ("email".equals(name)) {
+				user.setEmail(value);
+			} else if ("firstname".equals(name)) {
+				user.setFirstname(value);
+			} else if ("middlename".equals(name)) {
+				user.setMiddlename(value);
+			} else if ("lastname".equals(name)) {
+				user.setLastname(value);
+			} else if ("nickname".equals(name)) {
+				user.setNickname(value);
+			} else if ("phone".equals(name)) {
+				user.setPhone(value);
+			} else if ("gender".equals(name)) {
+				user.setGender(value);
+			} else if ("locale".equals(name)) {
+				user.setLocale(value);
+			} else if ("zoneinfo".equals(name)) {
+				user.setZoneinfo(value);
+			} else if ("website".equals(name)) {
+				user.setWebsite(value);
+			} else if ("picture".equals(name)) {
+				user.setPicture(value);
+			} else if ("profile".equals(name)) {
+				user.setProfile(value);
+			} else if ("street".equals(name)) {
+				user.setStreet(value);
+			} else if ("locality".equals(name)) {
+				user.setLocality(value);
+			} else if ("region".equals(name)) {
+				user.setRegion(value);
+			} else if ("postalcode".equals(name)) {
+				user.setPostalCode(value);
+			} else if ("country".equals(name)) {
+				user.setCountry(value);
+			} else if (!FIELDS.contains(name)) {
+				setAttribute(user, name.toUpperCase(), value);
+			}
+		}
+	}
+
+	/**
+	 * Set the value of a normal attribute, a <code>null</code> value removes
+	 * it
+	 */
+	private void setAttribute(User user, String name, String value) {
+		AttributeDiff.apply(user, Collections.singletonMap(name, value), false,
+				attributeSchema);
+	}
+
+	private static List<Future<Prepared>> take(
+			BlockingQueue<List<Future<Prepared>>> queue) {
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while importing users", e);
+		}
+	}
+
+	private static Prepared await(Future<Prepared> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while importing users", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("Preparing a row failed", cause);
+		}
+	}
+
+	public UserManager getUserManager() {
+		return userManager;
+	}
+
+	public void setUserManager(UserManager userManager) {
+		this.userManager = userManager;
+	}
+
+	public PasswordEncoder getSimplePasswordEncoder() {
+		return simplePasswordEncoder;
+	}
+
+	public void setSimplePasswordEncoder(PasswordEncoder simplePasswordEncoder) {
+		this.simplePasswordEncoder = simplePasswordEncoder;
+	}
+
+	public AttributeSchema getAttributeSchema() {
+		return attributeSchema;
+	}
+
+	public void setAttributeSchema(AttributeSchema attributeSchema) {
+		this.attributeSchema = attributeSchema;
+	}
+
+	public IUserValidity getUserValidity() {
+		return userValidity;
+	}
+
+	/**
+	 * @param userValidity
+	 *            checks the user names of the rows, never <code>null</code>
+	 */
+	public void setUserValidity(IUserValidity userValidity) {
+		if (userValidity == null) {
+			throw new IllegalArgumentException("userValidity should never be null");
+		}
+		this.userValidity = userValidity;
+	}
+
+	public IPasswordRule getPasswordRule() {
+		return passwordRule;
+	}
+
+	/**
+	 * @param passwordRule
+	 *            checks the passwords of the rows, or <code>null</code> to
+	 *            accept any password
+	 */
+	public void setPasswordRule(IPasswordRule passwordRule) {
+		this.passwordRule = passwordRule;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            the rows stored per transaction
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize should be at least 1");
+		}
+		this.batchSize = batchSize;
+	}
+
+	public int getQueuedBatches() {
+		return queuedBatches;
+	}
+
+	/**
+	 * @param queuedBatches
+	 *            how many read batches may wait for the database
+	 */
+	public void setQueuedBatches(int queuedBatches) {
+		if (queuedBatches < 1) {
+			throw new IllegalArgumentException("queuedBatches should be at least 1");
+		}
+		this.queuedBatches = queuedBatches;
+	}
+
+	public int getHashThreads() {
+		return hashThreads;
+	}
+
+	/**
+	 * @param hashThreads
+	 *            the threads validating rows and hashing passwords
+	 */
+	public void setHashThreads(int hashThreads) {
+		if (hashThreads < 1) {
+			throw new IllegalArgumentException("hashThreads should be at least 1");
+		}
+		this.hashThreads = hashThreads;
+	}
+}
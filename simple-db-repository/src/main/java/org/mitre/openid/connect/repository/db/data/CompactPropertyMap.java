@@ -0,0 +1,181 @@
+package org.mitre.openid.connect.repository.db.data;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.mitre.openid.connect.repository.db.util.AttributeNames;
+
+/**
+ * A map for the handful of extended properties a user carries. Keys and
+ * values are held in two parallel arrays and looked up by a linear scan,
+ * which for a few entries is as fast as hashing and avoids an entry object
+ * and table slot per property. Keys are interned through
+ * {@link AttributeNames}, so the scan usually matches on identity. Neither
+ * keys nor values may be <code>null</code>.
+ */
+public class CompactPropertyMap extends AbstractMap<String, String> implements
+		Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final String[] EMPTY = new String[0];
+
+	private String[] keys = EMPTY;
+	private String[] values = EMPTY;
+	private int size = 0;
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public String get(Object key) {
+		int i = indexOf(key);
+		return i >= 0 ? values[i] : null;
+	}
+
+	@Override
+	public String put(String key, String value) {
+		if (key == null || value == null) {
+			throw new IllegalArgumentException(
+					"key and value should never be null");
+		}
+		int i = indexOf(key);
+		if (i >= 0) {
+			String old = values[i];
+			values[i] = value;
+			return old;
+		}
+		if (size == keys.length) {
+			int capacity = size == 0 ? 4 : size + (size >> 1) + 1;
+			String[] k = new String[capacity];
+			String[] v = new String[capacity];
+			System.arraycopy(keys, 0, k, 0, size);
+			System.arraycopy(values, 0, v, 0, size);
+			keys = k;
+			values = v;
+		}
+		keys[size] = AttributeNames.intern(key);
+		values[size] = value;
+		size++;
+		return null;
+	}
+
+	@Override
+	public String remove(Object key) {
+		int i = indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+		String old = values[i];
+		removeAt(i);
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		keys = EMPTY;
+		values = EMPTY;
+		size = 0;
+	}
+
+	/**
+	 * Drop unused capacity, for maps that will not grow further
+	 */
+	public void trimToSize() {
+		if (size < keys.length) {
+			String[] k = new String[size];
+			String[] v = new String[size];
+			System.arraycopy(keys, 0, k, 0, size);
+			System.arraycopy(values, 0, v, 0, size);
+			keys = size == 0 ? EMPTY : k;
+			values = size == 0 ? EMPTY : v;
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return new AbstractSet<Map.Entry<String, String>>() {
+			@Override
+			public Iterator<Map.Entry<String, String>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private int indexOf(Object key) {
+		for (int i = 0; i < size; i++) {
+			if (keys[i] == key) {
+				return i;
+			}
+		}
+		if (key != null) {
+			for (int i = 0; i < size; i++) {
+				if (keys[i].equals(key)) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private void removeAt(int i) {
+		int moved = size - i - 1;
+		if (moved > 0) {
+			System.arraycopy(keys, i + 1, keys, i, moved);
+			System.arraycopy(values, i + 1, values, i, moved);
+		}
+		size--;
+		keys[size] = null;
+		values[size] = null;
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<String, String>> {
+		private int next = 0;
+		private int last = -1;
+
+		public boolean hasNext() {
+			return next < size;
+		}
+
+		public Map.Entry<String, String> next() {
+			if (next >= size) {
+				throw new NoSuchElementException();
+			}
+			last = next++;
+			final int index = last;
+			return new SimpleEntry<String, String>(keys[index], values[index]) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public String setValue(String value) {
+					super.setValue(value);
+					return CompactPropertyMap.this.put(keys[index], value);
+				}
+			};
+		}
+
+		public void remove() {
+			if (last < 0) {
+				throw new IllegalStateException();
+			}
+			removeAt(last);
+			next = last;
+			last = -1;
+		}
+	}
+}
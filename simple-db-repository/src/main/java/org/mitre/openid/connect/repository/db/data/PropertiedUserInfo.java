@@ -1,24 +1,30 @@
 package org.mitre.openid.connect.repository.db.data;
 
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
 
+import org.mitre.openid.connect.model.Address;
 import org.mitre.openid.connect.model.DefaultUserInfo;
 import org.mitre.openid.connect.repository.db.EnhancedUserInfo;
 
 public class PropertiedUserInfo extends DefaultUserInfo implements EnhancedUserInfo {
 	/**
-	 * Storage for the extended properties
+	 * Storage for the extended properties. Users carry only a few, so a
+	 * compact array map with shared key strings is used rather than a hash
+	 * map.
 	 */
-	private Map<String,String> extendedProperties = new HashMap<String, String>();
+	private CompactPropertyMap extendedProperties = new CompactPropertyMap();
+	/**
+	 * Set once the instance is shared, e.g. from a cache
+	 */
+	private transient boolean frozen = false;
 	
 	@Override
 	public void setProperty(String name, String value) {
 		if (name == null || name.trim().length() == 0) {
 			throw new IllegalArgumentException("Name must be supplied");
 		}
+		checkNotFrozen();
 		if (value == null) {
 			extendedProperties.remove(name);
 		} else {
@@ -39,4 +45,148 @@ public class PropertiedUserInfo extends DefaultUserInfo implements EnhancedUserI
 	public Set<String> keySet() {
 		return Collections.unmodifiableSet(extendedProperties.keySet());
 	}
+
+	@Override
+	public void setUserId(String userId) {
+		checkNotFrozen();
+		super.setUserId(userId);
+	}
+
+	@Override
+	public void setName(String name) {
+		checkNotFrozen();
+		super.setName(name);
+	}
+
+	@Override
+	public void setGivenName(String givenName) {
+		checkNotFrozen();
+		super.setGivenName(givenName);
+	}
+
+	@Override
+	public void setFamilyName(String familyName) {
+		checkNotFrozen();
+		super.setFamilyName(familyName);
+	}
+
+	@Override
+	public void setMiddleName(String middleName) {
+		checkNotFrozen();
+		super.setMiddleName(middleName);
+	}
+
+	@Override
+	public void setNickname(String nickname) {
+		checkNotFrozen();
+		super.setNickname(nickname);
+	}
+
+	@Override
+	public void setProfile(String profile) {
+		checkNotFrozen();
+		super.setProfile(profile);
+	}
+
+	@Override
+	public void setPicture(String picture) {
+		checkNotFrozen();
+		super.setPicture(picture);
+	}
+
+	@Override
+	public void setWebsite(String website) {
+		checkNotFrozen();
+		super.setWebsite(website);
+	}
+
+	@Override
+	public void setEmail(String email) {
+		checkNotFrozen();
+		super.setEmail(email);
+	}
+
+	@Override
+	public void setEmailVerified(Boolean emailVerified) {
+		checkNotFrozen();
+		super.setEmailVerified(emailVerified);
+	}
+
+	@Override
+	public void setGender(String gender) {
+		checkNotFrozen();
+		super.setGender(gender);
+	}
+
+	@Override
+	public void setZoneinfo(String zoneinfo) {
+		checkNotFrozen();
+		super.setZoneinfo(zoneinfo);
+	}
+
+	@Override
+	public void setLocale(String locale) {
+		checkNotFrozen();
+		super.setLocale(locale);
+	}
+
+	@Override
+	public void setPhoneNumber(String phoneNumber) {
+		checkNotFrozen();
+		super.setPhoneNumber(phoneNumber);
+	}
+
+	@Override
+	public void setAddress(Address address) {
+		checkNotFrozen();
+		super.setAddress(address);
+	}
+
+	@Override
+	public void setUpdatedTime(String updatedTime) {
+		checkNotFrozen();
+		super.setUpdatedTime(updatedTime);
+	}
+
+	/**
+	 * The address is mutable, so a frozen instance hands out a copy
+	 */
+	@Override
+	public Address getAddress() {
+		Address address = super.getAddress();
+		if (!frozen || address == null) {
+			return address;
+		}
+		Address copy = new Address();
+		copy.setFormatted(address.getFormatted());
+		copy.setStreetAddress(address.getStreetAddress());
+		copy.setLocality(address.getLocality());
+		copy.setRegion(address.getRegion());
+		copy.setCountry(address.getCountry());
+		copy.setPostalCode(address.getPostalCode());
+		return copy;
+	}
+
+	/**
+	 * Stop further changes to the user info. Called before the instance is
+	 * handed to more than one caller, after which every setter throws.
+	 */
+	public void freeze() {
+		extendedProperties.trimToSize();
+		frozen = true;
+	}
+
+	/**
+	 * @return <code>true</code> if the instance may be shared and must not be
+	 *         modified
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	private void checkNotFrozen() {
+		if (frozen) {
+			throw new IllegalStateException("User info is shared and cannot be modified");
+		}
+	}
 }
@@ -0,0 +1,283 @@
+package org.mitre.openid.connect.repository.db.impl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+
+import org.mitre.openid.connect.repository.db.IRoleIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Role index that keeps one bitmap of user ids per role. User ids are handed
+ * out in increasing order from blocks of 50 reserved in ID_SEQUENCES. A block
+ * left unused by a restart leaves a gap of at most 49 ids, so the bitmaps stay
+ * close to dense and cost about one bit per user per role.
+ */
+public class BitmapRoleIndex implements IRoleIndex {
+	private static final Logger logger = LoggerFactory
+			.getLogger(BitmapRoleIndex.class);
+
+	@PersistenceContext
+	private EntityManager em;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	/**
+	 * Role name to the set of user ids holding that role
+	 */
+	private Map<String, BitSet> members = new HashMap<String, BitSet>();
+	/**
+	 * Incremented on every change so that a verification pass can tell whether
+	 * the index was modified while the table was being read.
+	 */
+	private long generation = 0;
+
+	public void rebuild() {
+		Map<String, BitSet> loaded = load();
+		lock.writeLock().lock();
+		try {
+			members = loaded;
+			generation++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		logger.info("Role index built for " + loaded.size() + " roles");
+	}
+
+	public boolean verify() {
+		long started;
+		lock.readLock().lock();
+		try {
+			started = generation;
+		} finally {
+			lock.readLock().unlock();
+		}
+		Map<String, BitSet> loaded = load();
+		lock.writeLock().lock();
+		try {
+			if (sameMembership(loaded, members)) {
+				return true;
+			}
+			if (started != generation) {
+				// The index changed while we were reading, check again next time
+				logger.debug("Role index modified during verification, skipping");
+				return true;
+			}
+			logger.warn("Role index was inconsistent with USERS_ROLES, replacing it");
+			members = loaded;
+			generation++;
+			return false;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void update(Long userId, Collection<String> rolenames) {
+		if (rolenames == null) {
+			throw new IllegalArgumentException(
+					"rolenames should never be null");
+		}
+		int bit = toBit(userId);
+		lock.writeLock().lock();
+		try {
+			for (Map.Entry<String, BitSet> entry : members.entrySet()) {
+				if (!rolenames.contains(entry.getKey())) {
+					entry.getValue().clear(bit);
+				}
+			}
+			for (String rolename : rolenames) {
+				bitsFor(rolename).set(bit);
+			}
+			generation++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void remove(Long userId) {
+		int bit = toBit(userId);
+		lock.writeLock().lock();
+		try {
+			for (BitSet bits : members.values()) {
+				bits.clear(bit);
+			}
+			generation++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void grant(String rolename, Collection<Long> userIds) {
+		lock.writeLock().lock();
+		try {
+			BitSet bits = bitsFor(rolename);
+			for (Long userId : userIds) {
+				bits.set(toBit(userId));
+			}
+			generation++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void revoke(String rolename, Collection<Long> userIds) {
+		lock.writeLock().lock();
+		try {
+			BitSet bits = members.get(rolename);
+			if (bits != null) {
+				for (Long userId : userIds) {
+					bits.clear(toBit(userId));
+				}
+			}
+			generation++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void rename(String rolename, String newname) {
+		lock.writeLock().lock();
+		try {
+			BitSet bits = members.remove(rolename);
+			if (bits != null) {
+				bitsFor(newname).or(bits);
+			}
+			generation++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void drop(String rolename) {
+		lock.writeLock().lock();
+		try {
+			members.remove(rolename);
+			generation++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean isMember(Long userId, String rolename) {
+		int bit = toBit(userId);
+		lock.readLock().lock();
+		try {
+			BitSet bits = members.get(rolename);
+			return bits != null && bits.get(bit);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int count(String rolename) {
+		lock.readLock().lock();
+		try {
+			BitSet bits = members.get(rolename);
+			return bits != null ? bits.cardinality() : 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public List<Long> userIds(String rolename, int first, int count) {
+		if (first < 0 || count < 0) {
+			throw new IllegalArgumentException(
+					"first and count should never be negative");
+		}
+		lock.readLock().lock();
+		try {
+			BitSet bits = members.get(rolename);
+			if (bits == null || count == 0) {
+				return Collections.emptyList();
+			}
+			List<Long> rval = new ArrayList<Long>(Math.min(count, 64));
+			int skipped = 0;
+			for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+				if (skipped < first) {
+					skipped++;
+					continue;
+				}
+				rval.add(Long.valueOf(i));
+				if (rval.size() == count) {
+					break;
+				}
+			}
+			return rval;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Read the role membership table
+	 *
+	 * @return a freshly built role to user id map
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, BitSet> load() {
+		Query q = em.createNamedQuery("users.role_membership");
+		List<Object[]> rows = q.getResultList();
+		Map<String, BitSet> rval = new HashMap<String, BitSet>();
+		for (Object[] row : rows) {
+			String rolename = (String) row[1];
+			BitSet bits = rval.get(rolename);
+			if (bits == null) {
+				bits = new BitSet();
+				rval.put(rolename, bits);
+			}
+			bits.set(toBit(((Number) row[0]).longValue()));
+		}
+		return rval;
+	}
+
+	/**
+	 * Find or create the bitmap for a role, must be called with the write lock
+	 * held
+	 */
+	private BitSet bitsFor(String rolename) {
+		BitSet bits = members.get(rolename);
+		if (bits == null) {
+			bits = new BitSet();
+			members.put(rolename, bits);
+		}
+		return bits;
+	}
+
+	/**
+	 * Compare two indices, ignoring roles that have no members
+	 */
+	private boolean sameMembership(Map<String, BitSet> a, Map<String, BitSet> b) {
+		return containsAll(a, b) && containsAll(b, a);
+	}
+
+	private boolean containsAll(Map<String, BitSet> a, Map<String, BitSet> b) {
+		for (Map.Entry<String, BitSet> entry : a.entrySet()) {
+			if (entry.getValue().isEmpty()) continue;
+			if (!entry.getValue().equals(b.get(entry.getKey()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int toBit(Long userId) {
+		if (userId == null) {
+			throw new IllegalArgumentException("userId should never be null");
+		}
+		if (userId < 0 || userId > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("userId " + userId
+					+ " is outside the range the role index can hold");
+		}
+		return userId.intValue();
+	}
+}
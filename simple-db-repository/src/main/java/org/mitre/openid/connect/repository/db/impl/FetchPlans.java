@@ -0,0 +1,75 @@
+package org.mitre.openid.connect.repository.db.impl;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.persistence.Query;
+
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.queries.FetchGroup;
+import org.eclipse.persistence.queries.FetchGroupTracker;
+import org.mitre.openid.connect.repository.FetchPlan;
+import org.mitre.openid.connect.repository.db.model.User;
+
+/**
+ * Applies a {@link FetchPlan} to a user query as an EclipseLink fetch group.
+ * The groups are built here rather than declared with annotations on the
+ * entity, EclipseLink refuses declared fetch groups on a class that is not
+ * woven while a query hint on an unwoven class is simply not applied.
+ */
+final class FetchPlans {
+	/**
+	 * Woven entities track which attributes were fetched, unwoven ones are
+	 * always read whole
+	 */
+	static final boolean PARTIAL_FETCH = FetchGroupTracker.class
+			.isAssignableFrom(User.class);
+
+	private static final Map<FetchPlan, FetchGroup> groups = new EnumMap<FetchPlan, FetchGroup>(
+			FetchPlan.class);
+
+	static {
+		for (FetchPlan plan : FetchPlan.values()) {
+			if (plan.getAttributes().isEmpty()) {
+				continue;
+			}
+			FetchGroup group = new FetchGroup(plan.name().toLowerCase());
+			for (String attribute : plan.getAttributes()) {
+				group.addAttribute(attribute);
+			}
+			groups.put(plan, group);
+		}
+	}
+
+	private FetchPlans() {
+		// Intentionally empty
+	}
+
+	/**
+	 * @param plan
+	 *            the plan, never <code>null</code>
+	 * @return <code>true</code> if the plan reads less than the whole user
+	 */
+	static boolean isPartial(FetchPlan plan) {
+		if (plan == null) {
+			throw new IllegalArgumentException("plan should never be null");
+		}
+		return PARTIAL_FETCH && groups.containsKey(plan);
+	}
+
+	/**
+	 * Limit the columns a query on users selects to those of the plan
+	 *
+	 * @param query
+	 *            a query returning users, never <code>null</code>
+	 * @param plan
+	 *            the plan, never <code>null</code>
+	 * @return the query
+	 */
+	static Query apply(Query query, FetchPlan plan) {
+		if (isPartial(plan)) {
+			query.setHint(QueryHints.FETCH_GROUP, groups.get(plan));
+		}
+		return query;
+	}
+}
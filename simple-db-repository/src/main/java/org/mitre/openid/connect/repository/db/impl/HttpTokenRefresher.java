@@ -0,0 +1,138 @@
+package org.mitre.openid.connect.repository.db.impl;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Date;
+
+import org.mitre.openid.connect.repository.db.ITokenRefresher;
+import org.mitre.openid.connect.repository.db.model.RemoteUserAttribute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Refreshes tokens by posting them to a token endpoint. The form carries the
+ * attribute <code>name</code>, the <code>resource</code> link and the
+ * current <code>access_token</code>. The answer is a JSON object in the form
+ * of an OAUTH2 token response, with the new <code>access_token</code> and
+ * its lifetime in seconds as <code>expires_in</code>. Any other answer
+ * leaves the token to expire.
+ */
+public class HttpTokenRefresher implements ITokenRefresher {
+	private static final Logger logger = LoggerFactory
+			.getLogger(HttpTokenRefresher.class);
+	private static final String UTF8 = "UTF-8";
+
+	private URL endpoint;
+	private int connectTimeoutMillis = 5000;
+	private int readTimeoutMillis = 10000;
+
+	public boolean refresh(RemoteUserAttribute attribute) {
+		if (attribute == null) {
+			throw new IllegalArgumentException("attribute should never be null");
+		}
+		if (endpoint == null) {
+			throw new IllegalStateException("endpoint should be set");
+		}
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) endpoint.openConnection();
+			connection.setConnectTimeout(connectTimeoutMillis);
+			connection.setReadTimeout(readTimeoutMillis);
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+			String form = "name=" + encode(attribute.getName())
+					+ "&resource=" + encode(attribute.getValue())
+					+ "&access_token=" + encode(attribute.getAccessToken());
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(form.getBytes(UTF8));
+			} finally {
+				out.close();
+			}
+			int status = connection.getResponseCode();
+			if (status != HttpURLConnection.HTTP_OK) {
+				logger.warn("Refreshing token {} failed with status {}", attribute.getId(), status);
+				return false;
+			}
+			Reader in = new InputStreamReader(connection.getInputStream(), UTF8);
+			JsonObject response;
+			try {
+				response = new JsonParser().parse(in).getAsJsonObject();
+			} finally {
+				in.close();
+			}
+			JsonElement token = response.get("access_token");
+			JsonElement expiresIn = response.get("expires_in");
+			if (token == null || !token.isJsonPrimitive()) {
+				logger.warn("Refreshing token {} returned no access_token", attribute.getId());
+				return false;
+			}
+			attribute.setAccessToken(token.getAsString());
+			attribute.setExpiration(expiresIn != null && expiresIn.isJsonPrimitive()
+					? new Date(System.currentTimeMillis() + expiresIn.getAsLong() * 1000L) : null);
+			return true;
+		} catch (IOException e) {
+			logger.warn("Refreshing token {} failed: {}", attribute.getId(), e.getMessage());
+			return false;
+		} catch (JsonParseException e) {
+			logger.warn("Refreshing token {} returned no JSON object: {}", attribute.getId(), e.getMessage());
+			return false;
+		} catch (IllegalStateException e) {
+			logger.warn("Refreshing token {} returned no JSON object: {}", attribute.getId(), e.getMessage());
+			return false;
+		} catch (NumberFormatException e) {
+			logger.warn("Refreshing token {} returned a bad expires_in", attribute.getId());
+			return false;
+		} finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+	}
+
+	private static String encode(String value) throws IOException {
+		return value != null ? URLEncoder.encode(value, UTF8) : "";
+	}
+
+	public URL getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * @param endpoint
+	 *            the token endpoint, never <code>null</code>
+	 */
+	public void setEndpoint(URL endpoint) {
+		if (endpoint == null) {
+			throw new IllegalArgumentException("endpoint should never be null");
+		}
+		this.endpoint = endpoint;
+	}
+
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	public int getReadTimeoutMillis() {
+		return readTimeoutMillis;
+	}
+
+	public void setReadTimeoutMillis(int readTimeoutMillis) {
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+}
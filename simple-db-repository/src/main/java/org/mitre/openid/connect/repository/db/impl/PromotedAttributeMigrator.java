@@ -0,0 +1,100 @@
+package org.mitre.openid.connect.repository.db.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.mitre.openid.connect.repository.db.util.PromotedAttribute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Moves the attribute rows of promoted names to their columns in the
+ * background, a batch per transaction, so promoting an attribute needs no
+ * downtime. Until a row is moved readers still find it in USER_ATTRIBUTES.
+ * Schedule {@link #migrate()} to run repeatedly, later passes pick up rows
+ * written by servers that do not promote the attribute yet.
+ */
+public class PromotedAttributeMigrator {
+	private static final Logger logger = LoggerFactory
+			.getLogger(PromotedAttributeMigrator.class);
+
+	@Autowired
+	private PromotedAttributeStore promotedAttributes;
+	@PersistenceUnit
+	private EntityManagerFactory entityManagerFactory;
+
+	private int batchSize = 500;
+
+	/**
+	 * Move every attribute row of a promoted name to its column
+	 *
+	 * @return the number of rows moved
+	 */
+	public int migrate() {
+		int moved = 0;
+		for (PromotedAttribute attr : promotedAttributes.getSchema().getPromoted()) {
+			long after = 0;
+			while (true) {
+				List<Long> userIds = new ArrayList<Long>();
+				List<Long> attributeIds = new ArrayList<Long>();
+				long last = promotedAttributes.migrate(attr, after, batchSize, userIds, attributeIds);
+				// Cached users and attributes still hold the rows that were
+				// moved, the native delete bypasses the cache
+				Cache cache = entityManagerFactory.getCache();
+				for (Long id : userIds) {
+					cache.evict(User.class, id);
+				}
+				for (Long id : attributeIds) {
+					cache.evict(UserAttribute.class, id);
+				}
+				moved += userIds.size();
+				if (last == after) {
+					break;
+				}
+				after = last;
+			}
+		}
+		if (moved > 0) {
+			logger.info("Moved {} promoted attributes to their columns", moved);
+		}
+		return moved;
+	}
+
+	public PromotedAttributeStore getPromotedAttributes() {
+		return promotedAttributes;
+	}
+
+	public void setPromotedAttributes(PromotedAttributeStore promotedAttributes) {
+		this.promotedAttributes = promotedAttributes;
+	}
+
+	public EntityManagerFactory getEntityManagerFactory() {
+		return entityManagerFactory;
+	}
+
+	public void setEntityManagerFactory(EntityManagerFactory entityManagerFactory) {
+		this.entityManagerFactory = entityManagerFactory;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            the attribute rows moved per transaction
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize should be at least 1");
+		}
+		this.batchSize = batchSize;
+	}
+}
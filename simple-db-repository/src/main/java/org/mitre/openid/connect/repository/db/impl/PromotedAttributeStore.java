@@ -0,0 +1,514 @@
+package org.mitre.openid.connect.repository.db.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+
+import org.mitre.openid.connect.repository.db.data.PropertiedUserInfo;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.mitre.openid.connect.repository.db.util.AttributeSchema;
+import org.mitre.openid.connect.repository.db.util.PromotedAttribute;
+import org.mitre.openid.connect.repository.db.util.ValueCompressor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Reads and writes the promoted attributes of users, one row of
+ * USER_PROMOTED_ATTRIBUTES per user with a column per attribute declared in
+ * the {@link AttributeSchema}. The columns vary with the configuration, so
+ * the table is reached with native statements built from the schema rather
+ * than mapped. Users with no promoted values have no row.
+ * <p>
+ * A row of USER_ATTRIBUTES carrying a promoted name is always newer than the
+ * column, writers of a promoted value remove such rows, so readers let it win
+ * and {@link #migrate(PromotedAttribute, long, int, List)} moves it over.
+ */
+@Repository
+public class PromotedAttributeStore {
+	private static final Logger logger = LoggerFactory
+			.getLogger(PromotedAttributeStore.class);
+
+	@PersistenceContext
+	private EntityManager em;
+	@Autowired
+	private AttributeSchema schema;
+
+	/**
+	 * @return <code>true</code> if any attribute is promoted
+	 */
+	public boolean isEnabled() {
+		return !schema.isEmpty();
+	}
+
+	/**
+	 * @param userId
+	 *            the user, never <code>null</code>
+	 * @return the promoted values of the user keyed by attribute name,
+	 *         leaving out those without a value
+	 */
+	public Map<String, String> read(Long userId) {
+		if (userId == null) {
+			throw new IllegalArgumentException("userId should never be null");
+		}
+		Map<String, String> rval = new HashMap<String, String>();
+		if (!isEnabled()) {
+			return rval;
+		}
+		Query q = em.createNativeQuery("select " + columns()
+				+ " from USER_PROMOTED_ATTRIBUTES where USER_ID = ?1");
+		List<?> rows = q.setParameter(1, userId).getResultList();
+		if (!rows.isEmpty()) {
+			// A single column comes back as the value itself
+			Object row = rows.get(0);
+			toValues(row instanceof Object[] ? (Object[]) row : new Object[] { row }, 0, rval);
+		}
+		return rval;
+	}
+
+	/**
+	 * @param userIds
+	 *            the users, never <code>null</code>
+	 * @return the promoted values of each user that has any, keyed by user id
+	 *         and then by attribute name. Read {@link User#BATCH_SIZE} users
+	 *         per statement.
+	 */
+	public Map<Long, Map<String, String>> read(Collection<Long> userIds) {
+		if (userIds == null) {
+			throw new IllegalArgumentException("userIds should never be null");
+		}
+		Map<Long, Map<String, String>> rval = new HashMap<Long, Map<String, String>>();
+		if (!isEnabled() || userIds.isEmpty()) {
+			return rval;
+		}
+		List<Long> ids = new ArrayList<Long>(userIds);
+		for (int c = 0; c < ids.size(); c += User.BATCH_SIZE) {
+			List<Long> chunk = ids.subList(c, Math.min(ids.size(), c + User.BATCH_SIZE));
+			StringBuilder sql = new StringBuilder("select USER_ID, ").append(columns())
+					.append(" from USER_PROMOTED_ATTRIBUTES where USER_ID in (");
+			for (int i = 0; i < chunk.size(); i++) {
+				sql.append(i > 0 ? ", ?" : "?").append(i + 1);
+			}
+			Query q = em.createNativeQuery(sql.append(')').toString());
+			for (int i = 0; i < chunk.size(); i++) {
+				q.setParameter(i + 1, chunk.get(i));
+			}
+			@SuppressWarnings("unchecked")
+			List<Object[]> rows = q.getResultList();
+			for (Object[] row : rows) {
+				Map<String, String> values = new HashMap<String, String>();
+				toValues(row, 1, values);
+				rval.put(((Number) row[0]).longValue(), values);
+			}
+		}
+		return rval;
+	}
+
+	/**
+	 * Write promoted values of a user, leaving the others as they are
+	 *
+	 * @param userId
+	 *            the user, already stored, never <code>null</code>
+	 * @param changes
+	 *            the values keyed by promoted attribute name, a
+	 *            <code>null</code> value clears one, never <code>null</code>
+	 */
+	public void write(Long userId, Map<String, String> changes) {
+		if (userId == null) {
+			throw new IllegalArgumentException("userId should never be null");
+		}
+		if (changes == null) {
+			throw new IllegalArgumentException("changes should never be null");
+		}
+		if (changes.isEmpty()) {
+			return;
+		}
+		List<String> columns = new ArrayList<String>(changes.size());
+		List<Object> values = new ArrayList<Object>(changes.size());
+		boolean any = false;
+		for (Map.Entry<String, String> change : changes.entrySet()) {
+			PromotedAttribute attr = schema.get(change.getKey());
+			if (attr == null) {
+				throw new IllegalArgumentException("Attribute " + change.getKey() + " is not promoted");
+			}
+			Object value = attr.toColumn(change.getValue());
+			columns.add(attr.getColumn());
+			values.add(value);
+			any |= value != null;
+		}
+		StringBuilder update = new StringBuilder("update USER_PROMOTED_ATTRIBUTES set ");
+		for (int i = 0; i < columns.size(); i++) {
+			update.append(i > 0 ? ", " : "").append(columns.get(i)).append(" = ?").append(i + 1);
+		}
+		update.append(" where USER_ID = ?").append(columns.size() + 1);
+		Query q = em.createNativeQuery(update.toString());
+		bind(q, values);
+		q.setParameter(columns.size() + 1, userId);
+		if (q.executeUpdate() > 0 || !any) {
+			return;
+		}
+		StringBuilder insert = new StringBuilder("insert into USER_PROMOTED_ATTRIBUTES (");
+		StringBuilder params = new StringBuilder();
+		for (int i = 0; i < columns.size(); i++) {
+			insert.append(columns.get(i)).append(", ");
+			params.append('?').append(i + 1).append(", ");
+		}
+		insert.append("USER_ID) values (").append(params).append('?')
+				.append(columns.size() + 1).append(')');
+		q = em.createNativeQuery(insert.toString());
+		bind(q, values);
+		q.setParameter(columns.size() + 1, userId);
+		q.executeUpdate();
+	}
+
+	/**
+	 * Remove the promoted values of a user being deleted
+	 *
+	 * @param userId
+	 *            the user, never <code>null</code>
+	 */
+	public void delete(Long userId) {
+		if (userId == null) {
+			throw new IllegalArgumentException("userId should never be null");
+		}
+		if (isEnabled()) {
+			em.createNativeQuery("delete from USER_PROMOTED_ATTRIBUTES where USER_ID = ?1")
+					.setParameter(1, userId).executeUpdate();
+		}
+	}
+
+	/**
+	 * Find the users with a promoted attribute of a value, in id order. Rows
+	 * of USER_ATTRIBUTES not yet moved are searched as well.
+	 *
+	 * @param attr
+	 *            the promoted attribute, never <code>null</code>
+	 * @param value
+	 *            the value, never <code>null</code>
+	 * @return the user ids
+	 */
+	public List<Long> findUserIds(PromotedAttribute attr, String value) {
+		if (attr == null) {
+			throw new IllegalArgumentException("attr should never be null");
+		}
+		if (value == null) {
+			throw new IllegalArgumentException("value should never be null");
+		}
+		Object column = fit(attr, value);
+		List<Object[]> found = new ArrayList<Object[]>();
+		if (column != null) {
+			found.addAll(columnQuery(attr, "= ?2", Arrays.asList(column), null, 0));
+		}
+		found.addAll(rowQuery(attr, "in (?3, ?4)",
+				Arrays.<Object>asList(value, ValueCompressor.toCompressed(value)), null, 0));
+		Set<Long> ids = new TreeSet<Long>();
+		for (Object[] row : found) {
+			ids.add(((Number) row[0]).longValue());
+		}
+		return new ArrayList<Long>(ids);
+	}
+
+	/**
+	 * Find a page of the users with a promoted string attribute starting with
+	 * a prefix, in value order
+	 *
+	 * @param attr
+	 *            the promoted attribute, of type STRING, never
+	 *            <code>null</code>
+	 * @param prefix
+	 *            the prefix, never <code>null</code>
+	 * @param first
+	 *            the first match to return
+	 * @param count
+	 *            the most matches to return
+	 * @return the user ids
+	 */
+	public List<Long> findUserIdsByPrefix(PromotedAttribute attr, String prefix, int first, int count) {
+		if (attr == null) {
+			throw new IllegalArgumentException("attr should never be null");
+		}
+		if (prefix == null) {
+			throw new IllegalArgumentException("prefix should never be null");
+		}
+		if (attr.getType() != PromotedAttribute.Type.STRING) {
+			throw new IllegalArgumentException("Attribute " + attr.getName()
+					+ " is not a string, search it by value or range");
+		}
+		String pattern = prefix.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%";
+		List<Object> params = Arrays.<Object>asList(pattern);
+		return page(attr, columnQuery(attr, "like ?2 escape '!'", params, attr.getColumn(), first + count),
+				rowQuery(attr, "like ?3 escape '!'", params, "ATTR_VALUE", first + count), first, count);
+	}
+
+	/**
+	 * Find a page of the users with a promoted attribute from one value up
+	 * to but not including another, in value order. The column compares
+	 * values by its type, rows not yet moved compare them as strings.
+	 *
+	 * @param attr
+	 *            the promoted attribute, never <code>null</code>
+	 * @param from
+	 *            the lowest value, never <code>null</code>
+	 * @param to
+	 *            the value above the highest, never <code>null</code>
+	 * @param first
+	 *            the first match to return
+	 * @param count
+	 *            the most matches to return
+	 * @return the user ids
+	 */
+	public List<Long> findUserIdsInRange(PromotedAttribute attr, String from, String to, int first, int count) {
+		if (attr == null) {
+			throw new IllegalArgumentException("attr should never be null");
+		}
+		if (from == null || to == null) {
+			throw new IllegalArgumentException("from and to should never be null");
+		}
+		Object low = attr.toColumn(from);
+		Object high = attr.toColumn(to);
+		List<Object[]> columns = low != null && high != null
+				? columnQuery(attr, ">= ?2 and p." + attr.getColumn() + " < ?3",
+						Arrays.asList(low, high), attr.getColumn(), first + count)
+				: new ArrayList<Object[]>();
+		return page(attr, columns, rowQuery(attr, ">= ?3 and a.ATTR_VALUE < ?4",
+				Arrays.<Object>asList(from, to), "ATTR_VALUE", first + count), first, count);
+	}
+
+	/**
+	 * @return the value bound to the column, or <code>null</code> if no
+	 *         column value can be equal to it
+	 */
+	private static Object fit(PromotedAttribute attr, String value) {
+		try {
+			return attr.toColumn(value);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Find the user ids and column values of users whose column passes a
+	 * test, leaving out users that still have a row of the name, the row is
+	 * newer
+	 *
+	 * @param test
+	 *            the condition on the column, parameters from ?2
+	 * @param orderBy
+	 *            the column to order by before the id, or <code>null</code>
+	 * @param max
+	 *            the most rows to read, if ordered
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Object[]> columnQuery(PromotedAttribute attr, String test, List<Object> params,
+			String orderBy, int max) {
+		Query q = em.createNativeQuery("select p.USER_ID, p." + attr.getColumn()
+				+ " from USER_PROMOTED_ATTRIBUTES p where p." + attr.getColumn() + " " + test
+				+ " and not exists (select 1 from USER_ATTRIBUTES a where a.USER_ID = p.USER_ID"
+				+ " and a.ATTR_NAME = ?1)"
+				+ (orderBy != null ? " order by p." + orderBy + ", p.USER_ID" : ""));
+		q.setParameter(1, attr.getName());
+		for (int i = 0; i < params.size(); i++) {
+			q.setParameter(i + 2, params.get(i));
+		}
+		if (orderBy != null) {
+			q.setMaxResults(max);
+		}
+		return q.getResultList();
+	}
+
+	/**
+	 * Find the user ids and stored values of the attribute rows of a promoted
+	 * name not yet moved whose value passes a test
+	 *
+	 * @param test
+	 *            the condition on ATTR_VALUE, parameters from ?3
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Object[]> rowQuery(PromotedAttribute attr, String test, List<Object> params,
+			String orderBy, int max) {
+		Query q = em.createNativeQuery("select a.USER_ID, a.ATTR_VALUE from USER_ATTRIBUTES a"
+				+ " where a.ATTR_NAME = ?1 and a.ATTR_TYPE = ?2 and a.ATTR_VALUE " + test
+				+ (orderBy != null ? " order by a." + orderBy + ", a.USER_ID" : ""));
+		q.setParameter(1, attr.getName());
+		q.setParameter(2, UserAttribute.NORMAL_TYPE);
+		for (int i = 0; i < params.size(); i++) {
+			q.setParameter(i + 3, params.get(i));
+		}
+		if (orderBy != null) {
+			q.setMaxResults(max);
+		}
+		return q.getResultList();
+	}
+
+	/**
+	 * Merge the column and row matches, each read in value order, into one
+	 * page in value order
+	 */
+	private static List<Long> page(final PromotedAttribute attr, List<Object[]> columns,
+			List<Object[]> rows, int first, int count) {
+		List<Object[]> all = new ArrayList<Object[]>(columns.size() + rows.size());
+		for (Object[] column : columns) {
+			all.add(new Object[] { column[0], fit(attr, attr.fromColumn(column[1])) });
+		}
+		for (Object[] row : rows) {
+			// A row whose value does not fit the type sorts as its string
+			Object value = fit(attr, ValueCompressor.decode((String) row[1]));
+			all.add(new Object[] { row[0], value != null ? value : row[1] });
+		}
+		Collections.sort(all, new Comparator<Object[]>() {
+			@SuppressWarnings("unchecked")
+			public int compare(Object[] a, Object[] b) {
+				int c;
+				if (a[1].getClass() == b[1].getClass()) {
+					c = ((Comparable) a[1]).compareTo(b[1]);
+				} else {
+					c = a[1].toString().compareTo(b[1].toString());
+				}
+				if (c == 0) {
+					c = Long.valueOf(((Number) a[0]).longValue()).compareTo(((Number) b[0]).longValue());
+				}
+				return c;
+			}
+		});
+		List<Long> rval = new ArrayList<Long>(count);
+		for (int i = first; i < all.size() && rval.size() < count; i++) {
+			rval.add(((Number) all.get(i)[0]).longValue());
+		}
+		return rval;
+	}
+
+	/**
+	 * Move a batch of attribute rows of a promoted name to its column, in id
+	 * order. Rows whose value does not fit the column are left where they are
+	 * and logged.
+	 *
+	 * @param attr
+	 *            the promoted attribute, never <code>null</code>
+	 * @param afterId
+	 *            the attribute id to continue after, 0 to start
+	 * @param max
+	 *            the most rows to move
+	 * @param userIds
+	 *            receives the users whose rows were moved, never
+	 *            <code>null</code>
+	 * @param attributeIds
+	 *            receives the ids of the rows moved, never <code>null</code>
+	 * @return the id of the last row looked at, <code>afterId</code> once
+	 *         there are none left
+	 */
+	@Transactional
+	public long migrate(PromotedAttribute attr, long afterId, int max, List<Long> userIds,
+			List<Long> attributeIds) {
+		if (attr == null) {
+			throw new IllegalArgumentException("attr should never be null");
+		}
+		if (userIds == null) {
+			throw new IllegalArgumentException("userIds should never be null");
+		}
+		if (attributeIds == null) {
+			throw new IllegalArgumentException("attributeIds should never be null");
+		}
+		Query q = em.createNativeQuery("select ID, USER_ID, ATTR_VALUE from USER_ATTRIBUTES"
+				+ " where ATTR_NAME = ?1 and ATTR_TYPE = ?2 and ID > ?3 order by ID");
+		q.setParameter(1, attr.getName());
+		q.setParameter(2, UserAttribute.NORMAL_TYPE);
+		q.setParameter(3, afterId);
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = q.setMaxResults(max).getResultList();
+		long last = afterId;
+		List<Long> moved = new ArrayList<Long>(rows.size());
+		for (Object[] row : rows) {
+			last = ((Number) row[0]).longValue();
+			Long userId = ((Number) row[1]).longValue();
+			try {
+				Map<String, String> change = new LinkedHashMap<String, String>();
+				change.put(attr.getName(), ValueCompressor.decode((String) row[2]));
+				write(userId, change);
+			} catch (IllegalArgumentException e) {
+				logger.warn("Leaving attribute {} of user {}: {}",
+						new Object[] { attr.getName(), userId, e.getMessage() });
+				continue;
+			}
+			moved.add(last);
+			userIds.add(userId);
+		}
+		if (!moved.isEmpty()) {
+			StringBuilder delete = new StringBuilder("delete from USER_ATTRIBUTES where ID in (");
+			for (int i = 0; i < moved.size(); i++) {
+				delete.append(i > 0 ? ", ?" : "?").append(i + 1);
+			}
+			Query d = em.createNativeQuery(delete.append(')').toString());
+			bind(d, new ArrayList<Object>(moved));
+			d.executeUpdate();
+			attributeIds.addAll(moved);
+		}
+		return last;
+	}
+
+	/**
+	 * Add promoted values to a user info, leaving properties it already has
+	 * alone
+	 *
+	 * @param info
+	 *            the user info, never <code>null</code>
+	 * @param values
+	 *            the promoted values, may be <code>null</code>
+	 */
+	public static void overlay(PropertiedUserInfo info, Map<String, String> values) {
+		if (values == null) {
+			return;
+		}
+		for (Map.Entry<String, String> value : values.entrySet()) {
+			if (value.getValue() != null && info.getProperty(value.getKey()) == null) {
+				info.setProperty(value.getKey(), value.getValue());
+			}
+		}
+	}
+
+	private String columns() {
+		StringBuilder sb = new StringBuilder();
+		for (PromotedAttribute attr : schema.getPromoted()) {
+			sb.append(sb.length() > 0 ? ", " : "").append(attr.getColumn());
+		}
+		return sb.toString();
+	}
+
+	private void toValues(Object[] row, int first, Map<String, String> values) {
+		int i = first;
+		for (PromotedAttribute attr : schema.getPromoted()) {
+			String value = attr.fromColumn(row[i++]);
+			if (value != null) {
+				values.put(attr.getName(), value);
+			}
+		}
+	}
+
+	private static void bind(Query q, List<Object> values) {
+		for (int i = 0; i < values.size(); i++) {
+			q.setParameter(i + 1, values.get(i));
+		}
+	}
+
+	public AttributeSchema getSchema() {
+		return schema;
+	}
+
+	public void setSchema(AttributeSchema schema) {
+		this.schema = schema;
+	}
+}
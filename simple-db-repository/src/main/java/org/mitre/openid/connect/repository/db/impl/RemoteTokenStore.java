@@ -0,0 +1,127 @@
+package org.mitre.openid.connect.repository.db.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+
+import org.mitre.openid.connect.repository.db.model.RemoteUserAttribute;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * The queries of the {@link RemoteTokenSweeper}. Expirations are found
+ * through the index on TOKEN_EXPIRATION, and tokens are purged or replaced
+ * with bulk updates that only apply while the expiration is the one the
+ * sweeper saw, so a token written meanwhile is left alone.
+ */
+@Repository
+public class RemoteTokenStore {
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * Find tokens expiring before a time, in expiration order. Continue
+	 * after the last row returned to read the next batch.
+	 *
+	 * @param until
+	 *            the expirations to find are before this, never
+	 *            <code>null</code>
+	 * @param after
+	 *            the expiration of the last row read, <code>null</code> to
+	 *            start
+	 * @param afterId
+	 *            the id of the last row read
+	 * @param max
+	 *            the most rows to return
+	 * @return the remote attributes with a token, not managed
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactional(propagation = Propagation.SUPPORTS)
+	public List<RemoteUserAttribute> findExpiring(Date until, Date after, long afterId, int max) {
+		if (until == null) {
+			throw new IllegalArgumentException("until should never be null");
+		}
+		TypedQuery<RemoteUserAttribute> q;
+		if (after == null) {
+			q = (TypedQuery<RemoteUserAttribute>) em.createNamedQuery("user_remote_attributes.expiring");
+		} else {
+			q = (TypedQuery<RemoteUserAttribute>) em.createNamedQuery("user_remote_attributes.expiring_after");
+			q.setParameter("after", after).setParameter("afterId", afterId);
+		}
+		return q.setParameter("until", until).setMaxResults(max).getResultList();
+	}
+
+	/**
+	 * @param ids
+	 *            remote attribute ids, never <code>null</code>
+	 * @return the remote attributes still there, not managed
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactional(propagation = Propagation.SUPPORTS)
+	public List<RemoteUserAttribute> findByIds(Collection<Long> ids) {
+		if (ids == null) {
+			throw new IllegalArgumentException("ids should never be null");
+		}
+		List<RemoteUserAttribute> rval = new ArrayList<RemoteUserAttribute>();
+		List<Long> all = new ArrayList<Long>(ids);
+		for (int c = 0; c < all.size(); c += User.BATCH_SIZE) {
+			TypedQuery<RemoteUserAttribute> q = (TypedQuery<RemoteUserAttribute>) em.createNamedQuery(
+					"user_remote_attributes.by_ids");
+			rval.addAll(q.setParameter("ids", all.subList(c, Math.min(all.size(), c + User.BATCH_SIZE)))
+					.getResultList());
+		}
+		return rval;
+	}
+
+	/**
+	 * Clear the tokens of remote attributes that have expired, keeping the
+	 * attributes
+	 *
+	 * @param ids
+	 *            remote attribute ids, never <code>null</code>
+	 * @param now
+	 *            only tokens expiring by then are cleared
+	 * @return the tokens cleared
+	 */
+	@Transactional
+	public int purge(Collection<Long> ids, Date now) {
+		if (ids == null) {
+			throw new IllegalArgumentException("ids should never be null");
+		}
+		if (ids.isEmpty()) {
+			return 0;
+		}
+		return em.createNamedQuery("user_remote_attributes.purge")
+				.setParameter("ids", ids).setParameter("now", now).executeUpdate();
+	}
+
+	/**
+	 * Replace a token unless it changed since it was read
+	 *
+	 * @param id
+	 *            the remote attribute id
+	 * @param expected
+	 *            the expiration that was read, never <code>null</code>
+	 * @param accessToken
+	 *            the new token
+	 * @param expiration
+	 *            its expiration, may be <code>null</code>
+	 * @return <code>true</code> if the token was replaced
+	 */
+	@Transactional
+	public boolean replace(Long id, Date expected, String accessToken, Date expiration) {
+		if (expected == null) {
+			throw new IllegalArgumentException("expected should never be null");
+		}
+		return em.createNamedQuery("user_remote_attributes.replace")
+				.setParameter("token", accessToken).setParameter("expiration", expiration)
+				.setParameter("id", id).setParameter("expected", expected).executeUpdate() > 0;
+	}
+}
@@ -0,0 +1,338 @@
+package org.mitre.openid.connect.repository.db.impl;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+
+import org.mitre.openid.connect.repository.db.ITokenRefresher;
+import org.mitre.openid.connect.repository.db.model.RemoteUserAttribute;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.util.TimingWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Clears the access tokens of remote attributes once they expire, and with a
+ * {@link ITokenRefresher} refreshes them shortly before. Tokens expiring
+ * within the horizon are read through the index on TOKEN_EXPIRATION and
+ * kept in a {@link TimingWheel}, so each sweep only looks at the tokens that
+ * came due. The scan is repeated every half horizon, which picks up tokens
+ * written since. Schedule {@link #sweep()} to run every few seconds.
+ * <p>
+ * Every due token is read again before anything is done with it, a token
+ * replaced in the meantime is simply scheduled for its new expiration.
+ * Refreshes are calls to the token endpoint made while the sweep holds the
+ * scheduler thread, so each sweep makes at most {@link #getMaxRefreshes()}
+ * of them and leaves the rest to the following sweeps.
+ */
+public class RemoteTokenSweeper {
+	private static final Logger logger = LoggerFactory
+			.getLogger(RemoteTokenSweeper.class);
+
+	@Autowired
+	private RemoteTokenStore remoteTokens;
+	@Autowired(required = false)
+	private ITokenRefresher tokenRefresher;
+	@PersistenceUnit
+	private EntityManagerFactory entityManagerFactory;
+
+	private long tickMillis = 1000;
+	private int wheelSize = 64;
+	private long horizonMillis = 900000;
+	private long refreshAheadMillis = 300000;
+	private int batchSize = 500;
+	private int maxRefreshes = 20;
+
+	private TimingWheel<Long> wheel;
+	/**
+	 * The tokens in the wheel, so a rescan does not add them twice
+	 */
+	private final Set<Long> scheduled = new HashSet<Long>();
+	private long nextScan;
+	private long purged;
+	private long refreshed;
+	/**
+	 * The refreshes the current sweep may still make
+	 */
+	private int refreshBudget;
+
+	/**
+	 * Purge the tokens that expired and refresh those about to
+	 *
+	 * @return the tokens purged
+	 */
+	public int sweep() {
+		return sweep(System.currentTimeMillis());
+	}
+
+	/**
+	 * Purge the tokens that expired and refresh those about to
+	 *
+	 * @param now
+	 *            the current time
+	 * @return the tokens purged
+	 */
+	public synchronized int sweep(long now) {
+		if (wheel == null) {
+			wheel = new TimingWheel<Long>(tickMillis, wheelSize, now);
+		}
+		if (now >= nextScan) {
+			scan(now);
+		}
+		List<Long> due = wheel.advance(now);
+		scheduled.removeAll(due);
+		refreshBudget = maxRefreshes;
+		int count = 0;
+		for (int c = 0; c < due.size(); c += batchSize) {
+			count += process(due.subList(c, Math.min(due.size(), c + batchSize)), now);
+		}
+		if (count > 0) {
+			logger.info("Purged {} expired remote tokens", count);
+		}
+		return count;
+	}
+
+	/**
+	 * Schedule every token expiring within the horizon
+	 */
+	private void scan(long now) {
+		Date until = new Date(now + horizonMillis);
+		Date after = null;
+		long afterId = 0;
+		while (true) {
+			List<RemoteUserAttribute> batch = remoteTokens.findExpiring(until, after, afterId, batchSize);
+			for (RemoteUserAttribute attr : batch) {
+				if (scheduled.add(attr.getId())) {
+					wheel.schedule(attr.getId(), deadline(attr.getExpiration()));
+				}
+			}
+			if (batch.size() < batchSize) {
+				break;
+			}
+			RemoteUserAttribute last = batch.get(batch.size() - 1);
+			after = last.getExpiration();
+			afterId = last.getId();
+		}
+		nextScan = now + horizonMillis / 2;
+	}
+
+	/**
+	 * Purge, refresh or reschedule a batch of due tokens
+	 */
+	private int process(List<Long> ids, long now) {
+		List<Long> expired = new ArrayList<Long>();
+		Set<Long> users = new HashSet<Long>();
+		for (RemoteUserAttribute attr : remoteTokens.findByIds(ids)) {
+			Date expiration = attr.getExpiration();
+			if (expiration == null) {
+				continue;
+			}
+			if (expiration.getTime() <= now) {
+				expired.add(attr.getId());
+				users.add(attr.getUserId());
+			} else if (tokenRefresher != null && expiration.getTime() - refreshAheadMillis <= now) {
+				if (refreshBudget > 0) {
+					refreshBudget--;
+					refresh(attr, now);
+					users.add(attr.getUserId());
+				} else if (scheduled.add(attr.getId())) {
+					// Over this sweep's share, try again with the next tick
+					wheel.schedule(attr.getId(), now + tickMillis);
+				}
+			} else {
+				reschedule(attr.getId(), expiration, now);
+			}
+		}
+		int count = expired.isEmpty() ? 0 : remoteTokens.purge(expired, new Date(now));
+		purged += count;
+		// Cached users still refer to the old tokens
+		Cache cache = entityManagerFactory.getCache();
+		for (Long id : users) {
+			cache.evict(User.class, id);
+		}
+		return count;
+	}
+
+	private void refresh(RemoteUserAttribute attr, long now) {
+		Date expected = attr.getExpiration();
+		boolean done = false;
+		try {
+			done = tokenRefresher.refresh(attr)
+					&& remoteTokens.replace(attr.getId(), expected, attr.getAccessToken(), attr.getExpiration());
+		} catch (RuntimeException e) {
+			logger.warn("Refreshing token " + attr.getId() + " failed", e);
+		}
+		if (done) {
+			refreshed++;
+			if (attr.getExpiration() != null) {
+				reschedule(attr.getId(), attr.getExpiration(), now);
+			}
+		} else if (scheduled.add(attr.getId())) {
+			// Left to expire
+			wheel.schedule(attr.getId(), expected.getTime());
+		}
+	}
+
+	private void reschedule(Long id, Date expiration, long now) {
+		if (expiration.getTime() < now + horizonMillis && scheduled.add(id)) {
+			wheel.schedule(id, deadline(expiration));
+		}
+	}
+
+	/**
+	 * @return when a token expiring then should be looked at
+	 */
+	private long deadline(Date expiration) {
+		long rval = expiration.getTime();
+		return tokenRefresher != null ? rval - refreshAheadMillis : rval;
+	}
+
+	/**
+	 * @return the tokens waiting in the wheel
+	 */
+	public synchronized int getScheduled() {
+		return scheduled.size();
+	}
+
+	/**
+	 * @return the tokens purged since startup
+	 */
+	public synchronized long getPurged() {
+		return purged;
+	}
+
+	/**
+	 * @return the tokens refreshed since startup
+	 */
+	public synchronized long getRefreshed() {
+		return refreshed;
+	}
+
+	public RemoteTokenStore getRemoteTokens() {
+		return remoteTokens;
+	}
+
+	public void setRemoteTokens(RemoteTokenStore remoteTokens) {
+		this.remoteTokens = remoteTokens;
+	}
+
+	public ITokenRefresher getTokenRefresher() {
+		return tokenRefresher;
+	}
+
+	/**
+	 * @param tokenRefresher
+	 *            refreshes tokens before they expire, or <code>null</code> to
+	 *            only purge them
+	 */
+	public synchronized void setTokenRefresher(ITokenRefresher tokenRefresher) {
+		this.tokenRefresher = tokenRefresher;
+		// Deadlines depend on whether tokens are refreshed
+		wheel = null;
+		scheduled.clear();
+		nextScan = 0;
+	}
+
+	public EntityManagerFactory getEntityManagerFactory() {
+		return entityManagerFactory;
+	}
+
+	public void setEntityManagerFactory(EntityManagerFactory entityManagerFactory) {
+		this.entityManagerFactory = entityManagerFactory;
+	}
+
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * @param tickMillis
+	 *            the resolution of the wheel, tokens are purged at most this
+	 *            much after the sweep following their expiration
+	 */
+	public void setTickMillis(long tickMillis) {
+		if (tickMillis < 1) {
+			throw new IllegalArgumentException("tickMillis should be at least 1");
+		}
+		this.tickMillis = tickMillis;
+	}
+
+	public int getWheelSize() {
+		return wheelSize;
+	}
+
+	public void setWheelSize(int wheelSize) {
+		if (wheelSize < 2) {
+			throw new IllegalArgumentException("wheelSize should be at least 2");
+		}
+		this.wheelSize = wheelSize;
+	}
+
+	public long getHorizonMillis() {
+		return horizonMillis;
+	}
+
+	/**
+	 * @param horizonMillis
+	 *            how far ahead each scan looks, scans run every half horizon
+	 */
+	public void setHorizonMillis(long horizonMillis) {
+		if (horizonMillis < 2) {
+			throw new IllegalArgumentException("horizonMillis should be at least 2");
+		}
+		this.horizonMillis = horizonMillis;
+	}
+
+	public long getRefreshAheadMillis() {
+		return refreshAheadMillis;
+	}
+
+	/**
+	 * @param refreshAheadMillis
+	 *            how long before expiring a token is refreshed
+	 */
+	public void setRefreshAheadMillis(long refreshAheadMillis) {
+		if (refreshAheadMillis < 0) {
+			throw new IllegalArgumentException("refreshAheadMillis should never be negative");
+		}
+		this.refreshAheadMillis = refreshAheadMillis;
+	}
+
+	public int getMaxRefreshes() {
+		return maxRefreshes;
+	}
+
+	/**
+	 * @param maxRefreshes
+	 *            the most tokens refreshed per sweep, tokens left over wait
+	 *            for the next sweep and expire if none gets to them in time
+	 */
+	public synchronized void setMaxRefreshes(int maxRefreshes) {
+		if (maxRefreshes < 1) {
+			throw new IllegalArgumentException("maxRefreshes should be at least 1");
+		}
+		this.maxRefreshes = maxRefreshes;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            the tokens read and purged per statement
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize should be at least 1");
+		}
+		this.batchSize = batchSize;
+	}
+}
@@ -7,17 +7,27 @@ import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 @Service("simpleUserDetailsService")
 public class SimpleUserDetailsServiceImpl implements UserDetailsService {
 	@Autowired
 	private UserManager userManager;
+	/**
+	 * Optional, coalesces the lookups of concurrent logins
+	 */
+	@Autowired(required = false)
+	private UserBatchLoader userBatchLoader;
 	
 	@Override
 	public UserDetails loadUserByUsername(String username)
 			throws UsernameNotFoundException {
 		
-		User user = userManager.get(username);
+		// Inside a transaction the caller may go on to modify the user, which
+		// needs the instance managed by that transaction
+		User user = userBatchLoader != null
+				&& !TransactionSynchronizationManager.isActualTransactionActive() ? 
+						userBatchLoader.load(username) : userManager.get(username);
 		if (user == null) {
 			throw new UsernameNotFoundException("Didn't find " + username);
 		}
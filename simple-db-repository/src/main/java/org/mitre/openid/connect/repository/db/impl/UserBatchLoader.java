@@ -0,0 +1,51 @@
+package org.mitre.openid.connect.repository.db.impl;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.util.BatchLoader;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Coalesces concurrent read-only lookups of users by name, e.g. during a burst
+ * of token requests, into one <code>users.by_usernames</code> query per
+ * window. The users returned are detached and must not be used for updates.
+ * Every caller waiting on a name gets the same instance, so its associations
+ * are loaded before it is handed out rather than by whichever caller first
+ * walks them.
+ */
+public class UserBatchLoader extends BatchLoader<String, User> implements
+		BatchLoader.BatchFunction<String, User> {
+	@Autowired
+	private UserManager userManager;
+
+	public UserBatchLoader() {
+		setFunction(this);
+	}
+
+	public Map<String, User> loadAll(Collection<String> keys) {
+		Map<String, User> users = userManager.get(keys);
+		for (User user : users.values()) {
+			user.getRoles().size();
+			user.getAttributes().size();
+			user.getRemoteAttributes().size();
+		}
+		return users;
+	}
+
+	/**
+	 * @return the userManager
+	 */
+	public UserManager getUserManager() {
+		return userManager;
+	}
+
+	/**
+	 * @param userManager the userManager to set
+	 */
+	public void setUserManager(UserManager userManager) {
+		this.userManager = userManager;
+	}
+}
@@ -0,0 +1,137 @@
+package org.mitre.openid.connect.repository.db.impl;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.FastDateFormat;
+import org.mitre.openid.connect.model.Address;
+import org.mitre.openid.connect.repository.db.data.PropertiedUserInfo;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.model.UserAttribute;
+
+import com.google.gson.Gson;
+
+/**
+ * Maps stored users to the user info handed to OpenID Connect clients. Shared
+ * by the user info repository and the claims documents written on save.
+ * Instances hold no state and may be shared between threads.
+ */
+public class UserInfoMapper {
+	private static final Gson gson = new Gson();
+	/**
+	 * Immutable and thread safe, unlike SimpleDateFormat, so one instance
+	 * serves every mapping
+	 */
+	private static final FastDateFormat UPDATED_FORMAT = FastDateFormat
+			.getInstance("yyyy-MM-dd HH:mm:ssZ", TimeZone.getTimeZone("UTC"));
+
+	/**
+	 * Convert a user object to a userInfo object. Attributes are written into
+	 * the extended properties directly, remote attributes are skipped.
+	 *
+	 * @param user
+	 * @return the user info, never <code>null</code>
+	 */
+	public PropertiedUserInfo toUserInfo(User user) {
+		PropertiedUserInfo info = new PropertiedUserInfo();
+		String first = user.getFirstname();
+		String last = user.getLastname();
+		info.setEmail(user.getEmail());
+		info.setFamilyName(last);
+		info.setGender(user.getGender());
+		info.setGivenName(first);
+		info.setLocale(user.getLocale());
+		info.setMiddleName(user.getMiddlename());
+		info.setName(joinName(first, last));
+		info.setNickname(user.getNickname());
+		info.setPhoneNumber(user.getPhone());
+		info.setPicture(user.getPicture());
+		info.setProfile(user.getProfile());
+		info.setUpdatedTime(formatUpdated(user.getUpdated()));
+		info.setUserId(user.getUsername());
+		info.setEmailVerified(user.getEmailConfirmed());
+		info.setWebsite(user.getWebsite());
+		info.setZoneinfo(user.getZoneinfo());
+		info.setAddress(toAddress(user.getFormattedAddress(), user.getStreet(),
+				user.getLocality(), user.getRegion(), user.getPostalCode(),
+				user.getCountry()));
+		Collection<UserAttribute> attrs = user.getAttributes();
+		if (attrs != null) {
+			for(UserAttribute attr : attrs) {
+				info.setProperty(attr.getName(), attr.getValue());
+			}
+		}
+		info.setProperty("_USER_ID", user.getId().toString());
+
+		return info;
+	}
+
+	/**
+	 * Format the time a user was last updated
+	 * @param updated may be <code>null</code>
+	 * @return the formatted time in UTC, or <code>null</code>
+	 */
+	public String formatUpdated(Date updated) {
+		return updated != null ? UPDATED_FORMAT.format(updated) : null;
+	}
+
+	/**
+	 * Join the given and family names for the full name claim
+	 * @return the joined name, or <code>null</code> if both are missing
+	 */
+	public String joinName(String first, String last) {
+		if (first == null) {
+			return last;
+		} else if (last == null) {
+			return first;
+		}
+		StringBuilder sb = new StringBuilder(first.length() + last.length() + 1);
+		return sb.append(first).append(' ').append(last).toString();
+	}
+
+	/**
+	 * Build an address from its parts
+	 * @return the address, or <code>null</code> if all parts are blank
+	 */
+	public Address toAddress(String faddr, String street, String locality,
+			String region, String postal, String country) {
+		if (StringUtils.isBlank(street) && StringUtils.isBlank(faddr)
+				&& StringUtils.isBlank(locality)
+				&& StringUtils.isBlank(region)
+				&& StringUtils.isBlank(country)
+				&& StringUtils.isBlank(postal)) {
+			return null;
+		}
+		Address addr = new Address();
+		addr.setFormatted(faddr);
+		addr.setStreetAddress(street);
+		addr.setLocality(locality);
+		addr.setRegion(region);
+		addr.setCountry(country);
+		addr.setPostalCode(postal);
+		return addr;
+	}
+
+	/**
+	 * Serialize the user info of a user as JSON, in the same form the user
+	 * pages receive it
+	 *
+	 * @param user
+	 * @return the claims document, never <code>null</code>
+	 */
+	public String toClaimsJson(User user) {
+		return toClaimsJson(toUserInfo(user));
+	}
+
+	/**
+	 * Serialize a user info as JSON, as {@link #toClaimsJson(User)} does
+	 *
+	 * @param info
+	 * @return the claims document, never <code>null</code>
+	 */
+	public String toClaimsJson(PropertiedUserInfo info) {
+		return gson.toJson(info);
+	}
+}
@@ -1,35 +1,46 @@
 package org.mitre.openid.connect.repository.db.impl;
 
 import java.security.SecureRandom;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.Set;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.RandomUtils;
 import org.mitre.openid.connect.model.Address;
 import org.mitre.openid.connect.model.UserInfo;
-import org.mitre.openid.connect.repository.UserInfoRepository;
+import org.mitre.openid.connect.repository.ClaimSet;
+import org.mitre.openid.connect.repository.FetchPlan;
 import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.EnhancedUserInfoRepository;
+import org.mitre.openid.connect.repository.db.UserChangedEvent;
 import org.mitre.openid.connect.repository.db.data.PropertiedUserInfo;
 import org.mitre.openid.connect.repository.db.model.User;
 import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.mitre.openid.connect.repository.db.util.AttributeDiff;
+import org.mitre.openid.connect.repository.db.util.CacheStatistics;
+import org.mitre.openid.connect.repository.db.util.NearCache;
+import org.mitre.openid.connect.repository.db.util.ValueCompressor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationListener;
 import org.springframework.context.annotation.Primary;
 import org.springframework.security.authentication.encoding.PasswordEncoder;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 @Transactional
 @Repository
@@ -41,7 +52,8 @@ import org.springframework.transaction.annotation.Transactional;
  * @author DRAND
  *
  */
-public class UserInfoRepositoryImpl implements UserInfoRepository {
+public class UserInfoRepositoryImpl implements EnhancedUserInfoRepository,
+		ApplicationListener<UserChangedEvent> {
 	private static final Logger logger = LoggerFactory
 			.getLogger(UserInfoRepositoryImpl.class);
 	
@@ -49,26 +61,266 @@ public class UserInfoRepositoryImpl implements UserInfoRepository {
 	private UserManager userManager;
 	@Autowired
 	private PasswordEncoder simplePasswordEncoder;
+	/**
+	 * Optional, coalesces concurrent lookups that miss the near cache
+	 */
+	@Autowired(required = false)
+	private UserBatchLoader userBatchLoader;
+	/**
+	 * Optional, supplies the attributes kept in their own columns
+	 */
+	@Autowired(required = false)
+	private PromotedAttributeStore promotedAttributes;
 	private SecureRandom random = new SecureRandom();
 	@PersistenceContext
 	private EntityManager em;
+	/**
+	 * Frozen user info snapshots keyed by user id (the user name), in front of
+	 * the userinfo endpoint. Entries are dropped when a {@link UserChangedEvent}
+	 * arrives and otherwise expire after the TTL.
+	 */
+	private volatile NearCache<String, PropertiedUserInfo> nearCache = 
+		new UsernameCache(10000, 60000);
+	private final NearCache.Loader<String, PropertiedUserInfo> loader = 
+		new NearCache.Loader<String, PropertiedUserInfo>() {
+		public PropertiedUserInfo load(String userId) {
+			User user = userBatchLoader != null ? userBatchLoader.load(userId)
+					: userManager.get(userId);
+			PropertiedUserInfo info = user != null ? toUserInfo(user) : null;
+			if (info != null) {
+				info.freeze();
+			}
+			return info;
+		}
+	};
+	private CacheStatistics nearCacheStatistics = null;
+	private final UserInfoMapper mapper = new UserInfoMapper();
 
-	/* (non-Javadoc)
+	/**
+	 * Returned instances may be shared with other callers and are frozen, they
+	 * must not be modified. Inside a transaction the cache is bypassed so that
+	 * the caller sees its own uncommitted changes and never caches them.
+	 * 
 	 * @see org.mitre.openid.connect.repository.UserInfoRepository#getByUserId(java.lang.String)
 	 */
+	@Transactional(propagation = Propagation.SUPPORTS)
 	public PropertiedUserInfo getByUserId(String userId) {
 		if (userId == null || userId.trim().length() == 0) {
 			throw new IllegalArgumentException(
 					"userId should never be null or empty");
 		}
+		if (TransactionSynchronizationManager.isActualTransactionActive()) {
+			return loadByUserId(userId);
+		}
+		return nearCache.get(userId, loader);
+	}
+	
+	private PropertiedUserInfo loadByUserId(String userId) {
 		User user = userManager.get(userId);
 		if (user != null) {
-			return userToUserInfo(user);
+			return toUserInfo(user);
 		} else {
 			return null;
 		}
 	}
 	
+	/**
+	 * Map a user to user info, adding its promoted attributes
+	 */
+	private PropertiedUserInfo toUserInfo(User user) {
+		PropertiedUserInfo info = mapper.toUserInfo(user);
+		if (isPromoting()) {
+			PromotedAttributeStore.overlay(info, promotedAttributes.read(user.getId()));
+		}
+		return info;
+	}
+	
+	/**
+	 * Map users to user info, reading their promoted attributes in bulk
+	 */
+	private List<PropertiedUserInfo> toUserInfos(Collection<User> users) {
+		Map<Long, Map<String, String>> promoted = null;
+		if (isPromoting()) {
+			List<Long> ids = new ArrayList<Long>(users.size());
+			for(User user : users) {
+				ids.add(user.getId());
+			}
+			promoted = promotedAttributes.read(ids);
+		}
+		List<PropertiedUserInfo> rval = new ArrayList<PropertiedUserInfo>(users.size());
+		for(User user : users) {
+			PropertiedUserInfo info = mapper.toUserInfo(user);
+			if (promoted != null) {
+				PromotedAttributeStore.overlay(info, promoted.get(user.getId()));
+			}
+			rval.add(info);
+		}
+		return rval;
+	}
+	
+	private boolean isPromoting() {
+		return promotedAttributes != null && promotedAttributes.isEnabled();
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.repository.db.EnhancedUserInfoRepository#getByUserId(java.lang.String, java.util.Set)
+	 */
+	@Transactional(propagation = Propagation.SUPPORTS)
+	public PropertiedUserInfo getByUserId(String userId, Set<ClaimSet> claims) {
+		if (userId == null || userId.trim().length() == 0) {
+			throw new IllegalArgumentException(
+					"userId should never be null or empty");
+		}
+		if (claims == null) {
+			throw new IllegalArgumentException("claims should never be null");
+		}
+		Set<ClaimSet> requested = EnumSet.noneOf(ClaimSet.class);
+		requested.addAll(claims);
+		// Select only the columns behind the requested claims, never the entity,
+		// so that neither roles nor attributes are fetched along with it
+		List<String> properties = new ArrayList<String>();
+		StringBuilder jpql = new StringBuilder("select u.id, u.username");
+		for(ClaimSet set : requested) {
+			for(String property : set.getProperties()) {
+				properties.add(property);
+				jpql.append(", u.").append(property);
+			}
+		}
+		jpql.append(" from User u where u.username = :username");
+		Query uq = em.createQuery(jpql.toString());
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = uq.setParameter("username", userId).getResultList();
+		if (rows.isEmpty()) {
+			return null;
+		}
+		Object[] row = rows.get(0);
+		Map<String, Object> values = new HashMap<String, Object>();
+		for(int i = 0; i < properties.size(); i++) {
+			values.put(properties.get(i), row[i + 2]);
+		}
+		Long id = ((Number) row[0]).longValue();
+		PropertiedUserInfo info = new PropertiedUserInfo();
+		info.setUserId((String) row[1]);
+		if (requested.contains(ClaimSet.PROFILE)) {
+			String first = (String) values.get("firstname");
+			String last = (String) values.get("lastname");
+			info.setGivenName(first);
+			info.setMiddleName((String) values.get("middlename"));
+			info.setFamilyName(last);
+			info.setName(mapper.joinName(first, last));
+			info.setNickname((String) values.get("nickname"));
+			info.setProfile((String) values.get("profile"));
+			info.setPicture((String) values.get("picture"));
+			info.setWebsite((String) values.get("website"));
+			info.setGender((String) values.get("gender"));
+			info.setZoneinfo((String) values.get("zoneinfo"));
+			info.setLocale((String) values.get("locale"));
+			info.setUpdatedTime(mapper.formatUpdated((java.util.Date) values.get("updated")));
+		}
+		if (requested.contains(ClaimSet.EMAIL)) {
+			info.setEmail((String) values.get("email"));
+			info.setEmailVerified((Boolean) values.get("emailConfirmed"));
+		}
+		if (requested.contains(ClaimSet.ADDRESS)) {
+			info.setAddress(mapper.toAddress((String) values.get("formattedAddress"),
+					(String) values.get("street"), (String) values.get("locality"),
+					(String) values.get("region"), (String) values.get("postalCode"),
+					(String) values.get("country")));
+		}
+		if (requested.contains(ClaimSet.PHONE)) {
+			info.setPhoneNumber((String) values.get("phone"));
+		}
+		if (requested.contains(ClaimSet.EXTENDED)) {
+			Query aq = em.createNamedQuery("user_attributes.values_by_user_id");
+			aq.setParameter("id", id);
+			aq.setParameter("type", UserAttribute.NORMAL_TYPE);
+			@SuppressWarnings("unchecked")
+			List<Object[]> attrs = aq.getResultList();
+			for(Object[] attr : attrs) {
+				info.setProperty((String) attr[0], ValueCompressor.decode((String) attr[1]));
+			}
+			if (isPromoting()) {
+				PromotedAttributeStore.overlay(info, promotedAttributes.read(id));
+			}
+		}
+		info.setProperty("_USER_ID", id.toString());
+		return info;
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.repository.db.EnhancedUserInfoRepository#getClaimsDocument(java.lang.String)
+	 */
+	@Transactional(propagation = Propagation.SUPPORTS)
+	public String getClaimsDocument(String userId) {
+		if (userId == null || userId.trim().length() == 0) {
+			throw new IllegalArgumentException(
+					"userId should never be null or empty");
+		}
+		@SuppressWarnings("unchecked")
+		TypedQuery<String> cq = (TypedQuery<String>) em.createNamedQuery("user_claims.by_username");
+		List<String> results = cq.setParameter("username", userId).getResultList();
+		if (results.size() > 0) {
+			return results.get(0);
+		}
+		// Users not saved since claims documents were enabled have none yet
+		User user = userManager.get(userId);
+		return user != null ? mapper.toClaimsJson(toUserInfo(user)) : null;
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.repository.db.EnhancedUserInfoRepository#getByUserIds(java.util.Collection)
+	 */
+	@Transactional(propagation = Propagation.SUPPORTS)
+	public Map<String, UserInfo> getByUserIds(Collection<String> userIds) {
+		if (userIds == null) {
+			throw new IllegalArgumentException("userIds should never be null");
+		}
+		boolean cached = !TransactionSynchronizationManager.isActualTransactionActive();
+		// Holds a place for every id so the result keeps the given order
+		Map<String, UserInfo> rval = new LinkedHashMap<String, UserInfo>();
+		List<String> missing = new ArrayList<String>();
+		for(String userId : userIds) {
+			if (userId == null || userId.trim().length() == 0) {
+				throw new IllegalArgumentException(
+						"userId should never be null or empty");
+			}
+			if (rval.containsKey(userId)) continue;
+			UserInfo info = cached ? nearCache.getIfPresent(userId) : null;
+			rval.put(userId, info);
+			if (info == null) {
+				missing.add(userId);
+			}
+		}
+		if (! missing.isEmpty()) {
+			Map<String, User> users = userManager.get(missing);
+			List<PropertiedUserInfo> infos = toUserInfos(users.values());
+			Map<String, UserInfo> found = new HashMap<String, UserInfo>();
+			int i = 0;
+			for(String userId : users.keySet()) {
+				found.put(userId, infos.get(i++));
+			}
+			for(String userId : missing) {
+				UserInfo info = found.get(userId);
+				if (info != null) {
+					rval.put(userId, info);
+				} else {
+					rval.remove(userId);
+				}
+			}
+		}
+		return rval;
+	}
+	
+	/**
+	 * Drop cached snapshots of a changed user. Events are published after the
+	 * change commits, so a reload sees the new data.
+	 */
+	public void onApplicationEvent(UserChangedEvent event) {
+		for(String username : event.getUsernames()) {
+			nearCache.invalidate(username);
+		}
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see org.mitre.openid.connect.repository.UserInfoRepository#getByUsername(java.lang.String)
@@ -81,7 +333,7 @@ public class UserInfoRepositoryImpl implements UserInfoRepository {
 		if (users.size() == 0) {
 			return null;
 		} else {
-			return userToUserInfo(users.get(0));
+			return toUserInfo(users.get(0));
 		}
 	}
 	
@@ -142,12 +394,16 @@ public class UserInfoRepositoryImpl implements UserInfoRepository {
 		user.setEmailConfirmed(userInfo.getEmailVerified());
 		if (userInfo instanceof PropertiedUserInfo) {
 			PropertiedUserInfo pui = (PropertiedUserInfo) userInfo;
+			Map<String, String> values = new HashMap<String, String>();
 			for(String key : pui.keySet()) {
-				String value = pui.getProperty(key);
 				// Skip any extended property that starts with _, indicates something internal like _USER_ID
 				if (key.charAt(0) == '_') continue;
-				addUserAttribute(user, key, value);
+				values.put(key, pui.getProperty(key));
 			}
+			// Write only the attributes that changed. A property missing from a
+			// partially read user info is kept, a blank one is removed.
+			AttributeDiff.apply(user, values, false, 
+					promotedAttributes != null ? promotedAttributes.getSchema() : null);
 		}
 		userManager.save(user);
 		
@@ -177,100 +433,77 @@ public class UserInfoRepositoryImpl implements UserInfoRepository {
 	 * @see org.mitre.openid.connect.repository.UserInfoRepository#getAll()
 	 */
 	public Collection<UserInfo> getAll() {
-		TypedQuery<User> uq = (TypedQuery<User>) em.createNamedQuery("users.all");
+		TypedQuery<User> uq = (TypedQuery<User>) FetchPlans.apply(
+				em.createNamedQuery("users.all"), FetchPlan.PROFILE);
 		List<User> users = uq.getResultList();
-		List<UserInfo> userInfos = new ArrayList<UserInfo>();
-		for(User u : users) {
-			userInfos.add(userToUserInfo(u));
-		}
-		return userInfos;
+		return new ArrayList<UserInfo>(toUserInfos(users));
 	}
 
 	/**
-	 * Convert a user object to a userInfo object. We remove attributes from the map as we 
-	 * go so only extended properties are left at the end.
-	 * 
-	 * @param user
-	 * @return
+	 * @return the approximate maximum number of cached user info snapshots
 	 */
-	private PropertiedUserInfo userToUserInfo(User user) {
-		SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:MM:ssZ");
-		fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
-		PropertiedUserInfo info = new PropertiedUserInfo();
-		info.setEmail(user.getEmail());
-		info.setFamilyName(user.getLastname());
-		info.setGender(user.getGender());
-		info.setGivenName(user.getFirstname());
-		info.setLocale(user.getLocale());
-		info.setMiddleName(user.getMiddlename());
-		info.setName(user.getFirstname() + " " + user.getLastname());
-		info.setNickname(user.getNickname());
-		info.setPhoneNumber(user.getPhone());
-		info.setPicture(user.getPicture());
-		info.setProfile(user.getProfile());
-		info.setUpdatedTime(fmt.format(user.getUpdated()));
-		info.setUserId(user.getUsername());
-		info.setEmailVerified(user.getEmailConfirmed());
-		info.setWebsite(user.getWebsite());
-		info.setZoneinfo(user.getZoneinfo());
-		String street = user.getStreet();
-		String faddr = user.getFormattedAddress();
-		String locality = user.getLocality();
-		String region = user.getRegion();
-		String postal = user.getPostalCode();
-		String country = user.getCountry();
-		if (StringUtils.isNotBlank(street) || StringUtils.isNotBlank(faddr)
-				|| StringUtils.isNotBlank(locality)
-				|| StringUtils.isNotBlank(region)
-				|| StringUtils.isNotBlank(country)
-				|| StringUtils.isNotBlank(postal)) {
-			Address addr = new Address();
-			addr.setFormatted(faddr);
-			addr.setStreetAddress(street);
-			addr.setLocality(locality);
-			addr.setRegion(region);
-			addr.setCountry(country);
-			addr.setPostalCode(postal);
-			info.setAddress(addr);
-		}
-		Collection<UserAttribute> attrs = user.getAttributes();
-		Map<String, String> amap = attributesToMap(attrs);
-		// Handle the extended properties
-		for(String key : amap.keySet()) {
-			String value = amap.get(key);
-			info.setProperty(key, value);
-		}
-		info.setProperty("_USER_ID", user.getId().toString());
-		
-		return info;
+	public int getNearCacheMaxSize() {
+		return nearCache.getMaxSize();
 	}
 
 	/**
-	 * Convert attributes into a hash map
-	 * @param attrs
-	 * @return
+	 * @param maxSize the approximate maximum number of cached user info
+	 * snapshots, replaces the cache
 	 */
-	private Map<String, String> attributesToMap(Collection<UserAttribute> attrs) {
-		Map<String,String> rval = new HashMap<String, String>();
-		for(UserAttribute attr : attrs) {
-			if (attr.getType() != UserAttribute.NORMAL_TYPE) continue;
-			rval.put(attr.getName(), attr.getValue());
-		}
-		return rval;
+	public void setNearCacheMaxSize(int maxSize) {
+		replaceNearCache(maxSize, nearCache.getTtlMillis());
 	}
-	
+
 	/**
-	 * Add the named attribute to the user if not blank/null
-	 * @param user
-	 * @param attr
-	 * @param value
+	 * @return how long a cached user info snapshot is served, in milliseconds
 	 */
-	private void addUserAttribute(User user, String name, String value) {
-		if (StringUtils.isNotBlank(value)) {
-			if (user.getAttributes() == null) {
-				user.setAttributes(new HashSet<UserAttribute>());
-			}
-			user.getAttributes().add(new UserAttribute(name, value));
+	public long getNearCacheTtlMillis() {
+		return nearCache.getTtlMillis();
+	}
+
+	/**
+	 * @param ttlMillis how long a cached user info snapshot is served, in
+	 * milliseconds, replaces the cache
+	 */
+	public void setNearCacheTtlMillis(long ttlMillis) {
+		replaceNearCache(nearCache.getMaxSize(), ttlMillis);
+	}
+
+	/**
+	 * @return the nearCacheStatistics
+	 */
+	public CacheStatistics getNearCacheStatistics() {
+		return nearCacheStatistics;
+	}
+
+	/**
+	 * @param nearCacheStatistics the nearCacheStatistics to set
+	 */
+	public void setNearCacheStatistics(CacheStatistics nearCacheStatistics) {
+		this.nearCacheStatistics = nearCacheStatistics;
+		nearCache.setStatistics(nearCacheStatistics);
+	}
+
+	private void replaceNearCache(int maxSize, long ttlMillis) {
+		NearCache<String, PropertiedUserInfo> replacement = 
+			new UsernameCache(maxSize, ttlMillis);
+		replacement.setStatistics(nearCacheStatistics);
+		nearCache = replacement;
+	}
+
+	/**
+	 * Names are looked up without case, as the database collation does, so a
+	 * snapshot read under one spelling is dropped by the change event of the
+	 * stored name
+	 */
+	private static class UsernameCache extends NearCache<String, PropertiedUserInfo> {
+		UsernameCache(int maxSize, long ttlMillis) {
+			super(maxSize, ttlMillis);
+		}
+
+		@Override
+		protected String normalize(String key) {
+			return key.toLowerCase();
 		}
 	}
 }
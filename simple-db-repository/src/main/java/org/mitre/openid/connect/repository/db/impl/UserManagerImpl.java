@@ -23,34 +23,66 @@ import java.net.URL;
 import java.security.SecureRandom;
 import java.sql.Date;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.AuthenticationException;
+import javax.persistence.Cache;
 import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 
 import org.apache.commons.lang.StringUtils;
+import org.mitre.openid.connect.repository.FetchPlan;
 import org.mitre.openid.connect.repository.SortBy;
 import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.BatchResult;
 import org.mitre.openid.connect.repository.db.IPasswordRule;
+import org.mitre.openid.connect.repository.db.IRoleIndex;
 import org.mitre.openid.connect.repository.db.IUserValidity;
 import org.mitre.openid.connect.repository.db.LockedUserException;
 import org.mitre.openid.connect.repository.db.PasswordException;
+import org.mitre.openid.connect.repository.db.UserChangedEvent;
 import org.mitre.openid.connect.repository.db.UserException;
+import org.mitre.openid.connect.repository.db.data.PropertiedUserInfo;
 import org.mitre.openid.connect.repository.db.model.Role;
 import org.mitre.openid.connect.repository.db.model.User;
 import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.mitre.openid.connect.repository.db.model.UserClaims;
+import org.mitre.openid.connect.repository.db.util.CacheStatistics;
+import org.mitre.openid.connect.repository.db.util.PromotedAttribute;
+import org.mitre.openid.connect.repository.db.util.SharedCacheCounter;
+import org.mitre.openid.connect.repository.db.util.ValueCompressor;
+import org.mitre.openid.connect.repository.db.util.VersionedResultCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.mail.MailSender;
 import org.springframework.security.authentication.encoding.PasswordEncoder;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * Bean to manipulate user instances
@@ -59,7 +91,7 @@ import org.springframework.transaction.annotation.Transactional;
  */
 @Transactional
 @Repository
-public class UserManagerImpl implements UserManager {
+public class UserManagerImpl implements UserManager, ApplicationEventPublisherAware {
 	private static final Logger logger = LoggerFactory
 			.getLogger(UserManagerImpl.class);
 
@@ -69,6 +101,50 @@ public class UserManagerImpl implements UserManager {
 	@PersistenceContext
 	private EntityManager em;
 	
+	/**
+	 * Optional in-memory role membership index. When absent role questions are
+	 * answered from USERS_ROLES.
+	 */
+	@Autowired(required = false)
+	private IRoleIndex roleIndex;
+	
+	/**
+	 * Optional, keeps the promoted attributes of users in their own columns
+	 */
+	@Autowired(required = false)
+	private PromotedAttributeStore promotedAttributes;
+	
+	/**
+	 * Optional counters for lookups against the shared entity cache
+	 */
+	private CacheStatistics sharedCacheStatistics = null;
+	
+	/**
+	 * Incremented after every committed change to user data. Cached pages
+	 * computed at an older version are ignored.
+	 */
+	private final AtomicLong dataVersion = new AtomicLong();
+	/**
+	 * Pages of {@link #findInRange(int, int, SortBy)}, keyed by sort, offset and
+	 * page size. Admin pages are viewed far more often than users change.
+	 */
+	private VersionedResultCache<String, List<Map<String, String>>> pageCache =
+		new VersionedResultCache<String, List<Map<String, String>>>(4 * 1024 * 1024);
+	private CacheStatistics pageCacheStatistics = null;
+	
+	/**
+	 * Receives a {@link UserChangedEvent} after each committed change to a
+	 * user, so copies of user data held elsewhere can be dropped
+	 */
+	private ApplicationEventPublisher publisher = null;
+	
+	/**
+	 * If set, a serialized claims document is kept in USER_CLAIMS for each
+	 * user and rewritten when a save changes the user's claims
+	 */
+	private boolean claimsDocuments = false;
+	private final UserInfoMapper mapper = new UserInfoMapper();
+	
 	/**
 	 * Rule that decides if a password is acceptable to the system. 
 	 */
@@ -99,6 +175,15 @@ public class UserManagerImpl implements UserManager {
 	 * messages that contain links to these pages.
 	 */
 	private URL base = null; 
+	/**
+	 * The maximum number of users touched by a single statement in the bulk
+	 * role operations. Keeps the IN lists and row locks bounded.
+	 */
+	private int bulkChunkSize = 500;
+	/**
+	 * Threads hashing passwords in {@link #addAll(Map)}
+	 */
+	private int hashThreads = Runtime.getRuntime().availableProcessors();
 	
 	/*
 	 * (non-Javadoc)
@@ -117,30 +202,155 @@ public class UserManagerImpl implements UserManager {
 		if (id == null) {
 			throw new IllegalArgumentException("id should never by null");
 		}
-		return em.find(User.class, id);
+		long missed = SharedCacheCounter.missed();
+		long expired = SharedCacheCounter.expired();
+		User user = em.find(User.class, id);
+		countLookup(user != null ? 1 : 0, missed, expired);
+		return user;
+	}
+
+	public User findById(Long id, FetchPlan plan) {
+		if (!FetchPlans.isPartial(plan)) {
+			return findById(id);
+		}
+		if (id == null) {
+			throw new IllegalArgumentException("id should never by null");
+		}
+		@SuppressWarnings("unchecked")
+		TypedQuery<User> uq = (TypedQuery<User>) FetchPlans.apply(
+				em.createNamedQuery("users.by_id"), plan);
+		long missed = SharedCacheCounter.missed();
+		long expired = SharedCacheCounter.expired();
+		List<User> results = uq.setParameter("id", id).getResultList();
+		countLookup(results.size(), missed, expired);
+		return results.size() > 0 ? results.get(0) : null;
 	}
 
 	public User get(String username) {
+		return get(username, FetchPlan.FULL);
+	}
+
+	public User get(String username, FetchPlan plan) {
 		if (username == null || username.trim().length() == 0) {
 			throw new IllegalArgumentException(
 					"username should never be null or empty");
 		}
 		@SuppressWarnings("unchecked")
-		TypedQuery<User> uq = (TypedQuery<User>) em.createNamedQuery("users.by_username");
+		TypedQuery<User> uq = (TypedQuery<User>) FetchPlans.apply(
+				em.createNamedQuery("users.by_username"), plan);
+		long missed = SharedCacheCounter.missed();
+		long expired = SharedCacheCounter.expired();
 		List<User> results = uq.setParameter("username", username).getResultList();
+		countLookup(results.size(), missed, expired);
 		return results.size() > 0 ? results.get(0) : null;
 	}
 
-	public void save(User user) {
+	public Map<String, User> get(Collection<String> usernames) {
+		if (usernames == null) {
+			throw new IllegalArgumentException("usernames should never be null");
+		}
+		List<String> names = new ArrayList<String>(new LinkedHashSet<String>(usernames));
+		Map<String, User> rval = new LinkedHashMap<String, User>();
+		for(int i = 0; i < names.size(); i += bulkChunkSize) {
+			List<String> chunk = names.subList(i, Math.min(names.size(), i + bulkChunkSize));
+			@SuppressWarnings("unchecked")
+			TypedQuery<User> uq = (TypedQuery<User>) em.createNamedQuery("users.by_usernames");
+			long missed = SharedCacheCounter.missed();
+			long expired = SharedCacheCounter.expired();
+			List<User> results = uq.setParameter("usernames", chunk).getResultList();
+			countLookup(results.size(), missed, expired);
+			Map<String, User> exact = new HashMap<String, User>();
+			Map<String, User> folded = new HashMap<String, User>();
+			for(User user : results) {
+				exact.put(user.getUsername(), user);
+				String key = user.getUsername().toLowerCase();
+				if (!folded.containsKey(key)) {
+					folded.put(key, user);
+				}
+			}
+			for(String name : chunk) {
+				User match = exact.get(name);
+				// The database collation may match names case insensitively, as
+				// it does for a single lookup
+				if (match == null) {
+					match = folded.get(name.toLowerCase());
+				}
+				if (match != null) {
+					rval.put(name, match);
+				}
+			}
+		}
+		return rval;
+	}
+
+	public Map<Long, User> findByIds(Collection<Long> ids) {
+		if (ids == null) {
+			throw new IllegalArgumentException("ids should never be null");
+		}
+		List<Long> unique = new ArrayList<Long>(new LinkedHashSet<Long>(ids));
+		Map<Long, User> rval = new LinkedHashMap<Long, User>();
+		for(int i = 0; i < unique.size(); i += bulkChunkSize) {
+			List<Long> chunk = unique.subList(i, Math.min(unique.size(), i + bulkChunkSize));
+			@SuppressWarnings("unchecked")
+			TypedQuery<User> uq = (TypedQuery<User>) em.createNamedQuery("users.by_ids");
+			long missed = SharedCacheCounter.missed();
+			long expired = SharedCacheCounter.expired();
+			List<User> results = uq.setParameter("ids", chunk).getResultList();
+			countLookup(results.size(), missed, expired);
+			Map<Long, User> byId = new HashMap<Long, User>();
+			for(User user : results) {
+				byId.put(user.getId(), user);
+			}
+			for(Long id : chunk) {
+				User user = byId.get(id);
+				if (user != null) {
+					rval.put(id, user);
+				}
+			}
+		}
+		return rval;
+	}
+
+	public void save(final User user) {
 		if (user == null) {
 			throw new IllegalArgumentException(
 					"user should never be null");
 		}
+		Map<String, String> promoted = takePromoted(user);
+		// Render before the update time moves, a save that changes no claim
+		// then leaves the claims document alone
+		String unchangedClaims = claimsDocuments && user.getId() != null ? 
+				claimsJson(user, promoted) : null;
 		user.setUpdated(new Date(System.currentTimeMillis()));
+		// A local change, the next reconciliation has to rewrite the user
+		user.setFingerprint(null);
+		// The user may be renamed by this save, listeners need the old name too
+		String previousName = user.getId() != null ? usernameOf(user.getId()) : null;
 		if (user.getId() == null)
 			em.persist(user);
 		else
 			em.merge(user);
+		if (promoted != null) {
+			promotedAttributes.write(user.getId(), promoted);
+		}
+		if (claimsDocuments) {
+			updateClaims(user, unchangedClaims);
+		}
+		userChanged(user, previousName);
+		if (roleIndex != null) {
+			final Set<String> rolenames = new HashSet<String>();
+			if (user.getRoles() != null) {
+				for(Role role : user.getRoles()) {
+					rolenames.add(role.getName());
+				}
+			}
+			// The index only reflects committed memberships
+			afterCommit(new Runnable() {
+				public void run() {
+					roleIndex.update(user.getId(), rolenames);
+				}
+			});
+		}
 	}
 	
 	public void delete(String username) {
@@ -151,6 +361,9 @@ public class UserManagerImpl implements UserManager {
 		User existing = get(username);
 		if (existing != null) {
 			em.remove(existing);
+			deleteClaims(existing.getId());
+			deletePromoted(existing.getId());
+			removeFromCaches(existing.getId(), existing.getUsername());
 		} else {
 			logger.warn("User could not be found: " + username);
 		}
@@ -163,6 +376,9 @@ public class UserManagerImpl implements UserManager {
 		User existing = findById(userid);
 		if (existing != null) {
 			em.remove(existing);
+			deleteClaims(userid);
+			deletePromoted(userid);
+			removeFromCaches(userid, existing.getUsername());
 		} else {
 			logger.warn("Userid could not be found: " + userid);
 		}
@@ -177,27 +393,417 @@ public class UserManagerImpl implements UserManager {
 			throw new IllegalArgumentException(
 					"rolename should never be null or empty");
 		}
-		Role existing = findOrCreateRole(rolename);
+		Role existing = findRole(rolename);
 		if (existing != null) {
-			em.remove(existing);
+			removeRole(existing);
 		} else {
 			logger.warn("Role could not be found: " + rolename);
 		}
 		
 	}
+	
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.repository.UserManager#deleteRole(java.lang.String, java.lang.String)
+	 */
+	public int deleteRole(String rolename, String reassignTo) {
+		if (rolename == null || rolename.trim().length() == 0) {
+			throw new IllegalArgumentException(
+					"rolename should never be null or empty");
+		}
+		if (reassignTo == null || reassignTo.trim().length() == 0) {
+			throw new IllegalArgumentException(
+					"reassignTo should never be null or empty");
+		}
+		if (rolename.equals(reassignTo)) {
+			throw new IllegalArgumentException(
+					"a role cannot be reassigned to itself");
+		}
+		Role existing = findRole(rolename);
+		if (existing == null) {
+			logger.warn("Role could not be found: " + rolename);
+			return 0;
+		}
+		Role replacement = findOrCreateRole(reassignTo);
+		List<Long> holders = roleMemberIds(existing);
+		int granted = grantIds(replacement, holders);
+		removeRole(existing);
+		return granted;
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.repository.UserManager#renameRole(java.lang.String, java.lang.String)
+	 */
+	public void renameRole(final String rolename, final String newname) {
+		if (rolename == null || rolename.trim().length() == 0) {
+			throw new IllegalArgumentException(
+					"rolename should never be null or empty");
+		}
+		if (newname == null || newname.trim().length() == 0) {
+			throw new IllegalArgumentException(
+					"newname should never be null or empty");
+		}
+		Role existing = findRole(rolename);
+		if (existing == null) {
+			throw new IllegalArgumentException("Role could not be found: " + rolename);
+		}
+		if (findRole(newname) != null) {
+			throw new IllegalArgumentException("Role already exists: " + newname);
+		}
+		// Managed role objects pick up the new name, users reference roles by id
+		existing.setName(newname);
+		em.merge(existing);
+		if (roleIndex != null) {
+			afterCommit(new Runnable() {
+				public void run() {
+					roleIndex.rename(rolename, newname);
+				}
+			});
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.repository.UserManager#grantRole(java.lang.String, java.util.Collection)
+	 */
+	public int grantRole(String rolename, Collection<Long> userIds) {
+		if (userIds == null) {
+			throw new IllegalArgumentException("userIds should never be null");
+		}
+		Role role = findOrCreateRole(rolename);
+		return grantIds(role, new ArrayList<Long>(userIds));
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.repository.UserManager#grantRole(java.lang.String, java.lang.String)
+	 */
+	public int grantRole(String rolename, String likePattern) {
+		Role role = findOrCreateRole(rolename);
+		return grantIds(role, idsLike(likePattern));
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.repository.UserManager#revokeRole(java.lang.String, java.util.Collection)
+	 */
+	public int revokeRole(String rolename, Collection<Long> userIds) {
+		if (userIds == null) {
+			throw new IllegalArgumentException("userIds should never be null");
+		}
+		Role role = findRole(rolename);
+		if (role == null) {
+			logger.warn("Role could not be found: " + rolename);
+			return 0;
+		}
+		return revokeIds(role, new ArrayList<Long>(userIds));
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.mitre.openid.connect.repository.UserManager#revokeRole(java.lang.String, java.lang.String)
+	 */
+	public int revokeRole(String rolename, String likePattern) {
+		Role role = findRole(rolename);
+		if (role == null) {
+			logger.warn("Role could not be found: " + rolename);
+			return 0;
+		}
+		return revokeIds(role, idsLike(likePattern));
+	}
+	
+	/**
+	 * Delete a role along with every membership row that references it
+	 * @param role
+	 */
+	private void removeRole(Role role) {
+		final String rolename = role.getName();
+		List<Long> holders = roleMemberIds(role);
+		revokeIds(role, holders);
+		em.remove(role);
+		if (roleIndex != null) {
+			afterCommit(new Runnable() {
+				public void run() {
+					roleIndex.drop(rolename);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * @param likePattern
+	 * @return the ids of the users whose names match the pattern
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Long> idsLike(String likePattern) {
+		if (likePattern == null || likePattern.trim().length() == 0) {
+			throw new IllegalArgumentException(
+					"likePattern should never be null or empty");
+		}
+		Query q = em.createNamedQuery("users.ids_like_name");
+		List<Number> ids = q.setParameter("pattern", likePattern.toLowerCase()).getResultList();
+		return toLongs(ids);
+	}
+	
+	/**
+	 * @param role
+	 * @return the ids of the users holding the role
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Long> roleMemberIds(Role role) {
+		Query q = em.createNativeQuery("select USER_ID from USERS_ROLES where ROLE_ID = ?1");
+		List<Number> ids = q.setParameter(1, role.getId()).getResultList();
+		return toLongs(ids);
+	}
+	
+	/**
+	 * Insert the membership rows for the given users, skipping users that
+	 * already hold the role or do not exist
+	 * @param role
+	 * @param userIds
+	 * @return the number of rows inserted
+	 */
+	private int grantIds(Role role, List<Long> userIds) {
+		em.flush();
+		int granted = 0;
+		// The role index sets a bit for every id it is given
+		List<Long> existing = new ArrayList<Long>();
+		for(int i = 0; i < userIds.size(); i += bulkChunkSize) {
+			List<Long> chunk = userIds.subList(i, Math.min(userIds.size(), i + bulkChunkSize));
+			Query q = em.createNativeQuery("insert into USERS_ROLES (USER_ID, ROLE_ID) " +
+					"select u.USER_ID, ?1 from USERS u where u.USER_ID in (" + placeholders(2, chunk.size()) + ") " +
+					"and not exists (select 1 from USERS_ROLES ur where ur.USER_ID = u.USER_ID and ur.ROLE_ID = ?1)");
+			bindChunk(q.setParameter(1, role.getId()), 2, chunk);
+			granted += q.executeUpdate();
+			clearFingerprints(chunk);
+			existing.addAll(usernamesOf(chunk).keySet());
+		}
+		if (!existing.isEmpty()) {
+			final String rolename = role.getName();
+			final List<Long> ids = existing;
+			afterCommit(new Runnable() {
+				public void run() {
+					evictUsers(ids);
+					if (roleIndex != null) {
+						roleIndex.grant(rolename, ids);
+					}
+				}
+			});
+		}
+		return granted;
+	}
+	
+	/**
+	 * Delete the membership rows for the given users
+	 * @param role
+	 * @param userIds
+	 * @return the number of rows deleted
+	 */
+	private int revokeIds(Role role, List<Long> userIds) {
+		em.flush();
+		int revoked = 0;
+		for(int i = 0; i < userIds.size(); i += bulkChunkSize) {
+			List<Long> chunk = userIds.subList(i, Math.min(userIds.size(), i + bulkChunkSize));
+			Query q = em.createNativeQuery("delete from USERS_ROLES where ROLE_ID = ?1 " +
+					"and USER_ID in (" + placeholders(2, chunk.size()) + ")");
+			bindChunk(q.setParameter(1, role.getId()), 2, chunk);
+			revoked += q.executeUpdate();
+			clearFingerprints(chunk);
+		}
+		if (!userIds.isEmpty()) {
+			final String rolename = role.getName();
+			final List<Long> ids = new ArrayList<Long>(userIds);
+			afterCommit(new Runnable() {
+				public void run() {
+					evictUsers(ids);
+					if (roleIndex != null) {
+						roleIndex.revoke(rolename, ids);
+					}
+				}
+			});
+		}
+		return revoked;
+	}
+	
+	/**
+	 * Roles are part of the directory feed, users whose roles were changed
+	 * here have to be rewritten by the next reconciliation
+	 * @param userIds
+	 */
+	private void clearFingerprints(List<Long> userIds) {
+		Query q = em.createNativeQuery("update USERS set FINGERPRINT = null where FINGERPRINT is not null " +
+				"and USER_ID in (" + placeholders(1, userIds.size()) + ")");
+		bindChunk(q, 1, userIds);
+		q.executeUpdate();
+	}
+
+	/**
+	 * Count the users a lookup returned as shared cache hits, except those
+	 * EclipseLink had to read past the cache. A lookup finding nobody went to
+	 * the database and is a miss. Users the cache held past their expiry are
+	 * counted as evicted as well.
+	 * 
+	 * @param found the users the lookup returned
+	 * @param missed {@link SharedCacheCounter#missed()} before the lookup
+	 * @param expired {@link SharedCacheCounter#expired()} before the lookup
+	 */
+	private void countLookup(int found, long missed, long expired) {
+		if (sharedCacheStatistics == null) {
+			return;
+		}
+		int misses = (int) Math.min(found, SharedCacheCounter.missed() - missed);
+		sharedCacheStatistics.hit(found - misses);
+		sharedCacheStatistics.miss(found > 0 ? misses : 1);
+		int evicted = (int) (SharedCacheCounter.expired() - expired);
+		if (evicted > 0) {
+			sharedCacheStatistics.evicted(evicted);
+		}
+	}
+	
+	/**
+	 * The bulk statements bypass the entity layer, so drop any cached copies of
+	 * the affected users to make the next read see the new roles. Called after
+	 * commit so a concurrent read cannot cache the old state again.
+	 * @param userIds
+	 */
+	private void evictUsers(Collection<Long> userIds) {
+		Cache cache = em.getEntityManagerFactory().getCache();
+		for(Long id : userIds) {
+			cache.evict(User.class, id);
+		}
+		if (sharedCacheStatistics != null) {
+			sharedCacheStatistics.evicted(userIds.size());
+		}
+	}
+	
+	/**
+	 * @param first the first positional parameter number
+	 * @param count the number of parameters
+	 * @return a comma separated list of positional parameters, e.g. ?2, ?3
+	 */
+	private static String placeholders(int first, int count) {
+		StringBuilder sb = new StringBuilder(count * 5);
+		for(int i = 0; i < count; i++) {
+			if (i > 0) sb.append(", ");
+			sb.append('?').append(first + i);
+		}
+		return sb.toString();
+	}
+	
+	private static void bindChunk(Query q, int first, List<Long> chunk) {
+		for(int i = 0; i < chunk.size(); i++) {
+			q.setParameter(first + i, chunk.get(i));
+		}
+	}
+	
+	private static List<Long> toLongs(List<Number> ids) {
+		List<Long> rval = new ArrayList<Long>(ids.size());
+		for(Number id : ids) {
+			rval.add(id.longValue());
+		}
+		return rval;
+	}
 
 	@SuppressWarnings("unchecked")
 	public List<User> find(String likePattern) {
+		return find(likePattern, FetchPlan.FULL);
+	}
+
+	public List<User> find(String likePattern, FetchPlan plan) {
 		if (likePattern == null || likePattern.trim().length() == 0) {
 			throw new IllegalArgumentException(
 					"likePattern should never be null or empty");
 		}
 		@SuppressWarnings("unchecked")
-		TypedQuery<User> uq = (TypedQuery<User>) em.createNamedQuery("users.like_name");
+		TypedQuery<User> uq = (TypedQuery<User>) FetchPlans.apply(
+				em.createNamedQuery("users.like_name"), plan);
 		List<User> results = uq.setParameter("pattern", likePattern.toLowerCase()).getResultList();
 		return results;
 	}
 	
+	public List<User> findByAttribute(String name, String value) {
+		if (value == null) {
+			throw new IllegalArgumentException("value should never be null");
+		}
+		PromotedAttribute promoted = promoted(name);
+		if (promoted != null) {
+			return usersOf(promotedAttributes.findUserIds(promoted, value));
+		}
+		// Large values are found whether they were written compressed or not
+		TypedQuery<User> uq = attributeQuery("users.by_attribute", name);
+		return uq.setParameter("value", value)
+				.setParameter("stored", ValueCompressor.toCompressed(value))
+				.getResultList();
+	}
+	
+	public List<User> findByAttributePrefix(String name, String prefix, int first, int count) {
+		if (prefix == null) {
+			throw new IllegalArgumentException("prefix should never be null");
+		}
+		PromotedAttribute promoted = promoted(name);
+		if (promoted != null) {
+			return usersOf(promotedAttributes.findUserIdsByPrefix(promoted, prefix, first, count));
+		}
+		String escaped = prefix.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+		TypedQuery<User> uq = attributeQuery("users.by_attribute_prefix", name);
+		return uq.setParameter("prefix", escaped + "%")
+				.setFirstResult(first)
+				.setMaxResults(count)
+				.getResultList();
+	}
+	
+	public List<User> findByAttributeRange(String name, String from, String to, int first, int count) {
+		if (from == null) {
+			throw new IllegalArgumentException("from should never be null");
+		}
+		if (to == null) {
+			throw new IllegalArgumentException("to should never be null");
+		}
+		PromotedAttribute promoted = promoted(name);
+		if (promoted != null) {
+			return usersOf(promotedAttributes.findUserIdsInRange(promoted, from, to, first, count));
+		}
+		TypedQuery<User> uq = attributeQuery("users.by_attribute_range", name);
+		return uq.setParameter("from", from)
+				.setParameter("to", to)
+				.setFirstResult(first)
+				.setMaxResults(count)
+				.getResultList();
+	}
+	
+	/**
+	 * @param name an attribute name
+	 * @return the promoted attribute of the name, or <code>null</code> if it
+	 * is searched through USER_ATTRIBUTES
+	 */
+	private PromotedAttribute promoted(String name) {
+		if (StringUtils.isBlank(name) || promotedAttributes == null || ! promotedAttributes.isEnabled()) {
+			return null;
+		}
+		return promotedAttributes.getSchema().get(name.trim());
+	}
+	
+	/**
+	 * @param ids user ids
+	 * @return the users, in the order of the ids
+	 */
+	private List<User> usersOf(List<Long> ids) {
+		if (ids.isEmpty()) {
+			return new ArrayList<User>();
+		}
+		return new ArrayList<User>(findByIds(ids).values());
+	}
+	
+	/**
+	 * @param queryName one of the attribute search queries
+	 * @param name the attribute name
+	 * @return the query with the attribute name and type bound
+	 */
+	@SuppressWarnings("unchecked")
+	private TypedQuery<User> attributeQuery(String queryName, String name) {
+		if (StringUtils.isBlank(name)) {
+			throw new IllegalArgumentException("name should never be null or empty");
+		}
+		TypedQuery<User> uq = (TypedQuery<User>) em.createNamedQuery(queryName);
+		return uq.setParameter("name", name.trim().toUpperCase())
+				.setParameter("type", UserAttribute.NORMAL_TYPE);
+	}
+	
 	public List<User> findByUsername(String username) {
 		if (StringUtils.isBlank(username)) {
 			throw new IllegalArgumentException("username is required");
@@ -210,31 +816,302 @@ public class UserManagerImpl implements UserManager {
 	/* (non-Javadoc)
 	 * @see org.mitre.openid.connect.repository.db.UserManager#findInRange(int, int, org.mitre.openid.connect.repository.db.UserManager.SortBy)
 	 */
-	@SuppressWarnings("unchecked")
 	public List<Map<String, String>> findInRange(int first, int count, SortBy sortBy) {
+		if (sortBy == null) {
+			throw new IllegalArgumentException("sortBy should never be null");
+		}
+		// Read the version before querying, a change committed while we query
+		// then makes the page we store stale rather than the other way around
+		long version = dataVersion.get();
+		String key = sortBy.name() + ":" + first + ":" + count;
+		List<Map<String, String>> page = pageCache.get(key, version);
+		if (page == null) {
+			page = queryRange(first, count, sortBy);
+			pageCache.put(key, version, page, estimateBytes(page));
+		}
+		return page;
+	}
+	
+	/**
+	 * Run the sorted page query
+	 * @param first
+	 * @param count
+	 * @param sortBy
+	 * @return an unmodifiable list of unmodifiable user maps
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Map<String, String>> queryRange(int first, int count, SortBy sortBy) {
 		List<User> users;
 
-        TypedQuery<User> uq = (TypedQuery<User>) em.createNamedQuery(sortBy.getNamedQuery());
+        TypedQuery<User> uq = (TypedQuery<User>) FetchPlans.apply(
+                em.createNamedQuery(sortBy.getNamedQuery()), FetchPlan.SUMMARY);
         users = uq.setFirstResult(first)
                   .setMaxResults(count)
                   .getResultList();
 
+		Map<Long, Map<String, String>> promoted = null;
+		if (promotedAttributes != null && promotedAttributes.isEnabled() && ! users.isEmpty()) {
+			List<Long> ids = new ArrayList<Long>(users.size());
+			for(User u : users) {
+				ids.add(u.getId());
+			}
+			promoted = promotedAttributes.read(ids);
+		}
 		List<Map<String,String>> rval = new ArrayList<Map<String,String>>();
 		for(User u : users) {
 			Map<String, String> data = new HashMap<String, String>();
-			Query q = em.createNamedQuery("user_attributes.by_user_id");
-			List<UserAttribute> attrs = q.setParameter("id", u.getId()).getResultList();
-			for(UserAttribute attr : attrs) {
-				if (attr.getType() != UserAttribute.NORMAL_TYPE) continue;
+			// The sort queries batch the attributes, the first user loads them
+			// for the whole page
+			for(UserAttribute attr : u.getAttributes()) {
 				data.put(attr.getName(), attr.getValue());
 			}
+			// A row not yet moved to its column is the newer value
+			Map<String, String> values = promoted != null ? promoted.get(u.getId()) : null;
+			if (values != null) {
+				for(Map.Entry<String, String> value : values.entrySet()) {
+					if (! data.containsKey(value.getKey())) {
+						data.put(value.getKey(), value.getValue());
+					}
+				}
+			}
 			data.put("USERNAME", u.getUsername());
 			data.put("EMAIL", u.getEmail());
 			data.put("ID", u.getId().toString());
-			rval.add(data);
+			rval.add(Collections.unmodifiableMap(data));
+		}
+		return Collections.unmodifiableList(rval);
+	}
+	
+	/**
+	 * Rough estimate of the heap used by a page: two bytes per character plus
+	 * a fixed overhead for each string and map entry.
+	 * @param page
+	 * @return the estimated size in bytes
+	 */
+	private static long estimateBytes(List<Map<String, String>> page) {
+		long bytes = 64;
+		for(Map<String, String> row : page) {
+			bytes += 64;
+			for(Map.Entry<String, String> entry : row.entrySet()) {
+				bytes += 96 + 2 * entry.getKey().length();
+				if (entry.getValue() != null) {
+					bytes += 2 * entry.getValue().length();
+				}
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Note a change to user data. The version is bumped once the change is
+	 * committed, so a page read concurrently cannot be stored under the new
+	 * version.
+	 */
+	private void dataChanged() {
+		afterCommit(new Runnable() {
+			public void run() {
+				dataVersion.incrementAndGet();
+			}
+		});
+	}
+	
+	/**
+	 * Note a change to the given user, publishing a {@link UserChangedEvent}
+	 * once the change is committed
+	 * 
+	 * @param user
+	 *            the changed user
+	 * @param previousName
+	 *            the user's name before the change, or <code>null</code>
+	 */
+	private void userChanged(final User user, final String previousName) {
+		dataChanged();
+		if (publisher != null) {
+			// Listeners only hear about committed changes
+			afterCommit(new Runnable() {
+				public void run() {
+					publisher.publishEvent(new UserChangedEvent(UserManagerImpl.this, 
+							user.getId(), previousName, user.getUsername()));
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Rewrite the claims document of a user unless it still matches
+	 * 
+	 * @param user
+	 *            the saved user
+	 * @param unchanged
+	 *            the claims rendered before the save, or <code>null</code> to
+	 *            always rewrite
+	 */
+	private void updateClaims(User user, String unchanged) {
+		// Ids are preallocated, a new user already has one once persisted
+		UserClaims claims = em.find(UserClaims.class, user.getId());
+		if (claims != null && unchanged != null 
+				&& unchanged.equals(claims.getClaimsJson())) {
+			return;
+		}
+		String json = claimsJson(user, null);
+		if (claims == null) {
+			claims = new UserClaims();
+			claims.setUserId(user.getId());
+			claims.setUsername(user.getUsername());
+			claims.setClaimsJson(json);
+			em.persist(claims);
+		} else {
+			claims.setUsername(user.getUsername());
+			claims.setClaimsJson(json);
+		}
+	}
+	
+	/**
+	 * Write the claims document of a user that has none yet
+	 * 
+	 * @param user
+	 *            the new user, already persisted
+	 */
+	private void insertClaims(User user) {
+		UserClaims claims = new UserClaims();
+		claims.setUserId(user.getId());
+		claims.setUsername(user.getUsername());
+		claims.setClaimsJson(claimsJson(user, null));
+		em.persist(claims);
+	}
+	
+	/**
+	 * Render the claims document of a user, with its promoted attributes
+	 * 
+	 * @param user
+	 *            the user, never <code>null</code>
+	 * @param pending
+	 *            promoted values not yet written, or <code>null</code>
+	 * @return the claims document
+	 */
+	private String claimsJson(User user, Map<String, String> pending) {
+		if (promotedAttributes == null || ! promotedAttributes.isEnabled()) {
+			return mapper.toClaimsJson(user);
+		}
+		PropertiedUserInfo info = mapper.toUserInfo(user);
+		if (user.getId() != null) {
+			PromotedAttributeStore.overlay(info, promotedAttributes.read(user.getId()));
+		}
+		if (pending != null) {
+			for(Map.Entry<String, String> value : pending.entrySet()) {
+				info.setProperty(value.getKey(), value.getValue());
+			}
+		}
+		return mapper.toClaimsJson(info);
+	}
+	
+	/**
+	 * Take the promoted attribute values to write with a user. Attributes of a
+	 * promoted name added straight to the user's attributes, or left from
+	 * before the name was promoted, are moved out of them.
+	 * 
+	 * @param user
+	 *            the user about to be saved, never <code>null</code>
+	 * @return the values to write, or <code>null</code> if there are none
+	 */
+	private Map<String, String> takePromoted(User user) {
+		Map<String, String> rval = user.getPromotedChanges();
+		user.setPromotedChanges(null);
+		if (promotedAttributes == null || ! promotedAttributes.isEnabled()) {
+			return null;
+		}
+		if (user.getAttributes() != null) {
+			for(UserAttribute attr : new ArrayList<UserAttribute>(user.getAttributes())) {
+				String name = attr.getName().toUpperCase();
+				if (! promotedAttributes.getSchema().isPromoted(name)) continue;
+				user.getAttributes().remove(attr);
+				if (rval == null) {
+					rval = new LinkedHashMap<String, String>();
+				}
+				if (! rval.containsKey(name)) {
+					rval.put(name, attr.getValue());
+				}
+			}
 		}
 		return rval;
 	}
+	
+	private void deletePromoted(Long userid) {
+		if (promotedAttributes != null) {
+			promotedAttributes.delete(userid);
+		}
+	}
+	
+	private void deleteClaims(Long userid) {
+		if (claimsDocuments) {
+			em.createNamedQuery("user_claims.delete_by_user_id")
+				.setParameter("id", userid).executeUpdate();
+		}
+	}
+	
+	/**
+	 * Read the stored name of a user without flushing pending changes first
+	 * 
+	 * @param userid
+	 * @return the user name, or <code>null</code> if the user is not stored
+	 */
+	private String usernameOf(Long userid) {
+		if (publisher == null) {
+			return null;
+		}
+		@SuppressWarnings("unchecked")
+		TypedQuery<String> uq = (TypedQuery<String>) em.createNamedQuery("users.username_by_id");
+		uq.setFlushMode(FlushModeType.COMMIT);
+		List<String> results = uq.setParameter("id", userid).getResultList();
+		return results.size() > 0 ? results.get(0) : null;
+	}
+
+	public boolean hasRole(Long id, String rolename) {
+		if (id == null) {
+			throw new IllegalArgumentException("id should never by null");
+		}
+		if (rolename == null || rolename.trim().length() == 0) {
+			throw new IllegalArgumentException(
+					"rolename should never be null or empty");
+		}
+		if (roleIndex != null) {
+			return roleIndex.isMember(id, rolename);
+		}
+		Query q = em.createNamedQuery("users.has_role");
+		Number found = (Number) q.setParameter("id", id)
+				.setParameter("name", rolename).getSingleResult();
+		return found.intValue() > 0;
+	}
+	
+	public int countInRole(String rolename) {
+		if (rolename == null || rolename.trim().length() == 0) {
+			throw new IllegalArgumentException(
+					"rolename should never be null or empty");
+		}
+		if (roleIndex != null) {
+			return roleIndex.count(rolename);
+		}
+		Query q = em.createNamedQuery("users.count_by_role");
+		Number found = (Number) q.setParameter("name", rolename).getSingleResult();
+		return found.intValue();
+	}
+	
+	@SuppressWarnings("unchecked")
+	public List<Long> findIdsInRole(String rolename, int first, int count) {
+		if (rolename == null || rolename.trim().length() == 0) {
+			throw new IllegalArgumentException(
+					"rolename should never be null or empty");
+		}
+		if (roleIndex != null) {
+			return roleIndex.userIds(rolename, first, count);
+		}
+		Query q = em.createNamedQuery("users.ids_by_role");
+		List<Number> ids = q.setParameter("name", rolename)
+				.setFirstResult(first)
+				.setMaxResults(count)
+				.getResultList();
+		return toLongs(ids);
+	}
 
     public Role findOrCreateRole(String rolename) {
         Role role = findRole(rolename);
@@ -265,16 +1142,13 @@ public class UserManagerImpl implements UserManager {
 		if (passwordRule != null)
 			passwordRule.accept(password);
 
-		User newUser = new User();
-		newUser.setUsername(username);
-        newUser.setJamesPasswordHash(newUser.encodeJamesPasswordHash(password));
-
-		int psalt = random.nextInt();
 		try {
-			String phash = salt(psalt, password);
-			newUser.setPasswordHash(phash);
-			newUser.setPasswordSalt(psalt);
+			User newUser = newUser(username, password);
 			em.persist(newUser);
+			if (claimsDocuments) {
+				insertClaims(newUser);
+			}
+			userChanged(newUser, null);
 		} catch (Exception e) {
 			logger.error("Problem while storing user", e);
 			throw new UserException(
@@ -284,6 +1158,331 @@ public class UserManagerImpl implements UserManager {
 		}
 	}
 	
+	public List<BatchResult> addAll(Map<String, String> passwords) {
+		if (passwords == null) {
+			throw new IllegalArgumentException("passwords should never be null");
+		}
+		List<String> names = new ArrayList<String>(passwords.keySet());
+		BatchResult[] results = new BatchResult[names.size()];
+		List<Integer> candidates = new ArrayList<Integer>();
+		for(int i = 0; i < names.size(); i++) {
+			String username = names.get(i);
+			String problem = rejectNewUser(username);
+			if (problem == null) {
+				problem = rejectPassword(passwords.get(username));
+			}
+			if (problem != null) {
+				results[i] = new BatchResult(i, username, BatchResult.Status.INVALID, problem);
+			} else {
+				candidates.add(i);
+			}
+		}
+		Set<String> taken = takenNames(names, candidates, results);
+		
+		ExecutorService pool = newHashPool();
+		try {
+			for(int c = 0; c < candidates.size(); c += bulkChunkSize) {
+				List<Integer> chunk = candidates.subList(c, Math.min(candidates.size(), c + bulkChunkSize));
+				List<Integer> rows = new ArrayList<Integer>();
+				List<Future<User>> hashed = new ArrayList<Future<User>>();
+				for(Integer i : chunk) {
+					final String username = names.get(i);
+					if (taken.contains(username.toLowerCase())) {
+						results[i] = new BatchResult(i, username, BatchResult.Status.EXISTS, 
+								"User " + username + " already exists");
+						continue;
+					}
+					final String password = passwords.get(username);
+					rows.add(i);
+					hashed.add(pool.submit(new Callable<User>() {
+						public User call() {
+							return newUser(username, password);
+						}
+					}));
+				}
+				for(int r = 0; r < rows.size(); r++) {
+					User user = await(hashed.get(r));
+					em.persist(user);
+					if (claimsDocuments) {
+						insertClaims(user);
+					}
+					results[rows.get(r)] = new BatchResult(rows.get(r), user.getUsername(), 
+							BatchResult.Status.CREATED, null);
+				}
+				em.flush();
+				em.clear();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		dataChanged();
+		return Arrays.asList(results);
+	}
+	
+	public List<BatchResult> saveAll(List<User> users) {
+		if (users == null) {
+			throw new IllegalArgumentException("users should never be null");
+		}
+		List<String> names = new ArrayList<String>(users.size());
+		BatchResult[] results = new BatchResult[users.size()];
+		List<Integer> inserts = new ArrayList<Integer>();
+		List<Integer> candidates = new ArrayList<Integer>();
+		for(int i = 0; i < users.size(); i++) {
+			User user = users.get(i);
+			String username = user != null ? user.getUsername() : null;
+			names.add(username);
+			String problem = null;
+			if (user == null) {
+				problem = "user should never be null";
+			} else if (StringUtils.isBlank(username)) {
+				problem = "username should never be null or empty";
+			} else if (user.getId() == null) {
+				problem = rejectNewUser(username);
+				if (problem == null && user.getPasswordHash() == null) {
+					problem = "A new user needs a password hash";
+				}
+			}
+			if (problem != null) {
+				results[i] = new BatchResult(i, username, BatchResult.Status.INVALID, problem);
+			} else {
+				candidates.add(i);
+				if (user.getId() == null) {
+					inserts.add(i);
+				}
+			}
+		}
+		Set<String> taken = takenNames(names, inserts, results);
+		
+		final List<UserChangedEvent> events = new ArrayList<UserChangedEvent>();
+		final Map<Long, Set<String>> memberships = new HashMap<Long, Set<String>>();
+		for(int c = 0; c < candidates.size(); c += bulkChunkSize) {
+			List<Integer> chunk = candidates.subList(c, Math.min(candidates.size(), c + bulkChunkSize));
+			List<Long> ids = new ArrayList<Long>();
+			for(Integer i : chunk) {
+				if (results[i] == null && users.get(i).getId() != null) {
+					ids.add(users.get(i).getId());
+				}
+			}
+			// Read before merging, renames must be reported under both names
+			Map<Long, String> previousNames = usernamesOf(ids);
+			for(Integer i : chunk) {
+				if (results[i] != null) {
+					// Repeats a name earlier in the request
+					continue;
+				}
+				User user = users.get(i);
+				Long id = user.getId();
+				if (id != null && !previousNames.containsKey(id)) {
+					// merge() would insert it under an id the sequence may
+					// later hand out
+					results[i] = new BatchResult(i, user.getUsername(), BatchResult.Status.INVALID, 
+							"No user has id " + id);
+					continue;
+				}
+				if (id == null && taken.contains(user.getUsername().toLowerCase())) {
+					results[i] = new BatchResult(i, user.getUsername(), BatchResult.Status.EXISTS, 
+							"User " + user.getUsername() + " already exists");
+					continue;
+				}
+				user.setUpdated(new Date(System.currentTimeMillis()));
+				Map<String, String> promoted = takePromoted(user);
+				User stored;
+				if (id == null) {
+					em.persist(user);
+					stored = user;
+					if (promoted != null) {
+						promotedAttributes.write(stored.getId(), promoted);
+					}
+					if (claimsDocuments) {
+						insertClaims(stored);
+					}
+				} else {
+					stored = em.merge(user);
+					if (promoted != null) {
+						promotedAttributes.write(stored.getId(), promoted);
+					}
+					if (claimsDocuments) {
+						updateClaims(stored, null);
+					}
+				}
+				events.add(new UserChangedEvent(this, stored.getId(), 
+						previousNames.get(id), stored.getUsername()));
+				Set<String> rolenames = new HashSet<String>();
+				if (stored.getRoles() != null) {
+					for(Role role : stored.getRoles()) {
+						rolenames.add(role.getName());
+					}
+				}
+				memberships.put(stored.getId(), rolenames);
+				results[i] = new BatchResult(i, stored.getUsername(), 
+						id == null ? BatchResult.Status.CREATED : BatchResult.Status.UPDATED, null);
+			}
+			em.flush();
+			em.clear();
+		}
+		dataChanged();
+		if (publisher != null || roleIndex != null) {
+			afterCommit(new Runnable() {
+				public void run() {
+					for(UserChangedEvent event : events) {
+						if (publisher != null) {
+							publisher.publishEvent(event);
+						}
+					}
+					if (roleIndex != null) {
+						for(Map.Entry<Long, Set<String>> entry : memberships.entrySet()) {
+							roleIndex.update(entry.getKey(), entry.getValue());
+						}
+					}
+				}
+			});
+		}
+		return Arrays.asList(results);
+	}
+	
+	/**
+	 * @param username
+	 * @return why the name cannot be used for a new user, or <code>null</code>
+	 */
+	private String rejectNewUser(String username) {
+		if (StringUtils.isBlank(username)) {
+			return "username should never be null or empty";
+		}
+		try {
+			userValidity.valid(username);
+		} catch (UserException e) {
+			return e.getMessage();
+		}
+		return null;
+	}
+	
+	/**
+	 * @param password
+	 * @return why the password is not acceptable, or <code>null</code>
+	 */
+	private String rejectPassword(String password) {
+		if (StringUtils.isBlank(password)) {
+			return "password should never be null or empty";
+		}
+		if (passwordRule != null) {
+			try {
+				passwordRule.accept(password);
+			} catch (PasswordException e) {
+				return e.getMessage();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Find which of the candidate rows name a user that already exists, with
+	 * one query per chunk. Rows are compared with each other without case, so
+	 * a later row repeating the name of an earlier one in another case is
+	 * marked as existing and dropped from the candidates. Whether a name
+	 * matches a stored one of another case is left to the database collation,
+	 * as it is for a single lookup, which keeps the query on the index.
+	 * 
+	 * @param names
+	 *            the user name of every row
+	 * @param candidates
+	 *            the rows to check, updated in place
+	 * @param results
+	 *            receives the results of dropped rows
+	 * @return the lower cased names that are already taken
+	 */
+	private Set<String> takenNames(List<String> names, List<Integer> candidates, 
+			BatchResult[] results) {
+		Set<String> seen = new HashSet<String>();
+		List<String> lookup = new ArrayList<String>();
+		for(Iterator<Integer> it = candidates.iterator(); it.hasNext(); ) {
+			Integer i = it.next();
+			String username = names.get(i);
+			if (!seen.add(username.toLowerCase())) {
+				results[i] = new BatchResult(i, username, BatchResult.Status.EXISTS, 
+						"User " + username + " appears more than once");
+				it.remove();
+			} else {
+				lookup.add(username);
+			}
+		}
+		Set<String> taken = new HashSet<String>();
+		for(int i = 0; i < lookup.size(); i += bulkChunkSize) {
+			List<String> chunk = lookup.subList(i, Math.min(lookup.size(), i + bulkChunkSize));
+			@SuppressWarnings("unchecked")
+			TypedQuery<String> uq = (TypedQuery<String>) em.createNamedQuery("users.existing_usernames");
+			for(String username : uq.setParameter("usernames", chunk).getResultList()) {
+				taken.add(username.toLowerCase());
+			}
+		}
+		return taken;
+	}
+	
+	/**
+	 * Read the stored names of a set of users without flushing pending changes
+	 * 
+	 * @param ids
+	 * @return the user names keyed by id
+	 */
+	private Map<Long, String> usernamesOf(List<Long> ids) {
+		Map<Long, String> rval = new HashMap<Long, String>();
+		if (ids.isEmpty()) {
+			return rval;
+		}
+		Query q = em.createNamedQuery("users.usernames_by_ids");
+		q.setFlushMode(FlushModeType.COMMIT);
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = q.setParameter("ids", ids).getResultList();
+		for(Object[] row : rows) {
+			rval.put(((Number) row[0]).longValue(), (String) row[1]);
+		}
+		return rval;
+	}
+	
+	/**
+	 * Build a new user with freshly salted password hashes. Safe to call from
+	 * several threads at once.
+	 * 
+	 * @param username
+	 * @param password
+	 * @return the user, not yet persisted
+	 */
+	private User newUser(String username, String password) {
+		User newUser = new User();
+		newUser.setUsername(username);
+		newUser.setJamesPasswordHash(newUser.encodeJamesPasswordHash(password));
+		int psalt = random.nextInt();
+		newUser.setPasswordHash(salt(psalt, password));
+		newUser.setPasswordSalt(psalt);
+		return newUser;
+	}
+	
+	private ExecutorService newHashPool() {
+		return Executors.newFixedThreadPool(hashThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "password-hash");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	private static <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while hashing passwords", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("Password hashing failed", cause);
+		}
+	}
+	
 	public boolean checkConfirmation(String username, String confirmation) {
 		if (username == null || username.trim().length() == 0) {
 			throw new IllegalArgumentException(
@@ -295,16 +1494,20 @@ public class UserManagerImpl implements UserManager {
 		}
 		@SuppressWarnings("unchecked")
 		User user = get(username);
-		if (user != null) {
+		if (user == null) {
 			return false;
 		}
 		int psalt = user.getPasswordSalt();
 		try {
 			String chash = salt(psalt, confirmation);
 			boolean confirmed = chash.equals(user.getConfirmationHash());
-			if (confirmed && user.getEmailConfirmed() == false) {
+			if (confirmed && !Boolean.TRUE.equals(user.getEmailConfirmed())) {
 				user.setEmailConfirmed(true);
 				em.persist(user);
+				if (claimsDocuments) {
+					updateClaims(user, null);
+				}
+				userChanged(user, null);
 			}
 			return confirmed;
 		} catch (Exception e) {
@@ -379,8 +1582,7 @@ public class UserManagerImpl implements UserManager {
 		if (password == null) {
 			password = "";
 		}
-		@SuppressWarnings("unchecked")
-		User user = get(username);
+		User user = get(username, FetchPlan.CREDENTIAL);
 		if (user == null) {
 			throw new AuthenticationException();
 		}
@@ -436,6 +1638,47 @@ public class UserManagerImpl implements UserManager {
 		return confirmationString;
 	}
 	
+	/**
+	 * Drop a deleted user from the shared cache and the role index once the
+	 * delete is committed
+	 * @param userid
+	 * @param username
+	 */
+	private void removeFromCaches(final Long userid, final String username) {
+		dataChanged();
+		afterCommit(new Runnable() {
+			public void run() {
+				evictUsers(Collections.singleton(userid));
+				if (roleIndex != null) {
+					roleIndex.remove(userid);
+				}
+				if (publisher != null) {
+					publisher.publishEvent(new UserChangedEvent(UserManagerImpl.this, 
+							userid, username));
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Run the action once the current transaction commits, or immediately if
+	 * there is no transaction. In-memory structures must never see changes
+	 * that are later rolled back.
+	 * @param action
+	 */
+	private void afterCommit(final Runnable action) {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					action.run();
+				}
+			});
+		} else {
+			action.run();
+		}
+	}
+	
 	/**
 	 * Bridge to password encoder
 	 * @return
@@ -444,6 +1687,122 @@ public class UserManagerImpl implements UserManager {
 		return simplePasswordEncoder.encodePassword(password, saltValue);
 	}
  
+	/**
+	 * @return the bulkChunkSize
+	 */
+	public int getBulkChunkSize() {
+		return bulkChunkSize;
+	}
+
+	/**
+	 * @param bulkChunkSize the bulkChunkSize to set
+	 */
+	public void setBulkChunkSize(int bulkChunkSize) {
+		if (bulkChunkSize < 1) {
+			throw new IllegalArgumentException(
+					"bulkChunkSize should be at least 1");
+		}
+		this.bulkChunkSize = bulkChunkSize;
+	}
+
+	/**
+	 * @return the number of threads hashing passwords in bulk adds
+	 */
+	public int getHashThreads() {
+		return hashThreads;
+	}
+
+	/**
+	 * @param hashThreads the number of threads hashing passwords in bulk adds
+	 */
+	public void setHashThreads(int hashThreads) {
+		if (hashThreads < 1) {
+			throw new IllegalArgumentException(
+					"hashThreads should be at least 1");
+		}
+		this.hashThreads = hashThreads;
+	}
+
+	/**
+	 * @return the sharedCacheStatistics
+	 */
+	public CacheStatistics getSharedCacheStatistics() {
+		return sharedCacheStatistics;
+	}
+
+	/**
+	 * @param sharedCacheStatistics the sharedCacheStatistics to set
+	 */
+	public void setSharedCacheStatistics(CacheStatistics sharedCacheStatistics) {
+		this.sharedCacheStatistics = sharedCacheStatistics;
+	}
+
+	/**
+	 * @return the bound on the estimated memory used by cached pages
+	 */
+	public long getPageCacheMaxBytes() {
+		return pageCache.getMaxBytes();
+	}
+
+	/**
+	 * @param maxBytes the bound on the estimated memory used by cached pages,
+	 * zero disables the cache
+	 */
+	public void setPageCacheMaxBytes(long maxBytes) {
+		VersionedResultCache<String, List<Map<String, String>>> replacement =
+			new VersionedResultCache<String, List<Map<String, String>>>(maxBytes);
+		replacement.setStatistics(pageCacheStatistics);
+		pageCache = replacement;
+	}
+
+	/**
+	 * @return the pageCacheStatistics
+	 */
+	public CacheStatistics getPageCacheStatistics() {
+		return pageCacheStatistics;
+	}
+
+	/**
+	 * @param pageCacheStatistics the pageCacheStatistics to set
+	 */
+	public void setPageCacheStatistics(CacheStatistics pageCacheStatistics) {
+		this.pageCacheStatistics = pageCacheStatistics;
+		pageCache.setStatistics(pageCacheStatistics);
+	}
+
+	/**
+	 * @return <code>true</code> if claims documents are maintained
+	 */
+	public boolean isClaimsDocuments() {
+		return claimsDocuments;
+	}
+
+	/**
+	 * @param claimsDocuments <code>true</code> to maintain a claims document
+	 * per user in USER_CLAIMS
+	 */
+	public void setClaimsDocuments(boolean claimsDocuments) {
+		this.claimsDocuments = claimsDocuments;
+	}
+
+	public void setApplicationEventPublisher(ApplicationEventPublisher publisher) {
+		this.publisher = publisher;
+	}
+
+	/**
+	 * @return the roleIndex
+	 */
+	public IRoleIndex getRoleIndex() {
+		return roleIndex;
+	}
+
+	/**
+	 * @param roleIndex the roleIndex to set
+	 */
+	public void setRoleIndex(IRoleIndex roleIndex) {
+		this.roleIndex = roleIndex;
+	}
+
 	/**
 	 * @return the passwordRule
 	 */
@@ -0,0 +1,253 @@
+package org.mitre.openid.connect.repository.db.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.TableGenerator;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.eclipse.persistence.annotations.Cache;
+import org.eclipse.persistence.annotations.CacheType;
+import org.eclipse.persistence.annotations.ChangeTracking;
+import org.eclipse.persistence.annotations.ChangeTrackingType;
+import org.eclipse.persistence.annotations.Customizer;
+import org.mitre.openid.connect.repository.db.util.AttributeNames;
+import org.mitre.openid.connect.repository.db.util.ChangeTrackingCustomizer;
+
+/**
+ * A named reference to a remote value of a user. The value is the link, the
+ * access token is needed to obtain the data and the expiration is that of the
+ * access token. The protocol used to obtain the data is OAUTH2.
+ * <p>
+ * Remote attributes are kept apart from {@link UserAttribute} so that reading
+ * a profile never fetches access tokens, they are only read when
+ * {@link User#getRemoteAttributes()} is used.
+ */
+@Entity
+@Table(name = "USER_REMOTE_ATTRIBUTES")
+@Cache(type = CacheType.SOFT_WEAK, size = 1000, expiry = 600000)
+@ChangeTracking(ChangeTrackingType.ATTRIBUTE)
+@Customizer(ChangeTrackingCustomizer.class)
+@NamedQueries(value = {
+	@NamedQuery(name = "user_remote_attributes.expiring",
+		query = "select ra from RemoteUserAttribute ra where ra.expiration < :until" +
+				" order by ra.expiration, ra.id"),
+	@NamedQuery(name = "user_remote_attributes.expiring_after",
+		query = "select ra from RemoteUserAttribute ra where ra.expiration < :until" +
+				" and (ra.expiration > :after or (ra.expiration = :after and ra.id > :afterId))" +
+				" order by ra.expiration, ra.id"),
+	@NamedQuery(name = "user_remote_attributes.by_ids",
+		query = "select ra from RemoteUserAttribute ra where ra.id in :ids"),
+	@NamedQuery(name = "user_remote_attributes.purge",
+		query = "update RemoteUserAttribute ra set ra.accessToken = null, ra.expiration = null" +
+				" where ra.id in :ids and ra.expiration <= :now"),
+	@NamedQuery(name = "user_remote_attributes.replace",
+		query = "update RemoteUserAttribute ra set ra.accessToken = :token, ra.expiration = :expiration" +
+				" where ra.id = :id and ra.expiration = :expected")
+})
+public class RemoteUserAttribute implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private Long id;
+	private Long userId;
+	private String name;
+	private String value;
+	private String accessToken;
+	private Date expiration;
+
+	/**
+	 * Empty ctor
+	 */
+	public RemoteUserAttribute() {
+		// Intentionally empty
+	}
+
+	/**
+	 * Ctor
+	 *
+	 * @param name
+	 *            a non-empty name for the attribute
+	 * @param value
+	 *            the link to the remote value
+	 * @param accessToken
+	 *            the token needed to follow the link, may be <code>null</code>
+	 * @param expiration
+	 *            when the token expires, may be <code>null</code>
+	 */
+	public RemoteUserAttribute(String name, String value, String accessToken, Date expiration) {
+		setName(name);
+		setValue(value);
+		setAccessToken(accessToken);
+		setExpiration(expiration);
+	}
+
+	/**
+	 * @return the id, assigned on persist from a block of ids reserved in
+	 * ID_SEQUENCES
+	 */
+	@Id
+	@GeneratedValue(strategy=GenerationType.TABLE, generator="user_remote_attribute_ids")
+	@TableGenerator(name="user_remote_attribute_ids", table="ID_SEQUENCES", pkColumnName="SEQ_NAME",
+		valueColumnName="SEQ_COUNT", pkColumnValue="USER_REMOTE_ATTRIBUTES", allocationSize=50)
+	public Long getId() {
+		return id;
+	}
+
+	/**
+	 * @param id the id to set
+	 */
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	/**
+	 * @return the name of the attribute, upper case, never <code>null</code>
+	 * or empty
+	 */
+	@Basic
+	@Column(name = "ATTR_NAME", length = 64)
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @param name the name to set
+	 */
+	public void setName(String name) {
+		if (name == null || name.trim().length() == 0) {
+			throw new IllegalArgumentException(
+					"name should never be null or empty");
+		}
+		this.name = AttributeNames.intern(name.toUpperCase());
+	}
+
+	/**
+	 * @return the link to the remote value
+	 */
+	@Basic
+	@Column(name = "ATTR_VALUE", length = 1024)
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * @param value the value to set
+	 */
+	public void setValue(String value) {
+		this.value = value;
+	}
+
+	/**
+	 * @return the access token
+	 */
+	@Basic
+	@Column(name = "ACCESS_TOKEN", length = 1024, nullable = true)
+	public String getAccessToken() {
+		return accessToken;
+	}
+
+	/**
+	 * @param accessToken the access token to set
+	 */
+	public void setAccessToken(String accessToken) {
+		this.accessToken = accessToken;
+	}
+
+	/**
+	 * @return when the access token expires, to the second, see
+	 * {@link org.mitre.openid.connect.repository.db.impl.RemoteTokenSweeper}
+	 */
+	@Basic
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "TOKEN_EXPIRATION", nullable = true)
+	public Date getExpiration() {
+		return expiration;
+	}
+
+	/**
+	 * @param expiration the expiration to set
+	 */
+	public void setExpiration(Date expiration) {
+		this.expiration = expiration;
+	}
+
+	/**
+	 * @return the id of the user
+	 */
+	@Basic
+	@Column(name = "USER_ID")
+	public Long getUserId() {
+		return userId;
+	}
+
+	/**
+	 * @param userId the userId to set
+	 */
+	public void setUserId(Long userId) {
+		this.userId = userId;
+	}
+
+	/*
+	 * The hashCode and equals method exclude userId intentionally, as
+	 * UserAttribute does
+	 */
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((accessToken == null) ? 0 : accessToken.hashCode());
+		result = prime * result + ((expiration == null) ? 0 : expiration.hashCode());
+		result = prime * result + ((id == null) ? 0 : id.hashCode());
+		result = prime * result + ((name == null) ? 0 : name.hashCode());
+		result = prime * result + ((value == null) ? 0 : value.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		RemoteUserAttribute other = (RemoteUserAttribute) obj;
+		if (accessToken == null) {
+			if (other.accessToken != null)
+				return false;
+		} else if (!accessToken.equals(other.accessToken))
+			return false;
+		if (expiration == null) {
+			if (other.expiration != null)
+				return false;
+		} else if (!expiration.equals(other.expiration))
+			return false;
+		if (id == null) {
+			if (other.id != null)
+				return false;
+		} else if (!id.equals(other.id))
+			return false;
+		if (name == null) {
+			if (other.name != null)
+				return false;
+		} else if (!name.equals(other.name))
+			return false;
+		if (value == null) {
+			if (other.value != null)
+				return false;
+		} else if (!value.equals(other.value))
+			return false;
+		return true;
+	}
+}
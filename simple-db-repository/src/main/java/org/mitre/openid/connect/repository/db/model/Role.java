@@ -28,9 +28,18 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.NamedQuery;
 import javax.persistence.Table;
+import javax.persistence.TableGenerator;
 
+import org.eclipse.persistence.annotations.Cache;
+import org.eclipse.persistence.annotations.CacheType;
+
+/**
+ * A named role. There are only a handful of roles and every user load refers
+ * to them, so the whole table is held in the shared cache.
+ */
 @Entity
 @Table(name = "ROLES")
+@Cache(type = CacheType.FULL)
 @NamedQuery(name = "roles.by_name",
 	query = "select r from Role r where r.name = :name")
 public class Role implements Serializable {
@@ -39,10 +48,13 @@ public class Role implements Serializable {
 	private String description;
 
 	/**
-	 * @return the id
+	 * @return the id, assigned on persist from a block of ids reserved in
+	 * ID_SEQUENCES
 	 */
 	@Id
-	@GeneratedValue(strategy=GenerationType.IDENTITY)
+	@GeneratedValue(strategy=GenerationType.TABLE, generator="role_ids")
+	@TableGenerator(name="role_ids", table="ID_SEQUENCES", pkColumnName="SEQ_NAME",
+		valueColumnName="SEQ_COUNT", pkColumnValue="ROLES", allocationSize=50)
 	@Column(name = "ROLE_ID")
 	public Long getId() {
 		return id;
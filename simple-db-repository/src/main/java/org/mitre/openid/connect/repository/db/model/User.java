@@ -25,6 +25,7 @@ import java.sql.Date;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import javax.persistence.Basic;
@@ -41,10 +42,22 @@ import javax.persistence.ManyToMany;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
+import javax.persistence.QueryHint;
 import javax.persistence.Table;
+import javax.persistence.TableGenerator;
+import javax.persistence.Transient;
  
+import org.eclipse.persistence.annotations.BatchFetch;
+import org.eclipse.persistence.annotations.BatchFetchType;
+import org.eclipse.persistence.annotations.Cache;
+import org.eclipse.persistence.annotations.CacheType;
+import org.eclipse.persistence.annotations.ChangeTracking;
+import org.eclipse.persistence.annotations.ChangeTrackingType;
+import org.eclipse.persistence.annotations.Customizer;
 import org.eclipse.persistence.annotations.PrivateOwned;
+import org.eclipse.persistence.config.QueryHints;
 import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.util.UserCustomizer;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetails;
@@ -62,38 +75,143 @@ import javax.mail.internet.MimeUtility;
  * the original password is stored in the database. If the user forgets their
  * original password the system will need to reset the password, sending them
  * a replacement password via their confirmed email address.
+ * <p>
+ * Users are held in the shared cache up to a fixed size, softly referenced so
+ * the collector may reclaim them, and expire after ten minutes so changes made
+ * outside this application are eventually seen.
  * 
  * @author DRAND
  *
  */
 @Entity
 @Table(name = "USERS")
+@Cache(type = CacheType.SOFT_WEAK, size = 2000, expiry = 600000)
+// Callers replace the role and attribute sets and then fill them, so the
+// whole user is compared once any setter marks it changed
+@ChangeTracking(ChangeTrackingType.OBJECT)
+@Customizer(UserCustomizer.class)
 @NamedQueries(value = {
 		@NamedQuery(name = "users.by_first_name", 
-			query = "select u from User u order by u.firstname"),
+			query = "select u from User u order by u.firstname",
+			hints = {
+				@QueryHint(name = QueryHints.BATCH, value = "u.attributes"),
+				@QueryHint(name = QueryHints.BATCH_TYPE, value = "IN")
+			}),
 		@NamedQuery(name = "users.by_last_name", 
-			query = "select u from User u order by u.lastname"),
+			query = "select u from User u order by u.lastname",
+			hints = {
+				@QueryHint(name = QueryHints.BATCH, value = "u.attributes"),
+				@QueryHint(name = QueryHints.BATCH_TYPE, value = "IN")
+			}),
 		// FIXME: users.by_username is already taken by something that actually finds just one user
 	    @NamedQuery(name = "users.sort_by_username", 
-            query = "select u from User u order by u.username"),
+            query = "select u from User u order by u.username",
+			hints = {
+				@QueryHint(name = QueryHints.BATCH, value = "u.attributes"),
+				@QueryHint(name = QueryHints.BATCH_TYPE, value = "IN")
+			}),
 		@NamedQuery(name = "users.by_email", 
-			query = "select u from User u order by u.email"),
+			query = "select u from User u order by u.email",
+			hints = {
+				@QueryHint(name = QueryHints.BATCH, value = "u.attributes"),
+				@QueryHint(name = QueryHints.BATCH_TYPE, value = "IN")
+			}),
 		@NamedQuery(name = "users.by_username",
-			query = "select u from User u where u.username = :username"),
+			query = "select u from User u where u.username = :username",
+			hints = {
+				@QueryHint(name = QueryHints.LEFT_FETCH, value = "u.roles")
+			}),
+		@NamedQuery(name = "users.by_id",
+			query = "select u from User u where u.id = :id"),
+		@NamedQuery(name = "users.by_ids",
+			query = "select u from User u where u.id in :ids",
+			hints = {
+				@QueryHint(name = QueryHints.BATCH, value = "u.roles"),
+				@QueryHint(name = QueryHints.BATCH, value = "u.attributes"),
+				@QueryHint(name = QueryHints.BATCH_TYPE, value = "IN")
+			}),
+		@NamedQuery(name = "users.by_usernames",
+			query = "select u from User u where u.username in :usernames",
+			hints = {
+				@QueryHint(name = QueryHints.BATCH, value = "u.roles"),
+				@QueryHint(name = QueryHints.BATCH, value = "u.attributes"),
+				// Only read if a caller walks them, then for the whole chunk
+				@QueryHint(name = QueryHints.BATCH, value = "u.remoteAttributes"),
+				@QueryHint(name = QueryHints.BATCH_TYPE, value = "IN")
+			}),
 		@NamedQuery(name = "users.by_admin_role",
 			query = "select u from User u inner join u.roles r where r.name = 'ADMIN'"),
 		@NamedQuery(name = "users.like_name",
-			query = "select u from User u where lower(u.username) like :pattern"),
+			query = "select u from User u where lower(u.username) like :pattern",
+			hints = {
+				@QueryHint(name = QueryHints.BATCH, value = "u.roles"),
+				@QueryHint(name = QueryHints.BATCH, value = "u.attributes"),
+				@QueryHint(name = QueryHints.BATCH_TYPE, value = "IN")
+			}),
+		@NamedQuery(name = "users.ids_like_name",
+			query = "select u.id from User u where lower(u.username) like :pattern"),
 		@NamedQuery(name = "users.all",
-			query = "select u from User u"),
+			query = "select u from User u",
+			hints = {
+				@QueryHint(name = QueryHints.BATCH, value = "u.roles"),
+				@QueryHint(name = QueryHints.BATCH, value = "u.attributes"),
+				@QueryHint(name = QueryHints.BATCH_TYPE, value = "IN")
+			}),
 		@NamedQuery(name = "users.count",
 			query = "select count(u) from User u"),
+		@NamedQuery(name = "users.role_membership",
+			query = "select u.id, r.name from User u inner join u.roles r"),
+		@NamedQuery(name = "users.count_by_role",
+			query = "select count(u) from User u inner join u.roles r where r.name = :name"),
+		@NamedQuery(name = "users.ids_by_role",
+			query = "select u.id from User u inner join u.roles r where r.name = :name order by u.id"),
+		@NamedQuery(name = "users.has_role",
+			query = "select count(u) from User u inner join u.roles r where u.id = :id and r.name = :name"),
+		@NamedQuery(name = "users.existing_usernames",
+			query = "select u.username from User u where u.username in :usernames"),
+		@NamedQuery(name = "users.usernames_by_ids",
+			query = "select u.id, u.username from User u where u.id in :ids"),
+		@NamedQuery(name = "users.fingerprints_after",
+			query = "select u.id, u.username, u.fingerprint from User u where u.username > :after order by u.username"),
+		@NamedQuery(name = "users.by_attribute",
+			query = "select u from User u, UserAttribute ua where ua.userId = u.id" +
+					" and ua.name = :name and ua.type = :type and ua.storedValue in (:value, :stored) order by u.id",
+			hints = {
+				@QueryHint(name = QueryHints.BATCH, value = "u.roles"),
+				@QueryHint(name = QueryHints.BATCH, value = "u.attributes"),
+				@QueryHint(name = QueryHints.BATCH_TYPE, value = "IN")
+			}),
+		@NamedQuery(name = "users.by_attribute_prefix",
+			query = "select u from User u, UserAttribute ua where ua.userId = u.id" +
+					" and ua.name = :name and ua.type = :type and ua.storedValue like :prefix escape '!'" +
+					" order by ua.storedValue, u.id",
+			hints = {
+				@QueryHint(name = QueryHints.BATCH, value = "u.roles"),
+				@QueryHint(name = QueryHints.BATCH, value = "u.attributes"),
+				@QueryHint(name = QueryHints.BATCH_TYPE, value = "IN")
+			}),
+		@NamedQuery(name = "users.by_attribute_range",
+			query = "select u from User u, UserAttribute ua where ua.userId = u.id" +
+					" and ua.name = :name and ua.type = :type and ua.storedValue >= :from and ua.storedValue < :to" +
+					" order by ua.storedValue, u.id",
+			hints = {
+				@QueryHint(name = QueryHints.BATCH, value = "u.roles"),
+				@QueryHint(name = QueryHints.BATCH, value = "u.attributes"),
+				@QueryHint(name = QueryHints.BATCH_TYPE, value = "IN")
+			}),
+		@NamedQuery(name = "users.username_by_id",
+			query = "select u.username from User u where u.id = :id"),
 		@NamedQuery(name = "users.username",
 			query = "select u from User u where " +
 					"(lower(concat(u.firstname, ' ', u.lastname)) = :name and (u.middlename is null or length(trim(u.middlename)) = 0)) or " +
 					"(lower(concat(u.firstname, ' ', u.middlename, ' ', u.lastname)) = :name)")
 })
 public class User implements UserDetails, Serializable {
+	/**
+	 * The most users whose roles or attributes are loaded with one statement
+	 */
+	public static final int BATCH_SIZE = 500;
+
 	private Long id;
 	private String username;
 	
@@ -123,15 +241,24 @@ public class User implements UserDetails, Serializable {
 	private Integer failedAttempts = 0;
 	private Set<Role> roles = new HashSet<Role>();
 	private Set<UserAttribute> attributes;
+	private Set<RemoteUserAttribute> remoteAttributes;
 	private Date updated;
+	private String fingerprint;
+	/**
+	 * Promoted attribute values waiting to be written with the user
+	 */
+	private transient Map<String, String> promotedChanges;
 	
 	private static SecureRandom random = new SecureRandom();
 	
 	/**
-	 * @return the id
+	 * @return the id, assigned on persist from a block of ids reserved in
+	 * ID_SEQUENCES
 	 */
 	@Id
-	@GeneratedValue(strategy=GenerationType.IDENTITY)
+	@GeneratedValue(strategy=GenerationType.TABLE, generator="user_ids")
+	@TableGenerator(name="user_ids", table="ID_SEQUENCES", pkColumnName="SEQ_NAME",
+		valueColumnName="SEQ_COUNT", pkColumnValue="USERS", allocationSize=50)
 	@Column(name = "USER_ID")
 	public Long getId() {
 		return id;
@@ -546,9 +673,11 @@ public class User implements UserDetails, Serializable {
 	}
 
 	/**
-	 * @return the roles
+	 * @return the roles. Loaded on first use, for every user read by the same
+	 * query at once.
 	 */
-	@ManyToMany(fetch = FetchType.EAGER)
+	@ManyToMany(fetch = FetchType.LAZY)
+	@BatchFetch(value = BatchFetchType.IN, size = User.BATCH_SIZE)
 	@JoinTable(name = "USERS_ROLES",
 		joinColumns = {
 			@JoinColumn(name="USER_ID")
@@ -569,9 +698,11 @@ public class User implements UserDetails, Serializable {
 	}
 
 	/**
-	 * @return the attributes
+	 * @return the attributes. Loaded on first use, for every user read by the
+	 * same query at once.
 	 */
-	@OneToMany(fetch = FetchType.EAGER, cascade = CascadeType.ALL)
+	@OneToMany(fetch = FetchType.LAZY, cascade = CascadeType.ALL)
+	@BatchFetch(value = BatchFetchType.IN, size = User.BATCH_SIZE)
 	@JoinColumn(name = "USER_ID")
 	@PrivateOwned
 	public Set<UserAttribute> getAttributes() {
@@ -584,6 +715,43 @@ public class User implements UserDetails, Serializable {
 	public void setAttributes(Set<UserAttribute> attributes) {
 		this.attributes = attributes;
 	}
+
+	/**
+	 * @return the remote attributes with their access tokens. No query
+	 * batches or fetches them, they are read only when used.
+	 */
+	@OneToMany(fetch = FetchType.LAZY, cascade = CascadeType.ALL)
+	@JoinColumn(name = "USER_ID")
+	@PrivateOwned
+	public Set<RemoteUserAttribute> getRemoteAttributes() {
+		return remoteAttributes;
+	}
+
+	/**
+	 * @param remoteAttributes the remote attributes to set
+	 */
+	public void setRemoteAttributes(Set<RemoteUserAttribute> remoteAttributes) {
+		this.remoteAttributes = remoteAttributes;
+	}
+
+	/**
+	 * @return the values of promoted attributes to write when the user is
+	 * next saved keyed by attribute name, a <code>null</code> value clears
+	 * one, or <code>null</code> if there are none. Promoted attributes are
+	 * kept apart from {@link #getAttributes()}, see
+	 * {@link org.mitre.openid.connect.repository.db.util.AttributeSchema}.
+	 */
+	@Transient
+	public Map<String, String> getPromotedChanges() {
+		return promotedChanges;
+	}
+
+	/**
+	 * @param promotedChanges the promotedChanges to set
+	 */
+	public void setPromotedChanges(Map<String, String> promotedChanges) {
+		this.promotedChanges = promotedChanges;
+	}
 	
 	/**
 	 * @return the updated
@@ -601,6 +769,24 @@ public class User implements UserDetails, Serializable {
 		this.updated = updated;
 	}
 
+	/**
+	 * @return the fingerprint of the directory feed row the user was last
+	 * reconciled from, or <code>null</code> if the user was changed some other
+	 * way since
+	 */
+	@Basic
+	@Column(name = "FINGERPRINT", length = 64)
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @param fingerprint the fingerprint to set
+	 */
+	public void setFingerprint(String fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+
 
 	/*
 	 * (non-Javadoc)
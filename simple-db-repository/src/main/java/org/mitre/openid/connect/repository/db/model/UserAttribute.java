@@ -19,7 +19,6 @@
 package org.mitre.openid.connect.repository.db.model;
 
 import java.io.Serializable;
-import java.sql.Date;
 
 import javax.persistence.Basic;
 import javax.persistence.Column;
@@ -27,32 +26,60 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.Table;
+import javax.persistence.TableGenerator;
+import javax.persistence.Transient;
+import javax.persistence.UniqueConstraint;
 
+import org.eclipse.persistence.annotations.Cache;
+import org.eclipse.persistence.annotations.CacheType;
+import org.eclipse.persistence.annotations.ChangeTracking;
+import org.eclipse.persistence.annotations.ChangeTrackingType;
+import org.eclipse.persistence.annotations.Customizer;
+import org.mitre.openid.connect.repository.db.util.AttributeNames;
+import org.mitre.openid.connect.repository.db.util.ChangeTrackingCustomizer;
+import org.mitre.openid.connect.repository.db.util.ValueCompressor;
+
+/**
+ * An extended attribute of a user. Attributes are privately owned by their
+ * user and expire from the shared cache together with it. A user has at most
+ * one attribute of each name, see {@link org.mitre.openid.connect.repository.db.util.AttributeDiff}.
+ * Remote references and their access tokens are {@link RemoteUserAttribute}s.
+ * Large values may be stored compressed, see {@link ValueCompressor}, and are
+ * only expanded when {@link #getValue()} is first called.
+ */
 @Entity
-@Table(name = "USER_ATTRIBUTES")
-@NamedQuery(query="select ua from UserAttribute ua where ua.userId = :id", 
-			name = "user_attributes.by_user_id")
+@Table(name = "USER_ATTRIBUTES", uniqueConstraints = 
+	@UniqueConstraint(name = "UK_USER_ATTRIBUTES_NAME", columnNames = { "USER_ID", "ATTR_NAME" }))
+@Cache(type = CacheType.SOFT_WEAK, size = 4000, expiry = 600000)
+@ChangeTracking(ChangeTrackingType.ATTRIBUTE)
+@Customizer(ChangeTrackingCustomizer.class)
+@NamedQueries(value = {
+	@NamedQuery(query="select ua from UserAttribute ua where ua.userId = :id", 
+			name = "user_attributes.by_user_id"),
+	@NamedQuery(query="select ua.name, ua.storedValue from UserAttribute ua where ua.userId = :id and ua.type = :type", 
+			name = "user_attributes.values_by_user_id"),
+	@NamedQuery(query="select distinct ua.name from UserAttribute ua where ua.type = :type order by ua.name", 
+			name = "user_attributes.names")
+})
 public class UserAttribute implements Serializable {
 	/**
-	 * Regular attribute value attribute
+	 * Regular attribute value attribute. Remote attributes, once type 1, are
+	 * stored apart since db/migrations/006-remote-attributes.sql.
 	 */
 	public static final short NORMAL_TYPE = 0;
-	/**
-	 * A named referenced to a remote link stored in the value. The access
-	 * token is needed to obtain the data. The expiration is the expiration
-	 * of the access token. The protocol used to obtain the data is OAUTH2.
-	 */
-	public static final short REMOTE_TYPE = 1;
 	
 	Long id;
 	String name;
 	Long user_id;
 	Short type;
 	String value;
-	String access_token;
-	Date expiration;
+	/**
+	 * The expanded value, set on first use
+	 */
+	transient String expanded;
 
 	/**
 	 * Empty ctor
@@ -82,10 +109,13 @@ public class UserAttribute implements Serializable {
 	}
 	
 	/**
-	 * @return the id
+	 * @return the id, assigned on persist from a block of ids reserved in
+	 * ID_SEQUENCES
 	 */
 	@Id
-	@GeneratedValue(strategy=GenerationType.IDENTITY)
+	@GeneratedValue(strategy=GenerationType.TABLE, generator="user_attribute_ids")
+	@TableGenerator(name="user_attribute_ids", table="ID_SEQUENCES", pkColumnName="SEQ_NAME",
+		valueColumnName="SEQ_COUNT", pkColumnValue="USER_ATTRIBUTES", allocationSize=50)
 	public Long getId() {
 		return id;
 	}
@@ -109,14 +139,15 @@ public class UserAttribute implements Serializable {
 	}
 
 	/**
-	 * @param name the name to set
+	 * @param name the name to set, replaced by the shared instance of the
+	 * name so loaded attributes do not each hold a copy
 	 */
 	public void setName(String name) {
 		if (name == null || name.trim().length() == 0) {
 			throw new IllegalArgumentException(
 					"name should never be null or empty");
 		}
-		this.name = name;
+		this.name = AttributeNames.intern(name);
 	}
 
 	/**
@@ -136,54 +167,44 @@ public class UserAttribute implements Serializable {
 	}
 
 	/**
-	 * Value may be a literal value or a link to a value. If a link then there
-	 * may be an access token
-	 * 
-	 * @return the attribute value
+	 * @return the attribute value, expanded on first use if it was stored
+	 * compressed
 	 */
-	@Basic
-	@Column(name = "ATTR_VALUE", length = 2000)
+	@Transient
 	public String getValue() {
-		return value;
+		String rval = expanded;
+		if (rval == null && value != null) {
+			rval = ValueCompressor.decode(value);
+			expanded = rval;
+		}
+		return rval;
 	}
 
 	/**
-	 * @param value the value to set
+	 * @param value the value to set, compressed for storage if it is large
 	 */
 	public void setValue(String value) {
-		this.value = value;
-	}
-
-	/**
-	 * @return the access_token
-	 */
-	@Basic
-	@Column(name = "ACCESS_TOKEN", length = 512, nullable = true)	
-	public String getAccessToken() {
-		return access_token;
-	}
-
-	/**
-	 * @param access_token the access_token to set
-	 */
-	public void setAccessToken(String access_token) {
-		this.access_token = access_token;
+		setStoredValue(ValueCompressor.encode(value));
+		expanded = value;
 	}
 
 	/**
-	 * @return the expiration
+	 * @return the value as stored, possibly compressed. A value is looked up
+	 * in both forms, it may have been written under another threshold.
+	 * Prefix and range queries only match values stored plain.
 	 */
 	@Basic
-	@Column(name = "TOKEN_EXPIRATION", nullable = true)
-	public Date getExpiration() {
-		return expiration;
+	@Column(name = "ATTR_VALUE", length = 2000)
+	public String getStoredValue() {
+		return value;
 	}
 
 	/**
-	 * @param expiration the expiration to set
+	 * @param storedValue the stored value to set
 	 */
-	public void setExpiration(Date expiration) {
-		this.expiration = expiration;
+	public void setStoredValue(String storedValue) {
+		this.value = storedValue;
+		this.expanded = null;
 	}
 
 	/**
@@ -213,10 +234,6 @@ public class UserAttribute implements Serializable {
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result
-				+ ((access_token == null) ? 0 : access_token.hashCode());
-		result = prime * result
-				+ ((expiration == null) ? 0 : expiration.hashCode());
 		result = prime * result + ((id == null) ? 0 : id.hashCode());
 		result = prime * result + ((name == null) ? 0 : name.hashCode());
 		result = prime * result + ((type == null) ? 0 : type.hashCode());
@@ -236,16 +253,6 @@ public class UserAttribute implements Serializable {
 		if (getClass() != obj.getClass())
 			return false;
 		UserAttribute other = (UserAttribute) obj;
-		if (access_token == null) {
-			if (other.access_token != null)
-				return false;
-		} else if (!access_token.equals(other.access_token))
-			return false;
-		if (expiration == null) {
-			if (other.expiration != null)
-				return false;
-		} else if (!expiration.equals(other.expiration))
-			return false;
 		if (id == null) {
 			if (other.id != null)
 				return false;
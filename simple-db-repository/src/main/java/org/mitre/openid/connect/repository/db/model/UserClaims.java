@@ -0,0 +1,96 @@
+package org.mitre.openid.connect.repository.db.model;
+
+import java.io.Serializable;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+
+import org.eclipse.persistence.annotations.ChangeTracking;
+import org.eclipse.persistence.annotations.ChangeTrackingType;
+import org.eclipse.persistence.annotations.Customizer;
+import org.mitre.openid.connect.repository.db.util.ChangeTrackingCustomizer;
+
+/**
+ * The user info claims of a user, serialized as JSON when the user is saved.
+ * Reading the claims is then a single column fetch instead of a user load
+ * plus its attribute rows.
+ */
+@Entity
+@Table(name = "USER_CLAIMS")
+@ChangeTracking(ChangeTrackingType.ATTRIBUTE)
+@Customizer(ChangeTrackingCustomizer.class)
+@NamedQueries(value = {
+	@NamedQuery(name = "user_claims.by_username",
+		query = "select c.claimsJson from UserClaims c where c.username = :username"),
+	@NamedQuery(name = "user_claims.delete_by_user_id",
+		query = "delete from UserClaims c where c.userId = :id")
+})
+public class UserClaims implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private Long userId;
+	private String username;
+	private String claimsJson;
+
+	/**
+	 * Empty ctor
+	 */
+	public UserClaims() {
+		// Intentionally empty
+	}
+
+	/**
+	 * @return the id of the user the claims belong to
+	 */
+	@Id
+	@Column(name = "USER_ID")
+	public Long getUserId() {
+		return userId;
+	}
+
+	/**
+	 * @param userId the userId to set
+	 */
+	public void setUserId(Long userId) {
+		this.userId = userId;
+	}
+
+	/**
+	 * @return the user's name, copied so the claims can be found by user id
+	 * (user name) without touching USERS
+	 */
+	@Basic
+	@Column(name = "USERNAME", length = 48, nullable = false, unique = true)
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * @param username the username to set
+	 */
+	public void setUsername(String username) {
+		this.username = username;
+	}
+
+	/**
+	 * @return the claims as a JSON object, of any length
+	 */
+	@Lob
+	@Column(name = "CLAIMS_JSON", nullable = false)
+	public String getClaimsJson() {
+		return claimsJson;
+	}
+
+	/**
+	 * @param claimsJson the claimsJson to set
+	 */
+	public void setClaimsJson(String claimsJson) {
+		this.claimsJson = claimsJson;
+	}
+}
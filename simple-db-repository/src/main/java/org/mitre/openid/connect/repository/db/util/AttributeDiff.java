@@ -0,0 +1,153 @@
+package org.mitre.openid.connect.repository.db.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.model.UserAttribute;
+
+/**
+ * Brings the attributes of a user in line with a set of values keyed
+ * by attribute name, changing the stored attributes in place. An attribute
+ * whose value is unchanged is left alone, a changed value updates its row,
+ * and only new names insert one, so saving a user writes just the
+ * attributes that differ. Names are matched ignoring case and new
+ * attributes are named in upper case, as {@link UserAttribute} does. Remote
+ * attributes are kept apart and never touched.
+ * <p>
+ * An attribute is taken out of its set while its value changes, its hash
+ * code covers the value.
+ */
+public final class AttributeDiff {
+	private AttributeDiff() {
+		// Intentionally empty
+	}
+
+	/**
+	 * Bring the attributes of a user in line with a set of values, as
+	 * {@link #apply(Set, Map, boolean)} does, except that the values of
+	 * promoted attributes are handed to {@link User#getPromotedChanges()} to
+	 * be written to their columns when the user is saved. A row of a promoted
+	 * name left from before it was promoted is removed once the name is
+	 * written.
+	 *
+	 * @param user
+	 *            the user, never <code>null</code>
+	 * @param values
+	 *            the wanted values keyed by attribute name, a blank value
+	 *            removes the attribute of that name, never <code>null</code>
+	 * @param removeMissing
+	 *            if <code>true</code> normal and promoted attributes whose
+	 *            names are not among the values are removed as well
+	 * @param schema
+	 *            the promoted attributes, may be <code>null</code> if there
+	 *            are none
+	 * @return <code>true</code> if any ordinary attribute was added, changed
+	 *         or removed, or any promoted attribute was written
+	 */
+	public static boolean apply(User user, Map<String, String> values,
+			boolean removeMissing, AttributeSchema schema) {
+		if (user == null) {
+			throw new IllegalArgumentException("user should never be null");
+		}
+		if (values == null) {
+			throw new IllegalArgumentException("values should never be null");
+		}
+		if (user.getAttributes() == null) {
+			user.setAttributes(new HashSet<UserAttribute>());
+		}
+		if (schema == null || schema.isEmpty()) {
+			return apply(user.getAttributes(), values, removeMissing);
+		}
+		Map<String, String> ordinary = new HashMap<String, String>();
+		Map<String, String> promoted = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			PromotedAttribute attr = schema.get(entry.getKey());
+			if (attr == null) {
+				ordinary.put(entry.getKey(), entry.getValue());
+			} else {
+				promoted.put(attr.getName(), StringUtils.isNotBlank(entry.getValue()) 
+						? entry.getValue() : null);
+				ordinary.put(attr.getName(), "");
+			}
+		}
+		if (removeMissing) {
+			for (PromotedAttribute attr : schema.getPromoted()) {
+				if (!promoted.containsKey(attr.getName())) {
+					promoted.put(attr.getName(), null);
+				}
+			}
+		}
+		boolean changed = apply(user.getAttributes(), ordinary, removeMissing);
+		if (!promoted.isEmpty()) {
+			if (user.getPromotedChanges() != null) {
+				user.getPromotedChanges().putAll(promoted);
+			} else {
+				user.setPromotedChanges(promoted);
+			}
+			changed = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * @param attributes
+	 *            the attributes of a user, changed in place, never
+	 *            <code>null</code>
+	 * @param values
+	 *            the wanted values keyed by attribute name, a blank value
+	 *            removes the attribute of that name, never <code>null</code>
+	 * @param removeMissing
+	 *            if <code>true</code> attributes whose names are not
+	 *            among the values are removed as well
+	 * @return <code>true</code> if any attribute was added, changed or
+	 *         removed
+	 */
+	public static boolean apply(Set<UserAttribute> attributes,
+			Map<String, String> values, boolean removeMissing) {
+		if (attributes == null) {
+			throw new IllegalArgumentException("attributes should never be null");
+		}
+		if (values == null) {
+			throw new IllegalArgumentException("values should never be null");
+		}
+		Map<String, String> wanted = new HashMap<String, String>();
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			wanted.put(entry.getKey().toUpperCase(), entry.getValue());
+		}
+		boolean changed = false;
+		Map<String, UserAttribute> existing = new HashMap<String, UserAttribute>();
+		for (UserAttribute attr : new ArrayList<UserAttribute>(attributes)) {
+			String name = attr.getName().toUpperCase();
+			String value = wanted.get(name);
+			boolean keep = wanted.containsKey(name) ? StringUtils.isNotBlank(value)
+					: !removeMissing;
+			if (!keep || existing.containsKey(name)) {
+				// Unwanted, or a duplicate left by older versions
+				attributes.remove(attr);
+				changed = true;
+				continue;
+			}
+			existing.put(name, attr);
+			if (value != null && !value.equals(attr.getValue())) {
+				attributes.remove(attr);
+				attr.setValue(value);
+				attributes.add(attr);
+				changed = true;
+			}
+		}
+		for (Map.Entry<String, String> entry : wanted.entrySet()) {
+			if (!existing.containsKey(entry.getKey())
+					&& StringUtils.isNotBlank(entry.getValue())) {
+				attributes.add(new UserAttribute(entry.getKey(), entry.getValue()));
+				changed = true;
+			}
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,54 @@
+package org.mitre.openid.connect.repository.db.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A shared dictionary of attribute names. Every user carries the same small
+ * set of attribute names, so loaded attributes and cached user info refer to
+ * one canonical string per name instead of a copy per user. Once the
+ * dictionary holds {@link #MAX_NAMES} names further names are passed through
+ * unchanged, which bounds it against unexpected name churn.
+ */
+public final class AttributeNames {
+	/**
+	 * The most names the dictionary will hold
+	 */
+	public static final int MAX_NAMES = 4096;
+
+	private static final ConcurrentMap<String, String> names = new ConcurrentHashMap<String, String>();
+
+	private AttributeNames() {
+		// Intentionally empty
+	}
+
+	/**
+	 * Find the canonical instance of an attribute name
+	 *
+	 * @param name
+	 *            the name, may be <code>null</code>
+	 * @return the canonical instance, the name itself if the dictionary is
+	 *         full, or <code>null</code> if the name was <code>null</code>
+	 */
+	public static String intern(String name) {
+		if (name == null) {
+			return null;
+		}
+		String canonical = names.get(name);
+		if (canonical != null) {
+			return canonical;
+		}
+		if (names.size() >= MAX_NAMES) {
+			return name;
+		}
+		canonical = names.putIfAbsent(name, name);
+		return canonical != null ? canonical : name;
+	}
+
+	/**
+	 * @return the number of names in the dictionary
+	 */
+	public static int size() {
+		return names.size();
+	}
+}
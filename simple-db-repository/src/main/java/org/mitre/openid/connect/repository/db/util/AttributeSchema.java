@@ -0,0 +1,75 @@
+package org.mitre.openid.connect.repository.db.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Declares which attribute names are promoted to columns of
+ * USER_PROMOTED_ATTRIBUTES. Attributes read on nearly every request belong
+ * here, each then costs a column of one row read by user id instead of a row
+ * of USER_ATTRIBUTES. Every other name stays an ordinary attribute. The
+ * columns must exist, see db/migrations/005-promoted-attributes.sql.
+ */
+public class AttributeSchema {
+	private Map<String, PromotedAttribute> promoted = Collections.emptyMap();
+
+	/**
+	 * @param name
+	 *            an attribute name, matched ignoring case, may be
+	 *            <code>null</code>
+	 * @return the promoted attribute of that name, or <code>null</code> if it
+	 *         is an ordinary attribute
+	 */
+	public PromotedAttribute get(String name) {
+		return name != null ? promoted.get(name.toUpperCase()) : null;
+	}
+
+	/**
+	 * @param name
+	 *            an attribute name, matched ignoring case, may be
+	 *            <code>null</code>
+	 * @return <code>true</code> if the attribute is promoted
+	 */
+	public boolean isPromoted(String name) {
+		return get(name) != null;
+	}
+
+	/**
+	 * @return <code>true</code> if no attribute is promoted
+	 */
+	public boolean isEmpty() {
+		return promoted.isEmpty();
+	}
+
+	/**
+	 * @return the promoted attributes, in the order configured
+	 */
+	public Collection<PromotedAttribute> getPromoted() {
+		return promoted.values();
+	}
+
+	/**
+	 * @param attributes
+	 *            the promoted attributes, never <code>null</code>. Names and
+	 *            columns must each be used once.
+	 */
+	public void setPromoted(List<PromotedAttribute> attributes) {
+		if (attributes == null) {
+			throw new IllegalArgumentException("attributes should never be null");
+		}
+		Map<String, PromotedAttribute> byName = new LinkedHashMap<String, PromotedAttribute>();
+		Map<String, PromotedAttribute> byColumn = new LinkedHashMap<String, PromotedAttribute>();
+		for (PromotedAttribute attr : attributes) {
+			if (byName.put(attr.getName(), attr) != null) {
+				throw new IllegalArgumentException("Attribute " + attr.getName() + " is promoted twice");
+			}
+			if (byColumn.put(attr.getColumn(), attr) != null) {
+				throw new IllegalArgumentException("Column " + attr.getColumn() + " is used twice");
+			}
+		}
+		this.promoted = Collections.unmodifiableMap(byName);
+	}
+}
@@ -0,0 +1,250 @@
+package org.mitre.openid.connect.repository.db.util;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces concurrent single key lookups into batches. The first key of a
+ * batch opens a short window, every key requested during the window joins the
+ * batch, and the batch is resolved with one call to the {@link BatchFunction}
+ * when the window closes or the batch reaches its maximum size. Callers
+ * asking for a key that is already waiting or being loaded share that load.
+ */
+public class BatchLoader<K, V> {
+	private static final Logger logger = LoggerFactory
+			.getLogger(BatchLoader.class);
+
+	/**
+	 * Resolves a batch of keys at once
+	 */
+	public interface BatchFunction<K, V> {
+		/**
+		 * @param keys
+		 *            the keys, never <code>null</code> or empty
+		 * @return the values found, keyed by the requested keys. Keys without
+		 *         a value may be left out.
+		 */
+		Map<K, V> loadAll(Collection<K> keys);
+	}
+
+	/**
+	 * The result of one key, shared by every caller waiting on it
+	 */
+	private static class Pending<V> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private V value;
+		private Throwable failure;
+
+		void complete(V value, Throwable failure) {
+			this.value = value;
+			this.failure = failure;
+			done.countDown();
+		}
+
+		V await() {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for a batch", e);
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			} else if (failure instanceof Error) {
+				throw (Error) failure;
+			} else if (failure != null) {
+				throw new IllegalStateException("Batch load failed", failure);
+			}
+			return value;
+		}
+	}
+
+	private final Object lock = new Object();
+	/**
+	 * Keys waiting for the current window to close, guarded by the lock
+	 */
+	private Map<K, Pending<V>> batch = new LinkedHashMap<K, Pending<V>>();
+	private ScheduledFuture<?> scheduled = null;
+	/**
+	 * Keys whose batch has been dispatched but not yet resolved
+	 */
+	private final ConcurrentMap<K, Pending<V>> loading = new ConcurrentHashMap<K, Pending<V>>();
+	private final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "batch-loader");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private BatchFunction<K, V> function = null;
+	/**
+	 * How long the first key of a batch waits for others to join it
+	 */
+	private long windowMillis = 2;
+	/**
+	 * A batch is dispatched as soon as it holds this many keys
+	 */
+	private int maxKeys = 50;
+
+	/**
+	 * Find the value for a key, waiting for the batch it joins to be resolved
+	 *
+	 * @param key
+	 *            the key, never <code>null</code>
+	 * @return the value, or <code>null</code> if there is none
+	 */
+	public V load(K key) {
+		if (key == null) {
+			throw new IllegalArgumentException("key should never be null");
+		}
+		if (function == null) {
+			throw new IllegalStateException("No batch function configured");
+		}
+		Pending<V> pending;
+		Map<K, Pending<V>> full = null;
+		synchronized (lock) {
+			pending = loading.get(key);
+			if (pending == null) {
+				pending = batch.get(key);
+			}
+			if (pending == null) {
+				pending = new Pending<V>();
+				batch.put(key, pending);
+				if (batch.size() >= maxKeys) {
+					full = takeBatch();
+				} else if (batch.size() == 1) {
+					try {
+						scheduled = executor.schedule(new Runnable() {
+							public void run() {
+								flush();
+							}
+						}, windowMillis, TimeUnit.MILLISECONDS);
+					} catch (RejectedExecutionException e) {
+						// Shut down, resolve without waiting for others
+						full = takeBatch();
+					}
+				}
+			}
+		}
+		if (full != null) {
+			// Resolve a full batch in the caller's thread rather than queue it
+			// behind the scheduler
+			resolve(full);
+		}
+		return pending.await();
+	}
+
+	/**
+	 * Dispatch the keys waiting in the current window, if any
+	 */
+	public void flush() {
+		Map<K, Pending<V>> current;
+		synchronized (lock) {
+			if (batch.isEmpty()) {
+				return;
+			}
+			current = takeBatch();
+		}
+		resolve(current);
+	}
+
+	/**
+	 * Resolve any waiting keys and stop the scheduler thread
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		flush();
+	}
+
+	/**
+	 * Swap out the current batch, must be called with the lock held
+	 */
+	private Map<K, Pending<V>> takeBatch() {
+		Map<K, Pending<V>> current = batch;
+		batch = new LinkedHashMap<K, Pending<V>>();
+		if (scheduled != null) {
+			scheduled.cancel(false);
+			scheduled = null;
+		}
+		loading.putAll(current);
+		return current;
+	}
+
+	private void resolve(Map<K, Pending<V>> current) {
+		Map<K, V> values = null;
+		Throwable failure = null;
+		try {
+			values = function.loadAll(current.keySet());
+		} catch (Throwable t) {
+			logger.warn("Batch load of " + current.size() + " keys failed", t);
+			failure = t;
+		}
+		for (Map.Entry<K, Pending<V>> entry : current.entrySet()) {
+			V value = values != null ? values.get(entry.getKey()) : null;
+			entry.getValue().complete(value, failure);
+			loading.remove(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public BatchFunction<K, V> getFunction() {
+		return function;
+	}
+
+	public void setFunction(BatchFunction<K, V> function) {
+		this.function = function;
+	}
+
+	/**
+	 * @return how long the first key of a batch waits for others, in
+	 *         milliseconds
+	 */
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * @param windowMillis
+	 *            how long the first key of a batch waits for others, in
+	 *            milliseconds
+	 */
+	public void setWindowMillis(long windowMillis) {
+		if (windowMillis < 0) {
+			throw new IllegalArgumentException(
+					"windowMillis should never be negative");
+		}
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * @return the number of keys that dispatches a batch immediately
+	 */
+	public int getMaxKeys() {
+		return maxKeys;
+	}
+
+	/**
+	 * @param maxKeys
+	 *            the number of keys that dispatches a batch immediately
+	 */
+	public void setMaxKeys(int maxKeys) {
+		if (maxKeys < 1) {
+			throw new IllegalArgumentException("maxKeys should be at least 1");
+		}
+		this.maxKeys = maxKeys;
+	}
+}
@@ -0,0 +1,67 @@
+package org.mitre.openid.connect.repository.db.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Hit, miss and eviction counters for one cache, exported through JMX so the
+ * cache can be sized from real traffic.
+ */
+@ManagedResource(description = "Cache hit, miss and eviction counts")
+public class CacheStatistics {
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public void hit() {
+		hits.incrementAndGet();
+	}
+
+	public void hit(int count) {
+		hits.addAndGet(count);
+	}
+
+	public void miss() {
+		misses.incrementAndGet();
+	}
+
+	public void miss(int count) {
+		misses.addAndGet(count);
+	}
+
+	public void evicted(int count) {
+		evictions.addAndGet(count);
+	}
+
+	@ManagedAttribute(description = "Lookups answered from the cache")
+	public long getHits() {
+		return hits.get();
+	}
+
+	@ManagedAttribute(description = "Lookups that had to go to the database")
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@ManagedAttribute(description = "Entries removed from the cache by the application or found expired")
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@ManagedAttribute(description = "Fraction of lookups answered from the cache")
+	public double getHitRatio() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total > 0 ? (double) h / total : 0.0;
+	}
+
+	@ManagedOperation(description = "Reset all counters to zero")
+	public void reset() {
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+}
@@ -0,0 +1,32 @@
+package org.mitre.openid.connect.repository.db.util;
+
+import org.eclipse.persistence.config.DescriptorCustomizer;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.changetracking.ChangeTracker;
+import org.eclipse.persistence.descriptors.changetracking.DeferredChangeDetectionPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Falls back to deferred change detection for an entity declaring
+ * {@link org.eclipse.persistence.annotations.ChangeTracking} when its class
+ * was not woven, as in a build made with <code>-Dweave.phase=none</code> or a
+ * run from the IDE's own classes. EclipseLink otherwise refuses to deploy the
+ * persistence unit. Deferred detection compares every loaded entity at
+ * commit, which is slower but gives the same result.
+ */
+public class ChangeTrackingCustomizer implements DescriptorCustomizer {
+	private static final Logger logger = LoggerFactory
+			.getLogger(ChangeTrackingCustomizer.class);
+
+	public void customize(ClassDescriptor descriptor) throws Exception {
+		if (ChangeTracker.class.isAssignableFrom(descriptor.getJavaClass())
+				|| descriptor.getObjectChangePolicy()
+						.isDeferredChangeDetectionPolicy()) {
+			return;
+		}
+		logger.warn("{} is not woven, its changes are detected at commit",
+				descriptor.getJavaClass().getName());
+		descriptor.setObjectChangePolicy(new DeferredChangeDetectionPolicy());
+	}
+}
@@ -0,0 +1,38 @@
+package org.mitre.openid.connect.repository.db.util;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.sequencing.Sequence;
+import org.eclipse.persistence.sequencing.TableSequence;
+import org.eclipse.persistence.sessions.Session;
+
+/**
+ * Sets how many ids each table generator reserves per round trip to
+ * ID_SEQUENCES, overriding the allocation size declared on the entities. The
+ * size is read from the persistence unit property {@value #PROPERTY}, or the
+ * system property of the same name. Changing it is safe on a live database,
+ * a table sequence simply advances the stored count by the new size.
+ */
+public class IdPreallocationCustomizer implements SessionCustomizer {
+	public static final String PROPERTY = "org.mitre.id.preallocation";
+
+	public void customize(Session session) throws Exception {
+		Object value = session.getProperty(PROPERTY);
+		if (value == null) {
+			value = System.getProperty(PROPERTY);
+		}
+		if (value == null) {
+			return;
+		}
+		int size = Integer.parseInt(value.toString().trim());
+		if (size < 1) {
+			throw new IllegalArgumentException(PROPERTY
+					+ " should be at least 1");
+		}
+		for (Object sequence : session.getDatasourceLogin().getSequences()
+				.values()) {
+			if (sequence instanceof TableSequence) {
+				((Sequence) sequence).setPreallocationSize(size);
+			}
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package org.mitre.openid.connect.repository.db.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small in-process cache of values that expire after a fixed time. Lookups
+ * of a missing key are single flight, concurrent callers asking for the same
+ * key wait for one load instead of each going to the database.
+ * <p>
+ * When the cache grows past its size bound the least recently used entry is
+ * dropped, expired entries are dropped when they are next looked up.
+ * <code>null</code> values are never cached. Keys are passed through
+ * {@link #normalize(Object)} before they are looked up, the loader is given
+ * the key as the caller asked for it.
+ */
+public class NearCache<K, V> {
+	/**
+	 * Computes the value for a key that is not in the cache
+	 */
+	public interface Loader<K, V> {
+		/**
+		 * @param key
+		 *            the key, never <code>null</code>
+		 * @return the value, or <code>null</code> if there is none
+		 */
+		V load(K key);
+	}
+
+	private static class Entry<V> {
+		final V value;
+		final long expires;
+
+		Entry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * In access order, guarded by itself
+	 */
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+			if (size() <= maxSize) {
+				return false;
+			}
+			if (statistics != null) {
+				statistics.evicted(1);
+			}
+			return true;
+		}
+	};
+	private final ConcurrentMap<K, FutureTask<V>> loading = new ConcurrentHashMap<K, FutureTask<V>>();
+	/**
+	 * Incremented on every invalidation. A load that overlaps an invalidation
+	 * may have read the old data, so its result is handed to the waiting
+	 * callers but not cached.
+	 */
+	private final AtomicLong invalidations = new AtomicLong();
+	private final int maxSize;
+	private final long ttlMillis;
+	private CacheStatistics statistics = null;
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of entries
+	 * @param ttlMillis
+	 *            how long an entry may be served after it was loaded
+	 */
+	public NearCache(int maxSize, long ttlMillis) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize should be at least 1");
+		}
+		if (ttlMillis < 0) {
+			throw new IllegalArgumentException(
+					"ttlMillis should never be negative");
+		}
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Find the value for the key, loading it if it is missing or expired
+	 *
+	 * @param key
+	 *            the key, never <code>null</code>
+	 * @param loader
+	 *            used to compute the value on a miss, never <code>null</code>
+	 * @return the value, or <code>null</code> if the loader found none
+	 */
+	public V get(final K key, final Loader<K, V> loader) {
+		if (key == null || loader == null) {
+			throw new IllegalArgumentException(
+					"key and loader should never be null");
+		}
+		K normalized = normalize(key);
+		Entry<V> entry = lookup(normalized);
+		if (entry != null) {
+			if (statistics != null) {
+				statistics.hit();
+			}
+			return entry.value;
+		}
+		if (statistics != null) {
+			statistics.miss();
+		}
+		final long started = invalidations.get();
+		FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+			public V call() throws Exception {
+				return loader.load(key);
+			}
+		});
+		FutureTask<V> running = loading.putIfAbsent(normalized, task);
+		if (running == null) {
+			try {
+				task.run();
+				V value = await(task);
+				if (value != null) {
+					synchronized (entries) {
+						// Checked under the lock, invalidate() bumps the count
+						// before it takes it
+						if (invalidations.get() == started) {
+							entries.put(normalized, new Entry<V>(value,
+									System.currentTimeMillis() + ttlMillis));
+						}
+					}
+				}
+				return value;
+			} finally {
+				loading.remove(normalized, task);
+			}
+		}
+		return await(running);
+	}
+
+	/**
+	 * Find the value for the key without loading it
+	 *
+	 * @param key
+	 *            the key, never <code>null</code>
+	 * @return the cached value, or <code>null</code> if it is missing or
+	 *         expired
+	 */
+	public V getIfPresent(K key) {
+		if (key == null) {
+			throw new IllegalArgumentException("key should never be null");
+		}
+		Entry<V> entry = lookup(normalize(key));
+		boolean hit = entry != null;
+		if (statistics != null) {
+			if (hit) {
+				statistics.hit();
+			} else {
+				statistics.miss();
+			}
+		}
+		return hit ? entry.value : null;
+	}
+
+	/**
+	 * Drop the key. Loads already running for it are not cached when they
+	 * finish.
+	 *
+	 * @param key
+	 *            the key, never <code>null</code>
+	 */
+	public void invalidate(K key) {
+		if (key == null) {
+			throw new IllegalArgumentException("key should never be null");
+		}
+		K normalized = normalize(key);
+		invalidations.incrementAndGet();
+		loading.remove(normalized);
+		Entry<V> removed;
+		synchronized (entries) {
+			removed = entries.remove(normalized);
+		}
+		if (removed != null && statistics != null) {
+			statistics.evicted(1);
+		}
+	}
+
+	/**
+	 * Drop every entry
+	 */
+	public void invalidateAll() {
+		invalidations.incrementAndGet();
+		loading.clear();
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return the number of entries, including any that have expired but have
+	 *         not been dropped yet
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTtlMillis() {
+		return ttlMillis;
+	}
+
+	/**
+	 * @param statistics
+	 *            counters to update on lookups and evictions, may be
+	 *            <code>null</code>
+	 */
+	public void setStatistics(CacheStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * The key entries are kept under. The default is the key itself, override
+	 * it e.g. to ignore case.
+	 *
+	 * @param key
+	 *            the key as asked for, never <code>null</code>
+	 * @return the key to store and look up
+	 */
+	protected K normalize(K key) {
+		return key;
+	}
+
+	/**
+	 * @return the live entry for a normalized key, an expired one is dropped
+	 */
+	private Entry<V> lookup(K key) {
+		synchronized (entries) {
+			Entry<V> entry = entries.get(key);
+			if (entry != null && entry.expires <= System.currentTimeMillis()) {
+				entries.remove(key);
+				if (statistics != null) {
+					statistics.evicted(1);
+				}
+				return null;
+			}
+			return entry;
+		}
+	}
+
+	private V await(FutureTask<V> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a load", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("Load failed", cause);
+		}
+	}
+}
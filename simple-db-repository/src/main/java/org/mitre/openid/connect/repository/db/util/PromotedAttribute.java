@@ -0,0 +1,145 @@
+package org.mitre.openid.connect.repository.db.util;
+
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * An attribute stored in a typed column of USER_PROMOTED_ATTRIBUTES instead
+ * of a row of USER_ATTRIBUTES. Values keep their string form everywhere but
+ * in the column, so the column type only decides how a value is checked and
+ * compared by the database.
+ */
+public class PromotedAttribute {
+	/**
+	 * The column types a promoted attribute may have
+	 */
+	public enum Type {
+		/**
+		 * A varchar column, values as given
+		 */
+		STRING,
+		/**
+		 * A bigint column, values are whole numbers
+		 */
+		INTEGER,
+		/**
+		 * A date column, values are written yyyy-MM-dd
+		 */
+		DATE
+	}
+
+	private static final Pattern COLUMN = Pattern.compile("[A-Za-z][A-Za-z0-9_]*");
+
+	private String name;
+	private String column;
+	private Type type = Type.STRING;
+
+	/**
+	 * Empty ctor
+	 */
+	public PromotedAttribute() {
+		// Intentionally empty
+	}
+
+	/**
+	 * Ctor
+	 *
+	 * @param name
+	 *            the attribute name
+	 * @param column
+	 *            the column of USER_PROMOTED_ATTRIBUTES holding it
+	 * @param type
+	 *            the column type
+	 */
+	public PromotedAttribute(String name, String column, Type type) {
+		setName(name);
+		setColumn(column);
+		setType(type);
+	}
+
+	/**
+	 * @param value
+	 *            the attribute value, may be <code>null</code>
+	 * @return the value to bind to the column, <code>null</code> for a blank
+	 *         value
+	 * @throws IllegalArgumentException
+	 *             if the value does not fit the column type
+	 */
+	public Object toColumn(String value) {
+		value = StringUtils.trimToNull(value);
+		if (value == null || type == Type.STRING) {
+			return value;
+		}
+		try {
+			if (type == Type.INTEGER) {
+				return Long.valueOf(value);
+			}
+			return java.sql.Date.valueOf(value);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Attribute " + name + " should be "
+					+ (type == Type.INTEGER ? "a whole number" : "a date as yyyy-MM-dd")
+					+ ", not " + value);
+		}
+	}
+
+	/**
+	 * @param value
+	 *            a value read from the column, may be <code>null</code>
+	 * @return the attribute value, or <code>null</code>
+	 */
+	public String fromColumn(Object value) {
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof java.util.Date) {
+			return new java.sql.Date(((java.util.Date) value).getTime()).toString();
+		}
+		return value.toString();
+	}
+
+	/**
+	 * @return the attribute name, upper case as stored attribute names are
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		if (StringUtils.isBlank(name)) {
+			throw new IllegalArgumentException("name should never be null or empty");
+		}
+		this.name = name.trim().toUpperCase();
+	}
+
+	/**
+	 * @return the column name, checked to be a plain identifier as it is
+	 *         written into SQL
+	 */
+	public String getColumn() {
+		return column;
+	}
+
+	public void setColumn(String column) {
+		if (column == null || !COLUMN.matcher(column).matches()) {
+			throw new IllegalArgumentException("column should be a plain column name, not " + column);
+		}
+		this.column = column.toUpperCase();
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public void setType(Type type) {
+		if (type == null) {
+			throw new IllegalArgumentException("type should never be null");
+		}
+		this.type = type;
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + column + " " + type + ")";
+	}
+}
@@ -0,0 +1,50 @@
+package org.mitre.openid.connect.repository.db.util;
+
+import org.eclipse.persistence.descriptors.DescriptorEvent;
+import org.eclipse.persistence.descriptors.DescriptorEventAdapter;
+
+/**
+ * Counts, per thread, the entities EclipseLink had to build or refresh from
+ * a row because the shared cache had no usable copy. An entity a query
+ * returns without either happening was served from the cache, so a lookup
+ * reads {@link #missed()} before and after it to tell hits from misses.
+ * Expired entries are refreshed in place, they count as misses and are
+ * also counted by {@link #expired()}.
+ */
+public class SharedCacheCounter extends DescriptorEventAdapter {
+	/**
+	 * Built and refreshed entities
+	 */
+	private static final ThreadLocal<long[]> counts = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[2];
+		}
+	};
+
+	/**
+	 * @return the entities built or refreshed on this thread so far
+	 */
+	public static long missed() {
+		long[] c = counts.get();
+		return c[0] + c[1];
+	}
+
+	/**
+	 * @return the entities refreshed on this thread so far, which the shared
+	 *         cache held past their expiry
+	 */
+	public static long expired() {
+		return counts.get()[1];
+	}
+
+	@Override
+	public void postBuild(DescriptorEvent event) {
+		counts.get()[0]++;
+	}
+
+	@Override
+	public void postRefresh(DescriptorEvent event) {
+		counts.get()[1]++;
+	}
+}
@@ -0,0 +1,195 @@
+package org.mitre.openid.connect.repository.db.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel. Each level is a ring of buckets, a bucket of
+ * level 0 spans one tick and a bucket of level n spans a whole rotation of
+ * level n - 1. Scheduling and firing cost the same however many keys are
+ * waiting, and keys due far ahead only move down a level when their bucket
+ * comes round. Levels are added as later deadlines are scheduled.
+ * <p>
+ * A key fires once the clock has passed the end of the tick its deadline
+ * falls in, so never early and at most a tick late. Keys whose deadline has
+ * already passed fire on the next tick. Not thread safe.
+ */
+public class TimingWheel<K> {
+	private static class Entry<K> {
+		final K key;
+		final long deadline;
+
+		Entry(K key, long deadline) {
+			this.key = key;
+			this.deadline = deadline;
+		}
+	}
+
+	private final long tickMillis;
+	private final int wheelSize;
+	/**
+	 * The buckets of each level
+	 */
+	private final List<List<Entry<K>>[]> levels = new ArrayList<List<Entry<K>>[]>();
+	/**
+	 * The tick size of each level
+	 */
+	private final List<Long> ticks = new ArrayList<Long>();
+	/**
+	 * The start of the current tick
+	 */
+	private long time;
+	private int size;
+
+	/**
+	 * Ctor
+	 *
+	 * @param tickMillis
+	 *            the span of a bucket of the lowest level, at least 1
+	 * @param wheelSize
+	 *            the buckets per level, at least 2
+	 * @param startMillis
+	 *            the time the wheel starts at
+	 */
+	public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+		if (tickMillis < 1) {
+			throw new IllegalArgumentException("tickMillis should be at least 1");
+		}
+		if (wheelSize < 2) {
+			throw new IllegalArgumentException("wheelSize should be at least 2");
+		}
+		this.tickMillis = tickMillis;
+		this.wheelSize = wheelSize;
+		this.time = startMillis - startMillis % tickMillis;
+		addLevel();
+	}
+
+	/**
+	 * Add a key. A key scheduled twice fires twice.
+	 *
+	 * @param key
+	 *            the key, never <code>null</code>
+	 * @param deadline
+	 *            when the key is due
+	 */
+	public void schedule(K key, long deadline) {
+		if (key == null) {
+			throw new IllegalArgumentException("key should never be null");
+		}
+		insert(new Entry<K>(key, deadline));
+		size++;
+	}
+
+	/**
+	 * Move the clock forward
+	 *
+	 * @param now
+	 *            the current time, earlier times are ignored
+	 * @return the keys that came due, in deadline order by tick
+	 */
+	public List<K> advance(long now) {
+		List<K> due = new ArrayList<K>();
+		if (size == 0) {
+			// Nothing can come due, skip the empty ticks
+			time = Math.max(time, now - now % tickMillis);
+			return due;
+		}
+		while (time + tickMillis <= now) {
+			List<Entry<K>> bucket = bucket(0, time);
+			for (Entry<K> entry : bucket) {
+				due.add(entry.key);
+			}
+			size -= bucket.size();
+			bucket.clear();
+			time += tickMillis;
+			cascade();
+			if (size == 0) {
+				time = now - now % tickMillis;
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * @return the keys waiting
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the start of the current tick
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Move the entries of the higher level buckets starting now down, highest
+	 * level first so that each lands in a bucket drained after it
+	 */
+	private void cascade() {
+		int top = 0;
+		while (top + 1 < levels.size() && time % ticks.get(top + 1) == 0) {
+			top++;
+		}
+		for (int level = top; level > 0; level--) {
+			List<Entry<K>> bucket = bucket(level, time);
+			if (bucket.isEmpty()) {
+				continue;
+			}
+			List<Entry<K>> moving = new ArrayList<Entry<K>>(bucket);
+			bucket.clear();
+			for (Entry<K> entry : moving) {
+				insert(entry);
+			}
+		}
+	}
+
+	private void insert(Entry<K> entry) {
+		for (int level = 0; ; level++) {
+			if (level == levels.size()) {
+				addLevel();
+			}
+			long tick = ticks.get(level);
+			long ahead = Math.max(0, floorDiv(entry.deadline, tick) - time / tick);
+			if (level == 0 && ahead == 0) {
+				// Due or overdue, fires with the current tick
+				bucket(0, time).add(entry);
+				return;
+			}
+			if (ahead < wheelSize) {
+				bucket(level, entry.deadline).add(entry);
+				return;
+			}
+		}
+	}
+
+	private List<Entry<K>> bucket(int level, long at) {
+		long tick = ticks.get(level);
+		return levels.get(level)[(int) (floorDiv(at, tick) % wheelSize)];
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addLevel() {
+		List<Entry<K>>[] buckets = new List[wheelSize];
+		for (int i = 0; i < wheelSize; i++) {
+			buckets[i] = new ArrayList<Entry<K>>();
+		}
+		long tick = tickMillis;
+		if (!ticks.isEmpty()) {
+			long below = ticks.get(ticks.size() - 1);
+			if (below > Long.MAX_VALUE / wheelSize) {
+				throw new IllegalArgumentException("Deadline too far ahead");
+			}
+			tick = below * wheelSize;
+		}
+		levels.add(buckets);
+		ticks.add(tick);
+	}
+
+	private static long floorDiv(long a, long b) {
+		long q = a / b;
+		return (a % b != 0 && a < 0) ? q - 1 : q;
+	}
+}
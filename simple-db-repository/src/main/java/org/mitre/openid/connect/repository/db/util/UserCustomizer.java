@@ -0,0 +1,16 @@
+package org.mitre.openid.connect.repository.db.util;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+
+/**
+ * Customizes the user descriptor: falls back to deferred change detection
+ * when unwoven, as {@link ChangeTrackingCustomizer} does, and counts the
+ * users read past the shared cache with a {@link SharedCacheCounter}
+ */
+public class UserCustomizer extends ChangeTrackingCustomizer {
+	@Override
+	public void customize(ClassDescriptor descriptor) throws Exception {
+		super.customize(descriptor);
+		descriptor.getEventManager().addListener(new SharedCacheCounter());
+	}
+}
@@ -0,0 +1,225 @@
+package org.mitre.openid.connect.repository.db.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.binary.Base64;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Compresses large attribute values for storage. A value of at least
+ * {@link #getThreshold()} characters is deflated and stored as
+ * {@link #MARKER} followed by the Base64 of the deflated bytes, so it still
+ * fits a varchar column. It is only stored that way if that is shorter.
+ * Stored values without the marker are plain, so existing rows need no
+ * migration and compression can be turned on or off at any time. Lookups by
+ * value therefore match both the plain and the {@link #toCompressed(String)}
+ * form. A plain value that happens to start with the marker is always
+ * compressed, which keeps reading unambiguous.
+ * <p>
+ * Entities cannot be injected, so the threshold and the counters are shared
+ * by the whole class loader. Declare a bean of this class to set the
+ * threshold and to export the counters through JMX. Compression is off, a
+ * threshold of 0, until then, or set the system property {@value #PROPERTY}.
+ */
+@ManagedResource(description = "Attribute value compression threshold and savings")
+public class ValueCompressor {
+	public static final String PROPERTY = "org.mitre.attribute.compression.threshold";
+	/**
+	 * Starts every compressed value, a control character no form posts
+	 */
+	public static final char MARKER = '\u001F';
+
+	private static final String UTF8 = "UTF-8";
+
+	private static volatile int threshold = Integer.getInteger(PROPERTY, 0);
+	private static final AtomicLong compressed = new AtomicLong();
+	private static final AtomicLong originalChars = new AtomicLong();
+	private static final AtomicLong storedChars = new AtomicLong();
+	private static final AtomicLong decompressed = new AtomicLong();
+	private static final AtomicLong readSavedChars = new AtomicLong();
+
+	/**
+	 * @param value
+	 *            an attribute value, may be <code>null</code>
+	 * @return the value to store, compressed if it reaches the threshold and
+	 *         compressing makes it shorter
+	 */
+	public static String encode(String value) {
+		String stored = toStored(value);
+		if (stored != value) {
+			compressed.incrementAndGet();
+			originalChars.addAndGet(value.length());
+			storedChars.addAndGet(stored.length());
+		}
+		return stored;
+	}
+
+	/**
+	 * Find how a value would be stored without counting it, to compare stored
+	 * values with. Compression is deterministic, so a large value still
+	 * matches itself while the threshold stays the same.
+	 *
+	 * @param value
+	 *            an attribute value, may be <code>null</code>
+	 * @return the value as {@link #encode(String)} would store it
+	 */
+	public static String toStored(String value) {
+		if (value == null) {
+			return null;
+		}
+		boolean marked = value.length() > 0 && value.charAt(0) == MARKER;
+		int min = threshold;
+		if (!marked && (min <= 0 || value.length() < min)) {
+			return value;
+		}
+		String stored = MARKER + Base64.encodeBase64String(deflate(value));
+		if (!marked && stored.length() >= value.length()) {
+			return value;
+		}
+		return stored;
+	}
+
+	/**
+	 * Find the compressed form of a value whatever the threshold. A value is
+	 * stored either plain or in this form, so a lookup by value matches both.
+	 *
+	 * @param value
+	 *            an attribute value, may be <code>null</code>
+	 * @return the value compressed
+	 */
+	public static String toCompressed(String value) {
+		if (value == null) {
+			return null;
+		}
+		return MARKER + Base64.encodeBase64String(deflate(value));
+	}
+
+	/**
+	 * @param stored
+	 *            a stored attribute value, may be <code>null</code>
+	 * @return the attribute value
+	 */
+	public static String decode(String stored) {
+		if (!isCompressed(stored)) {
+			return stored;
+		}
+		String value = inflate(Base64.decodeBase64(stored.substring(1)));
+		decompressed.incrementAndGet();
+		readSavedChars.addAndGet(value.length() - stored.length());
+		return value;
+	}
+
+	/**
+	 * @param stored
+	 *            a stored attribute value, may be <code>null</code>
+	 * @return <code>true</code> if the value was compressed
+	 */
+	public static boolean isCompressed(String stored) {
+		return stored != null && stored.length() > 0 && stored.charAt(0) == MARKER;
+	}
+
+	private static byte[] deflate(String value) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(value.getBytes(UTF8));
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(value.length() / 2 + 16);
+			byte[] buffer = new byte[1024];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return out.toByteArray();
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static String inflate(byte[] bytes) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(bytes);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+			byte[] buffer = new byte[1024];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalArgumentException("Compressed attribute value is truncated");
+				}
+				out.write(buffer, 0, n);
+			}
+			return out.toString(UTF8);
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Compressed attribute value is corrupt", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	@ManagedAttribute(description = "Values this long or longer are compressed, 0 turns compression off")
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @param threshold
+	 *            the length from which values are compressed, 0 to turn
+	 *            compression off. Values already stored are read either way.
+	 */
+	@ManagedAttribute
+	public void setThreshold(int threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("threshold should never be negative");
+		}
+		ValueCompressor.threshold = threshold;
+	}
+
+	@ManagedAttribute(description = "Values stored compressed")
+	public long getCompressedValues() {
+		return compressed.get();
+	}
+
+	@ManagedAttribute(description = "Characters of the values stored compressed")
+	public long getOriginalChars() {
+		return originalChars.get();
+	}
+
+	@ManagedAttribute(description = "Characters stored for the compressed values")
+	public long getStoredChars() {
+		return storedChars.get();
+	}
+
+	@ManagedAttribute(description = "Characters not written thanks to compression")
+	public long getSavedChars() {
+		return originalChars.get() - storedChars.get();
+	}
+
+	@ManagedAttribute(description = "Compressed values read and expanded")
+	public long getDecompressedValues() {
+		return decompressed.get();
+	}
+
+	@ManagedAttribute(description = "Characters not read thanks to compression")
+	public long getReadSavedChars() {
+		return readSavedChars.get();
+	}
+
+	@ManagedOperation(description = "Reset all counters to zero")
+	public void reset() {
+		compressed.set(0);
+		originalChars.set(0);
+		storedChars.set(0);
+		decompressed.set(0);
+		readSavedChars.set(0);
+	}
+}
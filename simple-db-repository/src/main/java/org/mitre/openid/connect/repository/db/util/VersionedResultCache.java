@@ -0,0 +1,149 @@
+package org.mitre.openid.connect.repository.db.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of query results bounded by an estimate of the
+ * memory the results occupy. Every entry records the data version it was
+ * computed at, a lookup with a newer version treats the entry as missing. The
+ * owner bumps its version whenever the underlying data changes, which
+ * invalidates every entry at once without having to find them.
+ */
+public class VersionedResultCache<K, V> {
+	private final long maxBytes;
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(
+			16, 0.75f, true);
+	private long totalBytes = 0;
+	private CacheStatistics statistics = null;
+
+	private static class Entry<V> {
+		final long version;
+		final V value;
+		final long bytes;
+
+		Entry(long version, V value, long bytes) {
+			this.version = version;
+			this.value = value;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * @param maxBytes
+	 *            the bound on the estimated size of all cached values, a value
+	 *            larger than this bound is never cached
+	 */
+	public VersionedResultCache(long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException(
+					"maxBytes should never be negative");
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param key
+	 *            the key, never <code>null</code>
+	 * @param version
+	 *            the current data version
+	 * @return the cached value, or <code>null</code> if there is none computed
+	 *         at the given version
+	 */
+	public synchronized V get(K key, long version) {
+		Entry<V> entry = entries.get(key);
+		if (entry != null && entry.version != version) {
+			remove(key, entry);
+			entry = null;
+		}
+		if (statistics != null) {
+			if (entry != null) {
+				statistics.hit();
+			} else {
+				statistics.miss();
+			}
+		}
+		return entry != null ? entry.value : null;
+	}
+
+	/**
+	 * Cache a value, evicting the least recently used entries until the
+	 * estimated total fits the bound again
+	 *
+	 * @param key
+	 *            the key, never <code>null</code>
+	 * @param version
+	 *            the data version read before the value was computed
+	 * @param value
+	 *            the value, never <code>null</code>
+	 * @param bytes
+	 *            an estimate of the memory used by the value
+	 */
+	public synchronized void put(K key, long version, V value, long bytes) {
+		if (key == null || value == null) {
+			throw new IllegalArgumentException(
+					"key and value should never be null");
+		}
+		Entry<V> previous = entries.get(key);
+		if (previous != null) {
+			remove(key, previous);
+		}
+		if (bytes > maxBytes) {
+			return;
+		}
+		entries.put(key, new Entry<V>(version, value, bytes));
+		totalBytes += bytes;
+		int evicted = 0;
+		Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+		while (totalBytes > maxBytes && it.hasNext()) {
+			Map.Entry<K, Entry<V>> eldest = it.next();
+			totalBytes -= eldest.getValue().bytes;
+			it.remove();
+			evicted++;
+		}
+		if (statistics != null && evicted > 0) {
+			statistics.evicted(evicted);
+		}
+	}
+
+	/**
+	 * Drop every entry
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		totalBytes = 0;
+	}
+
+	/**
+	 * @return the number of cached entries
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the estimated memory used by the cached values
+	 */
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @param statistics
+	 *            counters to update on lookups and evictions, may be
+	 *            <code>null</code>
+	 */
+	public synchronized void setStatistics(CacheStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	private void remove(K key, Entry<V> entry) {
+		entries.remove(key);
+		totalBytes -= entry.bytes;
+	}
+}
@@ -18,9 +18,18 @@
  ***************************************************************************************/
 package org.mitre.openid.connect.repository.db.web;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Type;
 import java.net.MalformedURLException;
+import java.text.ParseException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -29,22 +38,43 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.DateUtils;
 import org.mitre.openid.connect.model.Address;
 import org.mitre.openid.connect.model.UserInfo;
 import org.mitre.openid.connect.repository.SortBy;
-import org.mitre.openid.connect.repository.UserInfoRepository;
 import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.EnhancedUserInfo;
+import org.mitre.openid.connect.repository.db.EnhancedUserInfoRepository;
+import org.mitre.openid.connect.repository.db.bulk.CsvRowWriter;
+import org.mitre.openid.connect.repository.db.bulk.DirectoryReconciler;
+import org.mitre.openid.connect.repository.db.bulk.ExportFilter;
+import org.mitre.openid.connect.repository.db.bulk.ImportReport;
+import org.mitre.openid.connect.repository.db.bulk.NdjsonRowWriter;
+import org.mitre.openid.connect.repository.db.bulk.ReconcileReport;
+import org.mitre.openid.connect.repository.db.bulk.RejectedRows;
+import org.mitre.openid.connect.repository.db.bulk.RowReader;
+import org.mitre.openid.connect.repository.db.bulk.RowWriter;
+import org.mitre.openid.connect.repository.db.bulk.UserExporter;
+import org.mitre.openid.connect.repository.db.bulk.UserImporter;
+import org.mitre.openid.connect.repository.db.model.RemoteUserAttribute;
 import org.mitre.openid.connect.repository.db.model.Role;
 import org.mitre.openid.connect.repository.db.model.User;
 import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.mitre.openid.connect.repository.db.util.AttributeDiff;
+import org.mitre.openid.connect.repository.db.util.AttributeSchema;
 import org.mitre.openid.connect.repository.db.util.ParseRequestContext;
+import org.mitre.openid.connect.repository.db.util.PromotedAttribute;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.authentication.encoding.PasswordEncoder;
@@ -58,10 +88,13 @@ import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.servlet.ModelAndView;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
 
 /**
  * Handle user requests
@@ -74,12 +107,44 @@ import com.google.gson.JsonParser;
 public class UserController {
 		
 	private static final String SUCCESS_TRUE = "{ \"success\": true }";
+	/**
+	 * The most users a single batch request may ask for
+	 */
+	private static final int MAX_BATCH = 1000;
+	/**
+	 * The most rejected rows an import or reconcile response lists
+	 */
+	private static final int REJECTED_ROW_LIMIT = 1000;
+	/**
+	 * Serializes user records. Attribute values may be stored compressed, so
+	 * attributes are written through their accessors rather than their fields.
+	 */
+	private static final Gson USER_GSON = new GsonBuilder()
+		.registerTypeAdapter(UserAttribute.class, new JsonSerializer<UserAttribute>() {
+			public JsonElement serialize(UserAttribute attr, Type type, JsonSerializationContext context) {
+				JsonObject rval = new JsonObject();
+				rval.add("id", context.serialize(attr.getId()));
+				rval.addProperty("name", attr.getName());
+				rval.add("user_id", context.serialize(attr.getUserId()));
+				rval.add("type", context.serialize(attr.getType()));
+				rval.addProperty("value", attr.getValue());
+				return rval;
+			}
+		}).create();
 	@Autowired
-	private UserInfoRepository userinfo;
+	private EnhancedUserInfoRepository userinfo;
 	@Autowired
 	private UserManager userManager;
 	@Autowired
 	private PasswordEncoder simplePasswordEncoder;
+	@Autowired(required=false)
+	private UserImporter userImporter;
+	@Autowired(required=false)
+	private UserExporter userExporter;
+	@Autowired(required=false)
+	private DirectoryReconciler directoryReconciler;
+	@Autowired(required=false)
+	private AttributeSchema attributeSchema;
 	private SecureRandom random = new SecureRandom();
 	private int count = 20;
 	
@@ -218,6 +283,17 @@ public class UserController {
 			mav.addObject("is_admin", admin);
 			// Copy other user attributes as _field values
 			Map<String,String> attrs = attrsToMap(user);
+			// Promoted attributes are kept apart from the user's attributes,
+			// the user info carries them
+			if (attributeSchema != null && info instanceof EnhancedUserInfo) {
+				for(PromotedAttribute promoted : attributeSchema.getPromoted()) {
+					String key = promoted.getName().toLowerCase() + "_field";
+					String value = ((EnhancedUserInfo) info).getProperty(promoted.getName());
+					if (value != null && ! attrs.containsKey(key)) {
+						attrs.put(key, value);
+					}
+				}
+			}
 			Set<String> keys = attrs.keySet();
 			keys.remove("user-id_field");
 			// Promote title_field as if it were a first class field
@@ -239,7 +315,6 @@ public class UserController {
 	private Map<String, String> attrsToMap(User user) {
 		Map<String, String> rval = new HashMap<String, String>();
 		for(UserAttribute attr : user.getAttributes()) {
-			if (attr.getType() == UserAttribute.REMOTE_TYPE) continue;
 			String key = attr.getName();
 			if (! key.endsWith("_field")) {
 				key = key.toLowerCase() + "_field";
@@ -258,7 +333,7 @@ public class UserController {
 	@RequestMapping(value = "/{id}", method = RequestMethod.GET)
 	public @ResponseBody String getUserData(@PathVariable Long id) {
 		User user = userManager.findById(id);
-		Gson gson = new Gson();
+		Gson gson = USER_GSON;
 		return gson.toJson(user);
 	}
 	
@@ -268,12 +343,258 @@ public class UserController {
 	    return SUCCESS_TRUE;
 	}
 	
+	/**
+	 * Resolve a set of users at once. The body is a JSON array, strings are
+	 * user ids (user names) and are answered with user info, numbers are
+	 * database ids and are answered with the user record as for
+	 * {@link #getUserData(Long)}. The response is an object keyed by the
+	 * requested values, in request order, leaving out users not found.
+	 */
+	@RequestMapping(value = "/batch", method = RequestMethod.POST)
+	public HttpEntity<String> getUsersData(@RequestBody String idsJson) {
+		JsonElement parsed = new JsonParser().parse(idsJson);
+		if (! parsed.isJsonArray() || parsed.getAsJsonArray().size() > MAX_BATCH) {
+			return new ResponseEntity<String>("{ \"error\": \"Expected an array of at most " 
+					+ MAX_BATCH + " ids\" }", HttpStatus.BAD_REQUEST);
+		}
+		List<String> userIds = new ArrayList<String>();
+		List<Long> ids = new ArrayList<Long>();
+		for(JsonElement el : parsed.getAsJsonArray()) {
+			if (! el.isJsonPrimitive()) {
+				return new ResponseEntity<String>("{ \"error\": \"Ids must be strings or numbers\" }", 
+						HttpStatus.BAD_REQUEST);
+			}
+			if (el.getAsJsonPrimitive().isNumber()) {
+				ids.add(el.getAsLong());
+			} else if (StringUtils.isNotBlank(el.getAsString())) {
+				userIds.add(el.getAsString());
+			}
+		}
+		Map<String, UserInfo> infos = userIds.isEmpty() ? new HashMap<String, UserInfo>() 
+				: userinfo.getByUserIds(userIds);
+		Map<Long, User> users = ids.isEmpty() ? new HashMap<Long, User>() 
+				: userManager.findByIds(ids);
+		Gson gson = USER_GSON;
+		JsonObject rval = new JsonObject();
+		for(JsonElement el : parsed.getAsJsonArray()) {
+			if (el.getAsJsonPrimitive().isNumber()) {
+				User user = users.get(el.getAsLong());
+				if (user != null) rval.add(el.getAsString(), gson.toJsonTree(user));
+			} else {
+				UserInfo info = infos.get(el.getAsString());
+				if (info != null) rval.add(el.getAsString(), gson.toJsonTree(info));
+			}
+		}
+		return new ResponseEntity<String>(rval.toString(), HttpStatus.OK);
+	}
+	
+	/**
+	 * Find users by an extended attribute, either with the exact value, with
+	 * values starting with a prefix, or with values from "from" up to but not
+	 * including "to". Prefix and range searches are paged with first and
+	 * count. The response is an array of user records as for
+	 * {@link #getUserData(Long)}.
+	 */
+	@RequestMapping(value = "/search", method = RequestMethod.GET)
+	public HttpEntity<String> searchUsers(@RequestParam("attribute") String attribute,
+			@RequestParam(value="value", required=false) String value,
+			@RequestParam(value="prefix", required=false) String prefix,
+			@RequestParam(value="from", required=false) String from,
+			@RequestParam(value="to", required=false) String to,
+			@RequestParam(value="first", defaultValue="0") int first,
+			@RequestParam(value="count", defaultValue="50") int count) {
+		if (StringUtils.isBlank(attribute)) {
+			return new ResponseEntity<String>("{ \"error\": \"An attribute name is required\" }", 
+					HttpStatus.BAD_REQUEST);
+		}
+		if (first < 0 || count < 1 || count > MAX_BATCH) {
+			return new ResponseEntity<String>("{ \"error\": \"Expected first >= 0 and a count from 1 to " 
+					+ MAX_BATCH + "\" }", HttpStatus.BAD_REQUEST);
+		}
+		List<User> users;
+		if (value != null) {
+			users = userManager.findByAttribute(attribute, value);
+		} else if (prefix != null) {
+			users = userManager.findByAttributePrefix(attribute, prefix, first, count);
+		} else if (from != null && to != null) {
+			users = userManager.findByAttributeRange(attribute, from, to, first, count);
+		} else {
+			return new ResponseEntity<String>("{ \"error\": \"Expected a value, a prefix or from and to\" }", 
+					HttpStatus.BAD_REQUEST);
+		}
+		Gson gson = USER_GSON;
+		JsonArray rval = new JsonArray();
+		for(User user : users) {
+			rval.add(gson.toJsonTree(user));
+		}
+		return new ResponseEntity<String>(rval.toString(), HttpStatus.OK);
+	}
+	
+	/**
+	 * Import users from the request body, CSV with a header line or one JSON
+	 * object per line. The body is read as it arrives, so the upload may be of
+	 * any size. The response counts what was done, lastRow is the row to pass
+	 * as resumeAfter if the upload has to be repeated, and errors lists the
+	 * rejected rows, if there were any.
+	 */
+	@RequestMapping(value = "/import", method = RequestMethod.POST)
+	public HttpEntity<String> importUsers(@RequestParam(value="format", defaultValue="csv") String format,
+			@RequestParam(value="resumeAfter", defaultValue="0") Long resumeAfter,
+			HttpServletRequest request) throws IOException {
+		if (userImporter == null) {
+			return new ResponseEntity<String>("{ \"error\": \"Import is not configured\" }", 
+					HttpStatus.NOT_FOUND);
+		}
+		String encoding = request.getCharacterEncoding() != null ? request.getCharacterEncoding() : "UTF-8";
+		RowReader reader;
+		try {
+			reader = UserImporter.reader(format, new BufferedReader(
+					new InputStreamReader(request.getInputStream(), encoding)));
+		} catch (IllegalArgumentException e) {
+			return new ResponseEntity<String>("{ \"error\": \"Format must be csv or ndjson\" }", 
+					HttpStatus.BAD_REQUEST);
+		}
+		RejectedRows rejected = new RejectedRows(REJECTED_ROW_LIMIT);
+		ImportReport report = userImporter.run(reader, resumeAfter, rejected);
+		JsonObject rval = (JsonObject) new Gson().toJsonTree(report);
+		addRejected(rval, rejected);
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		return new ResponseEntity<String>(rval.toString(), headers, HttpStatus.OK);
+	}
+	
+	/**
+	 * Reconcile the users with a full directory feed in the request body, in
+	 * the formats of {@link #importUsers}, sorted by user name. Only users
+	 * that differ from the feed are written, users missing from it are
+	 * deleted. The response counts what was done and lists the rejected
+	 * rows like {@link #importUsers}.
+	 */
+	@RequestMapping(value = "/reconcile", method = RequestMethod.POST)
+	public HttpEntity<String> reconcileUsers(@RequestParam(value="format", defaultValue="csv") String format,
+			HttpServletRequest request) throws IOException {
+		if (directoryReconciler == null) {
+			return new ResponseEntity<String>("{ \"error\": \"Reconciliation is not configured\" }", 
+					HttpStatus.NOT_FOUND);
+		}
+		String encoding = request.getCharacterEncoding() != null ? request.getCharacterEncoding() : "UTF-8";
+		RowReader reader;
+		try {
+			reader = UserImporter.reader(format, new BufferedReader(
+					new InputStreamReader(request.getInputStream(), encoding)));
+		} catch (IllegalArgumentException e) {
+			return new ResponseEntity<String>("{ \"error\": \"Format must be csv or ndjson\" }", 
+					HttpStatus.BAD_REQUEST);
+		}
+		RejectedRows rejected = new RejectedRows(REJECTED_ROW_LIMIT);
+		ReconcileReport report;
+		try {
+			report = directoryReconciler.reconcile(reader, rejected);
+		} catch (IllegalStateException e) {
+			JsonObject error = new JsonObject();
+			error.addProperty("error", e.getMessage());
+			return new ResponseEntity<String>(error.toString(), HttpStatus.CONFLICT);
+		}
+		JsonObject rval = (JsonObject) new Gson().toJsonTree(report);
+		addRejected(rval, rejected);
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		return new ResponseEntity<String>(rval.toString(), headers, HttpStatus.OK);
+	}
+	
+	/**
+	 * Export users as CSV or one JSON object per line, written to the response
+	 * as they are read so the export may be of any size. Users can be limited
+	 * to a user name pattern, a role and an earliest update (yyyy-MM-dd), and
+	 * columns takes a comma separated list of the columns to write. With gzip
+	 * the file is compressed and sent as a download.
+	 */
+	@RequestMapping(value = "/export", method = RequestMethod.GET)
+	public void exportUsers(@RequestParam(value="format", defaultValue="ndjson") String format,
+			@RequestParam(value="gzip", defaultValue="false") boolean gzip,
+			@RequestParam(value="pattern", required=false) String pattern,
+			@RequestParam(value="role", required=false) String role,
+			@RequestParam(value="updatedSince", required=false) String updatedSince,
+			@RequestParam(value="columns", required=false) String columns,
+			HttpServletResponse response) throws IOException {
+		if (userExporter == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Export is not configured");
+			return;
+		}
+		boolean csv = "csv".equalsIgnoreCase(format);
+		if (!csv && !"ndjson".equalsIgnoreCase(format)) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Format must be csv or ndjson");
+			return;
+		}
+		ExportFilter filter = new ExportFilter();
+		filter.setUsernamePattern(StringUtils.trimToNull(pattern));
+		filter.setRole(StringUtils.trimToNull(role));
+		if (StringUtils.isNotBlank(updatedSince)) {
+			try {
+				filter.setUpdatedSince(DateUtils.parseDate(updatedSince.trim(), 
+						new String[] { "yyyy-MM-dd" }));
+			} catch (ParseException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "updatedSince must be yyyy-MM-dd");
+				return;
+			}
+		}
+		List<String> selected = userExporter.columns(StringUtils.isNotBlank(columns) 
+				? Arrays.asList(columns.split(",")) : null);
+		
+		String filename = csv ? "users.csv" : "users.ndjson";
+		OutputStream stream = response.getOutputStream();
+		if (gzip) {
+			response.setContentType("application/gzip");
+			response.setHeader("Content-Disposition", "attachment; filename=" + filename + ".gz");
+			stream = new GZIPOutputStream(stream);
+		} else {
+			response.setContentType(csv ? "text/csv" : "application/x-ndjson");
+			response.setCharacterEncoding("UTF-8");
+		}
+		Writer writer = new OutputStreamWriter(stream, "UTF-8");
+		RowWriter out = csv ? new CsvRowWriter(writer, selected) : new NdjsonRowWriter(writer);
+		try {
+			userExporter.export(filter, selected, out);
+		} finally {
+			// Finishes the gzip stream
+			out.close();
+		}
+	}
+	
+	/**
+	 * The stored claims document of a user, written to the response as is
+	 */
+	@RequestMapping(value = "/claims", method = RequestMethod.GET)
+	public HttpEntity<String> getClaims(@RequestParam("userId") String userId) {
+		String claims = userinfo.getClaimsDocument(userId);
+		if (claims == null) {
+			return new ResponseEntity<String>(HttpStatus.NOT_FOUND);
+		}
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		return new ResponseEntity<String>(claims, headers, HttpStatus.OK);
+	}
+	
 	@RequestMapping(value = "/{id}", method = RequestMethod.PUT)
 	public @ResponseBody String putUserData(@PathVariable Long id, @RequestBody String userJson) {
 	    processUserData(userJson, id);
 		return SUCCESS_TRUE;
 	}
 	
+	/**
+	 * Add the rejected rows of an import to its response as errors, with
+	 * errorsTruncated set if there were more than are listed
+	 */
+	private void addRejected(JsonObject rval, RejectedRows rejected) {
+		if (rejected.getRows().size() == 0) {
+			return;
+		}
+		rval.add("errors", rejected.getRows());
+		if (rejected.isTruncated()) {
+			rval.addProperty("errorsTruncated", true);
+		}
+	}
+
 	private void processUserData(String userJson, Long userId) {
         Gson gson = new Gson();
         User postedUser = null;
@@ -281,6 +602,7 @@ public class UserController {
         JsonParser parser = new JsonParser();
         JsonElement obj = parser.parse(userJson);
         postedUser = gson.fromJson(obj, User.class);
+        User original = userId != null ? userManager.findById(userId) : null;
         if (obj.isJsonObject()) {
             String password = obj.getAsJsonObject().get("password").getAsString();
             if (StringUtils.isNotBlank(password)) {
@@ -289,7 +611,6 @@ public class UserController {
 	            postedUser.setJamesPasswordHash(postedUser.encodeJamesPasswordHash(password));
 	            postedUser.setPasswordSalt(salt);
             } else {
-            	User original = userManager.findById(userId);
             	if (original == null) {
             		throw new RuntimeException("Couldn't find original user to retrieve password information from");
             	}
@@ -300,18 +621,29 @@ public class UserController {
         }
         // Grab other attributes - the json is not really a User serialization
         JsonObject data = (JsonObject) obj;    
+        Map<String, String> values = new HashMap<String, String>();
         for(Entry<String, JsonElement> entry : data.entrySet()) {
         	String key = entry.getKey();
         	JsonElement value = entry.getValue();
         	if (FIELDS.contains(key)) continue;
-        	if (postedUser.getAttributes() == null) {
-        		postedUser.setAttributes(new HashSet<UserAttribute>());
-        	}
         	if (key.contains("role")) continue; // Skip roles
-        	if (StringUtils.isBlank(value.getAsString())) continue;
-        	String attrName = key.toUpperCase();
-        	postedUser.getAttributes().add(new UserAttribute(attrName, value.getAsString()));
-        }      
+        	values.put(key.toUpperCase(), value.getAsString());
+        }
+        // Start from the stored attributes so that only the ones that changed
+        // are written
+        Set<UserAttribute> attributes = new HashSet<UserAttribute>();
+        if (original != null && original.getAttributes() != null) {
+        	attributes.addAll(original.getAttributes());
+        }
+        postedUser.setAttributes(attributes);
+        // The form does not carry remote attributes, and they are privately
+        // owned, so saving without them would delete them and their tokens
+        Set<RemoteUserAttribute> remoteAttributes = new HashSet<RemoteUserAttribute>();
+        if (original != null && original.getRemoteAttributes() != null) {
+        	remoteAttributes.addAll(original.getRemoteAttributes());
+        }
+        postedUser.setRemoteAttributes(remoteAttributes);
+        AttributeDiff.apply(postedUser, values, true, attributeSchema);
         
         postedUser.setUsername(postedUser.getEmail());
         
@@ -0,0 +1,70 @@
+package org.mitre.openid.connect.repository.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+/**
+ * Counts the SQL statements executed through a data source, so tests can
+ * check how many round trips an operation takes. Declared in test.xml, where
+ * the data source handed to JPA is wrapped by {@link #wrap(DataSource)}.
+ */
+public class StatementCounter {
+	private final AtomicInteger executed = new AtomicInteger();
+
+	/**
+	 * @param target
+	 *            the data source to count statements on, never
+	 *            <code>null</code>
+	 * @return a data source that counts every statement executed through its
+	 *         connections
+	 */
+	public DataSource wrap(DataSource target) {
+		if (target == null) {
+			throw new IllegalArgumentException("target should never be null");
+		}
+		return (DataSource) proxy(target, DataSource.class);
+	}
+
+	/**
+	 * @return the statements executed since the last reset
+	 */
+	public int getCount() {
+		return executed.get();
+	}
+
+	public void reset() {
+		executed.set(0);
+	}
+
+	private Object proxy(final Object target, Class<?> type) {
+		return Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { type }, new InvocationHandler() {
+					public Object invoke(Object p, Method method, Object[] args)
+							throws Throwable {
+						if (method.getName().startsWith("execute")) {
+							executed.incrementAndGet();
+						}
+						Object result;
+						try {
+							result = method.invoke(target, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+						Class<?> returned = method.getReturnType();
+						if (result != null
+								&& (returned == Connection.class || Statement.class
+										.isAssignableFrom(returned))) {
+							return proxy(result, returned);
+						}
+						return result;
+					}
+				});
+	}
+}
@@ -0,0 +1,98 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.openid.connect.repository.db.util.BatchLoader;
+
+public class TestBatchLoader {
+	private BatchLoader<String, String> loader;
+	private List<Collection<String>> batches;
+	private ExecutorService callers;
+
+	@Before
+	public void setup() {
+		batches = Collections.synchronizedList(new ArrayList<Collection<String>>());
+		loader = new BatchLoader<String, String>();
+		loader.setFunction(new BatchLoader.BatchFunction<String, String>() {
+			public Map<String, String> loadAll(Collection<String> keys) {
+				batches.add(new ArrayList<String>(keys));
+				Map<String, String> rval = new HashMap<String, String>();
+				for (String key : keys) {
+					if (!key.startsWith("missing")) {
+						rval.put(key, key.toUpperCase());
+					}
+				}
+				return rval;
+			}
+		});
+		callers = Executors.newFixedThreadPool(8);
+	}
+
+	@After
+	public void teardown() {
+		callers.shutdownNow();
+		loader.shutdown();
+	}
+
+	@Test
+	public void testSingleLoad() {
+		assertEquals("ALICE", loader.load("alice"));
+		assertNull(loader.load("missing"));
+		assertEquals(2, batches.size());
+	}
+
+	@Test
+	public void testConcurrentLoadsCoalesce() throws Exception {
+		loader.setWindowMillis(200);
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		String[] keys = { "a", "b", "c", "a", "b", "missing1" };
+		for (final String key : keys) {
+			results.add(callers.submit(new Callable<String>() {
+				public String call() {
+					return loader.load(key);
+				}
+			}));
+		}
+		for (int i = 0; i < keys.length; i++) {
+			String expected = keys[i].startsWith("missing") ? null : keys[i].toUpperCase();
+			assertEquals(expected, results.get(i).get());
+		}
+		assertEquals(1, batches.size());
+		// Repeated keys share one load
+		assertEquals(4, batches.get(0).size());
+	}
+
+	@Test
+	public void testFullBatchDispatchedEarly() throws Exception {
+		loader.setWindowMillis(60000);
+		loader.setMaxKeys(3);
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		for (final String key : new String[] { "x", "y", "z" }) {
+			results.add(callers.submit(new Callable<String>() {
+				public String call() {
+					return loader.load(key);
+				}
+			}));
+		}
+		for (Future<String> result : results) {
+			result.get();
+		}
+		assertEquals(1, batches.size());
+		assertEquals(3, batches.get(0).size());
+	}
+}
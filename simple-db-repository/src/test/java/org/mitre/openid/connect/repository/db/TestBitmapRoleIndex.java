@@ -0,0 +1,78 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.openid.connect.repository.db.impl.BitmapRoleIndex;
+
+public class TestBitmapRoleIndex {
+	private IRoleIndex index;
+
+	@Before
+	public void setup() {
+		index = new BitmapRoleIndex();
+		for (long id = 1; id <= 10; id++) {
+			if (id % 2 == 0) {
+				index.update(id, Arrays.asList("USER", "CLINICIAN"));
+			} else {
+				index.update(id, Arrays.asList("USER", "PATIENT"));
+			}
+		}
+		index.update(1L, Arrays.asList("USER", "PATIENT", "ADMIN"));
+	}
+
+	@Test
+	public void testMembership() {
+		assertTrue(index.isMember(1L, "ADMIN"));
+		assertFalse(index.isMember(2L, "ADMIN"));
+		assertTrue(index.isMember(4L, "CLINICIAN"));
+		assertFalse(index.isMember(4L, "PATIENT"));
+		assertFalse(index.isMember(4L, "UNKNOWN"));
+	}
+
+	@Test
+	public void testCounts() {
+		assertEquals(10, index.count("USER"));
+		assertEquals(5, index.count("CLINICIAN"));
+		assertEquals(1, index.count("ADMIN"));
+		assertEquals(0, index.count("UNKNOWN"));
+	}
+
+	@Test
+	public void testUpdateReplacesRoles() {
+		index.update(4L, Arrays.asList("USER", "PATIENT"));
+		assertFalse(index.isMember(4L, "CLINICIAN"));
+		assertTrue(index.isMember(4L, "PATIENT"));
+		assertEquals(4, index.count("CLINICIAN"));
+
+		index.update(4L, Collections.<String> emptyList());
+		assertFalse(index.isMember(4L, "USER"));
+		assertEquals(9, index.count("USER"));
+	}
+
+	@Test
+	public void testRemove() {
+		index.remove(1L);
+		assertFalse(index.isMember(1L, "ADMIN"));
+		assertEquals(0, index.count("ADMIN"));
+		assertEquals(9, index.count("USER"));
+	}
+
+	@Test
+	public void testPaging() {
+		List<Long> page = index.userIds("CLINICIAN", 0, 3);
+		assertEquals(Arrays.asList(2L, 4L, 6L), page);
+		page = index.userIds("CLINICIAN", 3, 3);
+		assertEquals(Arrays.asList(8L, 10L), page);
+		page = index.userIds("CLINICIAN", 5, 3);
+		assertTrue(page.isEmpty());
+		assertTrue(index.userIds("UNKNOWN", 0, 3).isEmpty());
+	}
+}
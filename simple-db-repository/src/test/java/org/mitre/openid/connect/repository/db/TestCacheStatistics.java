@@ -0,0 +1,74 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import javax.annotation.Resource;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.util.CacheStatistics;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Counts shared cache hits and misses of the user lookups
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "file:src/test/java/org/mitre/openid/connect/repository/db/test.xml" })
+public class TestCacheStatistics {
+	private static final String USERNAME = "cachestats";
+
+	@Resource UserManager usermanager;
+	@Resource CacheStatistics userSharedCacheStatistics;
+	@Resource EntityManagerFactory entityManagerFactory;
+
+	@Before
+	public void testSetup() throws Exception {
+		cleanup();
+		usermanager.add(USERNAME, "aAbBcC124%#$");
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		if (usermanager.get(USERNAME) != null) {
+			usermanager.delete(USERNAME);
+		}
+	}
+
+	@Test
+	public void testLookupsCounted() throws Exception {
+		Long id = usermanager.get(USERNAME).getId();
+		entityManagerFactory.getCache().evictAll();
+		CacheStatistics stats = userSharedCacheStatistics;
+		stats.reset();
+
+		// Read from the database into the cache
+		usermanager.get(USERNAME);
+		assertEquals(0, stats.getHits());
+		assertEquals(1, stats.getMisses());
+
+		// Every kind of lookup then finds it in the cache
+		usermanager.get(USERNAME);
+		usermanager.findById(id);
+		usermanager.get(Arrays.asList(USERNAME));
+		usermanager.findByIds(Arrays.asList(id));
+		assertEquals(4, stats.getHits());
+		assertEquals(1, stats.getMisses());
+
+		// Nobody found is a miss
+		usermanager.get("nobody");
+		assertEquals(2, stats.getMisses());
+
+		entityManagerFactory.getCache().evict(User.class, id);
+		usermanager.findById(id);
+		assertEquals(4, stats.getHits());
+		assertEquals(3, stats.getMisses());
+	}
+}
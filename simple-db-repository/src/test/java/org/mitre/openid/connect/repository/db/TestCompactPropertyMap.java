@@ -0,0 +1,86 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mitre.openid.connect.repository.db.data.CompactPropertyMap;
+import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.mitre.openid.connect.repository.db.util.AttributeNames;
+
+import com.google.gson.Gson;
+
+public class TestCompactPropertyMap {
+
+	@Test
+	public void testPutGetRemove() {
+		CompactPropertyMap map = new CompactPropertyMap();
+		Map<String, String> expected = new HashMap<String, String>();
+		for (int i = 0; i < 20; i++) {
+			map.put("KEY" + i, "value " + i);
+			expected.put("KEY" + i, "value " + i);
+		}
+		assertEquals("value 1", map.put("KEY1", "changed"));
+		expected.put("KEY1", "changed");
+		assertEquals("value 5", map.remove("KEY5"));
+		expected.remove("KEY5");
+		assertNull(map.remove("MISSING"));
+		assertEquals(expected, map);
+		assertEquals(expected.hashCode(), map.hashCode());
+		assertFalse(map.containsKey("KEY5"));
+		assertEquals("value 19", map.get("KEY19"));
+
+		map.trimToSize();
+		assertEquals(19, map.size());
+		map.put("KEY5", "back");
+		assertEquals("back", map.get("KEY5"));
+	}
+
+	@Test
+	public void testIteratorRemove() {
+		CompactPropertyMap map = new CompactPropertyMap();
+		map.put("A", "1");
+		map.put("B", "2");
+		map.put("C", "3");
+		Iterator<Map.Entry<String, String>> it = map.entrySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getKey().equals("B")) {
+				it.remove();
+			}
+		}
+		assertEquals(2, map.size());
+		assertEquals("1", map.get("A"));
+		assertEquals("3", map.get("C"));
+		assertTrue(map.keySet().contains("C"));
+	}
+
+	@Test
+	public void testKeysInterned() {
+		CompactPropertyMap map = new CompactPropertyMap();
+		String key = new String("COLOR");
+		map.put(key, "blue");
+		String stored = map.keySet().iterator().next();
+		assertSame(AttributeNames.intern(new String("COLOR")), stored);
+		assertSame(stored, new UserAttribute("color", "red").getName());
+	}
+
+	@Test
+	public void testSerializesAsObject() {
+		CompactPropertyMap map = new CompactPropertyMap();
+		map.put("A", "1");
+		map.put("B", "2");
+		assertEquals("{\"A\":\"1\",\"B\":\"2\"}", new Gson().toJson(map));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullValue() {
+		new CompactPropertyMap().put("A", null);
+	}
+}
@@ -0,0 +1,174 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Resource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.bulk.CsvRowReader;
+import org.mitre.openid.connect.repository.db.bulk.DirectoryReconciler;
+import org.mitre.openid.connect.repository.db.bulk.ImportListener;
+import org.mitre.openid.connect.repository.db.bulk.ImportReport;
+import org.mitre.openid.connect.repository.db.bulk.ImportRow;
+import org.mitre.openid.connect.repository.db.bulk.ReconcileReport;
+import org.mitre.openid.connect.repository.db.model.Role;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * The reconciler of test.xml reads two stored users per page and writes two
+ * changed rows per batch
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "file:src/test/java/org/mitre/openid/connect/repository/db/test.xml" })
+public class TestDirectoryReconciler {
+	private static final String FEED = "username,password,lastname,title\n"
+			+ "reca,Fido1234$,Able,Dr\n"
+			+ "recb,Fido1234$,Baker,Prof\n";
+
+	@Resource UserManager usermanager;
+	@Resource DirectoryReconciler directoryReconciler;
+	@Resource StatementCounter statementCounter;
+
+	private final ImportListener listener = new ImportListener() {
+		public void rejected(long row, String username, String message) {
+			fail("Row " + row + " rejected: " + message);
+		}
+
+		public void committed(long row, ImportReport progress) {
+			// Intentionally empty
+		}
+	};
+
+	@Before
+	public void testSetup() throws Exception {
+		for (User user : usermanager.find("%")) {
+			if (!user.getUsername().equals("admin")) {
+				usermanager.delete(user.getUsername());
+			}
+		}
+	}
+
+	private ReconcileReport reconcile(String feed) throws Exception {
+		return directoryReconciler.reconcile(new CsvRowReader(new StringReader(feed)), listener);
+	}
+
+	@Test
+	public void testFingerprint() {
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		fields.put("username", "reca");
+		fields.put("lastname", "Able");
+		fields.put("password", "Fido1234$");
+		String first = DirectoryReconciler.fingerprint(new ImportRow(1, fields));
+		assertEquals(64, first.length());
+
+		Map<String, String> reordered = new LinkedHashMap<String, String>();
+		reordered.put("lastname", "Able ");
+		reordered.put("title", "");
+		reordered.put("username", "reca");
+		assertEquals(first, DirectoryReconciler.fingerprint(new ImportRow(7, reordered)));
+		reordered.put("title", "Dr");
+		assertTrue(!first.equals(DirectoryReconciler.fingerprint(new ImportRow(7, reordered))));
+	}
+
+	@Test
+	public void testReconcile() throws Exception {
+		ReconcileReport report = reconcile(FEED);
+		assertEquals(2, report.getCreated());
+		assertEquals(0, report.getDeleted());
+
+		// Nothing changed, only the stored fingerprints are read
+		statementCounter.reset();
+		report = reconcile(FEED);
+		assertEquals(2, report.getUnchanged());
+		assertEquals(0, report.getCreated() + report.getUpdated());
+		assertTrue(statementCounter.getCount() <= 2);
+
+		report = reconcile("username,password,lastname,title\n"
+				+ "reca,,Changed,\n"
+				+ "recc,Fido1234$,Charlie,\n");
+		assertEquals(1, report.getUpdated());
+		assertEquals(1, report.getCreated());
+		assertEquals(1, report.getDeleted());
+		assertNull(usermanager.get("recb"));
+		assertNotNull(usermanager.get("admin"));
+		User a = usermanager.get("reca");
+		assertEquals("Changed", a.getLastname());
+		for (UserAttribute attr : a.getAttributes()) {
+			assertTrue(!"TITLE".equals(attr.getName()));
+		}
+	}
+
+	@Test
+	public void testRolesReplaced() throws Exception {
+		reconcile("username,password,roles\n"
+				+ "reca,Fido1234$,ADMIN USER\n");
+		assertTrue(hasRole(usermanager.get("reca"), "ADMIN"));
+
+		// Dropped upstream, revoked here
+		reconcile("username,password,roles\n"
+				+ "reca,Fido1234$,USER\n");
+		User a = usermanager.get("reca");
+		assertTrue(!hasRole(a, "ADMIN"));
+		assertTrue(hasRole(a, "USER"));
+
+		reconcile("username,password,roles\n"
+				+ "reca,Fido1234$,\n");
+		assertEquals(0, usermanager.get("reca").getRoles().size());
+	}
+
+	@Test
+	public void testLocalEditRewritten() throws Exception {
+		reconcile(FEED);
+		User a = usermanager.get("reca");
+		assertNotNull(a.getFingerprint());
+		a.setLastname("Edited");
+		usermanager.save(a);
+		assertNull(usermanager.get("reca").getFingerprint());
+
+		ReconcileReport report = reconcile(FEED);
+		assertEquals(1, report.getUpdated());
+		assertEquals(1, report.getUnchanged());
+		assertEquals("Able", usermanager.get("reca").getLastname());
+
+		// Local role changes too
+		usermanager.grantRole("GUEST", "reca");
+		assertNull(usermanager.get("reca").getFingerprint());
+		usermanager.deleteRole("GUEST");
+	}
+
+	private static boolean hasRole(User user, String rolename) {
+		for (Role role : user.getRoles()) {
+			if (rolename.equals(role.getName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void testUnsortedFeed() throws Exception {
+		reconcile(FEED);
+		try {
+			reconcile("username,lastname\nrecb,Baker\nreca,Able\n");
+			fail("An unsorted feed should be refused");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertNotNull(usermanager.get("reca"));
+		assertNotNull(usermanager.get("recb"));
+	}
+}
@@ -0,0 +1,61 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.mitre.openid.connect.repository.db.util.CacheStatistics;
+import org.mitre.openid.connect.repository.db.util.NearCache;
+
+public class TestNearCache {
+	private final List<String> loaded = new ArrayList<String>();
+	private final NearCache.Loader<String, String> loader = new NearCache.Loader<String, String>() {
+		public String load(String key) {
+			loaded.add(key);
+			return "value " + key;
+		}
+	};
+
+	@Test
+	public void testLeastRecentlyUsedDropped() {
+		NearCache<String, String> cache = new NearCache<String, String>(2, 60000);
+		CacheStatistics stats = new CacheStatistics();
+		cache.setStatistics(stats);
+		cache.get("a", loader);
+		cache.get("b", loader);
+		// Touch a so that b is the least recently used
+		cache.get("a", loader);
+		cache.get("c", loader);
+		assertEquals(2, cache.size());
+		assertEquals("value a", cache.getIfPresent("a"));
+		assertNull(cache.getIfPresent("b"));
+		assertEquals(1, stats.getEvictions());
+	}
+
+	@Test
+	public void testNormalizedKeys() {
+		NearCache<String, String> cache = new NearCache<String, String>(10, 60000) {
+			@Override
+			protected String normalize(String key) {
+				return key.toLowerCase();
+			}
+		};
+		assertEquals("value Kate", cache.get("Kate", loader));
+		assertEquals("value Kate", cache.get("KATE", loader));
+		// The loader is given the key as first asked for
+		assertEquals("[Kate]", loaded.toString());
+		cache.invalidate("kate");
+		assertNull(cache.getIfPresent("Kate"));
+	}
+
+	@Test
+	public void testExpiredDropped() {
+		NearCache<String, String> cache = new NearCache<String, String>(10, 0);
+		cache.get("a", loader);
+		assertNull(cache.getIfPresent("a"));
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,165 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Resource;
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mitre.openid.connect.model.DefaultUserInfo;
+import org.mitre.openid.connect.repository.ClaimSet;
+import org.mitre.openid.connect.repository.SortBy;
+import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.data.PropertiedUserInfo;
+import org.mitre.openid.connect.repository.db.impl.PromotedAttributeMigrator;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * test.xml promotes BADGE to a whole number column, see promoted.sql
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "file:src/test/java/org/mitre/openid/connect/repository/db/test.xml" })
+public class TestPromotedAttributes {
+	@Resource EnhancedUserInfoRepository userinfo;
+	@Resource UserManager usermanager;
+	@Resource PromotedAttributeMigrator promotedAttributeMigrator;
+	@Resource DataSource dataSource;
+
+	@Before
+	public void testSetup() throws Exception {
+		for (User user : usermanager.find("prom%")) {
+			usermanager.delete(user.getUsername());
+		}
+	}
+
+	@Test
+	public void testSaveAndRead() throws Exception {
+		save("proma", "1234");
+
+		User user = usermanager.get("proma");
+		assertTrue(hasAttribute(user, "AGE"));
+		assertFalse(hasAttribute(user, "BADGE"));
+		assertEquals(1, column("proma"));
+
+		assertEquals("1234", userinfo.getByUserId("proma").getProperty("BADGE"));
+		PropertiedUserInfo extended = userinfo.getByUserId("proma", EnumSet.of(ClaimSet.EXTENDED));
+		assertEquals("1234", extended.getProperty("BADGE"));
+		assertEquals("41", extended.getProperty("AGE"));
+		assertTrue(userinfo.getClaimsDocument("proma").contains("1234"));
+
+		save("proma", " ");
+		assertNull(userinfo.getByUserId("proma", EnumSet.of(ClaimSet.EXTENDED)).getProperty("BADGE"));
+	}
+
+	@Test
+	public void testMigrate() throws Exception {
+		save("promb", null);
+		save("promc", null);
+		JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+		insertAttribute(jdbc, 900001, "promb", "77");
+		insertAttribute(jdbc, 900002, "promc", "abc");
+
+		// Attribute rows are read until they are moved
+		assertEquals("77", userinfo.getByUserId("promb", EnumSet.of(ClaimSet.EXTENDED)).getProperty("BADGE"));
+
+		promotedAttributeMigrator.migrate();
+		assertEquals(0, jdbc.queryForInt("select count(*) from USER_ATTRIBUTES where ID = 900001"));
+		assertEquals(1, column("promb"));
+		assertEquals("77", userinfo.getByUserId("promb", EnumSet.of(ClaimSet.EXTENDED)).getProperty("BADGE"));
+
+		// A value that does not fit the column stays where it is
+		assertEquals(1, jdbc.queryForInt("select count(*) from USER_ATTRIBUTES where ID = 900002"));
+		assertEquals("abc", userinfo.getByUserId("promc", EnumSet.of(ClaimSet.EXTENDED)).getProperty("BADGE"));
+		jdbc.update("delete from USER_ATTRIBUTES where ID = 900002");
+	}
+
+	@Test
+	public void testSearch() throws Exception {
+		save("proma", "1234");
+		save("promb", "77");
+		save("promc", null);
+		JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+		// Not moved yet, still found
+		insertAttribute(jdbc, 900003, "promc", "500");
+		try {
+			List<User> found = usermanager.findByAttribute("badge", "1234");
+			assertEquals(1, found.size());
+			assertEquals("proma", found.get(0).getUsername());
+			assertEquals(1, usermanager.findByAttribute("badge", "500").size());
+			assertTrue(usermanager.findByAttribute("badge", "abc").isEmpty());
+
+			// By number, not as strings
+			found = usermanager.findByAttributeRange("badge", "50", "1000", 0, 10);
+			assertEquals(2, found.size());
+			assertEquals("promb", found.get(0).getUsername());
+			assertEquals("promc", found.get(1).getUsername());
+			found = usermanager.findByAttributeRange("badge", "50", "1000", 1, 10);
+			assertEquals(1, found.size());
+			assertEquals("promc", found.get(0).getUsername());
+
+			try {
+				usermanager.findByAttributePrefix("badge", "12", 0, 10);
+				fail("A number cannot be searched by prefix");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		} finally {
+			jdbc.update("delete from USER_ATTRIBUTES where ID = 900003");
+		}
+
+		boolean listed = false;
+		for (Map<String, String> row : usermanager.findInRange(0, 1000, SortBy.USERNAME)) {
+			if ("proma".equals(row.get("USERNAME"))) {
+				assertEquals("1234", row.get("BADGE"));
+				listed = true;
+			}
+		}
+		assertTrue(listed);
+	}
+
+	private void save(String username, String badge) {
+		PropertiedUserInfo info = new PropertiedUserInfo();
+		info.setUserId(username);
+		info.setFamilyName("Promoted");
+		info.setEmail(username + "@example.com");
+		info.setProperty("AGE", "41");
+		if (badge != null) {
+			info.setProperty("BADGE", badge);
+		}
+		userinfo.save((DefaultUserInfo) info);
+	}
+
+	private boolean hasAttribute(User user, String name) {
+		for (UserAttribute attr : user.getAttributes()) {
+			if (attr.getName().equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int column(String username) {
+		return new JdbcTemplate(dataSource).queryForInt("select count(*) from USER_PROMOTED_ATTRIBUTES p"
+				+ " join USERS u on u.USER_ID = p.USER_ID where u.USERNAME = ? and p.BADGE is not null", username);
+	}
+
+	private void insertAttribute(JdbcTemplate jdbc, long id, String username, String value) {
+		Long userId = usermanager.get(username).getId();
+		jdbc.update("insert into USER_ATTRIBUTES (ID, USER_ID, ATTR_NAME, ATTR_TYPE, ATTR_VALUE) values (?, ?, ?, ?, ?)",
+				id, userId, "BADGE", UserAttribute.NORMAL_TYPE, value);
+	}
+}
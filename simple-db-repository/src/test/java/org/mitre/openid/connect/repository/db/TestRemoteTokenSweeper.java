@@ -0,0 +1,111 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Date;
+
+import javax.annotation.Resource;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.impl.RemoteTokenSweeper;
+import org.mitre.openid.connect.repository.db.model.RemoteUserAttribute;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * Sweeps with a stub refresher in place of the token endpoint
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "file:src/test/java/org/mitre/openid/connect/repository/db/test.xml" })
+public class TestRemoteTokenSweeper {
+	@Resource UserManager usermanager;
+	@Resource RemoteTokenSweeper remoteTokenSweeper;
+
+	@After
+	public void cleanup() throws Exception {
+		remoteTokenSweeper.setTokenRefresher(null);
+		remoteTokenSweeper.setMaxRefreshes(20);
+		if (usermanager.get("sweepy") != null) {
+			usermanager.delete("sweepy");
+		}
+	}
+
+	@Test
+	public void testSweep() throws Exception {
+		final long now = System.currentTimeMillis();
+		usermanager.add("sweepy", "aAbBcC124%#$");
+		User user = usermanager.get("sweepy");
+		user.getRemoteAttributes().add(new RemoteUserAttribute("expired",
+				"https://photos.example.com/sweepy", "token-expired", new Date(now - 60000)));
+		user.getRemoteAttributes().add(new RemoteUserAttribute("soon",
+				"https://mail.example.com/sweepy", "token-soon", new Date(now + 60000)));
+		user.getRemoteAttributes().add(new RemoteUserAttribute("far",
+				"https://files.example.com/sweepy", "token-far", new Date(now + 86400000L)));
+		usermanager.save(user);
+
+		remoteTokenSweeper.setTokenRefresher(new ITokenRefresher() {
+			public boolean refresh(RemoteUserAttribute attribute) {
+				if (!"SOON".equals(attribute.getName())) {
+					return false;
+				}
+				attribute.setAccessToken("token-refreshed");
+				attribute.setExpiration(new Date(now + 3600000L));
+				return true;
+			}
+		});
+		long refreshed = remoteTokenSweeper.getRefreshed();
+		remoteTokenSweeper.sweep(now);
+		remoteTokenSweeper.sweep(now + 1000);
+		assertEquals(refreshed + 1, remoteTokenSweeper.getRefreshed());
+
+		user = usermanager.get("sweepy");
+		assertEquals(3, user.getRemoteAttributes().size());
+		for (RemoteUserAttribute attr : user.getRemoteAttributes()) {
+			if ("EXPIRED".equals(attr.getName())) {
+				assertNull(attr.getAccessToken());
+				assertNull(attr.getExpiration());
+			} else if ("SOON".equals(attr.getName())) {
+				assertEquals("token-refreshed", attr.getAccessToken());
+			} else {
+				assertEquals("token-far", attr.getAccessToken());
+			}
+		}
+	}
+
+	@Test
+	public void testRefreshesCapped() throws Exception {
+		final long now = System.currentTimeMillis();
+		usermanager.add("sweepy", "aAbBcC124%#$");
+		User user = usermanager.get("sweepy");
+		user.getRemoteAttributes().add(new RemoteUserAttribute("soon",
+				"https://mail.example.com/sweepy", "token-soon", new Date(now + 60000)));
+		user.getRemoteAttributes().add(new RemoteUserAttribute("sooner",
+				"https://files.example.com/sweepy", "token-sooner", new Date(now + 30000)));
+		usermanager.save(user);
+
+		remoteTokenSweeper.setTokenRefresher(new ITokenRefresher() {
+			public boolean refresh(RemoteUserAttribute attribute) {
+				attribute.setAccessToken("token-refreshed");
+				attribute.setExpiration(new Date(now + 3600000L));
+				return true;
+			}
+		});
+		remoteTokenSweeper.setMaxRefreshes(1);
+		long refreshed = remoteTokenSweeper.getRefreshed();
+		remoteTokenSweeper.sweep(now);
+		remoteTokenSweeper.sweep(now + 1000);
+		assertEquals(refreshed + 1, remoteTokenSweeper.getRefreshed());
+		// The other was put off to the next tick
+		remoteTokenSweeper.sweep(now + 3000);
+		assertEquals(refreshed + 2, remoteTokenSweeper.getRefreshed());
+
+		for (RemoteUserAttribute attr : usermanager.get("sweepy").getRemoteAttributes()) {
+			assertEquals("token-refreshed", attr.getAccessToken());
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringReader;
+
+import org.junit.Test;
+import org.mitre.openid.connect.repository.db.bulk.CsvRowReader;
+import org.mitre.openid.connect.repository.db.bulk.ImportRow;
+import org.mitre.openid.connect.repository.db.bulk.NdjsonRowReader;
+import org.mitre.openid.connect.repository.db.bulk.RowReader;
+
+public class TestRowReaders {
+
+	@Test
+	public void testCsv() throws Exception {
+		RowReader reader = new CsvRowReader(new StringReader(
+				"Username,Password,Title\r\n"
+				+ "alice,\"Pa,ss\"\"1\",\"Line one\nline two\"\r\n"
+				+ "\r\n"
+				+ "bob,Secret1$\n"
+				+ "carol,x,y,z\n"
+				+ "dave,,"));
+		ImportRow row = reader.next();
+		assertEquals(1, row.getNumber());
+		assertEquals("alice", row.get("username"));
+		assertEquals("Pa,ss\"1", row.get("password"));
+		assertEquals("Line one\nline two", row.get("title"));
+
+		row = reader.next();
+		// The blank line still counts
+		assertEquals(3, row.getNumber());
+		assertEquals("bob", row.get("username"));
+		assertNull(row.get("title"));
+
+		row = reader.next();
+		assertNotNull(row.getProblem());
+
+		row = reader.next();
+		assertEquals("dave", row.get("username"));
+		assertEquals("", row.get("title"));
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void testNdjson() throws Exception {
+		RowReader reader = new NdjsonRowReader(new StringReader(
+				"{\"Username\": \"alice\", \"age\": 42, \"nickname\": null}\n"
+				+ "\n"
+				+ "{\"username\": \"bob\", \"roles\": [\"ADMIN\"]}\n"
+				+ "not json\n"
+				+ "{\"username\": \"carol\"}"));
+		ImportRow row = reader.next();
+		assertEquals(1, row.getNumber());
+		assertEquals("alice", row.get("username"));
+		assertEquals("42", row.get("age"));
+		assertEquals(2, row.getFields().size());
+
+		row = reader.next();
+		assertEquals(3, row.getNumber());
+		assertNotNull(row.getProblem());
+		assertNotNull(reader.next().getProblem());
+		assertEquals("carol", reader.next().get("username"));
+		assertNull(reader.next());
+	}
+}
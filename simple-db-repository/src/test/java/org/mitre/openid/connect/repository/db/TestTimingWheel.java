@@ -0,0 +1,62 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mitre.openid.connect.repository.db.util.TimingWheel;
+
+public class TestTimingWheel {
+	@Test
+	public void testFiresOnTime() {
+		TimingWheel<String> wheel = new TimingWheel<String>(10, 4, 1000);
+		wheel.schedule("a", 1015);
+		wheel.schedule("b", 1020);
+		assertEquals(2, wheel.size());
+
+		// Never early
+		assertTrue(wheel.advance(1019).isEmpty());
+		// At most a tick late
+		assertEquals(Arrays.asList("a"), wheel.advance(1020));
+		assertEquals(Arrays.asList("b"), wheel.advance(1030));
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testCascade() {
+		// 4 buckets of 10, then 40, then 160
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>(10, 4, 0);
+		for (int i = 0; i < 100; i++) {
+			wheel.schedule(i, i * 7);
+		}
+		int fired = 0;
+		for (long now = 10; fired < 100; now += 10) {
+			List<Integer> due = wheel.advance(now);
+			for (Integer key : due) {
+				long deadline = key * 7;
+				assertTrue(deadline < now);
+				assertTrue(deadline >= now - 10);
+			}
+			fired += due.size();
+		}
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testOverdue() {
+		TimingWheel<String> wheel = new TimingWheel<String>(10, 4, 1000);
+		wheel.advance(1500);
+		wheel.schedule("late", 900);
+		assertEquals(Arrays.asList("late"), wheel.advance(1510));
+	}
+
+	@Test
+	public void testSkipsIdleTime() {
+		TimingWheel<String> wheel = new TimingWheel<String>(10, 4, 0);
+		wheel.advance(Long.MAX_VALUE / 2);
+		assertEquals(Long.MAX_VALUE / 2 - (Long.MAX_VALUE / 2) % 10, wheel.getTime());
+	}
+}
@@ -0,0 +1,130 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import javax.annotation.Resource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.model.RemoteUserAttribute;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.mitre.openid.connect.repository.db.util.ValueCompressor;
+import org.mitre.openid.connect.repository.db.web.UserController;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Drives the controller directly, as the admin pages post to it
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "file:src/test/java/org/mitre/openid/connect/repository/db/test.xml" })
+public class TestUserController {
+	private static final String USERNAME = "ctrl@example.com";
+
+	@Resource UserManager usermanager;
+	@Resource UserController userController;
+
+	@Before
+	public void testSetup() throws Exception {
+		cleanup();
+		usermanager.add(USERNAME, "aAbBcC124%#$");
+		User user = usermanager.get(USERNAME);
+		user.setEmail(USERNAME);
+		user.getAttributes().add(new UserAttribute("title", "Nurse"));
+		user.getRemoteAttributes().add(new RemoteUserAttribute("photos",
+				"https://photos.example.com/ctrl", "token-1234", null));
+		usermanager.save(user);
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		if (usermanager.get(USERNAME) != null) {
+			usermanager.delete(USERNAME);
+		}
+	}
+
+	private JsonObject form(String title) {
+		JsonObject form = new JsonObject();
+		form.addProperty("email", USERNAME);
+		form.addProperty("password", "");
+		form.addProperty("role", "PATIENT");
+		form.add("admin_role", null);
+		form.addProperty("title", title);
+		return form;
+	}
+
+	@Test
+	public void testGetUserDataExpandsValues() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			sb.append("note ").append(i % 4).append(' ');
+		}
+		String note = sb.toString();
+		ValueCompressor compressor = new ValueCompressor();
+		int threshold = compressor.getThreshold();
+		User user = usermanager.get(USERNAME);
+		try {
+			compressor.setThreshold(100);
+			user.getAttributes().add(new UserAttribute("note", note, user));
+			usermanager.save(user);
+		} finally {
+			compressor.setThreshold(threshold);
+		}
+
+		JsonObject json = new JsonParser().parse(userController.getUserData(user.getId())).getAsJsonObject();
+		boolean found = false;
+		for (JsonElement attr : json.getAsJsonArray("attributes")) {
+			if ("NOTE".equals(attr.getAsJsonObject().get("name").getAsString())) {
+				assertEquals(note, attr.getAsJsonObject().get("value").getAsString());
+				found = true;
+			}
+		}
+		assertTrue(found);
+	}
+
+	@Test
+	public void testEditKeepsRemoteAttributes() throws Exception {
+		Long id = usermanager.get(USERNAME).getId();
+		userController.putUserData(id, form("Doctor").toString());
+
+		User user = usermanager.get(USERNAME);
+		assertEquals(1, user.getAttributes().size());
+		assertEquals("Doctor", user.getAttributes().iterator().next().getValue());
+		assertEquals(1, user.getRemoteAttributes().size());
+		RemoteUserAttribute remote = user.getRemoteAttributes().iterator().next();
+		assertEquals("PHOTOS", remote.getName());
+		assertEquals("token-1234", remote.getAccessToken());
+		assertNotNull(user.getPasswordHash());
+	}
+
+	@Test
+	public void testImportListsRejectedRows() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/users/import");
+		request.setContent("username,password\nctrl-weak@example.com,weak\n".getBytes("UTF-8"));
+		JsonObject json = new JsonParser().parse(
+				userController.importUsers("csv", 0L, request).getBody()).getAsJsonObject();
+
+		assertEquals(1, json.get("rejected").getAsInt());
+		JsonArray errors = json.getAsJsonArray("errors");
+		assertEquals(1, errors.size());
+		JsonObject error = errors.get(0).getAsJsonObject();
+		assertEquals(1, error.get("row").getAsInt());
+		assertEquals("ctrl-weak@example.com", error.get("username").getAsString());
+		assertNotNull(error.get("message"));
+		assertNull(json.get("errorsTruncated"));
+		assertNull(usermanager.get("ctrl-weak@example.com"));
+	}
+}
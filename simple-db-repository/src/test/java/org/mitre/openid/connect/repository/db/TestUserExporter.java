@@ -0,0 +1,112 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Resource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.bulk.CsvRowReader;
+import org.mitre.openid.connect.repository.db.bulk.CsvRowWriter;
+import org.mitre.openid.connect.repository.db.bulk.ExportFilter;
+import org.mitre.openid.connect.repository.db.bulk.ImportRow;
+import org.mitre.openid.connect.repository.db.bulk.NdjsonRowWriter;
+import org.mitre.openid.connect.repository.db.bulk.RowReader;
+import org.mitre.openid.connect.repository.db.bulk.UserExporter;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * The exporter of test.xml reads two users per page
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "file:src/test/java/org/mitre/openid/connect/repository/db/test.xml" })
+public class TestUserExporter {
+	@Resource UserManager usermanager;
+	@Resource UserExporter userExporter;
+
+	@Before
+	public void testSetup() throws Exception {
+		for (User user : usermanager.find("export%")) {
+			usermanager.delete(user.getUsername());
+		}
+		for (int i = 0; i < 5; i++) {
+			usermanager.add("export" + i, "xaBC95(#");
+			User user = usermanager.get("export" + i);
+			user.setLastname("Last, " + i);
+			user.getAttributes().add(new UserAttribute("color", i % 2 == 0 ? "blue" : "red"));
+			if (i < 2) {
+				user.getRoles().add(usermanager.findOrCreateRole("EXPORTER"));
+			}
+			usermanager.save(user);
+		}
+	}
+
+	@Test
+	public void testCsv() throws Exception {
+		ExportFilter filter = new ExportFilter();
+		filter.setUsernamePattern("export%");
+		List<String> columns = userExporter.columns(null);
+		assertTrue(columns.containsAll(UserExporter.USER_COLUMNS));
+		assertTrue(columns.contains("color"));
+
+		StringWriter file = new StringWriter();
+		assertEquals(5, userExporter.export(filter, columns, new CsvRowWriter(file, columns)));
+		RowReader reader = new CsvRowReader(new StringReader(file.toString()));
+		for (int i = 0; i < 5; i++) {
+			ImportRow row = reader.next();
+			assertEquals("export" + i, row.get("username"));
+			assertEquals("Last, " + i, row.get("lastname"));
+			assertEquals(i % 2 == 0 ? "blue" : "red", row.get("color"));
+			assertEquals(i < 2, row.get("roles").contains("EXPORTER"));
+			assertNull(row.get("password"));
+		}
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void testFilterAndColumns() throws Exception {
+		ExportFilter filter = new ExportFilter();
+		filter.setRole("EXPORTER");
+		List<String> columns = userExporter.columns(Arrays.asList("Username", "color"));
+		StringWriter file = new StringWriter();
+		assertEquals(2, userExporter.export(filter, columns, new NdjsonRowWriter(file)));
+		assertEquals("{\"username\":\"export0\",\"color\":\"blue\"}\n"
+				+ "{\"username\":\"export1\",\"color\":\"red\"}\n", file.toString());
+
+		filter.setUpdatedSince(new Date(System.currentTimeMillis() + 3600000L));
+		file = new StringWriter();
+		assertEquals(0, userExporter.export(filter, columns, new NdjsonRowWriter(file)));
+		assertFalse(file.toString().contains("export"));
+	}
+
+	@Test
+	public void testRoleMembersPaged() throws Exception {
+		for (int i : new int[] { 0, 1, 4 }) {
+			User user = usermanager.get("export" + i);
+			user.getRoles().add(usermanager.findOrCreateRole("PAGED"));
+			usermanager.save(user);
+		}
+		// The first page of members has no match, the export goes on past it
+		ExportFilter filter = new ExportFilter();
+		filter.setRole("PAGED");
+		filter.setUsernamePattern("export4");
+		List<String> columns = Arrays.asList("username");
+		StringWriter file = new StringWriter();
+		assertEquals(1, userExporter.export(filter, columns, new NdjsonRowWriter(file)));
+		assertEquals("{\"username\":\"export4\"}\n", file.toString());
+	}
+}
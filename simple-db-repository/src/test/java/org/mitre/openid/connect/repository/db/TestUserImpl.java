@@ -19,27 +19,40 @@
 package org.mitre.openid.connect.repository.db;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Resource;
 import javax.naming.AuthenticationException;
+import javax.persistence.EntityManagerFactory;
 
 import org.apache.commons.lang.math.RandomUtils;
+import org.eclipse.persistence.indirection.IndirectCollection;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mitre.openid.connect.model.UserInfo;
+import org.mitre.openid.connect.repository.FetchPlan;
 import org.mitre.openid.connect.repository.SortBy;
+import org.mitre.openid.connect.repository.UserInfoRepository;
 import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.impl.UserBatchLoader;
+import org.mitre.openid.connect.repository.db.model.RemoteUserAttribute;
 import org.mitre.openid.connect.repository.db.model.Role;
 import org.mitre.openid.connect.repository.db.model.User;
 import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.mitre.openid.connect.repository.db.util.ValueCompressor;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
@@ -53,6 +66,10 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 @ContextConfiguration(locations = { "file:src/test/java/org/mitre/openid/connect/repository/db/test.xml" })
 public class TestUserImpl {
 	@Resource UserManager usermanager;
+	@Resource StatementCounter statementCounter;
+	@Resource UserInfoRepository userinfo;
+	@Resource EntityManagerFactory entityManagerFactory;
+	@Resource UserBatchLoader userBatchLoader;
 
     @Before
     public void testSetup() throws Exception {
@@ -184,6 +201,34 @@ public class TestUserImpl {
 		assertNull(jane);
 	}
 	
+	@Test public void testGetByNames() throws Exception {
+		usermanager.add("kate", "xyZZ12##");
+		usermanager.add("kim", "xyZZ12##");
+		Map<String, User> users = usermanager.get(Arrays.asList("kate", "kim", "nobody", "kate"));
+		assertEquals(2, users.size());
+		assertEquals("kate", users.get("kate").getUsername());
+		assertEquals("kim", users.get("kim").getUsername());
+		assertNull(users.get("nobody"));
+	}
+	
+	@Test public void testBatchLoadedUsersAreLoaded() throws Exception {
+		usermanager.add("kyle", "xyZZ12##");
+		User user = userBatchLoader.load("kyle");
+		assertTrue(((IndirectCollection) user.getRoles()).isInstantiated());
+		assertTrue(((IndirectCollection) user.getAttributes()).isInstantiated());
+		assertTrue(((IndirectCollection) user.getRemoteAttributes()).isInstantiated());
+	}
+	
+	@Test public void testFindByIds() throws Exception {
+		usermanager.add("karl", "xyZZ12##");
+		usermanager.add("kurt", "xyZZ12##");
+		Long karl = usermanager.get("karl").getId();
+		Long kurt = usermanager.get("kurt").getId();
+		Map<Long, User> users = usermanager.findByIds(Arrays.asList(kurt, -1L, karl));
+		assertEquals(Arrays.asList(kurt, karl), new ArrayList<Long>(users.keySet()));
+		assertEquals("karl", users.get(karl).getUsername());
+	}
+	
 	@Test public void testFind() throws Exception {
 		usermanager.add("zooey", "xzCB15%#");
 		usermanager.add("zaaney", "xzCB15%#");
@@ -229,6 +274,217 @@ public class TestUserImpl {
 		assertTrue(c.getRoles().size() > 0);		
 	}
 	
+	@Test public void testDeleteMissingRole() throws Exception {
+		usermanager.deleteRole("NOSUCHROLE");
+		assertNull(usermanager.findRole("NOSUCHROLE"));
+	}
+	
+	@Test public void testBulkRoleOperations() throws Exception {
+		usermanager.add("bulka", "xaBC95(#");
+		usermanager.add("bulkb", "xaBC95(#");
+		usermanager.add("bulkc", "xaBC95(#");
+		Long a = usermanager.get("bulka").getId();
+		Long b = usermanager.get("bulkb").getId();
+		
+		// An id no user has is neither stored nor counted by the role index
+		assertEquals(2, usermanager.grantRole("GUEST", Arrays.asList(a, b, -7L)));
+		assertEquals(2, usermanager.countInRole("GUEST"));
+		// Granting again is a no-op
+		assertEquals(0, usermanager.grantRole("GUEST", Arrays.asList(a, b)));
+		assertEquals(1, usermanager.grantRole("GUEST", "bulk%"));
+		assertEquals(3, usermanager.countInRole("GUEST"));
+		assertTrue(usermanager.hasRole(a, "GUEST"));
+		assertEquals(1, usermanager.get("bulkc").getRoles().size());
+		
+		assertEquals(1, usermanager.revokeRole("GUEST", Arrays.asList(a)));
+		assertFalse(usermanager.hasRole(a, "GUEST"));
+		assertEquals(2, usermanager.countInRole("GUEST"));
+		
+		usermanager.renameRole("GUEST", "VISITOR");
+		assertNull(usermanager.findRole("GUEST"));
+		assertTrue(usermanager.hasRole(b, "VISITOR"));
+		
+		assertEquals(2, usermanager.deleteRole("VISITOR", "GUEST"));
+		assertNull(usermanager.findRole("VISITOR"));
+		assertTrue(usermanager.hasRole(b, "GUEST"));
+		assertEquals(2, usermanager.revokeRole("GUEST", "bulk%"));
+		assertEquals(0, usermanager.countInRole("GUEST"));
+	}
+	
+	@Test public void testListStatementsConstant() throws Exception {
+		addUsersWithAttribute("fetcha", 5);
+		int few = statementsToList("fetch%");
+		int fewPage = statementsToPage();
+		int fewInfos = statementsToGetAll();
+		addUsersWithAttribute("fetchb", 40);
+		int many = statementsToList("fetch%");
+		int manyPage = statementsToPage();
+		int manyInfos = statementsToGetAll();
+		
+		assertEquals(few, many);
+		// The users, their roles and their attributes
+		assertTrue(many <= 3);
+		assertEquals(fewPage, manyPage);
+		// The users, their attributes and their promoted values
+		assertTrue(manyPage <= 3);
+		assertEquals(fewInfos, manyInfos);
+	}
+	
+	private void addUsersWithAttribute(String prefix, int count) throws Exception {
+		for(int i = 0; i < count; i++) {
+			usermanager.add(prefix + i, "xaBC95(#");
+			User user = usermanager.get(prefix + i);
+			user.getAttributes().add(new UserAttribute("color", "blue"));
+			usermanager.save(user);
+		}
+		usermanager.grantRole("GUEST", prefix + "%");
+	}
+	
+	/**
+	 * @return the statements needed to list the matching users with their
+	 * roles and attributes, starting from an empty entity cache
+	 */
+	private int statementsToList(String pattern) {
+		entityManagerFactory.getCache().evictAll();
+		statementCounter.reset();
+		List<User> users = usermanager.find(pattern);
+		for(User user : users) {
+			assertEquals(1, user.getRoles().size());
+			assertEquals(1, user.getAttributes().size());
+		}
+		return statementCounter.getCount();
+	}
+	
+	/**
+	 * @return the statements needed to read a page of every user, starting
+	 * from an empty entity cache
+	 */
+	private int statementsToPage() {
+		entityManagerFactory.getCache().evictAll();
+		statementCounter.reset();
+		List<Map<String, String>> page = usermanager.findInRange(0, 1000, SortBy.USERNAME);
+		int statements = statementCounter.getCount();
+		assertEquals(usermanager.count(), page.size());
+		return statements;
+	}
+	
+	/**
+	 * @return the statements needed to read the user info of every user,
+	 * starting from an empty entity cache
+	 */
+	private int statementsToGetAll() {
+		entityManagerFactory.getCache().evictAll();
+		statementCounter.reset();
+		Collection<? extends UserInfo> infos = userinfo.getAll();
+		int statements = statementCounter.getCount();
+		assertEquals(usermanager.count(), infos.size());
+		return statements;
+	}
+	
+	@Test public void testBatchedInserts() throws Exception {
+		int one = statementsToCreate("batchone", 1);
+		int ten = statementsToCreate("batchten", 10);
+		// The attribute rows go out as one batch, at most a block of ids may
+		// have to be reserved on the way
+		assertTrue("" + one + " vs " + ten, ten - one <= 2);
+		assertEquals(10, usermanager.get("batchten").getAttributes().size());
+	}
+	
+	private int statementsToCreate(String username, int attributes) throws Exception {
+		User user = new User();
+		user.setUsername(username);
+		user.setPasswordHash("x");
+		user.setJamesPasswordHash("x");
+		user.setAttributes(new HashSet<UserAttribute>());
+		for(int i = 0; i < attributes; i++) {
+			user.getAttributes().add(new UserAttribute("attr" + i, "value " + i));
+		}
+		statementCounter.reset();
+		usermanager.save(user);
+		return statementCounter.getCount();
+	}
+	
+	@Test public void testAddAll() throws Exception {
+		usermanager.add("bulkold", "xaBC95(#");
+		Map<String, String> passwords = new LinkedHashMap<String, String>();
+		passwords.put("bulknew1", "xaBC95(#");
+		passwords.put("bulkold", "xaBC95(#");
+		passwords.put("bulknew2", "short");
+		passwords.put("BULKNEW1", "xaBC95(#");
+		for(int i = 0; i < 30; i++) {
+			passwords.put("bulkmany" + i, "xaBC95(#");
+		}
+		List<BatchResult> results = usermanager.addAll(passwords);
+		assertEquals(passwords.size(), results.size());
+		assertEquals(BatchResult.Status.CREATED, results.get(0).getStatus());
+		assertEquals(BatchResult.Status.EXISTS, results.get(1).getStatus());
+		assertEquals(BatchResult.Status.INVALID, results.get(2).getStatus());
+		assertEquals(BatchResult.Status.EXISTS, results.get(3).getStatus());
+		for(int i = 4; i < results.size(); i++) {
+			assertEquals(i, results.get(i).getIndex());
+			assertTrue(results.get(i).isStored());
+		}
+		assertNull(usermanager.get("bulknew2"));
+		usermanager.authenticate("bulknew1", "xaBC95(#");
+		usermanager.authenticate("bulkmany29", "xaBC95(#");
+	}
+	
+	@Test public void testSaveAll() throws Exception {
+		usermanager.add("saveold", "xaBC95(#");
+		User old = usermanager.get("saveold");
+		old.setNickname("Old Timer");
+		User fresh = new User();
+		fresh.setUsername("savenew");
+		fresh.setPasswordHash("x");
+		fresh.setJamesPasswordHash("x");
+		User taken = new User();
+		taken.setUsername("saveold");
+		taken.setPasswordHash("x");
+		taken.setJamesPasswordHash("x");
+		User unhashed = new User();
+		unhashed.setUsername("saveunhashed");
+		User missing = new User();
+		missing.setId(-5L);
+		missing.setUsername("savemissing");
+		missing.setPasswordHash("x");
+		missing.setJamesPasswordHash("x");
+		
+		List<BatchResult> results = usermanager.saveAll(Arrays.asList(old, fresh, taken, unhashed, missing));
+		assertEquals(BatchResult.Status.UPDATED, results.get(0).getStatus());
+		assertEquals(BatchResult.Status.CREATED, results.get(1).getStatus());
+		assertEquals(BatchResult.Status.EXISTS, results.get(2).getStatus());
+		assertEquals(BatchResult.Status.INVALID, results.get(3).getStatus());
+		// An id no user has is not inserted under it
+		assertEquals(BatchResult.Status.INVALID, results.get(4).getStatus());
+		assertEquals("Old Timer", usermanager.get("saveold").getNickname());
+		assertNotNull(usermanager.get("savenew"));
+		assertNull(usermanager.get("saveunhashed"));
+		assertNull(usermanager.get("savemissing"));
+	}
+	
+	@Test public void testFetchPlans() throws Exception {
+		usermanager.add("planner", "xaBC95(#");
+		User user = usermanager.get("planner");
+		user.setEmail("planner@example.com");
+		user.setFirstname("Pat");
+		usermanager.save(user);
+		Long id = user.getId();
+		
+		// Whatever a plan leaves out is loaded when it is first used
+		for(FetchPlan plan : FetchPlan.values()) {
+			User found = usermanager.get("planner", plan);
+			assertEquals(id, found.getId());
+			assertEquals("planner@example.com", found.getEmail());
+			assertEquals("Pat", found.getFirstname());
+			assertNotNull(found.getPasswordHash());
+			assertEquals("planner", usermanager.findById(id, plan).getUsername());
+			assertEquals(1, usermanager.find("plan%", plan).size());
+		}
+		assertNull(usermanager.get("nobody", FetchPlan.CREDENTIAL));
+		assertNull(usermanager.findById(-1L, FetchPlan.SUMMARY));
+		usermanager.authenticate("planner", "xaBC95(#");
+	}
+	
 	@Test public void testUserAttributes() throws Exception {
 		usermanager.add("meghan", "aAbBcC124%#$");
 		User meghan = usermanager.get("meghan");
@@ -266,6 +522,109 @@ public class TestUserImpl {
 		assertEquals("foo", attr.getValue());
 	}
 	
+	@Test public void testRemoteAttributes() throws Exception {
+		usermanager.add("remy", "aAbBcC124%#$");
+		User remy = usermanager.get("remy");
+		remy.getAttributes().add(new UserAttribute("color", "blue"));
+		remy.getRemoteAttributes().add(new RemoteUserAttribute("photos", 
+				"https://photos.example.com/remy", "token-1234", null));
+		usermanager.save(remy);
+		
+		// Remote attributes stay out of the profile attributes
+		remy = usermanager.get("remy");
+		assertEquals(1, remy.getAttributes().size());
+		assertEquals("COLOR", remy.getAttributes().iterator().next().getName());
+		List<Map<String, String>> page = usermanager.findInRange(0, 1000, SortBy.USERNAME);
+		assertEquals("blue", page.get(indexOf(page, "remy")).get("COLOR"));
+		
+		assertEquals(1, remy.getRemoteAttributes().size());
+		RemoteUserAttribute remote = remy.getRemoteAttributes().iterator().next();
+		assertEquals("PHOTOS", remote.getName());
+		assertEquals("token-1234", remote.getAccessToken());
+		
+		usermanager.delete("remy");
+		assertNull(usermanager.get("remy"));
+	}
+	
+	private int indexOf(List<Map<String, String>> page, String username) {
+		for(int i = 0; i < page.size(); i++) {
+			if (username.equals(page.get(i).get("USERNAME"))) {
+				return i;
+			}
+		}
+		fail("No user " + username);
+		return -1;
+	}
+	
+	@Test public void testFindByAttribute() throws Exception {
+		String[][] mrns = { { "mrn1", "A-100" }, { "mrn2", "A-120" }, 
+				{ "mrn3", "B-100" }, { "mrn4", "A%100" } };
+		for(String[] mrn : mrns) {
+			usermanager.add(mrn[0], "aAbBcC124%#$");
+			User user = usermanager.get(mrn[0]);
+			user.getAttributes().add(new UserAttribute("MRN", mrn[1], user));
+			usermanager.save(user);
+		}
+		
+		List<User> found = usermanager.findByAttribute("mrn", "A-120");
+		assertEquals(1, found.size());
+		assertEquals("mrn2", found.get(0).getUsername());
+		assertTrue(usermanager.findByAttribute("MRN", "A-1").isEmpty());
+		
+		// The prefix is taken literally, % only matches itself
+		found = usermanager.findByAttributePrefix("MRN", "A-", 0, 10);
+		assertEquals(2, found.size());
+		assertEquals("mrn1", found.get(0).getUsername());
+		assertEquals("mrn2", found.get(1).getUsername());
+		found = usermanager.findByAttributePrefix("MRN", "A%", 0, 10);
+		assertEquals(1, found.size());
+		assertEquals("mrn4", found.get(0).getUsername());
+		
+		found = usermanager.findByAttributeRange("MRN", "A-110", "B-200", 0, 10);
+		assertEquals(2, found.size());
+		assertEquals("mrn2", found.get(0).getUsername());
+		assertEquals("mrn3", found.get(1).getUsername());
+		found = usermanager.findByAttributeRange("MRN", "A-110", "B-200", 1, 10);
+		assertEquals(1, found.size());
+		assertEquals("mrn3", found.get(0).getUsername());
+		
+		for(String[] mrn : mrns) {
+			usermanager.delete(mrn[0]);
+		}
+	}
+	
+	@Test public void testFindCompressedAttribute() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < 40; i++) {
+			sb.append("note ").append(i % 4).append(' ');
+		}
+		String note = sb.toString();
+		ValueCompressor compressor = new ValueCompressor();
+		int threshold = compressor.getThreshold();
+		try {
+			// Written plain, looked up with compression on
+			compressor.setThreshold(0);
+			usermanager.add("plainnote", "aAbBcC124%#$");
+			User user = usermanager.get("plainnote");
+			user.getAttributes().add(new UserAttribute("NOTE", note, user));
+			usermanager.save(user);
+			compressor.setThreshold(100);
+			assertEquals(1, usermanager.findByAttribute("note", note).size());
+			
+			// Written compressed, looked up with compression off
+			usermanager.add("packednote", "aAbBcC124%#$");
+			user = usermanager.get("packednote");
+			user.getAttributes().add(new UserAttribute("NOTE", note, user));
+			usermanager.save(user);
+			compressor.setThreshold(0);
+			assertEquals(2, usermanager.findByAttribute("note", note).size());
+		} finally {
+			compressor.setThreshold(threshold);
+		}
+		usermanager.delete("plainnote");
+		usermanager.delete("packednote");
+	}
+	
 	@Test public void testRangeAndSortFinder() throws Exception {
 		for(int i = 0; i < 100; i++) {
 			createUser();
@@ -0,0 +1,100 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Resource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.bulk.CsvRowReader;
+import org.mitre.openid.connect.repository.db.bulk.ImportListener;
+import org.mitre.openid.connect.repository.db.bulk.ImportReport;
+import org.mitre.openid.connect.repository.db.bulk.UserImporter;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * The importer of test.xml stores two rows per batch
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "file:src/test/java/org/mitre/openid/connect/repository/db/test.xml" })
+public class TestUserImporter {
+	private static final String FILE = "username,password,lastname,title\n"
+			+ "importa,Fido1234$,Able,Dr\n"
+			+ "importb,weak,Baker,\n"
+			+ "importc,Fido1234$,Charlie,Prof\n"
+			+ "importd,,Delta,\n"
+			+ "importa,,Changed,Mr\n";
+
+	@Resource UserManager usermanager;
+	@Resource UserImporter userImporter;
+
+	private final List<String> rejected = new ArrayList<String>();
+	private final List<Long> committed = new ArrayList<Long>();
+	private final ImportListener listener = new ImportListener() {
+		public void rejected(long row, String username, String message) {
+			rejected.add(row + ":" + username);
+		}
+
+		public void committed(long row, ImportReport progress) {
+			committed.add(row);
+		}
+	};
+
+	@Before
+	public void testSetup() throws Exception {
+		for (User user : usermanager.find("import%")) {
+			usermanager.delete(user.getUsername());
+		}
+	}
+
+	@Test
+	public void testImport() throws Exception {
+		ImportReport report = userImporter.run(new CsvRowReader(new StringReader(FILE)), 0, listener);
+		assertEquals(5, report.getRead());
+		assertEquals(2, report.getCreated());
+		assertEquals(1, report.getUpdated());
+		assertEquals(2, report.getRejected());
+		assertEquals(5, report.getLastRow());
+		// A weak password, and a new user without one
+		assertEquals("[2:importb, 4:importd]", rejected.toString());
+		assertEquals("[2, 4, 5]", committed.toString());
+
+		User a = usermanager.get("importa");
+		assertEquals("Changed", a.getLastname());
+		assertNotNull(a.getPasswordHash());
+		int titles = 0;
+		for (UserAttribute attr : a.getAttributes()) {
+			if ("TITLE".equals(attr.getName())) {
+				assertEquals("Mr", attr.getValue());
+				titles++;
+			}
+		}
+		assertEquals(1, titles);
+		assertNull(usermanager.get("importb"));
+		assertEquals("Charlie", usermanager.get("importc").getLastname());
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		ImportReport report = userImporter.run(new CsvRowReader(new StringReader(FILE)), 2, listener);
+		assertEquals(2, report.getSkipped());
+		assertEquals(3, report.getRead());
+		assertEquals(1, report.getCreated());
+		assertNull(usermanager.get("importa"));
+		assertTrue(rejected.contains("4:importd"));
+		// Row 5 names a user that was never created and has no password
+		assertTrue(rejected.contains("5:importa"));
+	}
+}
@@ -19,12 +19,19 @@
 package org.mitre.openid.connect.repository.db;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Resource;
 
@@ -34,10 +41,12 @@ import org.junit.runner.RunWith;
 import org.mitre.openid.connect.model.Address;
 import org.mitre.openid.connect.model.DefaultUserInfo;
 import org.mitre.openid.connect.model.UserInfo;
+import org.mitre.openid.connect.repository.ClaimSet;
 import org.mitre.openid.connect.repository.UserInfoRepository;
 import org.mitre.openid.connect.repository.UserManager;
 import org.mitre.openid.connect.repository.db.data.PropertiedUserInfo;
 import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.model.UserAttribute;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
@@ -298,4 +307,180 @@ public class TestUserInfoRepository {
 		jdoe = userinforepo.getByUserId("jdoe");
 		assertNull(jdoe);
 	}
+	
+	@Test
+	public void testCachedUserInfo() throws Exception {
+		PropertiedUserInfo userInfo = new PropertiedUserInfo();
+		userInfo.setUserId("cjones");
+		userInfo.setEmail("cjones@aol.com");
+		userInfo.setFamilyName("Jones");
+		userInfo.setGivenName("Carl");
+		userinforepo.save((DefaultUserInfo) userInfo);
+		
+		PropertiedUserInfo first = (PropertiedUserInfo) userinforepo.getByUserId("cjones");
+		PropertiedUserInfo second = (PropertiedUserInfo) userinforepo.getByUserId("cjones");
+		assertSame(first, second);
+		assertTrue(first.isFrozen());
+		try {
+			first.setProperty("AGE", "40");
+			fail("Cached user info should not be modifiable");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		try {
+			first.setEmail("someone@aol.com");
+			fail("Cached user info should not be modifiable");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertEquals("cjones@aol.com", second.getEmail());
+		
+		// Saving drops the cached copy
+		userInfo.setGivenName("Carlos");
+		userinforepo.save((DefaultUserInfo) userInfo);
+		assertEquals("Carlos", userinforepo.getByUserId("cjones").getGivenName());
+		
+		// So does a rename through the user manager
+		User user = usermanager.get("cjones");
+		user.setUsername("cjones2");
+		usermanager.save(user);
+		assertNull(userinforepo.getByUserId("cjones"));
+		assertNotNull(userinforepo.getByUserId("cjones2"));
+		
+		usermanager.delete("cjones2");
+		assertNull(userinforepo.getByUserId("cjones2"));
+	}
+	
+	@Test
+	public void testGetByUserIds() throws Exception {
+		for(String userId : new String[] { "bjones", "bsmith" }) {
+			UserInfo userInfo = new DefaultUserInfo();
+			userInfo.setUserId(userId);
+			userInfo.setEmail(userId + "@aol.com");
+			userinforepo.save((DefaultUserInfo) userInfo);
+		}
+		// One of them cached, one not
+		assertNotNull(userinforepo.getByUserId("bsmith"));
+		
+		Map<String, UserInfo> infos = ((EnhancedUserInfoRepository) userinforepo)
+				.getByUserIds(Arrays.asList("bsmith", "nobody", "bjones"));
+		assertEquals(Arrays.asList("bsmith", "bjones"), new ArrayList<String>(infos.keySet()));
+		assertEquals("bjones@aol.com", infos.get("bjones").getEmail());
+		assertEquals("bsmith@aol.com", infos.get("bsmith").getEmail());
+	}
+	
+	@Test
+	public void testClaimProjection() throws Exception {
+		PropertiedUserInfo userInfo = new PropertiedUserInfo();
+		Address addr = new Address();
+		addr.setLocality("Chelmsford");
+		userInfo.setUserId("dsmith");
+		userInfo.setAddress(addr);
+		userInfo.setEmail("dsmith@aol.com");
+		userInfo.setFamilyName("Smith");
+		userInfo.setGivenName("Dan");
+		userInfo.setPhoneNumber("978 256 1111");
+		userInfo.setProperty("AGE", "41");
+		userinforepo.save((DefaultUserInfo) userInfo);
+		
+		EnhancedUserInfoRepository repo = (EnhancedUserInfoRepository) userinforepo;
+		PropertiedUserInfo ui = (PropertiedUserInfo) repo.getByUserId("dsmith", 
+				ClaimSet.fromScope("openid email"));
+		assertEquals("dsmith", ui.getUserId());
+		assertEquals("dsmith@aol.com", ui.getEmail());
+		assertNull(ui.getGivenName());
+		assertNull(ui.getAddress());
+		assertNull(ui.getPhoneNumber());
+		assertNull(ui.getProperty("AGE"));
+		assertNotNull(ui.getProperty("_USER_ID"));
+		
+		ui = (PropertiedUserInfo) repo.getByUserId("dsmith", 
+				EnumSet.of(ClaimSet.PROFILE, ClaimSet.ADDRESS, ClaimSet.EXTENDED));
+		assertNull(ui.getEmail());
+		assertEquals("Dan", ui.getGivenName());
+		assertEquals("Chelmsford", ui.getAddress().getLocality());
+		assertEquals("41", ui.getProperty("AGE"));
+		
+		assertNull(repo.getByUserId("nobody", ClaimSet.fromScope("openid")));
+	}
+	
+	@Test
+	public void testClaimsDocument() throws Exception {
+		PropertiedUserInfo userInfo = new PropertiedUserInfo();
+		userInfo.setUserId("esmith");
+		userInfo.setEmail("esmith@aol.com");
+		userInfo.setGivenName("Ed");
+		userInfo.setProperty("AGE", "52");
+		userinforepo.save((DefaultUserInfo) userInfo);
+		
+		EnhancedUserInfoRepository repo = (EnhancedUserInfoRepository) userinforepo;
+		String claims = repo.getClaimsDocument("esmith");
+		assertNotNull(claims);
+		assertTrue(claims.contains("esmith@aol.com"));
+		assertTrue(claims.contains("52"));
+		
+		userInfo.setEmail("ed.smith@aol.com");
+		userinforepo.save((DefaultUserInfo) userInfo);
+		claims = repo.getClaimsDocument("esmith");
+		assertTrue(claims.contains("ed.smith@aol.com"));
+		
+		usermanager.delete("esmith");
+		assertNull(repo.getClaimsDocument("esmith"));
+	}
+
+	@Test
+	public void testConfirmationUpdatesClaims() throws Exception {
+		PropertiedUserInfo userInfo = new PropertiedUserInfo();
+		userInfo.setUserId("gconf");
+		userInfo.setEmail("gconf@aol.com");
+		userInfo.setEmailVerified(false);
+		userinforepo.save((DefaultUserInfo) userInfo);
+		
+		EnhancedUserInfoRepository repo = (EnhancedUserInfoRepository) userinforepo;
+		String before = repo.getClaimsDocument("gconf");
+		assertNotNull(before);
+		
+		String cf = usermanager.reset("gconf");
+		assertTrue(usermanager.checkConfirmation("gconf", cf));
+		assertTrue(usermanager.get("gconf").getEmailConfirmed());
+		String after = repo.getClaimsDocument("gconf");
+		assertFalse(before.equals(after));
+		
+		assertFalse(usermanager.checkConfirmation("nobody", cf));
+	}
+
+	@Test
+	public void testAttributeDelta() throws Exception {
+		PropertiedUserInfo userInfo = new PropertiedUserInfo();
+		userInfo.setUserId("fgreen");
+		userInfo.setEmail("fgreen@aol.com");
+		userInfo.setProperty("AGE", "30");
+		userInfo.setProperty("HAIR", "brown");
+		userinforepo.save((DefaultUserInfo) userInfo);
+		Long ageId = attribute(usermanager.get("fgreen"), "AGE").getId();
+		
+		// A changed value updates its row, a blank value removes it
+		userInfo.setProperty("AGE", "31");
+		userInfo.setProperty("HAIR", "");
+		userinforepo.save((DefaultUserInfo) userInfo);
+		User user = usermanager.get("fgreen");
+		assertEquals(1, user.getAttributes().size());
+		assertEquals(ageId, attribute(user, "AGE").getId());
+		assertEquals("31", attribute(user, "AGE").getValue());
+		
+		// Saving again leaves a single attribute per name
+		userinforepo.save((DefaultUserInfo) userInfo);
+		assertEquals(1, usermanager.get("fgreen").getAttributes().size());
+		
+		usermanager.delete("fgreen");
+	}
+	
+	private UserAttribute attribute(User user, String name) {
+		for (UserAttribute attr : user.getAttributes()) {
+			if (attr.getName().equals(name)) {
+				return attr;
+			}
+		}
+		return null;
+	}
 }
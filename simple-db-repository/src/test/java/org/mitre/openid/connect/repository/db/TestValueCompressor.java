@@ -0,0 +1,102 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.mitre.openid.connect.repository.db.util.ValueCompressor;
+
+public class TestValueCompressor {
+	private final ValueCompressor compressor = new ValueCompressor();
+	private int threshold;
+
+	@Before
+	public void remember() {
+		threshold = compressor.getThreshold();
+		compressor.setThreshold(100);
+		compressor.reset();
+	}
+
+	@After
+	public void restore() {
+		compressor.setThreshold(threshold);
+	}
+
+	private static String json(int entries) {
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < entries; i++) {
+			sb.append(i > 0 ? "," : "").append("\"entry").append(i)
+					.append("\":{\"kind\":\"badge\",\"active\":true}");
+		}
+		return sb.append('}').toString();
+	}
+
+	@Test
+	public void testRoundTrip() {
+		String value = json(50);
+		String stored = ValueCompressor.encode(value);
+		assertTrue(ValueCompressor.isCompressed(stored));
+		assertTrue(stored.length() < value.length() / 4);
+		assertEquals(value, ValueCompressor.decode(stored));
+		// The same value is always stored the same way
+		assertEquals(stored, ValueCompressor.toStored(value));
+		assertEquals(stored, ValueCompressor.toCompressed(value));
+
+		assertEquals(1, compressor.getCompressedValues());
+		assertEquals(value.length() - stored.length(), compressor.getSavedChars());
+		assertEquals(1, compressor.getDecompressedValues());
+		assertEquals(value.length() - stored.length(), compressor.getReadSavedChars());
+	}
+
+	@Test
+	public void testPlainValues() {
+		String small = "short value";
+		assertSame(small, ValueCompressor.encode(small));
+		assertSame(small, ValueCompressor.decode(small));
+
+		// Not worth it, stays plain
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			sb.append((char) ('!' + (i * 37) % 90)).append(i);
+		}
+		String random = sb.toString();
+		assertSame(random, ValueCompressor.encode(random));
+
+		compressor.setThreshold(0);
+		String large = json(50);
+		assertSame(large, ValueCompressor.encode(large));
+		assertEquals(0, compressor.getCompressedValues());
+		// Compressed rows are still looked up
+		assertEquals(large, ValueCompressor.decode(ValueCompressor.toCompressed(large)));
+	}
+
+	@Test
+	public void testMarkedValue() {
+		// A value that starts with the marker is compressed whatever its size
+		String marked = ValueCompressor.MARKER + "x";
+		String stored = ValueCompressor.encode(marked);
+		assertFalse(marked.equals(stored));
+		assertEquals(marked, ValueCompressor.decode(stored));
+	}
+
+	@Test
+	public void testAttribute() {
+		String value = json(30);
+		UserAttribute attr = new UserAttribute("preferences", value);
+		assertTrue(ValueCompressor.isCompressed(attr.getStoredValue()));
+		assertEquals(value, attr.getValue());
+
+		// A loaded attribute is expanded on first use only
+		UserAttribute loaded = new UserAttribute();
+		loaded.setStoredValue(attr.getStoredValue());
+		compressor.reset();
+		assertEquals(value, loaded.getValue());
+		assertEquals(value, loaded.getValue());
+		assertEquals(1, compressor.getDecompressedValues());
+	}
+}
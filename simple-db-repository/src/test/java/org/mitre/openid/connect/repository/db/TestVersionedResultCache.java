@@ -0,0 +1,59 @@
+package org.mitre.openid.connect.repository.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.mitre.openid.connect.repository.db.util.CacheStatistics;
+import org.mitre.openid.connect.repository.db.util.VersionedResultCache;
+
+public class TestVersionedResultCache {
+
+	@Test
+	public void testVersionInvalidates() {
+		VersionedResultCache<String, String> cache = new VersionedResultCache<String, String>(1000);
+		cache.put("a", 1, "page a", 100);
+		assertEquals("page a", cache.get("a", 1));
+		assertNull(cache.get("a", 2));
+		// The stale entry is dropped on the lookup
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getTotalBytes());
+	}
+
+	@Test
+	public void testBoundedByBytes() {
+		VersionedResultCache<String, String> cache = new VersionedResultCache<String, String>(300);
+		CacheStatistics stats = new CacheStatistics();
+		cache.setStatistics(stats);
+		cache.put("a", 1, "page a", 100);
+		cache.put("b", 1, "page b", 100);
+		cache.put("c", 1, "page c", 100);
+		// Touch a so that b is the least recently used
+		assertEquals("page a", cache.get("a", 1));
+		cache.put("d", 1, "page d", 100);
+		assertNull(cache.get("b", 1));
+		assertEquals("page c", cache.get("c", 1));
+		assertEquals("page d", cache.get("d", 1));
+		assertEquals(300, cache.getTotalBytes());
+		assertEquals(1, stats.getEvictions());
+		assertEquals(1, stats.getMisses());
+	}
+
+	@Test
+	public void testOversizedValueNotCached() {
+		VersionedResultCache<String, String> cache = new VersionedResultCache<String, String>(300);
+		cache.put("a", 1, "page a", 100);
+		cache.put("big", 1, "big page", 301);
+		assertNull(cache.get("big", 1));
+		assertEquals("page a", cache.get("a", 1));
+	}
+
+	@Test
+	public void testReplace() {
+		VersionedResultCache<String, String> cache = new VersionedResultCache<String, String>(300);
+		cache.put("a", 1, "page a", 100);
+		cache.put("a", 2, "page a2", 150);
+		assertEquals("page a2", cache.get("a", 2));
+		assertEquals(150, cache.getTotalBytes());
+	}
+}
@@ -0,0 +1,84 @@
+package org.mitre.openid.connect.repository.db;
+
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.descriptors.changetracking.ChangeTracker;
+import org.eclipse.persistence.internal.weaving.PersistenceWeaved;
+import org.mitre.openid.connect.repository.UserManager;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.springframework.context.support.FileSystemXmlApplicationContext;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Times the start of the persistence unit and the flush of a few changed
+ * users among many loaded ones, which is where change tracking pays off. Not
+ * a unit test, run it with the test classpath once against a woven build and
+ * once against a build made with <code>-Dweave.phase=none</code>:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.mitre.openid.connect.repository.db.UserFlushBenchmark
+ * </pre>
+ */
+public class UserFlushBenchmark {
+	private static final int USERS = 2000;
+	private static final int CHANGED = 20;
+	private static final int ROUNDS = 20;
+
+	public static void main(String[] args) throws Exception {
+		long started = System.nanoTime();
+		FileSystemXmlApplicationContext context = new FileSystemXmlApplicationContext(
+				"src/test/java/org/mitre/openid/connect/repository/db/test.xml");
+		System.out.println("Woven: "
+				+ PersistenceWeaved.class.isAssignableFrom(User.class)
+				+ ", change tracking: "
+				+ (ChangeTracker.class.isAssignableFrom(User.class) ? "object"
+						: "deferred"));
+		System.out.println("Context started in "
+				+ (System.nanoTime() - started) / 1000000 + " ms");
+		try {
+			UserManager usermanager = context.getBean(UserManager.class);
+			for (int i = 0; i < USERS; i++) {
+				usermanager.add("flush" + i, "xaBC95(#");
+			}
+			final EntityManager em = SharedEntityManagerCreator
+					.createSharedEntityManager(context
+							.getBean(EntityManagerFactory.class));
+			TransactionTemplate tx = new TransactionTemplate(
+					context.getBean(PlatformTransactionManager.class));
+			final long[] flushNanos = new long[1];
+			for (int round = 0; round < ROUNDS; round++) {
+				final int r = round;
+				tx.execute(new TransactionCallbackWithoutResult() {
+					@Override
+					protected void doInTransactionWithoutResult(
+							TransactionStatus status) {
+						@SuppressWarnings("unchecked")
+						List<User> users = em.createNamedQuery("users.like_name")
+								.setParameter("pattern", "flush%")
+								.getResultList();
+						for (int i = 0; i < CHANGED; i++) {
+							users.get(i * (users.size() / CHANGED))
+									.setNickname("round " + r);
+						}
+						long start = System.nanoTime();
+						em.flush();
+						flushNanos[0] += System.nanoTime() - start;
+					}
+				});
+			}
+			System.out.println("Flush of " + CHANGED + " changed users among "
+					+ USERS + " loaded: " + flushNanos[0] / ROUNDS / 1000
+					+ " us");
+		} finally {
+			context.close();
+		}
+	}
+}
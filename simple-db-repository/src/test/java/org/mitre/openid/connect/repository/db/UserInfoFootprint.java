@@ -0,0 +1,88 @@
+package org.mitre.openid.connect.repository.db;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mitre.openid.connect.repository.db.data.CompactPropertyMap;
+import org.mitre.openid.connect.repository.db.data.PropertiedUserInfo;
+import org.mitre.openid.connect.repository.db.impl.UserInfoMapper;
+import org.mitre.openid.connect.repository.db.model.User;
+
+/**
+ * Estimates the retained heap of cached user info. Not a unit test, run it
+ * with the test classpath and a fixed heap:
+ *
+ * <pre>
+ * mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java \
+ *     -Dexec.args="-Xms512m -Xmx512m -cp %classpath org.mitre.openid.connect.repository.db.UserInfoFootprint"
+ * </pre>
+ *
+ * Reports the bytes per user info as mapped, then the bytes per copy of its
+ * extended properties held in a compact map and, as they were stored before,
+ * in a hash map with a private copy of each name.
+ */
+public class UserInfoFootprint {
+	private static final int COUNT = 50000;
+
+	public static void main(String[] args) {
+		UserInfoMapperBenchmark fixture = new UserInfoMapperBenchmark();
+		fixture.setup();
+		User user = fixture.getUser();
+		UserInfoMapper mapper = new UserInfoMapper();
+
+		Object[] infos = new Object[COUNT];
+		long before = usedHeap();
+		for (int i = 0; i < COUNT; i++) {
+			PropertiedUserInfo info = mapper.toUserInfo(user);
+			info.freeze();
+			infos[i] = info;
+		}
+		long compact = (usedHeap() - before) / COUNT;
+
+		PropertiedUserInfo sample = (PropertiedUserInfo) infos[0];
+		Object[] compactMaps = new Object[COUNT];
+		before = usedHeap();
+		for (int i = 0; i < COUNT; i++) {
+			CompactPropertyMap map = new CompactPropertyMap();
+			for (String key : sample.keySet()) {
+				map.put(new String(key), sample.getProperty(key));
+			}
+			map.trimToSize();
+			compactMaps[i] = map;
+		}
+		long compactProperties = (usedHeap() - before) / COUNT;
+
+		Object[] hashMaps = new Object[COUNT];
+		before = usedHeap();
+		for (int i = 0; i < COUNT; i++) {
+			Map<String, String> map = new HashMap<String, String>();
+			for (String key : sample.keySet()) {
+				map.put(new String(key), sample.getProperty(key));
+			}
+			hashMaps[i] = map;
+		}
+		long hashedProperties = (usedHeap() - before) / COUNT;
+
+		System.out.println("User info: " + compact + " bytes each");
+		System.out.println("Extended properties, compact map: "
+				+ compactProperties + " bytes each");
+		System.out.println("Extended properties, hash map: "
+				+ hashedProperties + " bytes each");
+		System.out.println("Measured "
+				+ (infos.length + compactMaps.length + hashMaps.length)
+				+ " objects");
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,103 @@
+package org.mitre.openid.connect.repository.db;
+
+import java.sql.Date;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.mitre.openid.connect.repository.db.data.PropertiedUserInfo;
+import org.mitre.openid.connect.repository.db.impl.UserInfoMapper;
+import org.mitre.openid.connect.repository.db.model.User;
+import org.mitre.openid.connect.repository.db.model.UserAttribute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput of the user to user info mapping. Not a unit test, run it with
+ * the test classpath:
+ * 
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.mitre.openid.connect.repository.db.UserInfoMapperBenchmark
+ * </pre>
+ * 
+ * The GC profiler reports the bytes allocated per mapping as
+ * <code>gc.alloc.rate.norm</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserInfoMapperBenchmark {
+	private UserInfoMapper mapper;
+	private User user;
+
+	@Setup
+	public void setup() {
+		mapper = new UserInfoMapper();
+		user = new User();
+		user.setId(1234L);
+		user.setUsername("msmith");
+		user.setEmail("msmith@aol.com");
+		user.setFirstname("Michael");
+		user.setMiddlename("Eugene");
+		user.setLastname("Smith");
+		user.setNickname("Mike");
+		user.setGender("M");
+		user.setLocale("en-US");
+		user.setPhone("978 256 1111");
+		user.setPicture("http://www.flicker.com/123456.png");
+		user.setProfile("http://www.facebook.com/mesmith");
+		user.setWebsite("http://www.linkedin.com/mesmith");
+		user.setZoneinfo("zone1");
+		user.setStreet("126 Penny Lane");
+		user.setLocality("Chelmsford");
+		user.setRegion("Massachusetts");
+		user.setPostalCode("01824");
+		user.setCountry("USA");
+		user.setEmailConfirmed(true);
+		user.setUpdated(new Date(System.currentTimeMillis()));
+		user.setAttributes(new HashSet<UserAttribute>());
+		for (int i = 0; i < 8; i++) {
+			user.getAttributes().add(new UserAttribute("ATTR" + i, "value " + i));
+		}
+	}
+
+	/**
+	 * @return the user set up as the fixture
+	 */
+	public User getUser() {
+		return user;
+	}
+
+	@Benchmark
+	public PropertiedUserInfo toUserInfo() {
+		return mapper.toUserInfo(user);
+	}
+
+	@Benchmark
+	public String toClaimsJson() {
+		return mapper.toClaimsJson(user);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.include(UserInfoMapperBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
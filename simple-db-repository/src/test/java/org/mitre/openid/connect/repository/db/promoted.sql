@@ -0,0 +1,2 @@
+-- A typed column for the attribute test.xml promotes
+alter table USER_PROMOTED_ATTRIBUTES add column BADGE bigint;